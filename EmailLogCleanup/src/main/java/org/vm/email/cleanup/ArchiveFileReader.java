@@ -0,0 +1,304 @@
+package org.vm.email.cleanup;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.opencsv.CSVParserBuilder;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.enums.CSVReaderNullFieldIndicator;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.api.ReadSupport;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.io.DelegatingSeekableInputStream;
+import org.apache.parquet.io.InputFile;
+import org.apache.parquet.io.SeekableInputStream;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.vm.shared.Compression;
+import org.vm.shared.ReadLog;
+
+/**
+ * The ArchiveFileReader reads back the rows of a file written by Clean, whether it is a CSV or JSON Lines file,
+ * plain or compressed, or a Parquet file. Rows come back as they were handed to the file writer: the columns of
+ * CleanCSVWriter.HEADER, or only the 8 mail_log columns for an email without sendgrid events in a CSV or JSON
+ * Lines file. A JSON Lines record is turned back into one row per event.
+ * Missing values are null, and the extra pair of quotes CleanCSVWriter puts around values with a comma is
+ * removed. Timestamps of Parquet files are formatted the way the CSV files show them.
+ */
+public abstract class ArchiveFileReader implements Closeable {
+
+    /**
+     * Opens a file of the archive.
+     * @param archive reads the files of the destination.
+     * @param filename of the file, whose extension tells its format and compression.
+     * @return the reader, positioned before the first row.
+     * @throws IOException if the file cannot be read.
+     */
+    public static ArchiveFileReader open(ReadLog archive, String filename) throws IOException {
+        if (filename.endsWith(".parquet")) {
+            return new ParquetFileReader(archive, filename);
+        } else if (filename.replaceFirst("\\.(gz|zst)$", "").endsWith(".jsonl")) {
+            return new JsonLinesFileReader(archive, filename);
+        }
+        return new CsvFileReader(archive, filename);
+    }
+
+    /**
+     * Reads the next row.
+     * @return the columns of the row, or null at the end of the file.
+     * @throws IOException in case of error.
+     */
+    public abstract String[] readRow() throws IOException;
+
+    /**
+     * Reads the rows of a CSV file, skipping its header.
+     */
+    private static final class CsvFileReader extends ArchiveFileReader {
+        private final CSVReader reader;
+
+        private CsvFileReader(ReadLog archive, String filename) throws IOException {
+            //Unquoted empty fields are the null values, quoted ones are empty strings.
+            reader = new CSVReaderBuilder(new InputStreamReader(
+                Compression.decompress(archive.readLog(filename), filename), StandardCharsets.UTF_8))
+                         .withCSVParser(new CSVParserBuilder()
+                                            .withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS)
+                                            .build())
+                         .withSkipLines(1)
+                         .build();
+        }
+
+        @Override
+        public String[] readRow() throws IOException {
+            String[] row = reader.readNext();
+            if (row != null) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = unwrapComma(row[i]);
+                }
+            }
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        /**
+         * Removes the pair of quotes CleanCSVWriter adds around a value with a comma. Every such value got
+         * exactly one extra pair, so one pair is removed even if the original value was quoted itself.
+         * @param value as read by the CSV parser.
+         * @return the value as it was in the database.
+         */
+        private static String unwrapComma(String value) {
+            if (value != null && value.length() >= 2 && value.indexOf(',') >= 0 && value.charAt(0) == '"'
+                    && value.charAt(value.length() - 1) == '"') {
+                return value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Reads the records of a JSON Lines file written by CleanJsonLinesWriter and hands out their rows.
+     */
+    private static final class JsonLinesFileReader extends ArchiveFileReader {
+        private final BufferedReader reader;
+        private final JSONParser parser = new JSONParser();
+        private final Deque<String[]> rows = new ArrayDeque<>();
+
+        private JsonLinesFileReader(ReadLog archive, String filename) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(
+                Compression.decompress(archive.readLog(filename), filename), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String[] readRow() throws IOException {
+            while (rows.isEmpty()) {
+                String line = reader.readLine();
+                if (line == null) {
+                    return null;
+                } else if (!line.isEmpty()) {
+                    readRecord(line);
+                }
+            }
+            return rows.poll();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        /**
+         * Turns a record into the row of its email, if it has no events, or a row for every event. The mail_log
+         * columns are named, the sendgrid_event columns of an event are in the order of the header.
+         * @param line the record.
+         * @throws IOException if the record is not valid JSON.
+         */
+        private void readRecord(String line) throws IOException {
+            JSONObject record;
+            try {
+                record = (JSONObject) parser.parse(line);
+            } catch (ParseException | ClassCastException e) {
+                throw new IOException("Invalid JSON Lines record: " + e, e);
+            }
+            String[] mail = new String[CleanJsonLinesWriter.MAIL_COLUMNS];
+            for (int i = 0; i < mail.length; i++) {
+                mail[i] = toString(record.get(CleanJsonLinesWriter.NAMES[i]));
+            }
+            JSONArray events = (JSONArray) record.get("events");
+            if (events == null || events.isEmpty()) {
+                rows.add(mail);
+                return;
+            }
+            for (Object item : events) {
+                JSONArray event = (JSONArray) item;
+                String[] row = new String[CleanJsonLinesWriter.NAMES.length];
+                System.arraycopy(mail, 0, row, 0, mail.length);
+                for (int i = 0; i < event.size() && mail.length + i < row.length; i++) {
+                    row[mail.length + i] = toString(event.get(i));
+                }
+                rows.add(row);
+            }
+        }
+
+        /**
+         * Turns a JSON value back into the column it was written from.
+         * @param value a string, a number or null.
+         * @return the column.
+         */
+        private static String toString(Object value) {
+            return value == null ? null : value.toString();
+        }
+    }
+
+    /**
+     * Reads the rows of a Parquet file. Parquet reads the footer of a file first, so the file is downloaded to a
+     * temporary file before it is read.
+     */
+    private static final class ParquetFileReader extends ArchiveFileReader {
+        private final File local;
+        private final ParquetReader<Group> reader;
+
+        private ParquetFileReader(ReadLog archive, String filename) throws IOException {
+            local = File.createTempFile("archive", ".parquet");
+            try {
+                try (InputStream in = archive.readLog(filename)) {
+                    Files.copy(in, local.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                ParquetReader.Builder<Group> builder = new ParquetReader.Builder<Group>(new LocalInputFile(local)) {
+                    @Override
+                    protected ReadSupport<Group> getReadSupport() {
+                        return new GroupReadSupport();
+                    }
+                };
+                reader = builder.withConf(new Configuration(false)).build();
+            } catch (IOException | RuntimeException e) {
+                local.delete();
+                throw e;
+            }
+        }
+
+        @Override
+        public String[] readRow() throws IOException {
+            Group group = reader.read();
+            return group == null ? null : toRow(group);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                reader.close();
+            } finally {
+                local.delete();
+            }
+        }
+
+        /**
+         * Converts a Parquet row to the columns of a CSV row.
+         * @param group the Parquet row.
+         * @return the columns, null where a value is missing.
+         */
+        private static String[] toRow(Group group) {
+            MessageType schema = CleanParquetWriter.SCHEMA;
+            String[] row = new String[schema.getFieldCount()];
+            for (int i = 0; i < row.length; i++) {
+                if (group.getFieldRepetitionCount(i) == 0) {
+                    continue;
+                }
+                if (schema.getType(i).getLogicalTypeAnnotation()
+                        instanceof LogicalTypeAnnotation.TimestampLogicalTypeAnnotation) {
+                    row[i] = CleanParquetWriter.fromLocalMillis(group.getLong(i, 0));
+                } else {
+                    row[i] = group.getValueToString(i, 0);
+                }
+            }
+            return row;
+        }
+    }
+
+    /**
+     * Lets Parquet read a local file without going through the Hadoop file systems.
+     */
+    private static final class LocalInputFile implements InputFile {
+        private final File file;
+
+        private LocalInputFile(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public long getLength() {
+            return file.length();
+        }
+
+        @Override
+        public SeekableInputStream newStream() throws IOException {
+            final RandomAccessFile random = new RandomAccessFile(file, "r");
+            InputStream in = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    return random.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return random.read(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    random.close();
+                }
+            };
+            return new DelegatingSeekableInputStream(in) {
+                @Override
+                public long getPos() throws IOException {
+                    return random.getFilePointer();
+                }
+
+                @Override
+                public void seek(long newPos) throws IOException {
+                    random.seek(newPos);
+                }
+            };
+        }
+    }
+}
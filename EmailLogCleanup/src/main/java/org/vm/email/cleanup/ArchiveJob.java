@@ -0,0 +1,523 @@
+package org.vm.email.cleanup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The ArchiveJob describes what a run archives: the parent table, which is read in order of its time column and
+ * id, the values of its exclude column whose rows are not archived, and optionally a child table whose rows are
+ * joined to their parent by a key column and deleted with it. Every row of a file holds the output columns of a
+ * parent row followed by those of one of its child rows, or only the parent columns if it has none. The default
+ * job, MAIL_LOG, archives mail_log with its sendgrid events as Clean always has; other log tables are described
+ * with ARCHIVE_JOB, as JSON:
+ * <pre>
+ * {"table": "sms_log", "id": "id", "time": "sent_time", "key": "sid", "prefix": "sl_",
+ *  "columns": ["id:long", "phone", "sid", "sent_time:timestamp", "type"],
+ *  "exclude": {"column": "type", "values": ["test"], "delete": true}, "lookup": "phone",
+ *  "child": {"table": "sms_event", "key": "sid", "prefix": "ev_", "name": "events",
+ *            "columns": ["event", "code:int", "created:timestamp"]}}
+ * </pre>
+ * A column is a name with an optional type, string by default. Numbers are read as numbers, so that a NULL
+ * number is archived as 0, and timestamps are formatted the way the database shows them, in PST. The id, time
+ * and key columns have to be output columns of the parent.
+ */
+public class ArchiveJob {
+
+    /**
+     * Table and column names are put into the statements as they are, so they are limited to these characters.
+     */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*");
+
+    /**
+     * The type of an output column, which decides how it is read and how it is stored in a Parquet file.
+     */
+    public enum Type {
+        STRING, INT, LONG, TIMESTAMP
+    }
+
+    /**
+     * An output column of a table.
+     */
+    public static final class Column {
+        private final String name;
+        private final Type type;
+
+        /**
+         * The constructor takes in the name of the column and its type.
+         * @param name of the column in the table.
+         * @param type of the column.
+         */
+        public Column(String name, Type type) {
+            this.name = checkName(name);
+            this.type = type;
+        }
+
+        /**
+         * Reads a column given as name:type, ex: sent_time:timestamp.
+         * @param spec the name, optionally followed by the type.
+         * @return the column.
+         */
+        static Column of(String spec) {
+            int colon = spec.indexOf(':');
+            if (colon < 0) {
+                return new Column(spec, Type.STRING);
+            }
+            return new Column(spec.substring(0, colon), Type.valueOf(spec.substring(colon + 1).toUpperCase()));
+        }
+
+        /**
+         * The name of the column in the table.
+         * @return the name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The type of the column.
+         * @return the type.
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Reads the value of the column from the current row of a result set.
+         * @param rs the ResultSet positioned on a row.
+         * @param index of the column in the result set.
+         * @return the value as it is written to a file.
+         * @throws SQLException in case of error.
+         */
+        String read(ResultSet rs, int index) throws SQLException {
+            switch (type) {
+                case INT:
+                    return Integer.toString(rs.getInt(index));
+                case LONG:
+                    return Long.toString(rs.getLong(index));
+                case TIMESTAMP:
+                    Timestamp value = rs.getTimestamp(index);
+                    return value == null ? null : Clean.tsToString(value);
+                default:
+                    return rs.getString(index);
+            }
+        }
+    }
+
+    /**
+     * The job Clean runs when ARCHIVE_JOB is not set: mail_log and its sendgrid events, without the
+     * custom_email_to_volunteer emails, which are deleted without being archived.
+     */
+    public static final ArchiveJob MAIL_LOG = new ArchiveJob("mail_log", "id", "sent_time", "guid", "ml_",
+        columns("id:long", "email", "guid", "host", "ref1", "ref2", "sent_time:timestamp", "type"),
+        "type", Collections.singletonList("custom_email_to_volunteer"), true, "email",
+        "sendgrid_event", "guid", "se_", "events",
+        columns("sg_event_id", "asm_group_id:int", "attempt", "category", "email", "event", "ip", "reason",
+            "response", "sg_message_id", "smtp_id", "status", "timestamp:timestamp", "tls:int", "type",
+            "unsubscribe_url", "url", "url_offset", "useragent", "vm_timestamp:timestamp"));
+
+    private final String table;
+    private final String idColumn;
+    private final String timeColumn;
+    private final String keyColumn;
+    private final String prefix;
+    private final List<Column> columns;
+    private final String excludeColumn;
+    private final List<String> excludedValues;
+    private final boolean deleteExcluded;
+    private final String lookupColumn;
+    private final String childTable;
+    private final String childKeyColumn;
+    private final String childPrefix;
+    private final String childName;
+    private final List<Column> childColumns;
+
+    /**
+     * The constructor takes in the description of the job.
+     * @param table the parent table.
+     * @param idColumn the unique, numeric id of the parent table.
+     * @param timeColumn the time the parent rows are archived by.
+     * @param keyColumn the column of the parent table its child rows refer to, null without a child table.
+     * @param prefix of the names of the parent columns in the files.
+     * @param columns the output columns of the parent table.
+     * @param excludeColumn the column whose values exclude a parent row from the archive, null to archive all.
+     * @param excludedValues the values of the exclude column that are not archived.
+     * @param deleteExcluded whether the excluded rows before the cutoff date are deleted without being archived.
+     * @param lookupColumn a second column ArchiveLookup can find the rows of a file by, null for none.
+     * @param childTable the child table, null for none.
+     * @param childKeyColumn the column of the child table that refers to the key column.
+     * @param childPrefix of the names of the child columns in the files.
+     * @param childName of the list of child rows in a JSON Lines record.
+     * @param childColumns the output columns of the child table.
+     */
+    public ArchiveJob(String table, String idColumn, String timeColumn, String keyColumn, String prefix,
+                      List<Column> columns, String excludeColumn, List<String> excludedValues, boolean deleteExcluded,
+                      String lookupColumn, String childTable, String childKeyColumn, String childPrefix,
+                      String childName, List<Column> childColumns) {
+        this.table = checkName(table);
+        this.idColumn = checkName(idColumn);
+        this.timeColumn = checkName(timeColumn);
+        this.keyColumn = keyColumn == null ? null : checkName(keyColumn);
+        this.prefix = prefix == null ? "" : prefix;
+        this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+        this.excludeColumn = excludeColumn == null ? null : checkName(excludeColumn);
+        this.excludedValues = excludedValues == null ? Collections.emptyList()
+                                  : Collections.unmodifiableList(new ArrayList<>(excludedValues));
+        this.deleteExcluded = deleteExcluded;
+        this.lookupColumn = lookupColumn == null ? null : checkName(lookupColumn);
+        this.childTable = childTable == null ? null : checkName(childTable);
+        this.childKeyColumn = childKeyColumn == null ? null : checkName(childKeyColumn);
+        this.childPrefix = childPrefix == null ? "" : childPrefix;
+        this.childName = childName == null ? childTable : childName;
+        this.childColumns = childColumns == null ? Collections.emptyList()
+                                : Collections.unmodifiableList(new ArrayList<>(childColumns));
+        indexOf(idColumn);
+        indexOf(timeColumn);
+        if (lookupColumn != null) {
+            indexOf(lookupColumn);
+        }
+        if (childTable != null) {
+            if (keyColumn == null || childKeyColumn == null || this.childColumns.isEmpty()) {
+                throw new IllegalArgumentException("The child table " + childTable
+                                                       + " needs a key, a child key and columns");
+            }
+            indexOf(keyColumn);
+        }
+        if (excludeColumn != null && this.excludedValues.isEmpty()) {
+            throw new IllegalArgumentException("The exclude column " + excludeColumn + " has no values");
+        }
+    }
+
+    /**
+     * Reads the job of a run from ARCHIVE_JOB.
+     * @param config the job as JSON, or the path of a file holding it, null for MAIL_LOG.
+     * @return the job.
+     * @throws IOException if the file cannot be read.
+     * @throws ParseException if the JSON is not valid.
+     */
+    public static ArchiveJob of(String config) throws IOException, ParseException {
+        if (config == null) {
+            return MAIL_LOG;
+        }
+        String json = config.trim().startsWith("{") ? config
+                          : new String(Files.readAllBytes(Paths.get(config)), StandardCharsets.UTF_8);
+        return fromJson((JSONObject) new JSONParser().parse(json));
+    }
+
+    /**
+     * Builds a job from its JSON description.
+     * @param json the description, laid out as in the class comment.
+     * @return the job.
+     */
+    static ArchiveJob fromJson(JSONObject json) {
+        JSONObject exclude = (JSONObject) json.get("exclude");
+        JSONObject child = (JSONObject) json.get("child");
+        return new ArchiveJob((String) json.get("table"), (String) json.getOrDefault("id", "id"),
+            (String) json.get("time"), (String) json.get("key"), (String) json.get("prefix"),
+            columns((JSONArray) json.get("columns")),
+            exclude == null ? null : (String) exclude.get("column"),
+            exclude == null ? null : strings((JSONArray) exclude.get("values")),
+            exclude != null && Boolean.TRUE.equals(exclude.get("delete")), (String) json.get("lookup"),
+            child == null ? null : (String) child.get("table"), child == null ? null : (String) child.get("key"),
+            child == null ? null : (String) child.get("prefix"), child == null ? null : (String) child.get("name"),
+            child == null ? null : columns((JSONArray) child.get("columns")));
+    }
+
+    /**
+     * The names of the columns of a file: the parent columns followed by the child columns, with their prefixes.
+     * @return the header, a new array every time.
+     */
+    public String[] getHeader() {
+        String[] header = new String[getWidth()];
+        for (int i = 0; i < columns.size(); i++) {
+            header[i] = prefix + columns.get(i).getName();
+        }
+        for (int i = 0; i < childColumns.size(); i++) {
+            header[columns.size() + i] = childPrefix + childColumns.get(i).getName();
+        }
+        return header;
+    }
+
+    /**
+     * The types of the columns of a file, in the order of the header.
+     * @return the types.
+     */
+    public Type[] getTypes() {
+        Type[] types = new Type[getWidth()];
+        for (int i = 0; i < columns.size(); i++) {
+            types[i] = columns.get(i).getType();
+        }
+        for (int i = 0; i < childColumns.size(); i++) {
+            types[columns.size() + i] = childColumns.get(i).getType();
+        }
+        return types;
+    }
+
+    /**
+     * The number of columns of a row with a child row.
+     * @return the width.
+     */
+    public int getWidth() {
+        return columns.size() + childColumns.size();
+    }
+
+    /**
+     * The index of a parent column in a row.
+     * @param column the name of the column.
+     * @return the index.
+     */
+    public int indexOf(String column) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).getName().equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("The column " + column + " is not an output column of " + table);
+    }
+
+    /**
+     * The list of the parent columns of a SELECT.
+     * @return the names, separated by commas.
+     */
+    public String selectList() {
+        return selectList(columns);
+    }
+
+    /**
+     * The list of the child columns of a SELECT, with the child key, which the rows are grouped by.
+     * @return the names, separated by commas.
+     */
+    public String childSelectList() {
+        List<Column> selected = new ArrayList<>(childColumns);
+        selected.add(new Column(childKeyColumn, Type.STRING));
+        return selectList(selected);
+    }
+
+    /**
+     * The condition that leaves out the excluded rows, to be added to a WHERE clause. As with a comparison, rows
+     * whose exclude column is NULL are left out as well.
+     * @return the condition starting with AND, empty if no rows are excluded.
+     */
+    public String exclusion() {
+        return excludeColumn == null ? "" : " AND " + excludeColumn + " NOT IN " + excludedList();
+    }
+
+    /**
+     * The condition that selects only the excluded rows, to be added to a WHERE clause.
+     * @return the condition starting with AND.
+     */
+    public String excludedOnly() {
+        return " AND " + excluded("");
+    }
+
+    /**
+     * The condition that holds for the excluded rows, for a WHERE clause that names the table by an alias.
+     * @param prefix of the exclude column, ex: "m.", or empty.
+     * @return the condition.
+     */
+    public String excluded(String prefix) {
+        return prefix + excludeColumn + " IN " + excludedList();
+    }
+
+    /**
+     * The parent table.
+     * @return the name of the table.
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * The id column of the parent table.
+     * @return the name of the column.
+     */
+    public String getIdColumn() {
+        return idColumn;
+    }
+
+    /**
+     * The time column of the parent table.
+     * @return the name of the column.
+     */
+    public String getTimeColumn() {
+        return timeColumn;
+    }
+
+    /**
+     * The column of the parent table that its child rows refer to.
+     * @return the name of the column, null without a child table.
+     */
+    public String getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * The second column ArchiveLookup finds the rows of a file by.
+     * @return the name of the column, null for none.
+     */
+    public String getLookupColumn() {
+        return lookupColumn;
+    }
+
+    /**
+     * Whether or not the excluded rows before the cutoff date are deleted without being archived.
+     * @return true if they are deleted.
+     */
+    public boolean isDeleteExcluded() {
+        return deleteExcluded && excludeColumn != null;
+    }
+
+    /**
+     * Whether or not the job has excluded rows that stay in the database, neither archived nor deleted.
+     * @return true if excluded rows are kept.
+     */
+    public boolean keepsExcluded() {
+        return excludeColumn != null && !deleteExcluded;
+    }
+
+    /**
+     * Whether or not the job has a child table.
+     * @return true if child rows are joined and deleted.
+     */
+    public boolean hasChild() {
+        return childTable != null;
+    }
+
+    /**
+     * The child table.
+     * @return the name of the table, null for none.
+     */
+    public String getChildTable() {
+        return childTable;
+    }
+
+    /**
+     * The column of the child table that refers to the parent key.
+     * @return the name of the column.
+     */
+    public String getChildKeyColumn() {
+        return childKeyColumn;
+    }
+
+    /**
+     * The name of the list of child rows in a JSON Lines record.
+     * @return the name.
+     */
+    public String getChildName() {
+        return childName;
+    }
+
+    /**
+     * The output columns of the parent table.
+     * @return the columns.
+     */
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    /**
+     * The output columns of the child table.
+     * @return the columns, empty without a child table.
+     */
+    public List<Column> getChildColumns() {
+        return childColumns;
+    }
+
+    /**
+     * Describes the job for the log.
+     * @return ex: "mail_log by sent_time, joined with sendgrid_event on guid".
+     */
+    @Override
+    public String toString() {
+        return table + " by " + timeColumn + (childTable == null ? ""
+                                                  : ", joined with " + childTable + " on " + childKeyColumn);
+    }
+
+    /**
+     * Turns the excluded values into a list of SQL strings. They come from the configuration of the function.
+     * @return ex: ('custom_email_to_volunteer').
+     */
+    private String excludedList() {
+        StringBuilder list = new StringBuilder("(");
+        for (String value : excludedValues) {
+            list.append(list.length() == 1 ? "'" : ", '").append(value.replace("'", "''")).append("'");
+        }
+        return list.append(")").toString();
+    }
+
+    /**
+     * Joins the names of columns for a SELECT.
+     * @param selected the columns.
+     * @return the names, separated by commas.
+     */
+    private static String selectList(List<Column> selected) {
+        StringBuilder list = new StringBuilder();
+        for (Column column : selected) {
+            list.append(list.length() == 0 ? "" : ", ").append(column.getName());
+        }
+        return list.toString();
+    }
+
+    /**
+     * Reads the columns of a table given as name:type.
+     * @param specs the columns.
+     * @return the columns.
+     */
+    private static List<Column> columns(String... specs) {
+        List<Column> columns = new ArrayList<>();
+        for (String spec : specs) {
+            columns.add(Column.of(spec));
+        }
+        return columns;
+    }
+
+    /**
+     * Reads the columns of a table from a JSON array of name:type strings.
+     * @param specs the columns.
+     * @return the columns.
+     */
+    private static List<Column> columns(JSONArray specs) {
+        if (specs == null || specs.isEmpty()) {
+            throw new IllegalArgumentException("An archive job needs the columns of each table");
+        }
+        return columns(strings(specs).toArray(new String[0]));
+    }
+
+    /**
+     * Reads a JSON array of strings.
+     * @param array the JSON array.
+     * @return the strings.
+     */
+    private static List<String> strings(JSONArray array) {
+        List<String> strings = new ArrayList<>();
+        for (Object value : array) {
+            strings.add((String) value);
+        }
+        return strings;
+    }
+
+    /**
+     * Checks that a table or column name can be put into a statement as it is.
+     * @param name of the table or column.
+     * @return the name.
+     */
+    private static String checkName(String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid table or column name " + name + " in the archive job");
+        }
+        return name;
+    }
+}
@@ -0,0 +1,200 @@
+package org.vm.email.cleanup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vm.shared.LocalLogWriter;
+import org.vm.shared.ReadLog;
+import org.vm.shared.S3LogWriter;
+
+/**
+ * The ArchiveLookup finds the archived rows of an email by its guid, its recipient address or its mail_log id.
+ * It reads the manifests written by Clean next to the files and only downloads the files whose Bloom filter
+ * matches the guid or address, or whose id range holds the id, and whose sent_time range overlaps the optional
+ * time range. Those files are then scanned for the rows of the email. A Bloom filter never misses an email that
+ * is in its file, so the files that are skipped certainly do not hold it.
+ * Run with:
+ * java -cp EmailLogCleanup-1.0.jar org.vm.email.cleanup.ArchiveLookup destination baseName guid|email|id
+ * The destination is a local directory written with LOCAL_DIR if it exists, the name of the bucket otherwise.
+ */
+public class ArchiveLookup {
+
+    private static final int ID_COLUMN = 0;
+    private static final int EMAIL_COLUMN = 1;
+    private static final int GUID_COLUMN = 2;
+    private static final int EVENT_EMAIL_COLUMN = 12;
+
+    private final ReadLog archive;
+    private final String baseName;
+    private int filesListed = 0;
+    private int filesRead = 0;
+
+    /**
+     * The constructor takes in where the files and their manifests are stored.
+     * @param archive reads the files of the destination.
+     * @param baseName the BASE_FILENAME of the runs that wrote them.
+     */
+    public ArchiveLookup(ReadLog archive, String baseName) {
+        this.archive = archive;
+        this.baseName = baseName;
+    }
+
+    /**
+     * Finds the files that might hold an email, using only the manifests.
+     * @param key the guid, the recipient address or the mail_log id of the email.
+     * @param from the earliest sent_time of the email, null for no limit.
+     * @param to the latest sent_time of the email, null for no limit.
+     * @return the manifest entries of the files.
+     * @throws IOException if a manifest cannot be read.
+     */
+    public List<ArchiveManifest.FileEntry> candidates(String key, Timestamp from, Timestamp to) throws IOException {
+        Long id = parseId(key);
+        List<ArchiveManifest.FileEntry> candidates = new ArrayList<>();
+        for (String manifest : archive.listLogs(baseName + "manifest_")) {
+            List<ArchiveManifest.FileEntry> files;
+            try (InputStream in = archive.readLog(manifest)) {
+                files = ArchiveManifest.fromJson(new String(readAll(in), StandardCharsets.UTF_8));
+            } catch (org.json.simple.parser.ParseException e) {
+                throw new IOException("Invalid manifest " + manifest, e);
+            }
+            for (ArchiveManifest.FileEntry file : files) {
+                filesListed++;
+                boolean match = id == null ? file.mightContain(key) : file.coversId(id);
+                if (match && file.overlaps(from, to)) {
+                    candidates.add(file);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Finds the archived rows of an email: one for every sendgrid event of the email, or a single row if it
+     * had none. Only the files the manifests point to are read.
+     * @param key the guid, the recipient address or the mail_log id of the email.
+     * @param from the earliest sent_time of the email, null for no limit.
+     * @param to the latest sent_time of the email, null for no limit.
+     * @return the rows, with the columns of CleanCSVWriter.HEADER.
+     * @throws IOException if a manifest or a file cannot be read.
+     */
+    public List<String[]> find(String key, Timestamp from, Timestamp to) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        for (ArchiveManifest.FileEntry file : candidates(key, from, to)) {
+            for (String name : file.getNames()) {
+                filesRead++;
+                scan(name, key, rows);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * The number of files described by the manifests read so far.
+     * @return the number of files.
+     */
+    public int getFilesListed() {
+        return filesListed;
+    }
+
+    /**
+     * The number of files downloaded and scanned so far.
+     * @return the number of files.
+     */
+    public int getFilesRead() {
+        return filesRead;
+    }
+
+    /**
+     * Looks up an email and prints its rows.
+     * @param args the destination, the base name of the files and the guid, address or id of the email.
+     * @throws IOException if the archive cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: ArchiveLookup destination baseName guid|email|id");
+            return;
+        }
+        File directory = new File(args[0]);
+        ReadLog archive = directory.isDirectory() ? new LocalLogWriter(directory)
+                              : new S3LogWriter(args[0], S3LogWriter.getClient(System.getenv("S3_ENDPOINT"),
+                                  System.getenv("AWS_REGION")));
+        ArchiveLookup lookup = new ArchiveLookup(archive, args[1]);
+        List<String[]> rows = lookup.find(args[2], null, null);
+        for (String[] row : rows) {
+            System.out.println(String.join(",", row));
+        }
+        System.out.println(rows.size() + " rows found, " + lookup.getFilesRead() + " of "
+                               + lookup.getFilesListed() + " files read");
+    }
+
+    /**
+     * Adds the rows of a file that belong to the email.
+     * @param filename of the file.
+     * @param key the guid, the recipient address or the mail_log id of the email.
+     * @param rows the rows found so far.
+     * @throws IOException if the file cannot be read.
+     */
+    private void scan(String filename, String key, List<String[]> rows) throws IOException {
+        try (ArchiveFileReader reader = ArchiveFileReader.open(archive, filename)) {
+            String[] row;
+            while ((row = reader.readRow()) != null) {
+                if (matches(row, key)) {
+                    rows.add(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether or not a row belongs to the email.
+     * @param row the columns of CleanCSVWriter.HEADER.
+     * @param key the guid, the recipient address or the mail_log id of the email.
+     * @return true if the id, guid or one of the addresses of the row is the key.
+     */
+    private static boolean matches(String[] row, String key) {
+        if (parseId(key) != null) {
+            return key.equals(row[ID_COLUMN]);
+        }
+        //The row of an email without sendgrid events only has the mail_log columns.
+        return key.equalsIgnoreCase(row[GUID_COLUMN]) || key.equalsIgnoreCase(row[EMAIL_COLUMN])
+                   || (row.length > EVENT_EMAIL_COLUMN && key.equalsIgnoreCase(row[EVENT_EMAIL_COLUMN]));
+    }
+
+    /**
+     * Reads a key that is a mail_log id.
+     * @param key the guid, the recipient address or the mail_log id of the email.
+     * @return the id, or null if the key is not a number.
+     */
+    private static Long parseId(String key) {
+        if (key.isEmpty() || !key.chars().allMatch(Character::isDigit)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(key);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a stream to its end.
+     * @param in the stream.
+     * @return its contents.
+     * @throws IOException in case of error.
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
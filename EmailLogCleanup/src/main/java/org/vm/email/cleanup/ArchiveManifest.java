@@ -0,0 +1,299 @@
+package org.vm.email.cleanup;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.vm.shared.BloomFilter;
+
+/**
+ * The ArchiveManifest describes the files written by a run of Clean, so that an email can be found in the archive
+ * without downloading every file. For every file it records the number of rows, the range of sent_time and of
+ * the ids of its emails, a Bloom filter of their guids and recipient addresses and, when the file was split into
+ * parts by a hive KeyLayout, the names of its parts. The entries are filled in by the reader of each slice while it
+ * reads the emails, in the same pass that writes the file, and added to the manifest once the emails of the file
+ * have been deleted. The manifest is stored next to the files as BASE_FILENAME + "manifest_" + the start of the
+ * run + ".json".
+ */
+public class ArchiveManifest {
+
+    /**
+     * Version of the JSON layout.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Probability that the filter of a file matches an email that is not in it when MANIFEST_FPP is not set.
+     */
+    static final double DEFAULT_FALSE_POSITIVES = 0.01;
+
+    private final int expectedEmails;
+    private final double falsePositives;
+    private final List<FileEntry> files = new ArrayList<>();
+
+    /**
+     * The constructor takes in how the Bloom filters are sized.
+     * @param expectedEmails the number of emails in each file, EMAILNUM.
+     * @param falsePositives the probability of a false match of a full file, MANIFEST_FPP.
+     */
+    public ArchiveManifest(int expectedEmails, double falsePositives) {
+        this.expectedEmails = expectedEmails;
+        this.falsePositives = falsePositives;
+    }
+
+    /**
+     * Creates the entry of a new file, sized for a guid and an address for every email of the file.
+     * @return the empty entry.
+     */
+    public FileEntry startFile() {
+        return new FileEntry(BloomFilter.create(2L * expectedEmails, falsePositives));
+    }
+
+    /**
+     * Adds the entry of a file whose emails have been deleted. Called by the pipelines of every slice.
+     * @param entry of the file.
+     * @param names of the parts of the file at its destination, a single one unless the file was split.
+     * @param rows the number of rows written to it.
+     * @param bytes its size, after compression.
+     */
+    public synchronized void addFile(FileEntry entry, List<String> names, long rows, long bytes) {
+        entry.name = names.get(0);
+        entry.parts = names.size() == 1 ? null : names;
+        entry.rows = rows;
+        entry.bytes = bytes;
+        files.add(entry);
+    }
+
+    /**
+     * Whether or not any file has been added.
+     * @return true if the run has not archived a file.
+     */
+    public synchronized boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    /**
+     * The entries of the files, in the order they were deleted.
+     * @return a list of entries.
+     */
+    public synchronized List<FileEntry> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Converts the manifest to JSON.
+     * @param run the start of the run, as in the name of the manifest.
+     * @return the manifest as a single line of JSON.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized String toJson(String run) {
+        JSONArray entries = new JSONArray();
+        for (FileEntry file : files) {
+            entries.add(file.toJson());
+        }
+        JSONObject json = new JSONObject();
+        json.put("version", (long) VERSION);
+        json.put("run", run);
+        json.put("files", entries);
+        return json.toJSONString();
+    }
+
+    /**
+     * Reads the files of a manifest stored with toJson.
+     * @param json the contents of the manifest.
+     * @return the entries of its files.
+     * @throws ParseException if the JSON is not valid.
+     */
+    public static List<FileEntry> fromJson(String json) throws ParseException {
+        JSONObject manifest = (JSONObject) new JSONParser().parse(json);
+        long version = ((Number) manifest.get("version")).longValue();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported manifest version " + version);
+        }
+        List<FileEntry> entries = new ArrayList<>();
+        for (Object file : (JSONArray) manifest.get("files")) {
+            entries.add(FileEntry.fromJson((JSONObject) file));
+        }
+        return entries;
+    }
+
+    /**
+     * The key an email is added to the filter with. Addresses are not case sensitive, and neither are the
+     * lookups of guids.
+     * @param value a guid or an address.
+     * @return the key.
+     */
+    static String key(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * What a manifest knows about one archived file.
+     */
+    public static class FileEntry {
+
+        private final BloomFilter filter;
+        private String name;
+        private List<String> parts;
+        private long rows;
+        private long emails;
+        private long bytes;
+        private long minSentTime = Long.MAX_VALUE;
+        private long maxSentTime = Long.MIN_VALUE;
+        private long minId = Long.MAX_VALUE;
+        private long maxId = Long.MIN_VALUE;
+
+        /**
+         * The constructor takes in the filter of the guids and addresses of the file.
+         * @param filter the empty filter of a new file, or the filter of a stored one.
+         */
+        private FileEntry(BloomFilter filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * Records an email written to the file.
+         * @param id of the email in mail_log.
+         * @param sentTime of the email in milliseconds.
+         * @param guid of the email.
+         * @param email the recipient address.
+         */
+        public void addEmail(long id, long sentTime, String guid, String email) {
+            emails++;
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+            minSentTime = Math.min(minSentTime, sentTime);
+            maxSentTime = Math.max(maxSentTime, sentTime);
+            if (guid != null) {
+                filter.add(key(guid));
+            }
+            if (email != null) {
+                filter.add(key(email));
+            }
+        }
+
+        /**
+         * Whether or not the file might hold an email with the given guid or address.
+         * @param guidOrEmail to look for.
+         * @return false if the file certainly does not.
+         */
+        public boolean mightContain(String guidOrEmail) {
+            return filter.mightContain(key(guidOrEmail));
+        }
+
+        /**
+         * Whether or not some email of the file was sent in the given time range.
+         * @param from the earliest sent_time, inclusive.
+         * @param to the latest sent_time, inclusive.
+         * @return true if the ranges overlap.
+         */
+        public boolean overlaps(Timestamp from, Timestamp to) {
+            return (from == null || maxSentTime >= from.getTime()) && (to == null || minSentTime <= to.getTime());
+        }
+
+        /**
+         * Whether or not an email id falls in the range of the file.
+         * @param id of an email in mail_log.
+         * @return true if the file might hold it.
+         */
+        public boolean coversId(long id) {
+            return id >= minId && id <= maxId;
+        }
+
+        /**
+         * The name of the file at its destination.
+         * @return the file name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The names of the parts of the file at its destination.
+         * @return the names, only the name of the file unless it was split into parts.
+         */
+        public List<String> getNames() {
+            return parts == null ? Collections.singletonList(name) : parts;
+        }
+
+        /**
+         * The number of rows in the file, one for every sendgrid event or email without events.
+         * @return the number of rows.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * The number of emails in the file.
+         * @return the number of emails.
+         */
+        public long getEmails() {
+            return emails;
+        }
+
+        /**
+         * Converts the entry to JSON.
+         * @return the JSON object.
+         */
+        @SuppressWarnings("unchecked")
+        private JSONObject toJson() {
+            JSONObject bloom = new JSONObject();
+            bloom.put("bits", (long) filter.getBits());
+            bloom.put("hashes", (long) filter.getHashes());
+            bloom.put("data", Base64.getEncoder().encodeToString(filter.toBytes()));
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            if (parts != null) {
+                JSONArray array = new JSONArray();
+                array.addAll(parts);
+                json.put("parts", array);
+            }
+            json.put("rows", rows);
+            json.put("emails", emails);
+            json.put("bytes", bytes);
+            json.put("minSentTime", Clean.tsToString(new Timestamp(minSentTime)));
+            json.put("maxSentTime", Clean.tsToString(new Timestamp(maxSentTime)));
+            json.put("minSentTimeMs", minSentTime);
+            json.put("maxSentTimeMs", maxSentTime);
+            json.put("minId", minId);
+            json.put("maxId", maxId);
+            json.put("bloom", bloom);
+            return json;
+        }
+
+        /**
+         * Reads an entry stored with toJson.
+         * @param json the JSON object.
+         * @return the entry.
+         */
+        private static FileEntry fromJson(JSONObject json) {
+            JSONObject bloom = (JSONObject) json.get("bloom");
+            FileEntry entry = new FileEntry(BloomFilter.fromBytes(((Number) bloom.get("bits")).intValue(),
+                ((Number) bloom.get("hashes")).intValue(), Base64.getDecoder().decode((String) bloom.get("data"))));
+            entry.name = (String) json.get("name");
+            JSONArray parts = (JSONArray) json.get("parts");
+            if (parts != null) {
+                entry.parts = new ArrayList<>();
+                for (Object part : parts) {
+                    entry.parts.add((String) part);
+                }
+            }
+            entry.rows = ((Number) json.get("rows")).longValue();
+            entry.emails = ((Number) json.get("emails")).longValue();
+            entry.bytes = ((Number) json.get("bytes")).longValue();
+            entry.minSentTime = ((Number) json.get("minSentTimeMs")).longValue();
+            entry.maxSentTime = ((Number) json.get("maxSentTimeMs")).longValue();
+            entry.minId = ((Number) json.get("minId")).longValue();
+            entry.maxId = ((Number) json.get("maxId")).longValue();
+            return entry;
+        }
+    }
+}
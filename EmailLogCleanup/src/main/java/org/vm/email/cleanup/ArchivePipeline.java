@@ -0,0 +1,639 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.vm.shared.LongList;
+import org.vm.shared.SharedFileWriter;
+import org.vm.shared.StageStats;
+import org.vm.shared.WriteLog;
+
+/**
+ * The ArchivePipeline runs the stages of an archival run concurrently. The thread that reads the database
+ * (the reader stage) hands rows to the pipeline, and three more threads connected by bounded queues take care
+ * of the rest: the encoder writes the rows to a file, the uploader writes finished files to their destination
+ * and the deleter removes the archived emails from the database. While file N is uploaded and deleted the rows
+ * of file N+1 are already read and encoded. The emails of a file are only deleted once its upload succeeded.
+ * With a hive KeyLayout the encoder splits the rows of a file into parts by partition, which are uploaded and
+ * deleted together as the file.
+ */
+public class ArchivePipeline {
+
+    /**
+     * Number of rows that may wait between the reader and the encoder.
+     */
+    static final int ROW_QUEUE_CAPACITY = 10000;
+
+    /**
+     * Number of finished files that may wait for the uploader or the deleter.
+     */
+    static final int FILE_QUEUE_CAPACITY = 2;
+
+    private static final Object END_OF_FILE = new Object();
+    private static final Object END_OF_RUN = new Object();
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Removes the emails of an uploaded file from the database.
+     */
+    public interface FileDeleter {
+
+        /**
+         * Deletes the emails with the given ids.
+         * @param ids the mail_log ids of the emails in the file.
+         * @param listener writes the statistics of the emails in the transactions of their deletes, may be null.
+         * @return the number of rows deleted.
+         * @throws SQLException in case of error.
+         */
+        int delete(LongList ids, BatchDeleter.BatchListener listener) throws SQLException;
+    }
+
+    private final Function<String, SharedFileWriter> writerFactory;
+    private final WriteLog bucketWriter;
+    private final FileDeleter deleter;
+    private final CheckpointStore checkpoints;
+    private final RunReport report;
+    private final ArchiveManifest manifest;
+    private final HeapBudget budget;
+    private KeyLayout layout = KeyLayout.FLAT;
+
+    private final BlockingQueue<Object> rowQueue = new ArrayBlockingQueue<>(ROW_QUEUE_CAPACITY);
+    private final BlockingQueue<Object> uploadQueue = new ArrayBlockingQueue<>(FILE_QUEUE_CAPACITY);
+    private final BlockingQueue<Object> deleteQueue = new ArrayBlockingQueue<>(FILE_QUEUE_CAPACITY);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final ExecutorService executor;
+    private final List<Future<?>> stages = new ArrayList<>();
+
+    private final StageStats readStats;
+    private final StageStats encodeStats;
+    private final StageStats uploadStats;
+    private final StageStats deleteStats;
+    private final StageStats heapWaitStats;
+
+    //Only used by the reader thread.
+    private ArchiveFile current;
+    private long blockedNanos = 0;
+
+    //Only used by the deleter thread until finish() has joined it.
+    private int numDeleted = 0;
+
+    //The memory this pipeline holds in the budget of the run, all of which is released once it fails.
+    private long reservedBytes = 0;
+    private boolean released = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * The constructor starts the encoder, uploader and deleter threads.
+     * @param writerFactory creates the file writer for a file name.
+     * @param bucketWriter writes finished files to their destination.
+     * @param deleter removes the emails of an uploaded file from the database.
+     * @param checkpoints saves the position reached after each deleted file, may be null.
+     * @param report collects the statistics of the stages and the numbers of each file, may be shared by the
+     * pipelines of a run.
+     * @param manifest collects the entries of the deleted files, may be null.
+     * @param budget bounds the memory held by the pipelines of the run, may be null.
+     */
+    public ArchivePipeline(Function<String, SharedFileWriter> writerFactory, WriteLog bucketWriter,
+                           FileDeleter deleter, CheckpointStore checkpoints, RunReport report,
+                           ArchiveManifest manifest, HeapBudget budget) {
+        this.writerFactory = writerFactory;
+        this.bucketWriter = bucketWriter;
+        this.deleter = deleter;
+        this.checkpoints = checkpoints;
+        this.report = report;
+        this.manifest = manifest;
+        this.budget = budget;
+        this.readStats = report.stage("read", "emails");
+        this.encodeStats = report.stage("encode", "rows");
+        this.uploadStats = report.stage("upload", "bytes");
+        this.deleteStats = report.stage("delete", "rows");
+        this.heapWaitStats = report.stage("heapWait", "rows");
+        this.executor = Executors.newFixedThreadPool(3, runnable -> {
+            Thread thread = new Thread(runnable, "archive-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        stages.add(executor.submit(() -> runStage(this::encode)));
+        stages.add(executor.submit(() -> runStage(this::upload)));
+        stages.add(executor.submit(() -> runStage(this::delete)));
+    }
+
+    /**
+     * Sets the keys the rows of the files are written under, before the first file is started.
+     * @param layout of the keys, KeyLayout.FLAT by default.
+     */
+    public void setLayout(KeyLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Starts a new file. Every row added until the next call to endFile is written to it.
+     * @param filename of the new file.
+     */
+    public void startFile(String filename) {
+        current = new ArchiveFile(filename);
+        put(rowQueue, current);
+    }
+
+    /**
+     * Adds a row to the current file. While the heap budget of the run is used up, waits for the rows and files
+     * already handed to the pipelines to be freed, unless the pipeline has failed or is asked to stop.
+     * @param row of info to be written to the file.
+     */
+    public void addRow(String[] row) {
+        if (budget != null && !reserve(HeapBudget.rowBytes(row), false)) {
+            long start = System.nanoTime();
+            try {
+                while (failure.get() == null && !reserve(HeapBudget.rowBytes(row), stopped)) {
+                    budget.await(POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+            long nanos = System.nanoTime() - start;
+            heapWaitStats.record(1, nanos);
+            blockedNanos += nanos;
+        }
+        put(rowQueue, row);
+    }
+
+    /**
+     * Asks the reader to stop waiting for the heap budget, for example because another slice failed. The rows it
+     * still adds are counted beyond the budget, so that it reaches the end of its file.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Ends the current file. Once it is written and uploaded, the emails in it are deleted and the checkpoint saved.
+     * @param ids the mail_log ids of the emails in the file.
+     * @param checkpoint the position of the last email in the file.
+     * @param entry the manifest entry of the file, may be null.
+     * @param stats the daily statistics of the emails in the file, may be null.
+     */
+    public void endFile(LongList ids, Checkpoint checkpoint, ArchiveManifest.FileEntry entry,
+                        DailyStats.FileStats stats) {
+        //The ids and statistics are held until the emails are deleted.
+        current.heldBytes = ids.getBytes() + (stats == null ? 0 : stats.getBytes());
+        if (budget != null) {
+            reserve(current.heldBytes, true);
+        }
+        current.ids = ids;
+        current.checkpoint = checkpoint;
+        current.entry = entry;
+        current.stats = stats;
+        current = null;
+        put(rowQueue, END_OF_FILE);
+    }
+
+    /**
+     * Records the work of the reader stage. Time the reader spent waiting on a full queue is not counted.
+     * @param emails the number of emails read.
+     * @param nanos the time in nanoseconds the reader ran.
+     */
+    public void recordRead(long emails, long nanos) {
+        readStats.record(emails, nanos - blockedNanos);
+    }
+
+    /**
+     * Whether or not one of the stages has failed. Once it has, rows are no longer accepted and
+     * the reader should stop.
+     * @return true if a stage failed.
+     */
+    public boolean isFailed() {
+        return failure.get() != null;
+    }
+
+    /**
+     * Waits for every file handed to the pipeline to be written, uploaded and deleted, then stops the
+     * threads.
+     * @return the number of rows deleted from the database.
+     * @throws SQLException if the deleter failed.
+     * @throws IOException if the encoder or the uploader failed.
+     * @throws Error if a stage ran out of memory, for example, which is thrown as it is.
+     */
+    public int finish() throws SQLException, IOException {
+        put(rowQueue, END_OF_RUN);
+        for (Future<?> stage : stages) {
+            try {
+                stage.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            } catch (ExecutionException e) {
+                fail(e);
+            }
+        }
+        executor.shutdown();
+        releaseAll();
+        if (failure.get() != null) {
+            //A stage that failed after the encoder had finished leaves the files queued behind it.
+            discard(null);
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof SQLException) {
+            throw (SQLException) e;
+        } else if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new IOException("Archive pipeline failed", e);
+        }
+        return numDeleted;
+    }
+
+    /**
+     * Stops all stages without finishing the files still in the pipeline, and releases the memory they held in
+     * the heap budget. Used when the reader fails.
+     * @param cause of the abort.
+     */
+    public void abort(Throwable cause) {
+        fail(cause);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The statistics of the read, encode, upload and delete stages.
+     * @return a list of stage statistics.
+     */
+    public List<StageStats> getStats() {
+        List<StageStats> stats = new ArrayList<>();
+        stats.add(readStats);
+        stats.add(encodeStats);
+        stats.add(uploadStats);
+        stats.add(deleteStats);
+        return stats;
+    }
+
+    /**
+     * Writes the rows of each file with new file writers, one for every partition of the layout the file has rows
+     * in, and hands the finished file to the uploader.
+     * @throws Exception in case of error.
+     */
+    private void encode() throws Exception {
+        ArchiveFile file = null;
+        long rows = 0;
+        long nanos = 0;
+        try {
+            while (true) {
+                Object item = take(rowQueue);
+                if (item == null) {
+                    //The files the later stages have not taken yet are not uploaded or deleted either.
+                    discard(file);
+                    return;
+                }
+                long start = System.nanoTime();
+                if (item == END_OF_RUN) {
+                    put(uploadQueue, END_OF_RUN);
+                    return;
+                } else if (item instanceof ArchiveFile) {
+                    file = (ArchiveFile) item;
+                } else if (item == END_OF_FILE) {
+                    //A streamed part is completed by the uploader, a local part is closed here.
+                    for (SharedFileWriter part : file.open.values()) {
+                        if (!part.isStreamed()) {
+                            part.close();
+                        }
+                    }
+                    nanos += System.nanoTime() - start;
+                    encodeStats.record(rows, nanos);
+                    file.rows = rows;
+                    file.encodeNanos = nanos;
+                    rows = 0;
+                    nanos = 0;
+                    if (!put(uploadQueue, file)) {
+                        discard(file, true);
+                    }
+                    file = null;
+                    continue;
+                } else {
+                    //The size is taken before the writer, which may change the values of the row.
+                    long bytes = budget == null ? 0 : HeapBudget.rowBytes((String[]) item);
+                    writer(file, (String[]) item).writeToFile(item);
+                    rows++;
+                    if (budget != null) {
+                        release(bytes);
+                    }
+                }
+                nanos += System.nanoTime() - start;
+            }
+        } catch (Exception | Error e) {
+            //A failure of the encoder, or the interrupt of an abort, leaves the same files behind.
+            fail(e);
+            discard(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes each finished file to its destination, removes the local copy and hands it to the deleter.
+     * A streamed file has already sent most of its contents while it was encoded; closing it sends
+     * the rest and completes the upload.
+     * @throws Exception in case of error.
+     */
+    private void upload() throws Exception {
+        while (true) {
+            Object item = take(uploadQueue);
+            if (item == null) {
+                return;
+            } else if (item == END_OF_RUN) {
+                put(deleteQueue, END_OF_RUN);
+                return;
+            }
+            ArchiveFile file = (ArchiveFile) item;
+            long start = System.nanoTime();
+            long bytes = 0;
+            try {
+                for (SharedFileWriter part : file.open.values()) {
+                    if (part.isStreamed()) {
+                        part.close();
+                    }
+                }
+                for (SharedFileWriter part : file.parts) {
+                    if (part.isStreamed()) {
+                        bytes += part.getSize();
+                    } else {
+                        File local = part.getFile();
+                        bytes += local.length();
+                        bucketWriter.writeLog(local, part.getName());
+                        part.deleteFile();
+                    }
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                fail(e);
+                discard(file, true);
+                throw e;
+            }
+            file.bytes = bytes;
+            file.uploadNanos = System.nanoTime() - start;
+            uploadStats.record(bytes, file.uploadNanos);
+            if (!put(deleteQueue, file)) {
+                discard(file, true);
+            }
+        }
+    }
+
+    /**
+     * Discards the file being encoded and every file the upload and delete stages have not taken yet, once the
+     * pipeline has failed.
+     * @param current the file being encoded, null if there is none.
+     */
+    private void discard(ArchiveFile current) {
+        if (current != null) {
+            discard(current, false);
+        }
+        for (BlockingQueue<Object> queue : Arrays.asList(uploadQueue, deleteQueue)) {
+            for (Object queued = queue.poll(); queued != null; queued = queue.poll()) {
+                if (queued instanceof ArchiveFile) {
+                    discard((ArchiveFile) queued, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Aborts the uploads of a file that will not be deleted from the database and removes its local copies. An
+     * upload that has already been completed is left as it is.
+     * @param file the file.
+     * @param encoded whether the encoder has finished the file, which closes its local parts.
+     */
+    private static void discard(ArchiveFile file, boolean encoded) {
+        for (SharedFileWriter part : file.parts) {
+            if (part.isStreamed() || !encoded && file.open.containsValue(part)) {
+                part.abort();
+            } else if (part.getFile().exists()) {
+                part.deleteFile();
+            }
+        }
+    }
+
+    /**
+     * Deletes the emails of each uploaded file from the database, together with their statistics, saves the
+     * checkpoint of the file and adds it to the manifest.
+     * @throws Exception in case of error.
+     */
+    private void delete() throws Exception {
+        while (true) {
+            Object item = take(deleteQueue);
+            if (item == null || item == END_OF_RUN) {
+                return;
+            }
+            ArchiveFile file = (ArchiveFile) item;
+            long start = System.nanoTime();
+            BatchDeleter.BatchListener listener = file.stats;
+            if (checkpoints != null) {
+                listener = BatchDeleter.BatchListener.both(listener,
+                    checkpoints.inTransaction(file.checkpoint, file.bytes));
+            }
+            int rows = deleter.delete(file.ids, listener);
+            numDeleted = numDeleted + rows;
+            if (budget != null) {
+                release(file.heldBytes);
+            }
+            if (checkpoints != null) {
+                checkpoints.save(file.checkpoint);
+            }
+            long nanos = System.nanoTime() - start;
+            deleteStats.record(rows, nanos);
+            List<String> names = new ArrayList<>();
+            for (SharedFileWriter part : file.parts) {
+                names.add(part.getName());
+            }
+            String name = names.size() == 1 ? names.get(0) : file.filename + " in " + names.size() + " parts";
+            report.addFile(new RunReport.FileReport(name, file.rows, file.bytes, file.encodeNanos, file.uploadNanos,
+                nanos, rows));
+            if (manifest != null && file.entry != null) {
+                manifest.addFile(file.entry, names, file.rows, file.bytes);
+            }
+        }
+    }
+
+    /**
+     * The writer of the part of a file a row goes to, started with the first row of its partition. When the file
+     * already has as many parts open as the layout allows, the part written to least recently is finished first; a
+     * row of its partition that comes later starts another part.
+     * @param file the file being encoded.
+     * @param row the next row of the file.
+     * @return the writer of the part.
+     * @throws IOException if the part that makes room cannot be finished.
+     */
+    private SharedFileWriter writer(ArchiveFile file, String[] row) throws IOException {
+        String partition = layout.partition(row);
+        SharedFileWriter writer = file.open.get(partition);
+        if (writer == null) {
+            if (file.open.size() >= layout.getMaxOpen()) {
+                Iterator<SharedFileWriter> eldest = file.open.values().iterator();
+                SharedFileWriter finished = eldest.next();
+                eldest.remove();
+                finished.close();
+            }
+            int part = file.partCounts.merge(partition, 1, Integer::sum);
+            writer = writerFactory.apply(layout.key(file.filename, partition, part));
+            file.parts.add(writer);
+            file.open.put(partition, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Runs a stage and records its failure, which stops the other stages. Errors are recorded as well: a stage that
+     * ran out of memory would otherwise leave the others, and the reader, waiting on their queues for good.
+     * @param stage the body of the stage.
+     */
+    private void runStage(Stage stage) {
+        try {
+            stage.run();
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records the first failure of the run. The rows and files left in the pipeline are never freed by its stages,
+     * so their memory is released at once, and the readers of the other slices do not wait for it.
+     * @param e the failure.
+     */
+    private void fail(Throwable e) {
+        Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+        failure.compareAndSet(null, cause);
+        releaseAll();
+    }
+
+    /**
+     * Counts memory of this pipeline in the heap budget. Once the pipeline has released its memory nothing more is
+     * counted.
+     * @param bytes the size.
+     * @param force whether the memory is counted even if the budget is used up.
+     * @return false if the memory was not counted because the budget is used up.
+     */
+    private synchronized boolean reserve(long bytes, boolean force) {
+        if (released) {
+            return true;
+        } else if (force) {
+            budget.reserve(bytes);
+        } else if (!budget.tryReserve(bytes)) {
+            return false;
+        }
+        reservedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Stops counting memory of this pipeline that has been freed.
+     * @param bytes the size.
+     */
+    private synchronized void release(long bytes) {
+        if (!released) {
+            reservedBytes -= bytes;
+            budget.release(bytes);
+        }
+    }
+
+    /**
+     * Releases all memory this pipeline still holds in the heap budget, once it has failed or finished.
+     */
+    private synchronized void releaseAll() {
+        if (budget != null && !released) {
+            released = true;
+            budget.release(reservedBytes);
+            reservedBytes = 0;
+        }
+    }
+
+    /**
+     * Puts an item on a queue, waiting while it is full. Gives up once a stage has failed.
+     * @param queue to put the item on.
+     * @param item to put.
+     * @return false if the item was dropped because the pipeline failed.
+     */
+    private boolean put(BlockingQueue<Object> queue, Object item) {
+        long start = System.nanoTime();
+        try {
+            while (failure.get() == null) {
+                if (queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+            return false;
+        } finally {
+            if (queue == rowQueue) {
+                blockedNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Takes an item from a queue, waiting while it is empty. Gives up once a stage has failed.
+     * @param queue to take the item from.
+     * @return the item, or null if the pipeline failed.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    private Object take(BlockingQueue<Object> queue) throws InterruptedException {
+        while (failure.get() == null) {
+            Object item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The body of a stage.
+     */
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    /**
+     * A file on its way through the pipeline.
+     */
+    private static final class ArchiveFile {
+        private final String filename;
+        //Every part of the file in the order they were started, the parts still open by partition with the one
+        //written to least recently first, and the number of parts started for every partition.
+        private final List<SharedFileWriter> parts = new ArrayList<>();
+        private final LinkedHashMap<String, SharedFileWriter> open = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, Integer> partCounts = new HashMap<>();
+        private LongList ids;
+        private Checkpoint checkpoint;
+        private ArchiveManifest.FileEntry entry;
+        private DailyStats.FileStats stats;
+        private long heldBytes;
+        private long rows;
+        private long bytes;
+        private long encodeNanos;
+        private long uploadNanos;
+
+        private ArchiveFile(String filename) {
+            this.filename = filename;
+        }
+    }
+}
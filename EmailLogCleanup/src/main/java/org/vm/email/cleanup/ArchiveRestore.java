@@ -0,0 +1,464 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vm.shared.ConnectionPool;
+import org.vm.shared.LocalLogWriter;
+import org.vm.shared.ReadLog;
+import org.vm.shared.S3LogWriter;
+
+/**
+ * The ArchiveRestore puts archived emails back into mail_log and sendgrid_event. Every row of a file is split
+ * into the mail_log record it starts with and, unless the email had no sendgrid events, the sendgrid_event record
+ * it ends with. The records of an email repeated over the rows of its events are only inserted once. Records are
+ * inserted with multi-row INSERT statements, a batch of emails and a batch of events in one transaction, and the
+ * files are restored in parallel, each on a connection of its own. Records whose guid (mail_log) or sg_event_id
+ * (sendgrid_event) is already in the database are skipped, so a restore that failed can simply be run again.
+ * Run with:
+ * java -cp EmailLogCleanup-1.0.jar org.vm.email.cleanup.ArchiveRestore destination prefix jdbc [parallelism] [batch]
+ * The destination is a local directory written with LOCAL_DIR if it exists, the name of the bucket otherwise.
+ * Every CSV, JSON Lines and Parquet file whose name starts with the prefix is restored.
+ */
+public class ArchiveRestore {
+
+    /**
+     * Number of emails, and of events, inserted by one transaction when no batch size is given.
+     */
+    static final int DEFAULT_BATCH = 1000;
+
+    /**
+     * Number of files restored at once when no parallelism is given.
+     */
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private static final String[] MAIL_COLUMNS = {
+        "id", "email", "guid", "host", "ref1", "ref2", "sent_time", "type"
+    };
+
+    private static final int[] MAIL_TYPES = {
+        Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP,
+        Types.VARCHAR
+    };
+
+    private static final String[] EVENT_COLUMNS = {
+        "sg_event_id", "guid", "asm_group_id", "attempt", "category", "email", "event", "ip", "reason", "response",
+        "sg_message_id", "smtp_id", "status", "timestamp", "tls", "type", "unsubscribe_url", "url", "url_offset",
+        "useragent", "vm_timestamp"
+    };
+
+    private static final int[] EVENT_TYPES = {
+        Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+        Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP,
+        Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP
+    };
+
+    private static final int MAIL_COLUMN_COUNT = MAIL_COLUMNS.length;
+    private static final int GUID_COLUMN = 2;
+
+    private final ReadLog archive;
+    private final ConnectionPool pool;
+    private final int batchSize;
+    private final AtomicLong emailsInserted = new AtomicLong();
+    private final AtomicLong eventsInserted = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * The constructor takes in where the files are read from and the database they are restored to.
+     * @param archive reads the files of the destination.
+     * @param pool the connections to the database.
+     * @param batchSize the number of emails, and of events, inserted by one transaction.
+     */
+    public ArchiveRestore(ReadLog archive, ConnectionPool pool, int batchSize) {
+        this.archive = archive;
+        this.pool = pool;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Lists the archived files with the given prefix, leaving out manifests and checkpoints.
+     * @param archive reads the files of the destination.
+     * @param prefix of the file names, ex: BASE_FILENAME.
+     * @return the names of the CSV, JSON Lines and Parquet files.
+     * @throws IOException if the files cannot be listed.
+     */
+    public static List<String> archivedFiles(ReadLog archive, String prefix) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String name : archive.listLogs(prefix)) {
+            String type = name.replaceFirst("\\.(gz|zst)$", "");
+            if (type.endsWith(".csv") || type.endsWith(".jsonl") || name.endsWith(".parquet")) {
+                files.add(name);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Restores the files, the given number of them at once. If a file fails, the other files are still
+     * restored and the first failure is thrown at the end.
+     * @param filenames of the files.
+     * @param parallelism the number of files restored at once.
+     * @throws SQLException in case of a database error.
+     * @throws IOException if a file cannot be read.
+     */
+    public void restore(List<String> filenames, int parallelism) throws SQLException, IOException {
+        if (filenames.isEmpty()) {
+            return;
+        }
+        pool.setMaxIdle(Math.max(ConnectionPool.DEFAULT_MAX_IDLE, parallelism));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, filenames.size()),
+            runnable -> {
+                Thread thread = new Thread(runnable, "archive-restore");
+                thread.setDaemon(true);
+                return thread;
+            });
+        List<Future<Void>> results = new ArrayList<>();
+        for (String filename : filenames) {
+            results.add(executor.submit(() -> {
+                restoreFile(filename);
+                return null;
+            }));
+        }
+        Throwable failure = null;
+        try {
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    failure = failure == null ? e.getCause() : failure;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            throw new IOException("Interrupted while restoring the files", e);
+        } finally {
+            executor.shutdown();
+        }
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * Restores one file on a connection of its own.
+     * @param filename of the file.
+     * @throws SQLException in case of a database error.
+     * @throws IOException if the file cannot be read.
+     */
+    public void restoreFile(String filename) throws SQLException, IOException {
+        long start = System.nanoTime();
+        try (Connection con = pool.getConnection();
+             FileLoader loader = new FileLoader(con);
+             ArchiveFileReader reader = ArchiveFileReader.open(archive, filename)) {
+            String[] row;
+            while ((row = reader.readRow()) != null) {
+                loader.add(row);
+            }
+            loader.flush();
+            System.out.println(filename + " restored: " + loader.emails + " emails, " + loader.events
+                                   + " events inserted, " + loader.present + " already present, "
+                                   + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * The number of mail_log records inserted so far.
+     * @return the number of emails.
+     */
+    public long getEmailsInserted() {
+        return emailsInserted.get();
+    }
+
+    /**
+     * The number of sendgrid_event records inserted so far.
+     * @return the number of events.
+     */
+    public long getEventsInserted() {
+        return eventsInserted.get();
+    }
+
+    /**
+     * The number of records skipped because they were already in the database.
+     * @return the number of records.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Restores the archived files with a prefix.
+     * @param args the destination, the prefix of the files, the connection string of the database, and optionally
+     * the number of files restored at once and the batch size.
+     * @throws Exception if the restore fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: ArchiveRestore destination prefix jdbc [parallelism] [batch]");
+            return;
+        }
+        File directory = new File(args[0]);
+        ReadLog archive = directory.isDirectory() ? new LocalLogWriter(directory)
+                              : new S3LogWriter(args[0], S3LogWriter.getClient(System.getenv("S3_ENDPOINT"),
+                                  System.getenv("AWS_REGION")));
+        int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PARALLELISM;
+        int batch = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_BATCH;
+        ConnectionPool pool = ConnectionPool.of(args[2], parallelism);
+        ArchiveRestore restore = new ArchiveRestore(archive, pool, batch);
+        List<String> files = archivedFiles(archive, args[1]);
+        long start = System.nanoTime();
+        try {
+            restore.restore(files, parallelism);
+        } finally {
+            ConnectionPool.closeAll();
+        }
+        long inserted = restore.getEmailsInserted() + restore.getEventsInserted();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d files restored: %d emails and %d events inserted, %d already present, "
+                                             + "%.1f s (%.0f records/s)", files.size(), restore.getEmailsInserted(),
+            restore.getEventsInserted(), restore.getSkipped(), seconds, inserted / seconds));
+    }
+
+    /**
+     * Converts the values of a row to the types of their columns.
+     * @param values the values as read from the file.
+     * @param types the SQL types of the columns.
+     * @return the values to bind, null where a value is missing.
+     */
+    private static Object[] convert(String[] values, int[] types) {
+        Object[] record = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            String value = values[i];
+            if (value == null) {
+                continue;
+            }
+            switch (types[i]) {
+                case Types.BIGINT:
+                    record[i] = Long.parseLong(value);
+                    break;
+                case Types.INTEGER:
+                    record[i] = Integer.parseInt(value);
+                    break;
+                case Types.TIMESTAMP:
+                    record[i] = Clean.stringToTs(value);
+                    break;
+                default:
+                    record[i] = value;
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Collects the records of a file and inserts them one batch at a time.
+     */
+    private final class FileLoader implements AutoCloseable {
+        private final Connection con;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private final Map<String, Object[]> mails = new LinkedHashMap<>();
+        private final Map<String, Object[]> eventRecords = new LinkedHashMap<>();
+        private String lastGuid;
+        private long emails = 0;
+        private long events = 0;
+        private long present = 0;
+
+        private FileLoader(Connection con) {
+            this.con = con;
+        }
+
+        /**
+         * Splits a row into its records. The mail_log record is repeated by every event of the email and only
+         * kept the first time.
+         * @param row the columns of CleanCSVWriter.HEADER, or only the mail_log columns.
+         * @throws SQLException in case of error.
+         */
+        private void add(String[] row) throws SQLException {
+            String guid = row[GUID_COLUMN];
+            if (guid != null && !guid.equals(lastGuid) && !mails.containsKey(guid)) {
+                String[] mail = new String[MAIL_COLUMN_COUNT];
+                System.arraycopy(row, 0, mail, 0, MAIL_COLUMN_COUNT);
+                mails.put(guid, convert(mail, MAIL_TYPES));
+            }
+            lastGuid = guid;
+            if (row.length > MAIL_COLUMN_COUNT && row[MAIL_COLUMN_COUNT] != null) {
+                String[] event = new String[EVENT_COLUMNS.length];
+                event[0] = row[MAIL_COLUMN_COUNT];
+                event[1] = guid;
+                System.arraycopy(row, MAIL_COLUMN_COUNT + 1, event, 2, EVENT_COLUMNS.length - 2);
+                eventRecords.put(event[0], convert(event, EVENT_TYPES));
+            }
+            if (mails.size() >= batchSize || eventRecords.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Inserts the collected emails and events in one transaction.
+         * @throws SQLException in case of error.
+         */
+        private void flush() throws SQLException {
+            if (mails.isEmpty() && eventRecords.isEmpty()) {
+                return;
+            }
+            boolean autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            try {
+                int mailCount = insertNew("mail_log", MAIL_COLUMNS, MAIL_TYPES, mails);
+                int eventCount = insertNew("sendgrid_event", EVENT_COLUMNS, EVENT_TYPES, eventRecords);
+                con.commit();
+                emails += mailCount;
+                events += eventCount;
+                emailsInserted.addAndGet(mailCount);
+                eventsInserted.addAndGet(eventCount);
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(autoCommit);
+            }
+            mails.clear();
+            eventRecords.clear();
+        }
+
+        /**
+         * Inserts the records whose key, the guid for mail_log and the sg_event_id for sendgrid_event, is not in
+         * the table yet.
+         * @param table to insert into.
+         * @param columns of the records.
+         * @param types the SQL types of the columns.
+         * @param records by key.
+         * @return the number of records inserted.
+         * @throws SQLException in case of error.
+         */
+        private int insertNew(String table, String[] columns, int[] types, Map<String, Object[]> records)
+            throws SQLException {
+            if (records.isEmpty()) {
+                return 0;
+            }
+            String keyColumn = table.equals("mail_log") ? "guid" : "sg_event_id";
+            int before = records.size();
+            removeExisting(table, keyColumn, records);
+            present += before - records.size();
+            skipped.addAndGet(before - records.size());
+            if (records.isEmpty()) {
+                return 0;
+            }
+
+            //Full batches reuse one prepared statement, the smaller last batch of a file prepares its own.
+            int rows = records.size();
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "`" : ", `").append(columns[i]).append('`');
+            }
+            sql.append(") VALUES ");
+            for (int r = 0; r < rows; r++) {
+                sql.append(r == 0 ? "(" : ", (");
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                sql.append(')');
+            }
+            PreparedStatement insert = rows == batchSize ? prepare(sql.toString())
+                                           : con.prepareStatement(sql.toString());
+            try {
+                int parameter = 1;
+                for (Object[] record : records.values()) {
+                    for (int i = 0; i < record.length; i++) {
+                        if (record[i] == null) {
+                            insert.setNull(parameter++, types[i]);
+                        } else {
+                            insert.setObject(parameter++, record[i]);
+                        }
+                    }
+                }
+                insert.executeUpdate();
+            } finally {
+                if (rows != batchSize) {
+                    insert.close();
+                }
+            }
+            return rows;
+        }
+
+        /**
+         * Removes the records whose key is already in the table.
+         * @param table to look in.
+         * @param keyColumn the column the records are keyed by.
+         * @param records by key.
+         * @throws SQLException in case of error.
+         */
+        private void removeExisting(String table, String keyColumn, Map<String, Object[]> records)
+            throws SQLException {
+            StringBuilder sql = new StringBuilder("SELECT ").append(keyColumn).append(" FROM ").append(table)
+                                    .append(" WHERE ").append(keyColumn).append(" IN (");
+            for (int i = 0; i < batchSize; i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            PreparedStatement select = prepare(sql.append(")").toString());
+
+            //Fewer keys than parameters repeat the last key, which does not change the result.
+            Iterator<String> keys = records.keySet().iterator();
+            String key = null;
+            for (int i = 0; i < batchSize; i++) {
+                key = keys.hasNext() ? keys.next() : key;
+                select.setString(i + 1, key);
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    records.remove(rs.getString(1));
+                }
+            }
+        }
+
+        /**
+         * Prepares a statement once and reuses it afterwards.
+         * @param sql of the statement.
+         * @return the prepared statement.
+         * @throws SQLException in case of error.
+         */
+        private PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = con.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * Closes the prepared statements.
+         * @throws SQLException in case of error.
+         */
+        @Override
+        public void close() throws SQLException {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+        }
+    }
+}
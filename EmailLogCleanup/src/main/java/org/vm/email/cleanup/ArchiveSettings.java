@@ -0,0 +1,128 @@
+package org.vm.email.cleanup;
+
+/**
+ * The ArchiveSettings hold the configuration every slice of a run is archived with: the tables it archives, how
+ * files are named and sized, how many emails are joined and deleted together, how close to the Lambda deadline a
+ * run stops, how many emails it archives and how the emails are fetched.
+ */
+public class ArchiveSettings {
+
+    private final String baseName;
+    private final int emailNum;
+    private final int joinBatch;
+    private final int deleteBatch;
+    private final long deleteTargetMs;
+    private final long timeMarginMs;
+    private final int fetchSize;
+    private final ArchiveJob job;
+    private final long maxEmails;
+
+    /**
+     * The constructor takes in the values read from the environment variables of the Lambda function.
+     * @param baseName the start of every file name, BASE_FILENAME.
+     * @param emailNum the number of emails in each file, EMAILNUM.
+     * @param joinBatch the number of emails whose sendgrid events are looked up together, JOIN_BATCH.
+     * @param deleteBatch the number of emails in the first delete batch, DELETE_BATCH.
+     * @param deleteTargetMs the time a delete batch should stay under, DELETE_TARGET_MS.
+     * @param timeMarginMs the time left before the deadline at which a run stops, TIME_MARGIN_MS.
+     * @param fetchSize how the emails of a slice are fetched, from STREAM_READ and FETCH_SIZE: 0 to fetch all of
+     * them at once, Integer.MIN_VALUE to stream them one by one from MySQL, or the number of emails fetched at a
+     * time with a cursor.
+     * @param job the tables and columns that are archived, ARCHIVE_JOB.
+     * @param maxEmails the number of emails after which a slice stops, MAX_EMAILS, 0 for no limit.
+     */
+    public ArchiveSettings(String baseName, int emailNum, int joinBatch, int deleteBatch, long deleteTargetMs,
+                           long timeMarginMs, int fetchSize, ArchiveJob job, long maxEmails) {
+        this.baseName = baseName;
+        this.emailNum = emailNum;
+        this.joinBatch = joinBatch;
+        this.deleteBatch = deleteBatch;
+        this.deleteTargetMs = deleteTargetMs;
+        this.timeMarginMs = timeMarginMs;
+        this.fetchSize = fetchSize;
+        this.job = job;
+        this.maxEmails = maxEmails;
+    }
+
+    /**
+     * The start of every file name.
+     * @return the base name.
+     */
+    public String getBaseName() {
+        return baseName;
+    }
+
+    /**
+     * The number of emails in each file.
+     * @return the number of emails.
+     */
+    public int getEmailNum() {
+        return emailNum;
+    }
+
+    /**
+     * The number of emails whose sendgrid events are looked up with a single query.
+     * @return the batch size.
+     */
+    public int getJoinBatch() {
+        return joinBatch;
+    }
+
+    /**
+     * The number of emails in the first delete batch.
+     * @return the batch size.
+     */
+    public int getDeleteBatch() {
+        return deleteBatch;
+    }
+
+    /**
+     * The time in milliseconds a delete batch should stay under.
+     * @return the target time.
+     */
+    public long getDeleteTargetMs() {
+        return deleteTargetMs;
+    }
+
+    /**
+     * The time in milliseconds left before the Lambda deadline at which a run stops.
+     * @return the margin.
+     */
+    public long getTimeMarginMs() {
+        return timeMarginMs;
+    }
+
+    /**
+     * How the emails of a slice are fetched.
+     * @return 0 for all at once, Integer.MIN_VALUE for one by one, otherwise the number fetched at a time.
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Whether or not the emails of a slice are streamed rather than fetched all at once. A streamed result set
+     * keeps its connection busy until it is closed, so the sendgrid events are looked up on another connection.
+     * @return true if the emails are streamed.
+     */
+    public boolean isStreamed() {
+        return fetchSize != 0;
+    }
+
+    /**
+     * The tables and columns that are archived.
+     * @return the job.
+     */
+    public ArchiveJob getJob() {
+        return job;
+    }
+
+    /**
+     * The number of emails after which a slice stops, as it does before the deadline. The current file is still
+     * finished and the next run continues the slice.
+     * @return the number of emails, 0 for no limit.
+     */
+    public long getMaxEmails() {
+        return maxEmails;
+    }
+}
@@ -0,0 +1,461 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vm.shared.LongList;
+import org.vm.shared.StageStats;
+
+/**
+ * The BatchDeleter removes archived emails from the database in small batches instead of a single statement.
+ * Each batch deletes the sendgrid events and the mail logs of a bounded number of emails and is committed on
+ * its own, so that locks are held briefly and undo logs stay small. The time each batch takes is measured and
+ * the batch size adapts to it: it is halved when a batch takes longer than the target and grows while batches
+ * finish well below it. A listener can write more to the database in the transaction of every batch, such as
+ * the statistics of the emails it deletes. With a read replica, every batch first waits while the replica is too
+ * far behind, as the deletes are replicated to it too. The tables and columns come from the ArchiveJob.
+ */
+public class BatchDeleter implements AutoCloseable {
+
+    /**
+     * Writes to the database in the transaction of a batch, so that it is committed together with the deletes.
+     */
+    public interface BatchListener {
+
+        /**
+         * Called after the rows of a batch have been deleted and before the batch is committed.
+         * @param con is the connection of the batch.
+         * @param ids of the emails in the batch.
+         * @throws SQLException in case of error, which rolls back the batch.
+         */
+        void beforeCommit(Connection con, long[] ids) throws SQLException;
+
+        /**
+         * Calls two listeners in the same transaction, one after the other.
+         * @param first the first listener, may be null.
+         * @param second the second listener, may be null.
+         * @return a listener calling both, or the one that is not null.
+         */
+        static BatchListener both(BatchListener first, BatchListener second) {
+            if (first == null || second == null) {
+                return first == null ? second : first;
+            }
+            return (con, ids) -> {
+                first.beforeCommit(con, ids);
+                second.beforeCommit(con, ids);
+            };
+        }
+    }
+
+    /**
+     * Number of emails in the first batch when DELETE_BATCH is not set.
+     */
+    static final int DEFAULT_BATCH = 1000;
+
+    /**
+     * Target time in milliseconds for a single batch when DELETE_TARGET_MS is not set.
+     */
+    static final long DEFAULT_TARGET_MS = 250;
+
+    static final int MIN_BATCH = 10;
+    static final int MAX_BATCH = 20000;
+
+    private final Connection con;
+    private final ArchiveJob job;
+    private final String eventDelete;
+    private final long targetNanos;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private int batchSize;
+    private int batchCount = 0;
+    private long slowestBatchNanos = 0;
+    private StageStats stats;
+    private ReplicaMonitor replica;
+
+    /**
+     * The constructor takes in the connection the deletes run on, the size of the first batch and the
+     * target time for a batch.
+     * @param con is the connection used for deletes only.
+     * @param job the tables and columns that are archived.
+     * @param batchSize the number of emails in the first batch.
+     * @param targetMillis the time in milliseconds a batch should stay under.
+     */
+    public BatchDeleter(Connection con, ArchiveJob job, int batchSize, long targetMillis) {
+        this.con = con;
+        this.job = job;
+        this.eventDelete = job.hasChild() ? "DELETE FROM " + job.getChildTable() + " WHERE "
+                                                + job.getChildKeyColumn() + " IN " : null;
+        this.batchSize = Math.max(MIN_BATCH, Math.min(MAX_BATCH, batchSize));
+        this.targetNanos = targetMillis * 1000000;
+    }
+
+    /**
+     * Deletes archived emails and their sendgrid events from the database. The emails are given by their ids,
+     * which take less memory than their guids until they are deleted; the guids of every batch are read back
+     * from mail_log to delete its sendgrid events.
+     * @param ids the ids of the mail logs that are ready to be deleted.
+     * @param listener called in the transaction of every batch, may be null.
+     * @return the number of rows deleted from both tables.
+     * @throws SQLException in case of error.
+     */
+    public int cleanDelete(LongList ids, BatchListener listener) throws SQLException {
+        int numDeleted = 0;
+        int start = 0;
+        setForeignKeyChecks(false);
+        try {
+            while (start < ids.size()) {
+                throttle();
+                long[] batch = ids.toArray(start, Math.min(ids.size(), start + batchSize));
+                start += batch.length;
+                int size = inListSize(batch.length);
+                PreparedStatement mailDelete = bindIds(prepareIn("DELETE FROM " + job.getTable() + " WHERE "
+                                                                     + job.getIdColumn() + " IN ", size),
+                    size, batch);
+                numDeleted += deleteBatch(batch, null, eventDelete, mailDelete, listener);
+            }
+        } finally {
+            setForeignKeyChecks(true);
+        }
+        return numDeleted;
+    }
+
+    /**
+     * Deletes only the sendgrid events of archived emails, for emails whose mail logs are removed with their
+     * partition instead of one by one.
+     * @param ids the ids of the mail logs.
+     * @param partitions the partitions of sendgrid_event the events are deleted from, null for the whole table.
+     * @param listener called in the transaction of every batch, may be null.
+     * @return the number of events deleted.
+     * @throws SQLException in case of error.
+     */
+    public int deleteEvents(LongList ids, List<String> partitions, BatchListener listener)
+            throws SQLException {
+        //Without partitions to delete from, the batches only run the listener.
+        String eventDelete = null;
+        if (job.hasChild() && (partitions == null || !partitions.isEmpty())) {
+            eventDelete = "DELETE FROM " + job.getChildTable() + " "
+                              + (partitions == null ? "" : "PARTITION (`" + String.join("`, `", partitions) + "`) ")
+                              + "WHERE " + job.getChildKeyColumn() + " IN ";
+        } else if (listener == null) {
+            return 0;
+        }
+        int numDeleted = 0;
+        int start = 0;
+        while (start < ids.size()) {
+            throttle();
+            long[] batch = ids.toArray(start, Math.min(ids.size(), start + batchSize));
+            start += batch.length;
+            numDeleted += deleteBatch(batch, null, eventDelete, null, listener);
+        }
+        return numDeleted;
+    }
+
+    /**
+     * Deletes all emails excluded from the archive from before the specified date, such as those of type
+     * "custom_email_to_volunteer", together with their sendgrid events if they have any. The emails are walked in
+     * mail_log.id order, one batch at a time.
+     * @param dateX is the date determining which emails are deleted.
+     * @return the total number of rows deleted from both tables.
+     * @throws SQLException in case of error.
+     */
+    public int deleteExcluded(Timestamp dateX) throws SQLException {
+        setForeignKeyChecks(false);
+        try {
+            return deleteCustomBatches(dateX);
+        } finally {
+            setForeignKeyChecks(true);
+        }
+    }
+
+    /**
+     * Walks the custom emails before the date in mail_log.id order and deletes them one batch at a time.
+     * @param dateX is the date determining which emails are deleted.
+     * @return the total number of rows deleted from both tables.
+     * @throws SQLException in case of error.
+     */
+    private int deleteCustomBatches(Timestamp dateX) throws SQLException {
+        int numDeleted = 0;
+        long lastId = 0;
+        while (true) {
+            throttle();
+            String id = job.getIdColumn();
+            String key = job.hasChild() ? job.getKeyColumn() : "NULL";
+            PreparedStatement select = prepare("SELECT " + id + ", " + key + " FROM " + job.getTable() + " WHERE "
+                                                   + job.getTimeColumn() + " < ?" + job.excludedOnly() + " AND "
+                                                   + id + " > ? ORDER BY " + id + " ASC LIMIT ?");
+            select.setTimestamp(1, dateX);
+            select.setLong(2, lastId);
+            select.setInt(3, batchSize);
+            List<String> guids = new ArrayList<>();
+            int count = 0;
+            long firstId = -1;
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    if (firstId < 0) {
+                        firstId = rs.getLong(1);
+                    }
+                    lastId = rs.getLong(1);
+                    count++;
+                    if (rs.getString(2) != null) {
+                        guids.add(rs.getString(2));
+                    }
+                }
+            }
+            if (count == 0) {
+                return numDeleted;
+            }
+            PreparedStatement mailDelete = prepare("DELETE FROM " + job.getTable() + " WHERE " + id
+                                                       + " BETWEEN ? AND ?" + job.excludedOnly() + " AND "
+                                                       + job.getTimeColumn() + " < ?");
+            mailDelete.setLong(1, firstId);
+            mailDelete.setLong(2, lastId);
+            mailDelete.setTimestamp(3, dateX);
+            numDeleted += deleteBatch(null, guids, eventDelete, mailDelete, null);
+        }
+    }
+
+    /**
+     * Records every batch in the given statistics, with the number of rows it deleted.
+     * @param stats of the batches.
+     */
+    public void setStats(StageStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Keeps the lag of a read replica in check: every batch waits while the replica is more than its maximum lag
+     * behind, and the batch size is halved while it is more than half of it behind.
+     * @param replica the monitor of the replica.
+     */
+    public void throttleWith(ReplicaMonitor replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * The current batch size.
+     * @return the number of emails deleted per batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * The number of batches deleted so far.
+     * @return the batch count.
+     */
+    public int getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * The time the slowest batch took.
+     * @return the time in milliseconds.
+     */
+    public long getSlowestBatchMillis() {
+        return slowestBatchNanos / 1000000;
+    }
+
+    /**
+     * Closes the prepared statements.
+     * @throws SQLException in case of error.
+     */
+    @Override
+    public void close() throws SQLException {
+        for (PreparedStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+    }
+
+    /**
+     * Deletes one batch in its own transaction and adapts the batch size to the time it took.
+     * @param ids of the emails in the batch, null if only their guids are known.
+     * @param guids of the emails in the batch, whose sendgrid events are deleted, null to read them from mail_log.
+     * @param eventDelete the statement that deletes the sendgrid events, up to its IN list, null to keep them.
+     * @param mailDelete the bound statement that deletes the mail logs of the batch, null to keep them.
+     * @param listener called before the batch is committed, may be null.
+     * @return the number of rows deleted from both tables.
+     * @throws SQLException in case of error.
+     */
+    private int deleteBatch(long[] ids, List<String> guids, String eventDelete, PreparedStatement mailDelete,
+                            BatchListener listener) throws SQLException {
+        long start = System.nanoTime();
+        boolean autoCommit = con.getAutoCommit();
+        int numDeleted = 0;
+        con.setAutoCommit(false);
+        try {
+            if (eventDelete != null && guids == null) {
+                guids = selectGuids(ids);
+            }
+            if (eventDelete != null && !guids.isEmpty()) {
+                int size = inListSize(guids.size());
+                numDeleted += bindGuids(prepareIn(eventDelete, size), size, guids).executeUpdate();
+            }
+            if (mailDelete != null) {
+                numDeleted += mailDelete.executeUpdate();
+            }
+            if (listener != null) {
+                listener.beforeCommit(con, ids);
+            }
+            con.commit();
+        } catch (SQLException | RuntimeException e) {
+            //A rollback that fails as well must not hide why the batch failed.
+            try {
+                con.rollback();
+            } catch (SQLException rollback) {
+                e.addSuppressed(rollback);
+            }
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+        long nanos = System.nanoTime() - start;
+        if (stats != null) {
+            stats.record(numDeleted, nanos);
+        }
+        adapt(nanos);
+        return numDeleted;
+    }
+
+    /**
+     * Reads the guids of a batch of emails from mail_log.
+     * @param ids of the emails.
+     * @return the guids, without those that are null.
+     * @throws SQLException in case of error.
+     */
+    private List<String> selectGuids(long[] ids) throws SQLException {
+        List<String> guids = new ArrayList<>(ids.length);
+        int size = inListSize(ids.length);
+        PreparedStatement select = bindIds(prepareIn("SELECT " + job.getKeyColumn() + " FROM " + job.getTable()
+                                                         + " WHERE " + job.getIdColumn() + " IN ", size),
+            size, ids);
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                if (rs.getString(1) != null) {
+                    guids.add(rs.getString(1));
+                }
+            }
+        }
+        return guids;
+    }
+
+    /**
+     * Waits for the replica before a batch, and halves the batch size if the replica is still more than half of its
+     * maximum lag behind.
+     * @throws SQLException in case of error.
+     */
+    private void throttle() throws SQLException {
+        if (replica != null && replica.awaitLag() > replica.getMaxLagMs() / 2) {
+            batchSize = Math.max(MIN_BATCH, batchSize / 2);
+        }
+    }
+
+    /**
+     * Turns the foreign key checks of the session off while deleting and back on afterwards.
+     * @param enabled whether the checks are on.
+     * @throws SQLException in case of error.
+     */
+    private void setForeignKeyChecks(boolean enabled) throws SQLException {
+        try (Statement stat = con.createStatement()) {
+            stat.execute("SET FOREIGN_KEY_CHECKS=" + (enabled ? 1 : 0));
+        }
+    }
+
+    /**
+     * Halves the batch size after a batch that took longer than the target and grows it by half after a batch
+     * that took less than half of the target.
+     * @param nanos the time the last batch took.
+     */
+    private void adapt(long nanos) {
+        batchCount++;
+        slowestBatchNanos = Math.max(slowestBatchNanos, nanos);
+        if (nanos > targetNanos) {
+            batchSize = Math.max(MIN_BATCH, batchSize / 2);
+        } else if (nanos < targetNanos / 2) {
+            batchSize = Math.min(MAX_BATCH, batchSize + batchSize / 2);
+        }
+    }
+
+    /**
+     * The size of the IN list for a number of values: the next power of two, so that the batch sizes the deleter
+     * adapts to, and the smaller last batch of every call, share at most one statement per power of two. The values
+     * are padded up to it by the bind methods.
+     * @param count the number of values, at least one.
+     * @return the number of parameters in the IN list.
+     */
+    static int inListSize(int count) {
+        int size = Integer.highestOneBit(Math.max(1, count));
+        return size < count ? size << 1 : size;
+    }
+
+    /**
+     * Prepares a statement ending in an IN list of the given size, reusing it for later batches of the same size.
+     * The sizes are powers of two from inListSize, which keeps the cached statements to a handful per prefix.
+     * @param prefix of the statement, up to the IN list.
+     * @param size the number of parameters in the IN list.
+     * @return the prepared statement.
+     * @throws SQLException in case of error.
+     */
+    private PreparedStatement prepareIn(String prefix, int size) throws SQLException {
+        StringBuilder sql = new StringBuilder(prefix).append("(");
+        for (int i = 0; i < size; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return prepare(sql.append(")").toString());
+    }
+
+    /**
+     * Prepares a statement once and reuses it afterwards.
+     * @param sql of the statement.
+     * @return the prepared statement.
+     * @throws SQLException in case of error.
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = con.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Sets the ids as the parameters of an IN list statement. If there are fewer ids than parameters, the last id
+     * is repeated, which does not change what is deleted.
+     * @param statement with at least one parameter per id.
+     * @param parameters the number of parameters of the statement.
+     * @param ids to set.
+     * @return the statement.
+     * @throws SQLException in case of error.
+     */
+    private PreparedStatement bindIds(PreparedStatement statement, int parameters, long[] ids) throws SQLException {
+        for (int i = 0; i < parameters; i++) {
+            statement.setLong(i + 1, ids[Math.min(i, ids.length - 1)]);
+        }
+        return statement;
+    }
+
+    /**
+     * Sets the guids as the parameters of an IN list statement. If there are fewer guids than parameters,
+     * the last guid is repeated, which does not change what is deleted.
+     * @param statement with at least one parameter per guid.
+     * @param parameters the number of parameters of the statement.
+     * @param guids to set.
+     * @return the statement.
+     * @throws SQLException in case of error.
+     */
+    private PreparedStatement bindGuids(PreparedStatement statement, int parameters, List<String> guids)
+        throws SQLException {
+        for (int i = 0; i < parameters; i++) {
+            statement.setString(i + 1, guids.get(Math.min(i, guids.size() - 1)));
+        }
+        return statement;
+    }
+}
@@ -0,0 +1,99 @@
+package org.vm.email.cleanup;
+
+import java.sql.Timestamp;
+
+/**
+ * A Checkpoint records how far a run of Clean got through the backlog. It holds the keyset position
+ * (sent_time and id) of the last email that was archived and deleted, the number of the last file named
+ * and the timestamp used for naming the files of the run, so that the next run can continue where it stopped.
+ * A file is named in the checkpoint before it is uploaded, so the next run never reuses the key of a file whose
+ * emails may already be deleted, even if the run stopped between the delete and the save of the checkpoint.
+ * When the backlog is archived in several time slices at once, every slice has its own Checkpoint, which also
+ * records where the slice ends.
+ */
+public class Checkpoint {
+    
+    private final int slice;
+    private final Timestamp sentTime;
+    private final long id;
+    private final int fileNumber;
+    private final String firstTimestamp;
+    private final Timestamp endTime;
+    
+    /**
+     * The constructor takes in the position of the last archived email and the file it was written to.
+     * @param slice the number of the time slice, 0 when the backlog is archived in one pass.
+     * @param sentTime sent_time of the last archived email.
+     * @param id id of the last archived email.
+     * @param fileNumber number of the last file named.
+     * @param firstTimestamp the timestamp used in the names of the files of the slice.
+     * @param endTime the sent_time the slice ends before, null if it runs up to the cutoff date of the run.
+     */
+    public Checkpoint(int slice, Timestamp sentTime, long id, int fileNumber, String firstTimestamp,
+                      Timestamp endTime) {
+        this.slice = slice;
+        this.sentTime = sentTime;
+        this.id = id;
+        this.fileNumber = fileNumber;
+        this.firstTimestamp = firstTimestamp;
+        this.endTime = endTime;
+    }
+    
+    /**
+     * The number of the time slice.
+     * @return the slice, 0 when the backlog is archived in one pass.
+     */
+    public int getSlice() {
+        return slice;
+    }
+    
+    /**
+     * The sent_time of the last archived email.
+     * @return a timestamp.
+     */
+    public Timestamp getSentTime() {
+        return sentTime;
+    }
+    
+    /**
+     * The id of the last archived email.
+     * @return the mail_log id.
+     */
+    public long getId() {
+        return id;
+    }
+    
+    /**
+     * The number of the last file named, whose key the next run does not use again.
+     * @return the file number.
+     */
+    public int getFileNumber() {
+        return fileNumber;
+    }
+    
+    /**
+     * The timestamp used in the names of the files of the slice.
+     * @return the timestamp as formatted for the file names, null if the slice has not written a file yet.
+     */
+    public String getFirstTimestamp() {
+        return firstTimestamp;
+    }
+    
+    /**
+     * The same position with the names of a later file.
+     * @param timestamp the timestamp used in the names of the files of the slice.
+     * @param number of the last file named.
+     * @return the checkpoint.
+     */
+    public Checkpoint withFile(String timestamp, int number) {
+        return new Checkpoint(slice, sentTime, id, number, timestamp, endTime);
+    }
+    
+    /**
+     * The sent_time the slice ends before.
+     * @return a timestamp, or null if the slice runs up to the cutoff date of the run.
+     */
+    public Timestamp getEndTime() {
+        return endTime;
+    }
+}
@@ -0,0 +1,237 @@
+package org.vm.email.cleanup;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The CheckpointStore keeps the Checkpoint of every unfinished slice of a run as a small JSON object in the S3
+ * bucket the archive files are written to, saved after every file that has been uploaded and deleted from the
+ * database and cleared once the backlog has been fully drained. Subclasses can keep the object somewhere else by
+ * overriding readObject, writeObject and deleteObject.
+ */
+public class CheckpointStore {
+    
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+    private final Map<Integer, Checkpoint> slices = new TreeMap<>();
+    private final Map<Integer, Integer> reserved = new HashMap<>();
+    private final Set<String> finishedPartitions = new TreeSet<>();
+    
+    /**
+     * The constructor takes in the client, bucket and key of the checkpoint object. The bucket is not accessed until
+     * the checkpoints are first loaded or saved.
+     * @param s3Client the client the bucket is reached with.
+     * @param bucketName is the name of the bucket in AWS.
+     * @param key of the checkpoint object.
+     */
+    public CheckpointStore(AmazonS3 s3Client, String bucketName, String key) {
+        this.s3Client = s3Client;
+        this.bucket = bucketName;
+        this.key = key;
+    }
+    
+    /**
+     * Reads the checkpoints left by the previous run. A checkpoint written before runs were sliced is read as
+     * the checkpoint of a single slice.
+     * @return the checkpoint of every unfinished slice, empty if the previous run finished the backlog.
+     * @throws ParseException if the stored checkpoint is not valid JSON.
+     */
+    public synchronized List<Checkpoint> load() throws ParseException {
+        slices.clear();
+        reserved.clear();
+        finishedPartitions.clear();
+        String stored = readObject();
+        if (stored != null) {
+            JSONObject json = (JSONObject) new JSONParser().parse(stored);
+            if (json.containsKey("slices")) {
+                for (Object slice : (JSONArray) json.get("slices")) {
+                    Checkpoint checkpoint = fromJson((JSONObject) slice);
+                    slices.put(checkpoint.getSlice(), checkpoint);
+                }
+                if (json.containsKey("finished_partitions")) {
+                    for (Object name : (JSONArray) json.get("finished_partitions")) {
+                        finishedPartitions.add((String) name);
+                    }
+                }
+            } else {
+                slices.put(0, fromJson(json));
+            }
+        }
+        return new ArrayList<>(slices.values());
+    }
+    
+    /**
+     * Stores the position reached by a slice of the current run.
+     * @param checkpoint of the last file uploaded and deleted.
+     */
+    public synchronized void save(Checkpoint checkpoint) {
+        //A later file of the slice may have been reserved while this one was being uploaded and deleted.
+        Integer number = reserved.get(checkpoint.getSlice());
+        if (number != null && number > checkpoint.getFileNumber()) {
+            checkpoint = checkpoint.withFile(checkpoint.getFirstTimestamp(), number);
+        }
+        slices.put(checkpoint.getSlice(), checkpoint);
+        write();
+    }
+    
+    /**
+     * Stores the name of the file a slice is about to upload, at the position of its last deleted file, so that
+     * the next run numbers its files after it.
+     * @param start the checkpoint the slice started after, its position until a file has been deleted.
+     * @param firstTimestamp the timestamp used in the names of the files of the slice.
+     * @param fileNumber the number of the file.
+     */
+    public synchronized void reserve(Checkpoint start, String firstTimestamp, int fileNumber) {
+        Checkpoint current = slices.getOrDefault(start.getSlice(), start);
+        reserved.put(start.getSlice(), fileNumber);
+        slices.put(start.getSlice(), current.withFile(firstTimestamp, fileNumber));
+        write();
+    }
+    
+    /**
+     * Stores the starting position of every slice, so that a slice that is stopped before it finishes a file
+     * is still continued by the next run.
+     * @param checkpoints of all slices.
+     */
+    public synchronized void saveAll(List<Checkpoint> checkpoints) {
+        for (Checkpoint checkpoint : checkpoints) {
+            slices.put(checkpoint.getSlice(), checkpoint);
+        }
+        write();
+    }
+    
+    /**
+     * Removes the checkpoint of a slice that has archived all of its emails. The object is deleted once no slice
+     * is left.
+     * @param slice the number of the finished slice.
+     * @param partition the name of the partition the slice covers, null if it is not a partition slice. It is kept
+     * in the object, so that a run that ends before its partitions are dropped lets the next run drop them.
+     */
+    public synchronized void finish(int slice, String partition) {
+        slices.remove(slice);
+        reserved.remove(slice);
+        if (partition != null) {
+            finishedPartitions.add(partition);
+        }
+        if (slices.isEmpty()) {
+            deleteObject();
+        } else {
+            write();
+        }
+    }
+    
+    /**
+     * Returns the partitions whose slices have archived all of their emails, in this run or in the runs it
+     * continues, as long as the checkpoints have not been cleared.
+     * @return the names of the partitions.
+     */
+    public synchronized Set<String> getFinishedPartitions() {
+        return new TreeSet<>(finishedPartitions);
+    }
+    
+    /**
+     * Removes the checkpoint once the backlog has been drained.
+     */
+    public synchronized void clear() {
+        slices.clear();
+        reserved.clear();
+        finishedPartitions.clear();
+        deleteObject();
+    }
+    
+    /**
+     * Writes the checkpoint of a file in the transactions that delete its emails, for stores that keep it in the
+     * database. The checkpoints in the bucket are saved once the emails have been deleted.
+     * @param checkpoint of the file, at its last email.
+     * @param bytes the size of the file.
+     * @return the listener of the delete batches of the file, null if the checkpoint is saved after them.
+     */
+    public BatchDeleter.BatchListener inTransaction(Checkpoint checkpoint, long bytes) {
+        return null;
+    }
+    
+    /**
+     * Writes the checkpoints of all slices to the bucket.
+     */
+    @SuppressWarnings("unchecked")
+    private void write() {
+        JSONArray array = new JSONArray();
+        for (Checkpoint checkpoint : slices.values()) {
+            array.add(toJson(checkpoint));
+        }
+        JSONObject json = new JSONObject();
+        json.put("slices", array);
+        if (!finishedPartitions.isEmpty()) {
+            JSONArray names = new JSONArray();
+            names.addAll(finishedPartitions);
+            json.put("finished_partitions", names);
+        }
+        writeObject(json.toJSONString());
+    }
+    
+    /**
+     * Reads the checkpoint object from the bucket.
+     * @return the contents of the object, null if there is none.
+     */
+    protected String readObject() {
+        return s3Client.doesObjectExist(bucket, key) ? s3Client.getObjectAsString(bucket, key) : null;
+    }
+    
+    /**
+     * Replaces the checkpoint object in the bucket.
+     * @param contents of the object.
+     */
+    protected void writeObject(String contents) {
+        s3Client.putObject(bucket, key, contents);
+    }
+    
+    /**
+     * Deletes the checkpoint object from the bucket.
+     */
+    protected void deleteObject() {
+        s3Client.deleteObject(bucket, key);
+    }
+    
+    /**
+     * Converts a checkpoint to JSON.
+     * @param checkpoint to convert.
+     * @return the JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject toJson(Checkpoint checkpoint) {
+        JSONObject json = new JSONObject();
+        json.put("slice", (long) checkpoint.getSlice());
+        json.put("sent_time", checkpoint.getSentTime().getTime());
+        json.put("id", checkpoint.getId());
+        json.put("file_number", (long) checkpoint.getFileNumber());
+        json.put("first_timestamp", checkpoint.getFirstTimestamp());
+        json.put("end_time", checkpoint.getEndTime() == null ? null : checkpoint.getEndTime().getTime());
+        return json;
+    }
+    
+    /**
+     * Reads a checkpoint from JSON. Missing slice and end_time fields mean a single slice up to the cutoff date.
+     * @param json the JSON object.
+     * @return the checkpoint.
+     */
+    private static Checkpoint fromJson(JSONObject json) {
+        Long slice = (Long) json.get("slice");
+        Long endTime = (Long) json.get("end_time");
+        return new Checkpoint(slice == null ? 0 : slice.intValue(), new Timestamp((Long) json.get("sent_time")),
+            (Long) json.get("id"), ((Long) json.get("file_number")).intValue(), (String) json.get("first_timestamp"),
+            endTime == null ? null : new Timestamp(endTime));
+    }
+}
@@ -1,278 +1,861 @@
 package org.vm.email.cleanup;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.Date;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import org.vm.shared.S3LogWriter;
+import org.crac.Core;
+import org.json.simple.parser.ParseException;
+import org.vm.shared.ConnectionPool;
+import org.vm.shared.LocalLogWriter;
 import org.vm.shared.SharedFileWriter;
+import org.vm.shared.WriteLog;
 
 /**
  * Handler for requests to Lambda function.
  */
 public class Clean implements RequestHandler<Object, String> {
     
+    /**
+     * Time in milliseconds a trickle run holds its lease when it runs outside of Lambda, the longest a Lambda
+     * invocation can run.
+     */
+    static final long DEFAULT_LEASE_MS = 15 * 60 * 1000;
+    
+    /**
+     * The stages of the run report with the unit of the items they count.
+     */
+    private static final String[][] REPORT_STAGES = {
+        {"read", "emails"},
+        {"lookup", "events"},
+        {"encode", "rows"},
+        {"upload", "bytes"},
+        {"s3", "bytes"},
+        {"delete", "rows"},
+        {"deleteBatch", "rows"},
+        {"customDelete", "rows"}
+    };
+    
+    private static boolean driverLoaded = false;
+    
+    /**
+     * Looks up the configuration of the function, the environment variables of the Lambda function by default.
+     */
+    private final Function<String, String> env;
+    
+    /**
+     * Formats timestamps the way the database shows them, in PST. Unlike SimpleDateFormat it is thread-safe,
+     * so it is created once and shared by the reader and the event lookups.
+     */
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+                                                                   .withZone(ZoneId.of("PST", ZoneId.SHORT_IDS));
+    
+    /**
+     * Does the one-time work of the container ahead of its first request, and closes and reopens its connections
+     * around a snapshot. The JVM only keeps a weak reference to a registered Resource.
+     */
+    private Primer primer;
+    
+    /**
+     * The constructor used by Lambda, which reads the configuration from the environment variables. Lambda creates
+     * the handler in the init phase of the container, which SnapStart snapshots, so the container is primed here
+     * unless PRIME is false.
+     */
+    public Clean() {
+        this(System::getenv);
+        if (!"false".equalsIgnoreCase(env.apply("PRIME"))) {
+            prime();
+        }
+    }
+    
+    /**
+     * The constructor takes in where the configuration is read from, for example a map of variables when the
+     * function is run outside of Lambda.
+     * @param env returns the value of a variable, or null if it is not set.
+     */
+    Clean(Function<String, String> env) {
+        this.env = env;
+    }
+    
+    /**
+     * Primes the container: parses the configuration, connects to the database, builds the S3 client and writes a
+     * file of every kind the run writes, and registers the hooks of a CRaC or SnapStart runtime.
+     */
+    void prime() {
+        primer = new Primer(env);
+        primer.prime();
+        Core.getGlobalContext().register(primer);
+    }
+    
     /**
      * The body of the Lambda function. Takes in a basic string input (per requirements of RequestHandler
      * interface). Connects email_db based on specifications from environment variables and deletes
      * entries in sendgrid_event and mail_log tables logged earlier than the specified number days earlier.
      * @param input is the Lambda event.
      * @param context a component of the input as processed by a RequestHandler interface.
-     * @return A string showing the success of the function once it has been running.
+     * @return A string showing the success of the function once it has been running, followed by a line with
+     * the report of the run.
      */
     public String handleRequest(final Object input, final Context context)  {
+        //Collects the statistics of every stage and the numbers of every file. The stages are listed in the
+        //order an email goes through them.
+        RunReport report = new RunReport(context == null ? "Clean" : context.getFunctionName());
+        for (String[] stage : REPORT_STAGES) {
+            report.stage(stage[0], stage[1]);
+        }
         try {
-            //Get desired timestamp to refer to for database update.
-            String offset = System.getenv("OFFSET");
-            Timestamp dateX = convertToTimestamp(offset);
-            
-            //Get basename for file.
-            String baseName = System.getenv("BASE_FILENAME");
-            
-            //Retrieve the number of emails to be logged to each created file.
-            String emailNum = System.getenv("EMAILNUM");
-            int maxEmailNum = Integer.parseInt(emailNum);
-            
-            //Retrieve name of destination bucket for CSV log.
-            String bucketName = System.getenv("BUCKET");
+            RunSettings settings = RunSettings.of(env);
+            System.out.println("Archiving " + settings.getJob());
+            return run(settings, context, report);
+        } catch (ClassNotFoundException | SQLException | IOException | ParseException e) {
+            return complete(report, "ERROR", "ERROR: Database connection error or parsing error: " + e);
+        }
+    }
+    
+    /**
+     * Connects to the database, and to the read replica and the destination of the files, and archives the emails
+     * of a trickle run or of a full run.
+     * @param settings of the run.
+     * @param context of the Lambda invocation, null outside of Lambda.
+     * @param report collects the statistics of every stage.
+     * @return the message of the run followed by a line with its report.
+     * @throws ClassNotFoundException if the MySQL driver is missing.
+     * @throws SQLException in case of a database error.
+     * @throws IOException in case a file cannot be written or uploaded.
+     * @throws ParseException if the checkpoints cannot be read.
+     */
+    String run(RunSettings settings, Context context, RunReport report)
+            throws ClassNotFoundException, SQLException, IOException, ParseException {
+        //Establish connection. It is used to plan the run and to delete the custom emails at the end. Every
+        //slice reads and deletes its emails on connections of its own. Connections come from a pool that is
+        //kept between invocations, so a warm container reuses the connections of the previous run, and the
+        //first run the connection opened by the primer.
+        ConnectionPool pool = connectionPool(settings.getJdbc(), settings.getMaxConnections());
+        Connection con = pool.getConnection();
+        try {
+            //With a read replica, the slices read the emails and their events from it and only the deletes run on
+            //the primary. Every slice waits for the replica to catch up before reading, and the deletes wait while
+            //it is too far behind.
+            ConnectionPool replicaPool = null;
+            ReplicaMonitor replica = null;
+            if (settings.getReplicaJdbc() != null) {
+                replicaPool = connectionPool(settings.getReplicaJdbc(), settings.getMaxConnections());
+                replica = new ReplicaMonitor(pool, replicaPool, settings.getHeartbeatTable(), settings.getBaseName(),
+                    settings.getReplicaMaxLagMs(), settings.getReplicaMaxWaitMs());
+                replica.createTable(con);
+                replica.setStats(report.stage("replicaWait", "waits"));
+            }
             
-            //Get information for accessing database from environment variables.
-            String dbName = System.getenv("DBNAME");
-            String dbUser = System.getenv("DBUSER");
-            String dbPass = System.getenv("DBPASSWORD");
-            String port = System.getenv("PORT");
-            String hostname = System.getenv("HOSTNAME");
+            //The bucketWriter is used to write newly created files to the desired S3 bucket, or to LOCAL_DIR.
+            WriteLog bucketWriter = settings.getLocalDir() == null ? settings.bucketWriter()
+                                        : new LocalLogWriter(new File(settings.getLocalDir()));
+            bucketWriter.setStats(report.stage("s3", "bytes"));
             
-            //Establish connection.
+            Run run = new Run(settings, context, report, pool, con, replicaPool, replica, bucketWriter);
+            return settings.isTrickle() ? trickle(run) : archive(run);
+        } finally {
+            //Returns the connection to the pool on every path, including errors.
+            try {
+                con.close();
+            } catch (SQLException e) {
+                System.out.println("Returning the connection failed: " + e);
+            }
+        }
+    }
+    
+    /**
+     * Archives the emails sent since the last trickle run, in a single slice. The position of the run is a
+     * high-water mark kept in TRICKLE_TABLE and moved by the transactions that delete the emails. The files of
+     * successive runs continue the same segment until it holds ROLL_MB megabytes or is ROLL_MINUTES old. A run
+     * that finds the mark leased to another run does nothing.
+     * @param run the connections and settings of the run.
+     * @return the message of the run followed by a line with its report.
+     * @throws SQLException in case of a database error.
+     * @throws IOException in case a file cannot be written or uploaded.
+     */
+    private String trickle(Run run) throws SQLException, IOException {
+        RunSettings settings = run.settings;
+        HighWaterMark mark = new HighWaterMark(settings.getTrickleTable(), settings.getBaseName(),
+            settings.getRollBytes(), settings.getRollMs());
+        try {
+            mark.createTable(run.con);
+            Checkpoint start = mark.start(run.con, run.context == null ? DEFAULT_LEASE_MS
+                                                       : run.context.getRemainingTimeInMillis());
+            if (start == null) {
+                String outputMessage = "SKIPPED: another run is archiving " + settings.getBaseName()
+                                           + ", nothing done";
+                return complete(run.report, "SKIPPED", outputMessage);
+            }
+            return archiveSlices(run, Collections.singletonList(start), mark, false, Partitions.NONE);
+        } finally {
+            //Gives up the lease on every path, including errors, before the connection is returned.
+            try {
+                mark.release(run.con);
+            } catch (SQLException e) {
+                System.out.println("Releasing the lease of " + settings.getBaseName() + " failed: " + e);
+            }
+        }
+    }
+    
+    /**
+     * Archives every email before the cutoff date. The checkpoints left by a run that stopped before its deadline
+     * are continued from the last archived email of every unfinished slice, and keep numbering its files.
+     * Otherwise the backlog is split into PARALLELISM time slices that are archived at once. With PARTITION_MODE
+     * set to drop or exchange and mail_log range partitioned by sent_time, every partition that lies entirely
+     * before the cutoff date is archived by a slice of its own, which keeps its mail logs, and removed as a whole
+     * once the run has archived everything. The rest is archived row by row.
+     * @param run the connections and settings of the run.
+     * @return the message of the run followed by a line with its report.
+     * @throws SQLException in case of a database error.
+     * @throws IOException in case a file cannot be written or uploaded.
+     * @throws ParseException if the checkpoints cannot be read.
+     */
+    private String archive(Run run) throws SQLException, IOException, ParseException {
+        RunSettings settings = run.settings;
+        Partitions partitions = loadPartitions(run.con, settings);
+        String checkpointKey = settings.getCheckpointKey();
+        CheckpointStore checkpoints = settings.getLocalDir() == null
+                                          ? new CheckpointStore(settings.getS3Client(), settings.getBucketName(),
+                                                                checkpointKey)
+                                          : new LocalCheckpointStore(new File(settings.getLocalDir(), checkpointKey));
+        List<Checkpoint> slices = checkpoints.load();
+        boolean resumed = !slices.isEmpty();
+        if (!resumed) {
+            slices = planSlices(run.con, settings.getCutoff(), settings.getParallelism(), partitions.mail,
+                settings.getJob());
+            if (slices.size() > 1) {
+                checkpoints.saveAll(slices);
+            }
+        }
+        return archiveSlices(run, slices, checkpoints, resumed, partitions);
+    }
+    
+    /**
+     * Archives the slices of a run and completes it according to what they archived.
+     * @param run the connections and settings of the run.
+     * @param slices the checkpoint every slice starts from.
+     * @param checkpoints where the slices save their checkpoints.
+     * @param resumed whether the slices continue the checkpoints of an earlier run.
+     * @param partitions of the run, removed once the run has archived everything.
+     * @return the message of the run followed by a line with its report.
+     * @throws SQLException in case of a database error.
+     * @throws IOException in case a file cannot be written or uploaded.
+     */
+    private String archiveSlices(Run run, List<Checkpoint> slices, CheckpointStore checkpoints, boolean resumed,
+                                 Partitions partitions) throws SQLException, IOException {
+        RunSettings settings = run.settings;
+        ArchiveSettings archive = settings.getArchive();
+        //While the emails are read, the manifest records the guids, addresses, sent_time and id range of every
+        //file, so that ArchiveLookup can find an email without downloading every file.
+        ArchiveManifest manifest = new ArchiveManifest(archive.getEmailNum(), settings.getManifestFpp());
+        
+        //With STATS_TABLE, the number of emails and of every sendgrid event of each day and type of email, and
+        //a sketch of their recipients, are added to that table in the same transactions that delete the emails.
+        DailyStats dailyStats = null;
+        if (settings.getStatsTable() != null) {
+            dailyStats = new DailyStats(settings.getStatsTable());
+            dailyStats.createTable(run.con);
+            dailyStats.setStats(run.report.stage("stats", "rows"));
+        }
+        
+        //Every slice reads and deletes on a connection of its own, and looks up the sendgrid events on a third
+        //one when it streams, all of which are kept for the next run. All slices run at once, except that the
+        //slices of the partitions share PARALLELISM threads.
+        int threads = partitions.mail == null ? slices.size()
+                          : Math.min(slices.size(), Math.max(1, settings.getParallelism()));
+        int connections = archive.isStreamed() ? 3 : 2;
+        //Beyond MAX_CONNECTIONS the slices wait for each other's threads, rather than for connections that are
+        //held until a slice ends.
+        threads = Math.max(1, Math.min(threads, (settings.getMaxConnections() - 1) / connections));
+        run.pool.setMaxIdle(Math.max(ConnectionPool.DEFAULT_MAX_IDLE, connections * threads + 1));
+        if (run.replicaPool != null) {
+            run.replicaPool.setMaxIdle(Math.max(ConnectionPool.DEFAULT_MAX_IDLE, connections * threads + 1));
+        }
+        //Each slice hands its files to a pipeline that encodes, uploads and deletes finished files on its own
+        //threads while the slice keeps reading.
+        Function<String, SharedFileWriter> writerFactory = settings.writerFactory(run.bucketWriter,
+            settings.isStreamUpload());
+        List<SliceArchiver> archivers = new ArrayList<>();
+        for (Checkpoint slice : slices) {
+            SliceArchiver archiver = new SliceArchiver(archive, run.pool, slice, settings.getCutoff(), writerFactory,
+                run.bucketWriter, checkpoints, run.report, manifest, run.context);
+            if (dailyStats != null) {
+                archiver.keepStats(dailyStats);
+            }
+            archiver.limitHeap(settings.getBudget());
+            archiver.useLayout(settings.getLayout());
+            if (run.replicaPool != null) {
+                archiver.readFrom(run.replicaPool, run.replica);
+            }
+            PartitionLayout.Partition partition = partitions.mail == null ? null
+                                                      : partitions.mail.find(slice.getSentTime(),
+                                                          slice.getEndTime());
+            if (partition != null && partitions.oldMail.contains(partition)) {
+                archiver.archivePartition(partition, keptPartitions(partitions.events, partitions.oldEvents));
+            }
+            archivers.add(archiver);
+        }
+        int numDeleted;
+        try {
+            numDeleted = runSlices(archivers, threads);
+        } finally {
+            //The files archived before a failure are described as well.
+            if (!manifest.isEmpty()) {
+                writeManifest(manifest, run.bucketWriter, settings.getBaseName(), tsToString(run.start));
+            }
+        }
+        System.out.println(run.pool);
+        if (run.replicaPool != null) {
+            System.out.println("replica " + run.replicaPool);
+        }
+        System.out.println(settings.getBudget());
+        
+        //Collects the files written by each slice. Nothing has been written if there are no emails in the
+        //specified time frame that are recorded/deleted.
+        List<String> fileNames = new ArrayList<>();
+        List<String> fileRanges = new ArrayList<>();
+        boolean outOfTime = false;
+        KeyLayout layout = settings.getLayout();
+        for (SliceArchiver archiver : archivers) {
+            outOfTime = outOfTime || archiver.isOutOfTime();
+            if (archiver.hasFiles()) {
+                String name = layout.describe(settings.getBaseName() + archiver.getFirstTimestamp());
+                fileNames.add(name + settings.getFileExtension());
+                fileRanges.add(name + "_" + archiver.getFirstFileNumber() + " to _" + archiver.getLastFileNumber());
+            }
+        }
+        if (fileNames.isEmpty()) {
+            return noData(run, checkpoints, resumed, partitions);
+        } else if (outOfTime) {
+            return partial(run, numDeleted, fileRanges);
+        }
+        return succeed(run, checkpoints, numDeleted, fileNames, partitions, archivers);
+    }
+    
+    /**
+     * Completes a run that stopped before its deadline or MAX_EMAILS. The checkpoint of the last file of each
+     * slice has been saved, and the next run continues from them.
+     * @param run the connections and settings of the run.
+     * @param numDeleted the number of rows deleted by the slices.
+     * @param fileRanges the first and last file of every slice that wrote any.
+     * @return the message of the run followed by a line with its report.
+     */
+    private String partial(Run run, int numDeleted, List<String> fileRanges) {
+        String outputMessage = "PARTIAL: " + numDeleted + " rows of deleted information have been recorded in "
+                                   + run.settings.getDestination() + " in files titled "
+                                   + String.join(", ", fileRanges) + ". Stopped before the deadline or MAX_EMAILS, "
+                                   + "the next run continues from the checkpoint.";
+        return complete(run.report, "PARTIAL", outputMessage);
+    }
+    
+    /**
+     * Completes a run that archived every email before the cutoff date: clears the checkpoints, deletes the
+     * excluded rows and removes the partitions before the cutoff date.
+     * @param run the connections and settings of the run.
+     * @param checkpoints of the slices.
+     * @param numDeleted the number of rows deleted by the slices.
+     * @param fileNames the files of every slice that wrote any.
+     * @param partitions of the run.
+     * @param archivers of the slices.
+     * @return the message of the run followed by a line with its report.
+     * @throws SQLException in case of a database error.
+     */
+    private String succeed(Run run, CheckpointStore checkpoints, int numDeleted, List<String> fileNames,
+                           Partitions partitions, List<SliceArchiver> archivers) throws SQLException {
+        RunSettings settings = run.settings;
+        checkpoints.clear();
+        
+        //Deletes all info of type custom_email_to_volunteer, or the excluded rows of the job, from specified
+        //timeframe. This comes before the partitions are removed, which would otherwise leave the events of
+        //the excluded emails of a dropped partition behind in the partitions of sendgrid_event that are kept.
+        int numOfCustomToVolunteer = deleteExcluded(run);
+        
+        //Every email before the cutoff date has been archived, so the partitions before it can go. The mail
+        //logs of a partition only count as deleted once it is gone.
+        List<String> removed = new ArrayList<>();
+        numDeleted += removePartitions(run.con, partitions, partitions.oldMail, archivers, removed);
+        String removedPartitions = partitionMessage(removed, partitions.mode);
+        
+        //Total number of emails deleted.
+        int combinedNum = numDeleted + numOfCustomToVolunteer;
+        
+        String outputMessage = "SUCCESS: " + combinedNum + " rows deleted from database. " + numOfCustomToVolunteer + " Opp Alerts have been deleted and " + numDeleted + " rows of deleted information have been recorded in "
+                       + settings.getDestination() + " in files titled " + String.join(", ", fileNames)
+                       + removedPartitions;
+        
+        return complete(run.report, "SUCCESS", outputMessage);
+    }
+    
+    /**
+     * Completes a run that found no emails to archive. When it continued the checkpoints of an earlier run, the
+     * slices of that run have archived every email, so the partitions of mail_log whose slices finished are removed
+     * after the excluded rows, as a successful run removes them. Otherwise the excluded rows have not been deleted
+     * with their events, and only the partitions of mail_log that are already empty are removed. The partitions of
+     * sendgrid_event are only removed with the partition of mail_log they lie in.
+     * @param run the connections and settings of the run.
+     * @param checkpoints of the slices.
+     * @param resumed whether the slices continued the checkpoints of an earlier run, which are cleared.
+     * @param partitions of the run.
+     * @return the message of the run followed by a line with its report.
+     * @throws SQLException in case of a database error.
+     */
+    private String noData(Run run, CheckpointStore checkpoints, boolean resumed, Partitions partitions)
+        throws SQLException {
+        Set<String> finished = resumed ? checkpoints.getFinishedPartitions() : Collections.emptySet();
+        List<PartitionLayout.Partition> oldMailPartitions = new ArrayList<>();
+        for (PartitionLayout.Partition partition : partitions.oldMail) {
+            if (finished.contains(partition.getName()) || partitions.mail.isEmpty(run.con, partition)) {
+                oldMailPartitions.add(partition);
+            }
+        }
+        int numOfCustomToVolunteer = 0;
+        if (!finished.isEmpty()) {
+            numOfCustomToVolunteer = deleteExcluded(run);
+        }
+        List<String> removed = new ArrayList<>();
+        if (partitions.mail != null) {
+            boolean exchange = partitions.mode.equalsIgnoreCase("exchange");
+            List<PartitionLayout.Partition> gone = removePartitions(run.con, partitions.mail, oldMailPartitions,
+                exchange, removed);
+            if (partitions.events != null) {
+                removePartitions(run.con, partitions.events, pairedPartitions(partitions.oldEvents, gone), exchange,
+                    removed);
+            }
+        }
+        String removedPartitions = partitionMessage(removed, partitions.mode);
+        
+        //The checkpoints are cleared once the partitions they finished are gone.
+        if (resumed) {
+            checkpoints.clear();
+        }
+        String outputMessage = "No data in the specified time frame. Nothing recorded from database"
+                                   + (numOfCustomToVolunteer > 0 ? ", " + numOfCustomToVolunteer
+                                                                       + " Opp Alerts have been deleted." : ".")
+                                   + removedPartitions;
+        return complete(run.report, "NO_DATA", outputMessage);
+    }
+    
+    /**
+     * Deletes all info of type custom_email_to_volunteer, or the excluded rows of the job, before the cutoff date.
+     * @param run the connections and settings of the run.
+     * @return the number of rows deleted, 0 if the job keeps its excluded rows.
+     * @throws SQLException in case of a database error.
+     */
+    private int deleteExcluded(Run run) throws SQLException {
+        RunSettings settings = run.settings;
+        if (!settings.getJob().isDeleteExcluded()) {
+            return 0;
+        }
+        ArchiveSettings archive = settings.getArchive();
+        try (BatchDeleter customDeleter = new BatchDeleter(run.con, settings.getJob(), archive.getDeleteBatch(),
+            archive.getDeleteTargetMs())) {
+            customDeleter.setStats(run.report.stage("customDelete", "rows"));
+            customDeleter.throttleWith(run.replica);
+            return customDeleter.deleteExcluded(settings.getCutoff());
+        }
+    }
+    
+    /**
+     * Prints the report of the run, which holds the summary of every stage and file. The report is a single line of
+     * JSON in the CloudWatch embedded metric format, which turns it into metrics once it reaches the log.
+     * @param report of the run.
+     * @param status of the run, ex: SUCCESS.
+     * @param message the summary message of the run.
+     * @return the message followed by a line with the report.
+     */
+    private String complete(RunReport report, String status, String message) {
+        String json = report.toJson(status, message);
+        System.out.println(json);
+        return message + "\n" + json;
+    }
+    
+    /**
+     * Writes the manifest of the run next to its files. A manifest that cannot be written does not fail the run,
+     * since its files have already been archived and deleted.
+     * @param manifest of the run.
+     * @param bucketWriter the destination of the files.
+     * @param baseName the start of every file name.
+     * @param run the start of the run, which names the manifest.
+     */
+    private void writeManifest(ArchiveManifest manifest, WriteLog bucketWriter, String baseName, String run) {
+        String name = baseName + "manifest_" + run + ".json";
+        File file = new File("/tmp/", name);
+        try {
+            Files.write(file.toPath(), manifest.toJson(run).getBytes(StandardCharsets.UTF_8));
+            bucketWriter.writeLog(file, name);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Writing the manifest " + name + " failed: " + e);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    /**
+     * The connection pool of the database, created by the first invocation of a container and reused by the
+     * invocations after it. The driver is loaded once, together with the pool.
+     * @param jdbc the connection string of the database.
+     * @param maxConnections the number of connections open at once.
+     * @return the pool.
+     * @throws ClassNotFoundException if the MySQL driver is missing.
+     */
+    static synchronized ConnectionPool connectionPool(String jdbc, int maxConnections)
+        throws ClassNotFoundException {
+        if (!driverLoaded) {
             Class.forName("com.mysql.cj.jdbc.Driver");
-            String jdbc = "jdbc:mysql://" + hostname + ":" + port + "/" + dbName+ "?user=" + dbUser + "&password=" + dbPass;
-            Connection con = DriverManager.getConnection(jdbc);
-            
-            //Setup guid list to loop through.
-            List<String> guidList = new ArrayList<>();
-            
-            //Sets up variables used for creating new files. The SharedFileWriter is an abstract class that allows for
-            //the writing of various file types. In this case it is a CSV file.
-            SharedFileWriter writer = null;
-            
-            //This will be the Timestamp of the first log from the queried section of the database and will be used for
-            //naming the CSV file.
-            String firstTimestamp = null;
-            
-            //The bucketWriter is used to write newly created files to the desired S3 bucket.
-            S3LogWriter bucketWriter = new S3LogWriter(bucketName);
-            
-            //Will increment as new files are created and added on to the file name.
-            int fileNumber = 1;
-            
-            //Tracks how many rows are deleted in both mail_log and sendgrid_event tables.
-            int numDeleted = 0;
-    
-            //Loop through all emails from before selected date of a certain type and add their info to a CSV file.
-            String query = "SELECT * FROM mail_log WHERE sent_time < ? AND type != 'custom_email_to_volunteer' ORDER BY sent_time ASC";
-            PreparedStatement statement = con.prepareStatement(query);
-            statement.setTimestamp(1, dateX);
-            ResultSet rs = statement.executeQuery();
-            while (rs.next()) {
-                //If no file has been created yet, create the first file.
-                if (writer == null) {
-                    firstTimestamp = tsToString(rs.getTimestamp("sent_time"));
-                    writer = new CleanCSVWriter("/tmp/",baseName + firstTimestamp + "_" + fileNumber);
-                
-                //If a file has already been created but it has recorded the max number of emails, write file
-                //to S3 bucket and create a new file to write to.
-                } else if (maxEmailNum == 0) {
-                    writer.flushAndClose();
-                    bucketWriter.writeLog(writer.getFile(), writer.getFile().getName());
-                    writer.deleteFile();
-                    int numFromDeletion = cleanDelete(con, guidList);
-                    numDeleted = numDeleted + numFromDeletion;
-                    guidList = new ArrayList<>();
-                    fileNumber ++;
-                    writer = new CleanCSVWriter("/tmp/", baseName + firstTimestamp + "_" + fileNumber);
-                    maxEmailNum = Integer.parseInt(emailNum);
-                }
-                //Decrements the maxEmailNum to track how many emails have been recorded in the current file.
-                maxEmailNum --;
-    
-                //Creates Array of strings with info from the mail log.
-                String[] mailInfo = new String[8];
-                mailInfo[0] = (Integer.toString(rs.getInt("id")));
-                mailInfo[1] = (rs.getString("email"));
-                mailInfo[2] = (rs.getString("guid"));
-                mailInfo[3] = (rs.getString("host"));
-                mailInfo[4] = (rs.getString("ref1"));
-                mailInfo[5] = (rs.getString("ref2"));
-                mailInfo[6] = (tsToString(rs.getTimestamp("sent_time")));
-                mailInfo[7] = (rs.getString("type"));
-                
-                //Query to find all sendgrid events associated with an email.
-                query = "SELECT * FROM sendgrid_event WHERE sendgrid_event.guid = ?";
-                statement = con.prepareStatement(query);
-                String currGuid = rs.getString("guid");
-                guidList.add(currGuid);
-                statement.setString(1, currGuid);
-                ResultSet rs2 = statement.executeQuery();
-                
-                //Boolean created to track whether or not a given email has associated events.
-                boolean events = false;
-                while (rs2.next()) {
-                    events = true;
-                    //Array of strings representing the given sendgrid event info associated with the mail guid.
-                    String[] eventInfo = new String[20];
-                    eventInfo[0] = (rs2.getString("sg_event_id"));
-                    eventInfo[1] = (Integer.toString(rs2.getInt("asm_group_id")));
-                    eventInfo[2] = (rs2.getString("attempt"));
-                    eventInfo[3] = (rs2.getString("category"));
-                    eventInfo[4] = (rs2.getString("email"));
-                    eventInfo[5] = (rs2.getString("event"));
-                    eventInfo[6] = (rs2.getString("ip"));
-                    eventInfo[7] = (rs2.getString("reason"));
-                    eventInfo[8] = (rs2.getString("response"));
-                    eventInfo[9] = (rs2.getString("sg_message_id"));
-                    eventInfo[10] = (rs2.getString("smtp_id"));
-                    eventInfo[11] = (rs2.getString("status"));
-                    eventInfo[12] = (tsToString(rs2.getTimestamp("timestamp")));
-                    eventInfo[13] = (Integer.toString(rs2.getInt("tls")));
-                    eventInfo[14] = (rs2.getString("type"));
-                    eventInfo[15] = (rs2.getString("unsubscribe_url"));
-                    eventInfo[16] = (rs2.getString("url"));
-                    eventInfo[17] = (rs2.getString("url_offset"));
-                    eventInfo[18] = (rs2.getString("useragent"));
-                    eventInfo[19] = (tsToString(rs2.getTimestamp("vm_timestamp")));
-    
-                    //Concatenates the two arrays to be write the entire line to the file.
-                    int length = mailInfo.length + eventInfo.length;
-                    String[] combined = new String[length];
-                    int pos = 0;
-                    for (String element : mailInfo) {
-                        combined[pos] = element;
-                        pos++;
-                    }
-                    for (String element : eventInfo) {
-                        combined[pos] = element;
-                        pos++;
-                    }
-                    writer.writeToFile(combined);
-   
-                }
-                //If no events associated with a given email, it adds it to the CSV file with no events.
-                if (!events) {
-                    writer.writeToFile(mailInfo);
+            driverLoaded = true;
+        }
+        ConnectionPool pool = ConnectionPool.of(jdbc, ConnectionPool.DEFAULT_MAX_IDLE, maxConnections);
+        pool.setMaxOpen(maxConnections);
+        return pool;
+    }
+    
+    /**
+     * Splits the emails before the cutoff date into time slices of equal length. The slices start at whole
+     * seconds, so that no two slices name their files after the same second. If mail_log is partitioned, every
+     * partition before the cutoff date is a slice of its own and only the emails after them are split.
+     * @param con is the current connection.
+     * @param dateX is the date before which emails are archived.
+     * @param parallelism the number of slices.
+     * @param partitions the partitions of mail_log, null to ignore them.
+     * @param job the tables and columns that are archived.
+     * @return the starting checkpoint of every slice, a single slice covering everything if parallelism is 1.
+     * @throws SQLException in case of error.
+     */
+    private List<Checkpoint> planSlices(Connection con, Timestamp dateX, int parallelism, PartitionLayout partitions,
+                                        ArchiveJob job) throws SQLException {
+        List<Checkpoint> slices = new ArrayList<>();
+        Timestamp from = new Timestamp(0);
+        if (partitions != null) {
+            for (PartitionLayout.Partition partition : partitions.before(dateX)) {
+                slices.add(new Checkpoint(slices.size(), from, 0, 0, null, partition.getUpper()));
+                from = partition.getUpper();
+            }
+        }
+        int firstRowSlice = slices.size();
+        Timestamp first = null;
+        if (parallelism > 1) {
+            String time = job.getTimeColumn();
+            String query = "SELECT MIN(" + time + ") FROM " + job.getTable() + " WHERE " + time + " < ? AND "
+                               + time + " >= ?" + job.exclusion();
+            try (PreparedStatement statement = con.prepareStatement(query)) {
+                statement.setTimestamp(1, dateX);
+                statement.setTimestamp(2, from);
+                try (ResultSet rs = statement.executeQuery()) {
+                    first = rs.next() ? rs.getTimestamp(1) : null;
                 }
-                rs2.close();
             }
-            rs.close();
-            
-            //Writer is null if there are no emails in the specified time frame that are recorded/deleted.
-            if (writer != null) {
-                writer.flushAndClose();
-    
-                //Writes the last log to S3 bucket.
-                bucketWriter.writeLog(writer.getFile(), writer.getFile().getName());
-                int numFromDeletion = cleanDelete(con, guidList);
-                numDeleted = numDeleted + numFromDeletion;
-                
-                //Deletes all info of type custom_email_to_volunteer from specified timeframe.
-                int numOfCustomToVolunteer = deleteCustomToVolunteer(con, dateX);
-                
-                //Total number of emails deleted.
-                int combinedNum = numDeleted + numOfCustomToVolunteer;
-                
-                statement.close();
-                con.close();
-    
-                String outputMessage = "SUCCESS: " + combinedNum + " rows deleted from database. " + numOfCustomToVolunteer + " Opp Alerts have been deleted and " + numDeleted + " rows of deleted information have been recorded in "
-                               + bucketName + " in files titled " + baseName + firstTimestamp + ".csv";
-                System.out.println(outputMessage);
+        }
+        if (first == null) {
+            slices.add(new Checkpoint(firstRowSlice, from, 0, 0, null, null));
+            return slices;
+        }
+        long startMs = Math.max(from.getTime(), first.getTime() / 1000 * 1000);
+        long width = (dateX.getTime() - startMs) / parallelism;
+        for (int i = 0; i < parallelism; i++) {
+            long sliceStart = (startMs + i * width) / 1000 * 1000;
+            if (i > 0 && sliceStart <= slices.get(slices.size() - 1).getSentTime().getTime()) {
+                continue;
+            }
+            slices.add(new Checkpoint(slices.size(), new Timestamp(sliceStart), 0, 0, null, null));
+        }
+        //Every slice but the last ends where the next one starts. The last one ends at the cutoff date.
+        for (int i = firstRowSlice; i < slices.size() - 1; i++) {
+            Checkpoint slice = slices.get(i);
+            slices.set(i, new Checkpoint(i, slice.getSentTime(), 0, 0, null, slices.get(i + 1).getSentTime()));
+        }
+        return slices;
+    }
     
-                return outputMessage;
-            } else {
-            System.out.println("No data in the specified time frame. Nothing deleted or recorded from database");
-            return "No data in the specified time frame. Nothing deleted or recorded from database";
+    /**
+     * Reads the partitions of mail_log and sendgrid_event when PARTITION_MODE is set, and finds the ones that are
+     * removed. Without a layout of mail_log every email is deleted row by row, as before. The partitions of
+     * sendgrid_event are chosen before the emails are archived, so that the events of the emails of a removed
+     * mail_log partition are deleted from every other partition.
+     * @param con is the current connection.
+     * @param settings of the run.
+     * @return the partitions.
+     * @throws SQLException in case of error.
+     */
+    private Partitions loadPartitions(Connection con, RunSettings settings) throws SQLException {
+        String partitionMode = settings.getPartitionMode();
+        ArchiveJob job = settings.getJob();
+        if (partitionMode == null) {
+            return Partitions.NONE;
         }
-        } catch (ClassNotFoundException | SQLException | ParseException | IOException e) {
-            e.printStackTrace();
-            return "ERROR: Database connection error or parsing error";
+        PartitionLayout mail = PartitionLayout.load(con, job.getTable());
+        if (mail == null || !mail.getColumn().equals(job.getTimeColumn())) {
+            System.out.println(job.getTable() + " is not range partitioned by " + job.getTimeColumn()
+                                   + ", deleting row by row");
+            return new Partitions(partitionMode, null, Collections.emptyList(), null, Collections.emptyList());
         }
+        PartitionLayout events = job.hasChild() ? PartitionLayout.load(con, job.getChildTable()) : null;
+        return new Partitions(partitionMode, mail, oldMailPartitions(con, mail, settings.getCutoff(), job), events,
+            oldEventPartitions(con, events, settings.getCutoff(), job));
     }
     
     /**
-     * Deletes information from the database once it has been recorded.
+     * Finds the partitions of mail_log that are archived without deleting their mail logs and removed once the run
+     * has archived them: those that lie entirely before the cutoff date. A partition holding excluded rows that are
+     * kept, as the job does not delete them, is archived and deleted row by row instead, so that they stay.
      * @param con is the current connection.
-     * @param guidList the list of guids that determine which info is ready to be deleted.
-     * @return the number of emails deleted from this call of the method.
+     * @param mailPartitions the partitions of mail_log, null if the emails are deleted row by row.
+     * @param dateX is the date before which emails are archived.
+     * @param job the tables and columns that are archived.
+     * @return the partitions.
      * @throws SQLException in case of error.
      */
-    public int cleanDelete(Connection con, List<String> guidList) throws SQLException {
-        Statement stat = con.createStatement();
-        stat.execute("SET FOREIGN_KEY_CHECKS=0");
-    
-        //Deletes recorded logs using a SQL array of the guids.
-        String update = "DELETE FROM sendgrid_event WHERE guid IN (?)";
-        String sqlIN = guidList.stream()
-                           .map(String::valueOf)
-                           .collect(Collectors.joining("','", "('", "')"));
-        update = update.replace("(?)", sqlIN);
-        PreparedStatement statement = con.prepareStatement(update);
-        int numSendgrid = statement.executeUpdate();
-    
-        update = "DELETE FROM mail_log WHERE guid IN (?)";
-        update = update.replace("(?)", sqlIN);
-        statement = con.prepareStatement(update);
-        int numMailLog = statement.executeUpdate();
-    
-        //Closes connections and statements.
-        stat.execute("SET FOREIGN_KEY_CHECKS=1");
-        statement.close();
-        stat.close();
-        return numSendgrid + numMailLog;
+    private List<PartitionLayout.Partition> oldMailPartitions(Connection con, PartitionLayout mailPartitions,
+                                                              Timestamp dateX, ArchiveJob job) throws SQLException {
+        List<PartitionLayout.Partition> old = new ArrayList<>();
+        if (mailPartitions == null) {
+            return old;
+        }
+        for (PartitionLayout.Partition partition : mailPartitions.before(dateX)) {
+            if (!job.keepsExcluded()) {
+                old.add(partition);
+                continue;
+            }
+            String query = "SELECT 1 FROM " + job.getTable() + " PARTITION (`" + partition.getName() + "`) WHERE "
+                               + job.excluded("") + " LIMIT 1";
+            try (Statement statement = con.createStatement(); ResultSet rs = statement.executeQuery(query)) {
+                if (rs.next()) {
+                    System.out.println(job.getTable() + " partition " + partition.getName()
+                                           + " holds excluded rows that are kept and is deleted row by row");
+                } else {
+                    old.add(partition);
+                }
+            }
+        }
+        return old;
     }
     
     /**
-     * Deletes all emails of type "custom_email_to_volunteer" from the database before specified date.
+     * Finds the partitions of sendgrid_event that are removed together with the partitions of mail_log: those that
+     * lie entirely before the cutoff date and only hold events that are archived, or deleted with their excluded
+     * email, before the partition is removed. A partition is kept if it holds events of emails after the cutoff date,
+     * as can happen when an event was logged before its email was sent, events without an email, which are never
+     * archived, or events of excluded emails that are kept. They are chosen before the emails are archived, so that
+     * the events of the emails of a removed mail_log partition are deleted from every other partition.
      * @param con is the current connection.
-     * @param dateX is the date determining which files are deleted.
-     * @return The total number of rows deleted from this operation.
+     * @param eventPartitions the partitions of sendgrid_event, null if it is not partitioned.
+     * @param dateX is the date before which emails are archived.
+     * @param job the tables and columns that are archived.
+     * @return the partitions.
      * @throws SQLException in case of error.
      */
-    public int deleteCustomToVolunteer(Connection con, Timestamp dateX) throws SQLException {
-        Statement stat = con.createStatement();
-        stat.execute("SET FOREIGN_KEY_CHECKS=0");
-        
-        String update = "DELETE mail_log, sendgrid_event FROM mail_log INNER JOIN sendgrid_event " +
-                            "ON mail_log.guid = sendgrid_event.guid WHERE " +
-                            "mail_log.type = 'custom_email_to_volunteer' AND sent_time < ?";
-        PreparedStatement statement = con.prepareStatement(update);
-        statement.setTimestamp(1, dateX);
-        int addNumDeleted = statement.executeUpdate();
-    
-        stat.execute("SET FOREIGN_KEY_CHECKS=1");
-        statement.close();
-        stat.close();
-        return addNumDeleted;
+    private List<PartitionLayout.Partition> oldEventPartitions(Connection con, PartitionLayout eventPartitions,
+                                                               Timestamp dateX, ArchiveJob job) throws SQLException {
+        List<PartitionLayout.Partition> old = new ArrayList<>();
+        if (eventPartitions == null) {
+            return old;
+        }
+        for (PartitionLayout.Partition partition : eventPartitions.before(dateX)) {
+            String excluded = job.keepsExcluded() ? " OR " + job.excluded("m.") : "";
+            String query = "SELECT 1 FROM " + job.getChildTable() + " PARTITION (`" + partition.getName() + "`) e "
+                               + "LEFT JOIN " + job.getTable() + " m ON m." + job.getKeyColumn() + " = e."
+                               + job.getChildKeyColumn() + " WHERE m." + job.getKeyColumn() + " IS NULL OR m."
+                               + job.getTimeColumn() + " >= ?" + excluded + " LIMIT 1";
+            try (PreparedStatement statement = con.prepareStatement(query)) {
+                statement.setTimestamp(1, dateX);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next()) {
+                        System.out.println(job.getChildTable() + " partition " + partition.getName()
+                                               + " holds events that are not archived or of emails after the cutoff "
+                                               + "date and is kept");
+                    } else {
+                        old.add(partition);
+                    }
+                }
+            }
+        }
+        return old;
     }
     
     /**
-     * Takes a number in the form of a string representing a number of days and returns
-     * the date that occured given number of days before the current date in the form
-     * of a timestamp.
-     * @param offset as a String that represents a given number of days.
-     * @return Timestamp of the target date.
-     *
+     * The partitions of sendgrid_event that are kept, which the events of archived emails are deleted from.
+     * @param eventPartitions the partitions of sendgrid_event, null if it is not partitioned.
+     * @param oldEventPartitions the partitions that are removed.
+     * @return the names of the other partitions, null for the whole table.
      */
-    private Timestamp convertToTimestamp(String offset) throws ParseException {
-        int offDays = Integer.parseInt(offset);
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.DATE, -offDays);
-        java.util.Date date = cal.getTime();
-        return new Timestamp(date.getTime());
+    private static List<String> keptPartitions(PartitionLayout eventPartitions,
+                                               List<PartitionLayout.Partition> oldEventPartitions) {
+        if (eventPartitions == null) {
+            return null;
+        }
+        List<String> kept = new ArrayList<>();
+        for (PartitionLayout.Partition partition : eventPartitions.getPartitions()) {
+            if (!oldEventPartitions.contains(partition)) {
+                kept.add(partition.getName());
+            }
+        }
+        return kept;
+    }
+    
+    /**
+     * The partitions of sendgrid_event that lie within one of the removed partitions of mail_log.
+     * @param oldEventPartitions the partitions of sendgrid_event before the cutoff date.
+     * @param mailPartitions the partitions of mail_log that have been removed.
+     * @return the partitions of sendgrid_event that can be removed with them.
+     */
+    private static List<PartitionLayout.Partition> pairedPartitions(
+        List<PartitionLayout.Partition> oldEventPartitions, List<PartitionLayout.Partition> mailPartitions) {
+        List<PartitionLayout.Partition> paired = new ArrayList<>();
+        for (PartitionLayout.Partition events : oldEventPartitions) {
+            for (PartitionLayout.Partition mail : mailPartitions) {
+                boolean fromMail = mail.getLower() == null
+                                       || events.getLower() != null && !events.getLower().before(mail.getLower());
+                if (fromMail && events.getUpper() != null && !events.getUpper().after(mail.getUpper())) {
+                    paired.add(events);
+                    break;
+                }
+            }
+        }
+        return paired;
+    }
+    
+    /**
+     * Removes the partitions that lie entirely before the cutoff date once every email before it has been archived,
+     * those of mail_log first. A partition that cannot be removed is left as it is, and its emails are archived
+     * again by the next run.
+     * @param con is the current connection.
+     * @param partitions of the run.
+     * @param oldMailPartitions the partitions of mail_log to remove.
+     * @param archivers of the slices, which archived the emails of the partitions of mail_log.
+     * @param removed collects the names of the removed partitions.
+     * @return the number of archived emails removed with their partitions.
+     */
+    private int removePartitions(Connection con, Partitions partitions,
+                                 List<PartitionLayout.Partition> oldMailPartitions, List<SliceArchiver> archivers,
+                                 List<String> removed) {
+        if (partitions.mail == null) {
+            return 0;
+        }
+        boolean exchange = partitions.mode.equalsIgnoreCase("exchange");
+        List<PartitionLayout.Partition> gone = removePartitions(con, partitions.mail, oldMailPartitions, exchange,
+            removed);
+        if (partitions.events != null) {
+            removePartitions(con, partitions.events, partitions.oldEvents, exchange, removed);
+        }
+        int numRemoved = 0;
+        for (SliceArchiver archiver : archivers) {
+            if (archiver.getPartition() != null && gone.contains(archiver.getPartition())) {
+                numRemoved += archiver.getPartitionEmails();
+            }
+        }
+        return numRemoved;
+    }
+    
+    /**
+     * Describes the partitions that have been removed.
+     * @param removed the names of the removed partitions.
+     * @param partitionMode drop or exchange, null if no partitions are removed.
+     * @return the partitions that have been removed, to be added to the output message.
+     */
+    private static String partitionMessage(List<String> removed, String partitionMode) {
+        if (partitionMode == null || removed.isEmpty()) {
+            return "";
+        }
+        return " Partitions " + (partitionMode.equalsIgnoreCase("exchange") ? "exchanged: " : "dropped: ")
+                   + String.join(", ", removed) + ".";
+    }
+    
+    /**
+     * Drops or exchanges partitions of a table. Exchanged partitions that are already empty are skipped.
+     * @param con is the current connection.
+     * @param layout the partitions of the table.
+     * @param partitions the partitions to remove.
+     * @param exchange whether the partitions are exchanged into staging tables instead of dropped.
+     * @param removed collects the names of the removed partitions.
+     * @return the partitions whose rows have left the table.
+     */
+    private List<PartitionLayout.Partition> removePartitions(Connection con, PartitionLayout layout,
+                                                             List<PartitionLayout.Partition> partitions,
+                                                             boolean exchange, List<String> removed) {
+        List<PartitionLayout.Partition> gone = new ArrayList<>();
+        for (PartitionLayout.Partition partition : partitions) {
+            String name = layout.getTable() + "." + partition.getName();
+            try {
+                if (!exchange) {
+                    layout.drop(con, Collections.singletonList(partition));
+                    removed.add(name);
+                    gone.add(partition);
+                } else if (!layout.isEmpty(con, partition)) {
+                    removed.add(name + " into " + layout.exchange(con, partition));
+                    gone.add(partition);
+                }
+            } catch (SQLException e) {
+                System.out.println("Removing the partition " + name + " failed: " + e);
+            }
+        }
+        return gone;
+    }
+    
+    /**
+     * Archives the slices on the given number of threads and adds up the rows they deleted. If a slice fails, the
+     * others are asked to stop and the first failure is thrown once all of them have finished.
+     * @param archivers of the slices.
+     * @param threads the number of slices archived at once.
+     * @return the number of rows deleted from the database.
+     * @throws SQLException in case of a database error.
+     * @throws IOException in case a file cannot be written or uploaded.
+     */
+    private int runSlices(List<SliceArchiver> archivers, int threads) throws SQLException, IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "archive-slice");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<Integer> results = new ExecutorCompletionService<>(executor);
+        for (SliceArchiver archiver : archivers) {
+            results.submit(archiver);
+        }
+        int numDeleted = 0;
+        Throwable failure = null;
+        try {
+            for (int i = 0; i < archivers.size(); i++) {
+                try {
+                    numDeleted += results.take().get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                        archivers.forEach(SliceArchiver::stop);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            archivers.forEach(SliceArchiver::stop);
+            throw new InterruptedIOException("Interrupted while archiving the slices");
+        } finally {
+            executor.shutdown();
+        }
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+        return numDeleted;
     }
     
     /**
@@ -280,12 +863,66 @@ public class Clean implements RequestHandler<Object, String> {
      * @param ts Timestamp of email.
      * @return timestamp in a string format that mimics the database timestamp format.
      */
-    private String tsToString(Timestamp ts) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        sdf.setTimeZone(TimeZone.getTimeZone("PST"));
-        Date date = new Date();
-        date.setTime(ts.getTime());
-        return sdf.format(date);
+    static String tsToString(Timestamp ts) {
+        return TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(ts.getTime()));
     }
     
+    /**
+     * The reverse of tsToString, which turns a timestamp of a CSV file back into a timestamp.
+     * @param value the timestamp in the database format, in PST.
+     * @return the timestamp, null if the value is null.
+     */
+    static Timestamp stringToTs(String value) {
+        return value == null ? null : new Timestamp(Instant.from(TIMESTAMP_FORMAT.parse(value)).toEpochMilli());
+    }
+    
+    /**
+     * The connections and settings of a run, which every stage of it uses.
+     */
+    private static final class Run {
+        private final RunSettings settings;
+        private final Context context;
+        private final RunReport report;
+        private final Timestamp start = new Timestamp(System.currentTimeMillis());
+        private final ConnectionPool pool;
+        private final Connection con;
+        private final ConnectionPool replicaPool;
+        private final ReplicaMonitor replica;
+        private final WriteLog bucketWriter;
+    
+        private Run(RunSettings settings, Context context, RunReport report, ConnectionPool pool, Connection con,
+                    ConnectionPool replicaPool, ReplicaMonitor replica, WriteLog bucketWriter) {
+            this.settings = settings;
+            this.context = context;
+            this.report = report;
+            this.pool = pool;
+            this.con = con;
+            this.replicaPool = replicaPool;
+            this.replica = replica;
+            this.bucketWriter = bucketWriter;
+        }
+    }
+    
+    /**
+     * The partitions of mail_log and sendgrid_event with PARTITION_MODE, and those of them that are removed once
+     * the run has archived everything.
+     */
+    private static final class Partitions {
+        private static final Partitions NONE = new Partitions(null, null, Collections.emptyList(), null,
+            Collections.emptyList());
+        private final String mode;
+        private final PartitionLayout mail;
+        private final List<PartitionLayout.Partition> oldMail;
+        private final PartitionLayout events;
+        private final List<PartitionLayout.Partition> oldEvents;
+    
+        private Partitions(String mode, PartitionLayout mail, List<PartitionLayout.Partition> oldMail,
+                           PartitionLayout events, List<PartitionLayout.Partition> oldEvents) {
+            this.mode = mode;
+            this.mail = mail;
+            this.oldMail = oldMail;
+            this.events = events;
+            this.oldEvents = oldEvents;
+        }
+    }
 }
@@ -1,14 +1,38 @@
 package org.vm.email.cleanup;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import org.vm.shared.Compression;
 import org.vm.shared.SharedCSVWriter;
+import org.vm.shared.WriteLog;
 
 /**
  * This class inherits from the SharedCSVWriter abstract class, which inherits methods from SharedFileWriter
  * class. The CleanCSVWriter is the implementation of a CSVWriter specifically for the Clean method.
  * Every line in the resulting csv file will contain information from mail log paired with one of it's sendgrid events.
+ * Lines are encoded into a reusable character buffer, which is handed to the file writer once it fills up. The
+ * encoding is the one the files have always had, the opencsv output after commas were escaped: every field is
+ * quoted, quotes are doubled and fields containing a comma are wrapped in an extra, escaped pair of quotes. The
+ * header goes through the same encoder as the rows.
  */
 public class CleanCSVWriter extends SharedCSVWriter {
   
+  /**
+   * The columns of every line of the default job: eight from mail_log followed by twenty from sendgrid_event.
+   */
+  static final String[] HEADER = ArchiveJob.MAIL_LOG.getHeader();
+  
+  /**
+   * Number of buffered characters at which the buffer is written to the file.
+   */
+  private static final int FLUSH_SIZE = 16 * 1024;
+  
+  //Allocated by the first line, as the header is written by the super constructor before fields are initialized.
+  private char[] buffer;
+  private int length;
+  
   /**
    * The constructor uses the SharedCSVWriter constructor and establishes that the comma
    * is the chosen value separator.
@@ -19,6 +43,58 @@ public class CleanCSVWriter extends SharedCSVWriter {
     super(filePath, filename, ',');
   }
   
+  /**
+   * The constructor streams the file straight to the destination of the WriteLog instead of a local file.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   */
+  public CleanCSVWriter(String filename, WriteLog destination) {
+    super(filename, ',', destination);
+  }
+  
+  /**
+   * The constructor creates a compressed file, ex: name.csv.gz.
+   * @param filePath for the new file
+   * @param filename of the new file.
+   * @param compression of the new file.
+   */
+  public CleanCSVWriter(String filePath, String filename, Compression compression) {
+    super(filePath, filename, ',', compression);
+  }
+  
+  /**
+   * The constructor streams a compressed file straight to the destination of the WriteLog.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param compression of the new file.
+   */
+  public CleanCSVWriter(String filename, WriteLog destination, Compression compression) {
+    super(filename, ',', destination, compression);
+  }
+  
+  /**
+   * The constructor creates a compressed file with the columns of an archive job.
+   * @param filePath for the new file
+   * @param filename of the new file.
+   * @param compression of the new file.
+   * @param job the tables and columns that are archived.
+   */
+  public CleanCSVWriter(String filePath, String filename, Compression compression, ArchiveJob job) {
+    super(filePath, filename, ',', compression, job.getHeader());
+  }
+  
+  /**
+   * The constructor streams a compressed file with the columns of an archive job to the destination of the
+   * WriteLog.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param compression of the new file.
+   * @param job the tables and columns that are archived.
+   */
+  public CleanCSVWriter(String filename, WriteLog destination, Compression compression, ArchiveJob job) {
+    super(filename, ',', destination, compression, job.getHeader());
+  }
+  
   /**
    * The write to file method is used in Clean and takes in an Array of Strings containing
    * info to write as a line. Each time this method is called, it automatically writes a new line with the
@@ -27,62 +103,107 @@ public class CleanCSVWriter extends SharedCSVWriter {
    */
   @Override
   public void writeToFile(Object o) {
-    String[] fileInfo = checkForCommas((String[]) o);
-    super.writeNextLine(fileInfo);
+    String[] fileInfo = (String[]) o;
+    ensureCapacity(1);
+    for (int i = 0; i < fileInfo.length; i++) {
+      if (i > 0) {
+        buffer[length++] = ',';
+      }
+      appendField(fileInfo[i]);
+      ensureCapacity(1);
+    }
+    buffer[length++] = '\n';
+    if (length >= FLUSH_SIZE) {
+      try {
+        writeBuffer();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
   }
   
   /**
-   * This method is called each time a new line is written to the file and checks whether or not
-   * a comma is present in any of the entries. If it is, it will escape that entry by surrounding it in quotes.
-   * @param fileInfo is array of info to be written to CSV.
-   * @return the same array but with all entries with commas properly escaped.
+   * Writes the buffered lines before the file is closed.
+   * @throws IOException in case of error.
    */
-  public String[] checkForCommas(String[] fileInfo) {
-    for (int i = 0; i < fileInfo.length; i++) {
-      if (fileInfo[i] != null) {
-        if (fileInfo[i].contains(",")) {
-          fileInfo[i] = "\"" + fileInfo[i] + "\"";
+  @Override
+  public void close() throws IOException {
+    writeBuffer();
+    super.close();
+  }
+  
+  /**
+   * Encodes a line the same way as the rows, so that the header of a job is written like its rows are.
+   * @param line of type String[] with info to be written to csv file.
+   */
+  @Override
+  public void writeNextLine(String[] line) {
+    writeToFile(line);
+  }
+  
+  /**
+   * Appends one field to the buffer, escaping it in a single pass while it is copied. Null fields are left empty.
+   * @param value of the field.
+   */
+  private void appendField(String value) {
+    if (value == null) {
+      return;
+    }
+    int size = value.length();
+    boolean hasComma = value.indexOf(',') >= 0;
+    ensureCapacity(2 * size + 7);
+    buffer[length++] = '"';
+    if (hasComma) {
+      buffer[length++] = '"';
+      buffer[length++] = '"';
+    }
+    if (value.indexOf('"') < 0) {
+      value.getChars(0, size, buffer, length);
+      length += size;
+    } else {
+      for (int i = 0; i < size; i++) {
+        char c = value.charAt(i);
+        if (c == '"') {
+          buffer[length++] = '"';
         }
+        buffer[length++] = c;
       }
     }
-    return fileInfo;
+    if (hasComma) {
+      buffer[length++] = '"';
+      buffer[length++] = '"';
+    }
+    buffer[length++] = '"';
+  }
+  
+  /**
+   * Grows the buffer if fewer than the given number of characters are free.
+   * @param free the number of characters about to be appended.
+   */
+  private void ensureCapacity(int free) {
+    if (buffer == null) {
+      buffer = new char[Math.max(2 * FLUSH_SIZE, free)];
+    } else if (length + free > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, length + free));
+    }
+  }
+  
+  /**
+   * Hands the buffered characters to the file writer.
+   * @throws IOException in case of error.
+   */
+  private void writeBuffer() throws IOException {
+    if (length > 0) {
+      getFileWriter().write(buffer, 0, length);
+      length = 0;
+    }
   }
   
   /**
-   * This header is derived from the columns in the database the Clean method accesses.
+   * This header is derived from the columns in the database the Clean method accesses by default.
    */
   @Override
   public void writeCSVHeader() {
-    String[] header = new String[28];
-    header[0] = "ml_id";
-    header[1] = "ml_email";
-    header[2] = "ml_guid";
-    header[3] = "ml_host";
-    header[4] = "ml_ref1";
-    header[5] = "ml_ref2";
-    header[6] = "ml_sent_time";
-    header[7] = "ml_type";
-    header[8] = "se_sg_event_id";
-    header[9] = "se_asm_group_id";
-    header[10] = "se_attempt";
-    header[11] = "se_category";
-    header[12] = "se_email";
-    header[13] = "se_event";
-    header[14] = "se_ip";
-    header[15] = "se_reason";
-    header[16] = "se_response";
-    header[17] = "se_sg_message_id";
-    header[18] = "se_smtp_id";
-    header[19] = "se_status";
-    header[20] = "se_timestamp";
-    header[21] = "se_tls";
-    header[22] = "se_type";
-    header[23] = "se_unsubscribe_url";
-    header[24] = "se_url";
-    header[25] = "se_url_offset";
-    header[26] = "se_useragent";
-    header[27] = "se_vm_timestamp";
-    super.writeNextLine(header);
-  
+    writeToFile(HEADER);
   }
 }
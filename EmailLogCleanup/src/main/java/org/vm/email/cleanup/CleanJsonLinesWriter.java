@@ -0,0 +1,207 @@
+package org.vm.email.cleanup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.vm.shared.Compression;
+import org.vm.shared.JsonStreamWriter;
+import org.vm.shared.SharedJsonLinesWriter;
+import org.vm.shared.WriteLog;
+
+/**
+ * This class inherits from the SharedJsonLinesWriter abstract class. Unlike the CleanCSVWriter, which repeats the
+ * mail_log columns of an email on the line of each of its sendgrid events, it writes one record per email, with
+ * the events of the email nested in an array:
+ * {"id":1,"email":"...","guid":"...",...,"type":"...","events":[["sg_event_id",16,...],...]}
+ * The rows of an email arrive one after the other, so a record is kept open while the rows of its email arrive
+ * and closed when the next email starts or the file is closed. Nothing of an email is kept in memory but the id
+ * of the open record. The names of the mail_log values are the columns of CleanCSVWriter.HEADER without their ml_
+ * prefix, and a mail_log column without a value is left out. An email has a few events, so rather than repeating
+ * their names every event is an array of the 20 sendgrid_event columns, in the order of CleanCSVWriter.HEADER
+ * and null where a value is missing. For another archive job, a record holds the columns of its parent table and
+ * lists its child rows under the child name of the job.
+ */
+public class CleanJsonLinesWriter extends SharedJsonLinesWriter {
+
+  /**
+   * The names of the values of a record, in the order of CleanCSVWriter.HEADER.
+   */
+  static final String[] NAMES = new String[CleanCSVWriter.HEADER.length];
+
+  /**
+   * Number of mail_log columns at the start of every row.
+   */
+  static final int MAIL_COLUMNS = 8;
+
+  static {
+    for (int i = 0; i < NAMES.length; i++) {
+      NAMES[i] = CleanCSVWriter.HEADER[i].substring(3);
+    }
+  }
+
+  private final String[] names;
+  private final boolean[] integerColumns;
+  private final int mailColumns;
+  private final int idColumn;
+  private final String eventsName;
+  private String openId = null;
+
+  /**
+   * The constructor creates the file in filePath, compressed if requested, ex: name.jsonl.gz.
+   * @param filePath for the new file
+   * @param filename of the new file.
+   * @param compression of the new file.
+   */
+  public CleanJsonLinesWriter(String filePath, String filename, Compression compression) {
+    this(filePath, filename, compression, ArchiveJob.MAIL_LOG);
+  }
+
+  /**
+   * The constructor creates the file in filePath, with a record per row of the parent table of an archive job.
+   * The values are named after their columns, without the prefixes of the header.
+   * @param filePath for the new file
+   * @param filename of the new file.
+   * @param compression of the new file.
+   * @param job the tables and columns that are archived.
+   */
+  public CleanJsonLinesWriter(String filePath, String filename, Compression compression, ArchiveJob job) {
+    super(filePath, filename, compression);
+    names = names(job);
+    integerColumns = integerColumns(job);
+    mailColumns = job.getColumns().size();
+    idColumn = job.indexOf(job.getIdColumn());
+    eventsName = job.getChildName();
+  }
+
+  /**
+   * The constructor streams the file straight to the destination of the WriteLog instead of a local file.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param compression of the new file.
+   */
+  public CleanJsonLinesWriter(String filename, WriteLog destination, Compression compression) {
+    this(filename, destination, compression, ArchiveJob.MAIL_LOG);
+  }
+
+  /**
+   * The constructor streams the file, with a record per row of the parent table of an archive job, straight to
+   * the destination of the WriteLog.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param compression of the new file.
+   * @param job the tables and columns that are archived.
+   */
+  public CleanJsonLinesWriter(String filename, WriteLog destination, Compression compression, ArchiveJob job) {
+    super(filename, destination, compression);
+    names = names(job);
+    integerColumns = integerColumns(job);
+    mailColumns = job.getColumns().size();
+    idColumn = job.indexOf(job.getIdColumn());
+    eventsName = job.getChildName();
+  }
+
+  /**
+   * Adds a row to the record of its email: 8 mail_log columns, optionally followed by 20 sendgrid_event columns.
+   * The first row of an email starts its record, and every row with an event adds the event to it.
+   * @param o in this case will be of type String[].
+   */
+  @Override
+  public void writeToFile(Object o) {
+    String[] fileInfo = (String[]) o;
+    JsonStreamWriter json = getJsonWriter();
+    try {
+      if (!fileInfo[idColumn].equals(openId)) {
+        endRecord();
+        json.beginObject();
+        for (int i = 0; i < mailColumns; i++) {
+          writeValue(json, i, fileInfo[i]);
+        }
+        json.name(eventsName == null ? "events" : eventsName).beginArray();
+        openId = fileInfo[idColumn];
+      }
+      if (fileInfo.length > mailColumns) {
+        json.beginArray();
+        for (int i = mailColumns; i < fileInfo.length; i++) {
+          if (integerColumns[i]) {
+            json.integerValue(fileInfo[i]);
+          } else {
+            json.value(fileInfo[i]);
+          }
+        }
+        json.endArray();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Ends the last record before the file is closed.
+   * @throws IOException in case of error.
+   */
+  @Override
+  public void close() throws IOException {
+    endRecord();
+    super.close();
+  }
+
+  /**
+   * Ends the open record, if any, and its line.
+   * @throws IOException in case of error.
+   */
+  private void endRecord() throws IOException {
+    if (openId != null) {
+      getJsonWriter().endArray().endObject().endLine();
+      openId = null;
+    }
+  }
+
+  /**
+   * Writes one named mail_log value, the id as a number. A missing value is left out of the record.
+   * @param json the writer of the record.
+   * @param column the index of the column in the header.
+   * @param value of the column.
+   * @throws IOException in case of error.
+   */
+  private void writeValue(JsonStreamWriter json, int column, String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    json.name(names[column]);
+    if (integerColumns[column]) {
+      json.integerValue(value);
+    } else {
+      json.value(value);
+    }
+  }
+
+  /**
+   * The names of the values of a record: the columns of the job without the prefixes of the header.
+   * @param job the tables and columns that are archived.
+   * @return the names, in the order of the header.
+   */
+  private static String[] names(ArchiveJob job) {
+    String[] names = new String[job.getWidth()];
+    for (int i = 0; i < job.getColumns().size(); i++) {
+      names[i] = job.getColumns().get(i).getName();
+    }
+    for (int i = 0; i < job.getChildColumns().size(); i++) {
+      names[job.getColumns().size() + i] = job.getChildColumns().get(i).getName();
+    }
+    return names;
+  }
+
+  /**
+   * Which columns of a job are written as numbers.
+   * @param job the tables and columns that are archived.
+   * @return true for every int or long column, in the order of the header.
+   */
+  private static boolean[] integerColumns(ArchiveJob job) {
+    ArchiveJob.Type[] types = job.getTypes();
+    boolean[] integers = new boolean[types.length];
+    for (int i = 0; i < types.length; i++) {
+      integers[i] = types[i] == ArchiveJob.Type.INT || types[i] == ArchiveJob.Type.LONG;
+    }
+    return integers;
+  }
+}
@@ -0,0 +1,214 @@
+package org.vm.email.cleanup;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Types;
+import org.vm.shared.SharedParquetWriter;
+import org.vm.shared.WriteLog;
+
+/**
+ * This class inherits from the SharedParquetWriter abstract class, which inherits methods from SharedFileWriter
+ * class. The CleanParquetWriter writes the same 28 columns as the CleanCSVWriter header, but with typed columns:
+ * ids and numbers are integers and the three timestamps are stored as timestamps in the same local (PST) time
+ * the CSV files show. The columns of sendgrid_event are empty for emails without events. For another archive job,
+ * the columns and their types are those of the job.
+ */
+public class CleanParquetWriter extends SharedParquetWriter {
+
+  /**
+   * The schema of the file, with the column names of CleanCSVWriter.HEADER.
+   */
+  static final MessageType SCHEMA = buildSchema(ArchiveJob.MAIL_LOG);
+
+  private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  private final PrimitiveTypeName[] columnTypes;
+  private final boolean[] timestampColumns;
+
+  /**
+   * The constructor creates the new file in filePath.
+   * @param filePath for the new file
+   * @param filename of the new file.
+   * @param codec the compression of the column chunks.
+   * @param rowGroupMb the memory budget of a row group in megabytes.
+   */
+  public CleanParquetWriter(String filePath, String filename, CompressionCodecName codec, int rowGroupMb) {
+    this(filePath, filename, codec, rowGroupMb, SCHEMA);
+  }
+
+  /**
+   * The constructor creates the new file in filePath, with the columns of an archive job.
+   * @param filePath for the new file
+   * @param filename of the new file.
+   * @param codec the compression of the column chunks.
+   * @param rowGroupMb the memory budget of a row group in megabytes.
+   * @param job the tables and columns that are archived.
+   */
+  public CleanParquetWriter(String filePath, String filename, CompressionCodecName codec, int rowGroupMb,
+                            ArchiveJob job) {
+    this(filePath, filename, codec, rowGroupMb, buildSchema(job));
+  }
+
+  /**
+   * The constructor creates the new file in filePath with the given schema.
+   * @param filePath for the new file
+   * @param filename of the new file.
+   * @param codec the compression of the column chunks.
+   * @param rowGroupMb the memory budget of a row group in megabytes.
+   * @param schema of the rows in the file.
+   */
+  private CleanParquetWriter(String filePath, String filename, CompressionCodecName codec, int rowGroupMb,
+                             MessageType schema) {
+    super(filePath, filename, schema, codec, rowGroupMb);
+    columnTypes = columnTypes(schema);
+    timestampColumns = timestampColumns(schema);
+  }
+
+  /**
+   * The constructor streams the file straight to the destination of the WriteLog instead of a local file.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param codec the compression of the column chunks.
+   * @param rowGroupMb the memory budget of a row group in megabytes.
+   */
+  public CleanParquetWriter(String filename, WriteLog destination, CompressionCodecName codec, int rowGroupMb) {
+    this(filename, destination, codec, rowGroupMb, SCHEMA);
+  }
+
+  /**
+   * The constructor streams the file with the columns of an archive job to the destination of the WriteLog.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param codec the compression of the column chunks.
+   * @param rowGroupMb the memory budget of a row group in megabytes.
+   * @param job the tables and columns that are archived.
+   */
+  public CleanParquetWriter(String filename, WriteLog destination, CompressionCodecName codec, int rowGroupMb,
+                            ArchiveJob job) {
+    this(filename, destination, codec, rowGroupMb, buildSchema(job));
+  }
+
+  /**
+   * The constructor streams the file with the given schema to the destination of the WriteLog.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param codec the compression of the column chunks.
+   * @param rowGroupMb the memory budget of a row group in megabytes.
+   * @param schema of the rows in the file.
+   */
+  private CleanParquetWriter(String filename, WriteLog destination, CompressionCodecName codec, int rowGroupMb,
+                             MessageType schema) {
+    super(filename, destination, schema, codec, rowGroupMb);
+    columnTypes = columnTypes(schema);
+    timestampColumns = timestampColumns(schema);
+  }
+
+  /**
+   * Writes one row, given in the same layout as for the CleanCSVWriter: 8 mail_log columns, optionally followed
+   * by 20 sendgrid_event columns, or the columns of the archive job.
+   * @param o in this case will be of type String[].
+   */
+  @Override
+  public void writeToFile(Object o) {
+    String[] fileInfo = (String[]) o;
+    Group row = newRow();
+    for (int i = 0; i < fileInfo.length; i++) {
+      String value = fileInfo[i];
+      if (value == null) {
+        continue;
+      }
+      switch (columnTypes[i]) {
+        case INT32:
+          row.add(i, Integer.parseInt(value));
+          break;
+        case INT64:
+          row.add(i, timestampColumns[i] ? toLocalMillis(value) : Long.parseLong(value));
+          break;
+        default:
+          row.add(i, value);
+      }
+    }
+    writeRow(row);
+  }
+
+  /**
+   * Converts a timestamp as formatted by Clean.tsToString into milliseconds since the epoch of the same local time.
+   * @param value formatted as yyyy-MM-dd HH:mm:ss.
+   * @return the local timestamp.
+   */
+  static long toLocalMillis(String value) {
+    return LocalDateTime.parse(value, TIMESTAMP_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+  }
+
+  /**
+   * The reverse of toLocalMillis, which formats a timestamp of a Parquet file the way Clean.tsToString does.
+   * @param millis the local timestamp.
+   * @return the timestamp formatted as yyyy-MM-dd HH:mm:ss.
+   */
+  static String fromLocalMillis(long millis) {
+    return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), 0, ZoneOffset.UTC).format(TIMESTAMP_FORMAT);
+  }
+
+  /**
+   * Builds the schema from the columns of an archive job. Every column is optional.
+   * @param job the tables and columns that are archived.
+   * @return the schema.
+   */
+  static MessageType buildSchema(ArchiveJob job) {
+    Types.MessageTypeBuilder builder = Types.buildMessage();
+    String[] header = job.getHeader();
+    ArchiveJob.Type[] types = job.getTypes();
+    for (int i = 0; i < header.length; i++) {
+      switch (types[i]) {
+        case LONG:
+          builder.optional(PrimitiveTypeName.INT64).named(header[i]);
+          break;
+        case INT:
+          builder.optional(PrimitiveTypeName.INT32).named(header[i]);
+          break;
+        case TIMESTAMP:
+          builder.optional(PrimitiveTypeName.INT64)
+              .as(LogicalTypeAnnotation.timestampType(false, LogicalTypeAnnotation.TimeUnit.MILLIS))
+              .named(header[i]);
+          break;
+        default:
+          builder.optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named(header[i]);
+      }
+    }
+    return builder.named(job.hasChild() ? job.getTable() + "_" + job.getChildTable() : job.getTable());
+  }
+
+  /**
+   * The physical type of every column of a schema.
+   * @param schema of the file.
+   * @return the types, in the order of the columns.
+   */
+  private static PrimitiveTypeName[] columnTypes(MessageType schema) {
+    PrimitiveTypeName[] types = new PrimitiveTypeName[schema.getFieldCount()];
+    for (int i = 0; i < types.length; i++) {
+      types[i] = schema.getType(i).asPrimitiveType().getPrimitiveTypeName();
+    }
+    return types;
+  }
+
+  /**
+   * Which columns of a schema are timestamps.
+   * @param schema of the file.
+   * @return true for every timestamp column, in the order of the columns.
+   */
+  private static boolean[] timestampColumns(MessageType schema) {
+    boolean[] timestamps = new boolean[schema.getFieldCount()];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = schema.getType(i).getLogicalTypeAnnotation()
+                          instanceof LogicalTypeAnnotation.TimestampLogicalTypeAnnotation;
+    }
+    return timestamps;
+  }
+}
@@ -0,0 +1,81 @@
+package org.vm.email.cleanup;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The ColumnMapping reads the output columns of a table from a result set into a row. Looking a value up by its
+ * column name makes the driver search the columns of the result set again for every value of every row, so the
+ * index of every column is resolved once from the ResultSetMetaData of the first result set, and the values are
+ * read by index from then on. A mapping is kept for as long as its statement, whose result sets all have the same
+ * columns.
+ */
+public class ColumnMapping {
+
+    private final List<ArchiveJob.Column> columns;
+    private final int offset;
+    private int[] indexes;
+    private Map<String, Integer> labels;
+
+    /**
+     * The constructor takes in the columns to read and where they go in a row.
+     * @param columns the output columns of the table.
+     * @param offset the index in the row of the first column.
+     */
+    public ColumnMapping(List<ArchiveJob.Column> columns, int offset) {
+        this.columns = columns;
+        this.offset = offset;
+    }
+
+    /**
+     * Resolves the indexes of the columns from the first result set. Later calls do nothing.
+     * @param rs a result set of the statement.
+     * @throws SQLException if a column is missing from the result set.
+     */
+    public void resolve(ResultSet rs) throws SQLException {
+        if (indexes != null) {
+            return;
+        }
+        ResultSetMetaData metaData = rs.getMetaData();
+        labels = new HashMap<>();
+        for (int i = metaData.getColumnCount(); i >= 1; i--) {
+            labels.put(metaData.getColumnLabel(i).toLowerCase(Locale.ROOT), i);
+        }
+        int[] resolved = new int[columns.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            resolved[i] = indexOf(columns.get(i).getName());
+        }
+        indexes = resolved;
+    }
+
+    /**
+     * The index of a column in the result sets, which does not have to be an output column.
+     * @param column the name of the column.
+     * @return the index, starting at 1.
+     * @throws SQLException if the column is missing from the result set.
+     */
+    public int indexOf(String column) throws SQLException {
+        Integer index = labels == null ? null : labels.get(column.toLowerCase(Locale.ROOT));
+        if (index == null) {
+            throw new SQLException("The column " + column + " is missing from the result set");
+        }
+        return index;
+    }
+
+    /**
+     * Reads the output columns of the current row of a result set.
+     * @param rs the ResultSet positioned on a row, after resolve.
+     * @param row receives the values from the offset of the mapping on.
+     * @throws SQLException in case of error.
+     */
+    public void read(ResultSet rs, String[] row) throws SQLException {
+        for (int i = 0; i < indexes.length; i++) {
+            row[offset + i] = columns.get(i).read(rs, indexes[i]);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.vm.shared.HyperLogLog;
+import org.vm.shared.LongList;
+import org.vm.shared.StageStats;
+
+/**
+ * The DailyStats keep a summary of the archived emails in the database, so that the number of emails and events
+ * of a day stays known once the emails are only in the archive. For every day of sent_time, type of email and
+ * sendgrid event the summary table holds the number of events, or of emails for the event "sent", and a
+ * HyperLogLog sketch of the recipients with its estimate. The numbers are gathered by the reader of each slice
+ * while it reads the emails, in the same pass that writes the file, and added to the table in the transaction of
+ * every delete batch, so an email is counted exactly when it is deleted. Events are counted on the day their
+ * email was sent.
+ */
+public class DailyStats {
+
+    /**
+     * Precision of the recipient sketches, which are off by about 1.6%.
+     */
+    static final int PRECISION = 12;
+
+    /**
+     * The event under which the emails themselves are counted.
+     */
+    static final String SENT = "sent";
+
+    /**
+     * Index of the event name in a joined row.
+     */
+    private static final int EVENT_INDEX = 13;
+
+    private static final String KEY = " WHERE sent_day = ? AND mail_type = ? AND event = ?";
+
+    private final String table;
+    private StageStats stats;
+
+    /**
+     * The constructor takes in the summary table.
+     * @param table the name of the table, STATS_TABLE.
+     */
+    public DailyStats(String table) {
+        this.table = table;
+    }
+
+    /**
+     * Creates the summary table if it does not exist yet.
+     * @param con is the current connection.
+     * @throws SQLException in case of error.
+     */
+    public void createTable(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS `" + table + "` (sent_day DATE NOT NULL, "
+                                  + "mail_type VARCHAR(64) NOT NULL, event VARCHAR(32) NOT NULL, "
+                                  + "total BIGINT NOT NULL, recipients BIGINT NOT NULL, sketch BLOB, "
+                                  + "PRIMARY KEY (sent_day, mail_type, event))");
+        }
+    }
+
+    /**
+     * Creates the statistics of a new file.
+     * @return the empty statistics.
+     */
+    public FileStats startFile() {
+        return new FileStats();
+    }
+
+    /**
+     * Records every update of the table in the given statistics, with the number of rows it updated.
+     * @param stats of the updates.
+     */
+    public void setStats(StageStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Adds the numbers of a batch to the summary table with three statements, whatever the number of rows. The
+     * first creates the missing rows and locks all of them, always in the same order, so that slices deleting
+     * emails of the same day wait for each other instead of losing an update or deadlocking. The second reads
+     * their sketches and the third adds the numbers of the batch and writes back the merged sketches.
+     * @param con is the connection of the batch, in its transaction.
+     * @param groups the numbers of the batch, by their row in the order they are locked.
+     * @throws SQLException in case of error.
+     */
+    private void upsert(Connection con, TreeMap<String, Group> groups) throws SQLException {
+        if (groups.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        StringBuilder keys = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < groups.size(); i++) {
+            keys.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+            values.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+        }
+        String insert = "INSERT INTO `" + table + "` (sent_day, mail_type, event, total, recipients, sketch) VALUES ";
+        try (PreparedStatement lock = con.prepareStatement(insert + keys.toString().replace("?)", "?, 0, 0, NULL)")
+                                                               + " ON DUPLICATE KEY UPDATE total = total");
+             PreparedStatement select = con.prepareStatement("SELECT sent_day, mail_type, event, sketch FROM `"
+                                                                 + table + "` WHERE (sent_day, mail_type, event) IN ("
+                                                                 + keys + ") FOR UPDATE");
+             PreparedStatement update = con.prepareStatement(insert + values + " ON DUPLICATE KEY UPDATE "
+                                                                 + "total = total + VALUES(total), "
+                                                                 + "recipients = VALUES(recipients), "
+                                                                 + "sketch = VALUES(sketch)")) {
+            int index = 1;
+            for (Group group : groups.values()) {
+                index = group.setKey(lock, index);
+                group.setKey(select, index - 3);
+            }
+            lock.executeUpdate();
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    Group group = groups.get(key(rs.getDate(1).toString(), rs.getString(2), rs.getString(3)));
+                    byte[] sketch = rs.getBytes(4);
+                    if (group != null && sketch != null) {
+                        group.recipients.merge(HyperLogLog.fromBytes(sketch));
+                    }
+                }
+            }
+            index = 1;
+            for (Group group : groups.values()) {
+                index = group.setKey(update, index);
+                update.setLong(index++, group.total);
+                update.setLong(index++, group.recipients.estimate());
+                update.setBytes(index++, group.recipients.toBytes());
+            }
+            update.executeUpdate();
+        }
+        if (stats != null) {
+            stats.record(groups.size(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The key of a row of the summary table in the numbers of a batch. The names are compared without case, as
+     * the database compares them.
+     * @param day the day, ex: 2026-01-15.
+     * @param type the type of email.
+     * @param event the event.
+     * @return the key.
+     */
+    private static String key(String day, String type, String event) {
+        return (day + "\t" + type + "\t" + event).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The numbers of the emails of one file, kept until the batches that delete them. The emails are held in the
+     * order they were read, as their ids, the hashes of their recipients and the codes of their day and type, and
+     * their events in the same order, so a file takes about 24 bytes per email and 8 per event. The batches
+     * delete the emails in that order too.
+     */
+    public class FileStats implements BatchDeleter.BatchListener {
+        private final LongList ids = new LongList(1024);
+        private final LongList recipients = new LongList(1024);
+        private final LongList emailKinds = new LongList(1024);
+        //The index of the email in the high half and the code of the event in the low half.
+        private final LongList events = new LongList(1024);
+        private final Map<String, Integer> kindCodes = new HashMap<>();
+        private final List<String[]> kinds = new ArrayList<>();
+        private final Map<String, Integer> eventCodes = new HashMap<>();
+        private final List<String> eventNames = new ArrayList<>();
+        private int rowEmail = 0;
+        private int appliedEmails = 0;
+        private int appliedEvents = 0;
+
+        /**
+         * Adds an email read from mail_log.
+         * @param mailInfo Array of strings with info from the mail log, as laid out in the CleanCSVWriter header.
+         */
+        public void addEmail(String[] mailInfo) {
+            ids.add(Long.parseLong(mailInfo[0]));
+            recipients.add(mailInfo[1] == null ? 0 : HyperLogLog.hash(mailInfo[1].toLowerCase(Locale.ROOT)));
+            String day = mailInfo[6].substring(0, 10);
+            String type = mailInfo[7] == null ? "" : mailInfo[7];
+            Integer kind = kindCodes.get(day + "\t" + type);
+            if (kind == null) {
+                kind = kinds.size();
+                kinds.add(new String[]{day, type});
+                kindCodes.put(day + "\t" + type, kind);
+            }
+            emailKinds.add(kind);
+        }
+
+        /**
+         * Adds the event of a joined row. Rows of emails without events are skipped, the emails are counted by
+         * addEmail. The rows come in the order their emails were added.
+         * @param row a row of the file.
+         */
+        public void addRow(String[] row) {
+            if (row.length <= EVENT_INDEX) {
+                return;
+            }
+            long id = Long.parseLong(row[0]);
+            while (rowEmail < ids.size() && ids.get(rowEmail) != id) {
+                rowEmail++;
+            }
+            if (rowEmail == ids.size()) {
+                throw new IllegalStateException("The event of email " + id + " is not in the order of its file");
+            }
+            String event = row[EVENT_INDEX] == null ? "unknown" : row[EVENT_INDEX];
+            Integer code = eventCodes.get(event);
+            if (code == null) {
+                code = eventNames.size();
+                eventNames.add(event);
+                eventCodes.put(event, code);
+            }
+            events.add((long) rowEmail << 32 | code);
+        }
+
+        /**
+         * Adds the numbers of the emails of a batch to the summary table, in the transaction that deletes them.
+         * @param con is the connection of the batch.
+         * @param batch the ids of the emails in the batch, the next emails of the file.
+         * @throws SQLException in case of error.
+         */
+        @Override
+        public void beforeCommit(Connection con, long[] batch) throws SQLException {
+            int end = appliedEmails + batch.length;
+            if (end > ids.size() || ids.get(appliedEmails) != batch[0] || ids.get(end - 1) != batch[batch.length - 1]) {
+                throw new IllegalStateException("The statistics of the file do not match the emails being deleted");
+            }
+            TreeMap<String, Group> groups = new TreeMap<>();
+            for (int email = appliedEmails; email < end; email++) {
+                group(groups, email, SENT).add(recipients.get(email));
+            }
+            int event = appliedEvents;
+            for (; event < events.size() && (int) (events.get(event) >>> 32) < end; event++) {
+                int email = (int) (events.get(event) >>> 32);
+                group(groups, email, eventNames.get((int) events.get(event))).add(recipients.get(email));
+            }
+            upsert(con, groups);
+            appliedEmails = end;
+            appliedEvents = event;
+        }
+
+        /**
+         * The memory the statistics take.
+         * @return the size in bytes.
+         */
+        public long getBytes() {
+            return ids.getBytes() + recipients.getBytes() + emailKinds.getBytes() + events.getBytes()
+                       + 100L * (kinds.size() + eventNames.size());
+        }
+
+        /**
+         * Finds or creates the numbers of a row of the summary table.
+         * @param groups the numbers of the batch.
+         * @param email the index of an email of the row.
+         * @param event the event of the row.
+         * @return the numbers.
+         */
+        private Group group(TreeMap<String, Group> groups, int email, String event) {
+            String[] kind = kinds.get((int) emailKinds.get(email));
+            return groups.computeIfAbsent(key(kind[0], kind[1], event), key -> new Group(kind[0], kind[1], event));
+        }
+    }
+
+    /**
+     * The numbers of a row of the summary table.
+     */
+    private static class Group {
+        private final String day;
+        private final String type;
+        private final String event;
+        private final HyperLogLog recipients = new HyperLogLog(PRECISION);
+        private long total = 0;
+
+        private Group(String day, String type, String event) {
+            this.day = day;
+            this.type = type;
+            this.event = event;
+        }
+
+        /**
+         * Counts an email or an event of a recipient.
+         * @param recipient the hash of the address, 0 if it is not known.
+         */
+        private void add(long recipient) {
+            total++;
+            if (recipient != 0) {
+                recipients.addHash(recipient);
+            }
+        }
+
+        /**
+         * Sets the key of the row as three parameters of a statement.
+         * @param statement the statement.
+         * @param index the index of the first parameter.
+         * @return the index of the parameter after the key.
+         * @throws SQLException in case of error.
+         */
+        private int setKey(PreparedStatement statement, int index) throws SQLException {
+            statement.setDate(index, Date.valueOf(day));
+            statement.setString(index + 1, type);
+            statement.setString(index + 2, event);
+            return index + 3;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.vm.shared.StageStats;
+
+/**
+ * The EventBatchJoiner buffers mail_log rows read by Clean and joins them with their sendgrid events
+ * one batch of guids at a time. Rather than querying sendgrid_event once per email, each batch is looked up
+ * with a single "guid IN (...)" query and the events are merged with the buffered emails in memory.
+ * The rows handed to the writer are the same as before: one row per (mail, event) pair and a mail only row
+ * for every email that has no events. Events are read straight into full width rows, so that only the mail
+ * columns have to be filled in when they are joined. The tables and columns come from the ArchiveJob, and the
+ * columns of the lookups are read by the index resolved for the first lookup. A job without a child table has
+ * nothing to look up, and its rows are handed on as they are. Guids are matched without regard to case, as the
+ * collation of MySQL compares them in the IN (...) query.
+ */
+public class EventBatchJoiner implements AutoCloseable {
+
+    private final Connection con;
+    private final ArchiveJob job;
+    private final int eventOffset;
+    private final int keyIndex;
+    private final ColumnMapping eventColumns;
+    private int eventKey;
+    private final int batchSize;
+    private final List<String[]> pending;
+    private PreparedStatement statement;
+    private int queryCount = 0;
+    private long lookupNanos = 0;
+    private StageStats stats;
+
+    /**
+     * The constructor takes in the connection used for the sendgrid_event lookups and the number
+     * of emails to gather before the lookup is run.
+     * @param con is the current connection.
+     * @param job the tables and columns that are archived.
+     * @param batchSize the number of guids looked up with each query.
+     */
+    public EventBatchJoiner(Connection con, ArchiveJob job, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.con = con;
+        this.job = job;
+        this.eventOffset = job.getColumns().size();
+        this.keyIndex = job.hasChild() ? job.indexOf(job.getKeyColumn()) : -1;
+        this.eventColumns = new ColumnMapping(job.getChildColumns(), eventOffset);
+        this.batchSize = batchSize;
+        this.pending = new ArrayList<>(batchSize);
+    }
+
+    /**
+     * Adds the info of one mail_log row to the current batch, with the columns of the parent table of the job.
+     * @param mailInfo Array of strings with info from the mail log.
+     */
+    public void add(String[] mailInfo) {
+        pending.add(mailInfo);
+    }
+
+    /**
+     * Whether or not the current batch has reached its size and should be flushed.
+     * @return true if the batch is full.
+     */
+    public boolean isFull() {
+        return pending.size() >= batchSize;
+    }
+
+    /**
+     * Looks up the sendgrid events for every buffered email and hands the joined rows to the writer,
+     * in the same order the emails were added.
+     * @param writer receives the rows of this batch, for example a file writer's writeToFile.
+     * @throws SQLException in case of error.
+     */
+    public void flush(Consumer<String[]> writer) throws SQLException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, List<String[]>> events = job.hasChild() ? lookupEvents() : Collections.emptyMap();
+        for (String[] mailInfo : pending) {
+            List<String[]> mailEvents = keyIndex < 0 || mailInfo[keyIndex] == null ? Collections.emptyList()
+                                            : events.getOrDefault(key(mailInfo[keyIndex]), Collections.emptyList());
+            for (String[] eventRow : mailEvents) {
+                //Fills in the mail columns of the row. If the guid appears twice in the batch, the row has already
+                //been handed to the writer and a copy is used instead.
+                String[] line = eventRow[0] == null ? eventRow : eventRow.clone();
+                System.arraycopy(mailInfo, 0, line, 0, eventOffset);
+                writer.accept(line);
+            }
+            //If no events associated with a given email, it adds it to the file with no events.
+            if (mailEvents.isEmpty()) {
+                writer.accept(mailInfo);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Records every lookup in the given statistics, with the number of events found.
+     * @param stats of the lookup stage.
+     */
+    public void setStats(StageStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * The time spent on sendgrid_event queries so far, including reading their results.
+     * @return the time in nanoseconds.
+     */
+    public long getLookupNanos() {
+        return lookupNanos;
+    }
+
+    /**
+     * The number of sendgrid_event queries run so far.
+     * @return the query count.
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Closes the prepared statement used for the lookups.
+     * @throws SQLException in case of error.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (statement != null) {
+            statement.close();
+            statement = null;
+        }
+    }
+
+    /**
+     * Runs a single query for all guids of the pending batch and groups the resulting events by guid.
+     * The statement always has batchSize parameters so that it can be prepared once; a partial batch repeats
+     * its last guid, which does not change the result.
+     * @return events for each guid, in the order the database returned them.
+     * @throws SQLException in case of error.
+     */
+    private Map<String, List<String[]>> lookupEvents() throws SQLException {
+        if (statement == null) {
+            StringBuilder query = new StringBuilder("SELECT " + job.childSelectList() + " FROM " + job.getChildTable()
+                                                        + " WHERE " + job.getChildKeyColumn() + " IN (");
+            for (int i = 0; i < batchSize; i++) {
+                query.append(i == 0 ? "?" : ",?");
+            }
+            query.append(")");
+            statement = con.prepareStatement(query.toString());
+        }
+        for (int i = 0; i < batchSize; i++) {
+            String[] mailInfo = pending.get(Math.min(i, pending.size() - 1));
+            statement.setString(i + 1, mailInfo[keyIndex]);
+        }
+
+        Map<String, List<String[]>> events = new HashMap<>();
+        queryCount++;
+        long start = System.nanoTime();
+        int found = 0;
+        try (ResultSet rs2 = statement.executeQuery()) {
+            if (eventKey == 0) {
+                eventColumns.resolve(rs2);
+                eventKey = eventColumns.indexOf(job.getChildKeyColumn());
+            }
+            while (rs2.next()) {
+                String guid = rs2.getString(eventKey);
+                events.computeIfAbsent(key(guid), g -> new ArrayList<>()).add(readEvent(rs2));
+                found++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        lookupNanos += nanos;
+        if (stats != null) {
+            stats.record(found, nanos);
+        }
+        return events;
+    }
+
+    /**
+     * The key events are grouped and found by. MySQL matches a guid to the events of the same guid in another
+     * case, so the keys are compared in lower case.
+     * @param guid the value of the key column, not null.
+     * @return the key.
+     */
+    private static String key(String guid) {
+        return guid.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Reads the current sendgrid_event row into the event columns of a new row of the header of the job.
+     * The mail columns are left empty until the row is joined.
+     * @param rs2 the ResultSet positioned on an event.
+     * @return Array of strings representing the given sendgrid event info.
+     * @throws SQLException in case of error.
+     */
+    private String[] readEvent(ResultSet rs2) throws SQLException {
+        String[] row = new String[job.getWidth()];
+        eventColumns.read(rs2, row);
+        return row;
+    }
+}
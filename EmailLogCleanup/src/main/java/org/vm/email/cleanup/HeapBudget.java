@@ -0,0 +1,131 @@
+package org.vm.email.cleanup;
+
+/**
+ * The HeapBudget bounds the memory the pipelines of a run hold at once. Every row handed to a pipeline is counted
+ * until the encoder has written it, and the ids and statistics of every finished file until its emails have been
+ * deleted. Once the budget is used up, the readers of the slices wait before they add another row, which in turn
+ * leaves the rest of their result sets in the database until the other stages have caught up. Only the readers
+ * wait, so the budget never stops the stages that free it. The sizes are estimates of what the rows take on the
+ * heap, not measurements.
+ */
+public class HeapBudget {
+
+    /**
+     * Share of the maximum heap used as the budget when HEAP_BUDGET_MB is not set.
+     */
+    static final double DEFAULT_SHARE = 0.25;
+
+    private final long budget;
+    private long reserved = 0;
+    private long peak = 0;
+
+    /**
+     * The constructor takes in the size of the budget.
+     * @param budget the size in bytes.
+     */
+    public HeapBudget(long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("The heap budget must be at least 1 byte");
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * Creates the budget of a run.
+     * @param megabytes the size of the budget in MB, HEAP_BUDGET_MB, null for a quarter of the maximum heap.
+     * @return the budget.
+     */
+    public static HeapBudget of(String megabytes) {
+        return new HeapBudget(megabytes == null ? (long) (Runtime.getRuntime().maxMemory() * DEFAULT_SHARE)
+                                  : Long.parseLong(megabytes) * 1024 * 1024);
+    }
+
+    /**
+     * Counts memory that fits into the budget. Memory that does not fit is only counted if nothing else is, so
+     * that a single row larger than the budget still goes through.
+     * @param bytes the size.
+     * @return false if the memory was not counted because the budget is used up.
+     */
+    public synchronized boolean tryReserve(long bytes) {
+        if (reserved > 0 && reserved + bytes > budget) {
+            return false;
+        }
+        reserve(bytes);
+        return true;
+    }
+
+    /**
+     * Counts memory that is already held, whether or not it fits into the budget.
+     * @param bytes the size.
+     */
+    public synchronized void reserve(long bytes) {
+        reserved += bytes;
+        peak = Math.max(peak, reserved);
+    }
+
+    /**
+     * Stops counting memory that has been freed and wakes the readers that wait for it.
+     * @param bytes the size.
+     */
+    public synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Waits until memory is released or the time is up.
+     * @param millis the longest time to wait.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    public synchronized void await(long millis) throws InterruptedException {
+        wait(millis);
+    }
+
+    /**
+     * The memory counted at the moment.
+     * @return the size in bytes.
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * The size of the budget.
+     * @return the size in bytes.
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * The most memory counted at once so far.
+     * @return the size in bytes.
+     */
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    /**
+     * Estimates the memory a row takes: the array and, for every value, a string with one byte per character.
+     * @param row of info to be written to a file.
+     * @return the size in bytes.
+     */
+    static long rowBytes(String[] row) {
+        long bytes = 16 + 4L * row.length;
+        for (String value : row) {
+            if (value != null) {
+                bytes += 40 + value.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Describes the budget and how much of it was used.
+     * @return ex: "heap budget 256 MB, peak 12 MB".
+     */
+    @Override
+    public synchronized String toString() {
+        return "heap budget " + budget / (1024 * 1024) + " MB, peak " + peak / (1024 * 1024) + " MB";
+    }
+}
@@ -0,0 +1,197 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Random;
+
+/**
+ * The HighWaterMark is the CheckpointStore of a trickle run, which archives only the emails sent since the last
+ * run and is meant to run every few minutes. The position of the last archived email is kept in a row of a table
+ * of the database and written in the transactions that delete the emails of each file, so the mark moves exactly
+ * when its emails are gone, instead of being saved after the delete. Objects in S3 cannot be appended to, so the
+ * files of successive runs continue a segment: they share its name and keep its numbering, until the segment holds
+ * enough bytes or is old enough that the next run starts a new one. A lease in the same row keeps two runs of the
+ * same archive from overlapping; a run that finds the lease taken does nothing.
+ */
+public class HighWaterMark extends CheckpointStore {
+
+    private static final Random LEASES = new Random();
+
+    private final String table;
+    private final String name;
+    private final long rollBytes;
+    private final long rollMillis;
+    private long lease = 0;
+
+    /**
+     * The constructor takes in the table of the marks and when segments roll over.
+     * @param table the name of the table, TRICKLE_TABLE.
+     * @param name the archive the mark belongs to, its BASE_FILENAME.
+     * @param rollBytes the size in bytes at which a segment is closed.
+     * @param rollMillis the age in milliseconds at which a segment is closed.
+     */
+    public HighWaterMark(String table, String name, long rollBytes, long rollMillis) {
+        super(null, null, null);
+        this.table = table;
+        this.name = name;
+        this.rollBytes = rollBytes;
+        this.rollMillis = rollMillis;
+    }
+
+    /**
+     * Creates the table of the marks if it does not exist yet. Times are kept in milliseconds, like the
+     * checkpoints in S3, so that the position is exact whatever the precision of sent_time.
+     * @param con is the current connection.
+     * @throws SQLException in case of error.
+     */
+    public void createTable(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS `" + table + "` (name VARCHAR(255) NOT NULL, "
+                                  + "sent_time BIGINT NOT NULL, id BIGINT NOT NULL, segment VARCHAR(64), "
+                                  + "file_number INT NOT NULL, segment_bytes BIGINT NOT NULL, segment_start BIGINT, "
+                                  + "lease BIGINT, lease_until BIGINT, PRIMARY KEY (name))");
+        }
+    }
+
+    /**
+     * Takes the lease of the archive and reads its mark. A segment that has reached its size or age is closed here,
+     * so the first file of the run starts a new one.
+     * @param con is the current connection, in auto-commit mode.
+     * @param leaseMillis how long the lease is held, at least as long as the run.
+     * @return the position the run starts after, null if another run holds the lease.
+     * @throws SQLException in case of error.
+     */
+    public Checkpoint start(Connection con, long leaseMillis) throws SQLException {
+        try (PreparedStatement insert = con.prepareStatement("INSERT INTO `" + table + "` (name, sent_time, id, "
+                                                                 + "file_number, segment_bytes) VALUES (?, 0, 0, 0, 0)"
+                                                                 + " ON DUPLICATE KEY UPDATE id = id")) {
+            insert.setString(1, name);
+            insert.executeUpdate();
+        }
+        long now = System.currentTimeMillis();
+        long taken = LEASES.nextLong();
+        try (PreparedStatement take = con.prepareStatement("UPDATE `" + table + "` SET lease = ?, lease_until = ? "
+                                                               + "WHERE name = ? AND (lease_until IS NULL "
+                                                               + "OR lease_until < ?)")) {
+            take.setLong(1, taken);
+            take.setLong(2, now + leaseMillis);
+            take.setString(3, name);
+            take.setLong(4, now);
+            if (take.executeUpdate() == 0) {
+                return null;
+            }
+        }
+        lease = taken;
+        Checkpoint mark;
+        long segmentBytes;
+        Long segmentStart;
+        try (PreparedStatement select = con.prepareStatement("SELECT sent_time, id, segment, file_number, "
+                                                                 + "segment_bytes, segment_start FROM `" + table
+                                                                 + "` WHERE name = ?")) {
+            select.setString(1, name);
+            try (ResultSet rs = select.executeQuery()) {
+                rs.next();
+                mark = new Checkpoint(0, new Timestamp(rs.getLong(1)), rs.getLong(2), rs.getInt(4), rs.getString(3),
+                    null);
+                segmentBytes = rs.getLong(5);
+                segmentStart = (Long) rs.getObject(6);
+            }
+        }
+        if (mark.getFirstTimestamp() != null && (segmentBytes >= rollBytes
+                                                     || segmentStart != null && now - segmentStart >= rollMillis)) {
+            try (PreparedStatement roll = con.prepareStatement("UPDATE `" + table + "` SET segment = NULL, "
+                                                                   + "file_number = 0, segment_bytes = 0, "
+                                                                   + "segment_start = NULL WHERE name = ?")) {
+                roll.setString(1, name);
+                roll.executeUpdate();
+            }
+            System.out.println("Segment " + mark.getFirstTimestamp() + " closed after " + mark.getFileNumber()
+                                   + " files and " + segmentBytes + " bytes");
+            mark = new Checkpoint(0, mark.getSentTime(), mark.getId(), 0, null, null);
+        }
+        return mark;
+    }
+
+    /**
+     * Gives the lease up once the run is over, so the next run does not have to wait for it to expire.
+     * @param con is the current connection, in auto-commit mode.
+     * @throws SQLException in case of error.
+     */
+    public void release(Connection con) throws SQLException {
+        if (lease == 0) {
+            return;
+        }
+        try (PreparedStatement release = con.prepareStatement("UPDATE `" + table + "` SET lease = NULL, "
+                                                                  + "lease_until = NULL WHERE name = ? "
+                                                                  + "AND lease = ?")) {
+            release.setString(1, name);
+            release.setLong(2, lease);
+            release.executeUpdate();
+        }
+        lease = 0;
+    }
+
+    /**
+     * Writes the mark in every delete batch of a file. Every batch records the segment and number of the file, so
+     * that a file whose emails are partly deleted is never written again under the same name, and the batch with
+     * the last email of the file moves the position and adds the file to the size of the segment. A run whose lease
+     * was taken over by another run fails its batch, which is rolled back.
+     * @param checkpoint of the file, at its last email.
+     * @param bytes the size of the file.
+     * @return the listener of the delete batches of the file.
+     */
+    @Override
+    public BatchDeleter.BatchListener inTransaction(Checkpoint checkpoint, long bytes) {
+        return (con, ids) -> {
+            boolean last = ids[ids.length - 1] == checkpoint.getId();
+            String position = last ? "sent_time = ?, id = ?, segment_bytes = segment_bytes + ?, " : "";
+            try (PreparedStatement update = con.prepareStatement("UPDATE `" + table + "` SET " + position
+                                                                     + "segment = ?, file_number = ?, segment_start "
+                                                                     + "= COALESCE(segment_start, ?) WHERE name = ? "
+                                                                     + "AND lease = ?")) {
+                int index = 1;
+                if (last) {
+                    update.setLong(index++, checkpoint.getSentTime().getTime());
+                    update.setLong(index++, checkpoint.getId());
+                    update.setLong(index++, bytes);
+                }
+                update.setString(index++, checkpoint.getFirstTimestamp());
+                update.setInt(index++, checkpoint.getFileNumber());
+                update.setLong(index++, System.currentTimeMillis());
+                update.setString(index++, name);
+                update.setLong(index, lease);
+                if (update.executeUpdate() == 0) {
+                    throw new SQLException("The lease of the high-water mark " + name + " was lost");
+                }
+            }
+        };
+    }
+
+    /**
+     * The mark is not kept in an object, it is read by start.
+     * @return null.
+     */
+    @Override
+    protected String readObject() {
+        return null;
+    }
+
+    /**
+     * The mark has already been written by the deletes of the file.
+     * @param contents of the object.
+     */
+    @Override
+    protected void writeObject(String contents) {
+    }
+
+    /**
+     * The mark is kept once the emails before the cutoff date have been archived, the next run continues from it.
+     */
+    @Override
+    protected void deleteObject() {
+    }
+}
@@ -0,0 +1,172 @@
+package org.vm.email.cleanup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The KeyLayout decides the keys the rows of a file are written under. The flat layout writes every file to a single
+ * object named after the file, as the bucket has always been laid out. The hive layout splits the rows of a file by
+ * the values of some columns and the day of the time column, and writes each part under a key such as
+ * baseName + "type=newsletter/year=2019/month=01/day=05/part-2019-01-05 10:00:00_1.csv", the way Hive, Athena and
+ * Spark lay out a partitioned table. A query filtered on those columns or on the date then only reads the objects
+ * of the matching partitions.
+ */
+public class KeyLayout {
+
+    /**
+     * The layout of a flat bucket, one object per file.
+     */
+    public static final KeyLayout FLAT = new KeyLayout(null, new String[0], new int[0], -1, 1);
+
+    /**
+     * Number of parts a file keeps open at once when MAX_OPEN_WRITERS is not set.
+     */
+    static final int DEFAULT_MAX_OPEN = 16;
+
+    /**
+     * The value Hive uses for a partition whose value is null or empty.
+     */
+    static final String DEFAULT_PARTITION = "__HIVE_DEFAULT_PARTITION__";
+
+    private final String baseName;
+    private final String[] names;
+    private final int[] indexes;
+    private final int timeIndex;
+    private final int maxOpen;
+
+    /**
+     * The constructor takes in the columns the rows are split by.
+     * @param baseName the start of every file name, BASE_FILENAME, null for the flat layout.
+     * @param names the names of the partition columns, in the order of the key.
+     * @param indexes the index of every partition column in a row.
+     * @param timeIndex the index of the time column in a row, -1 for the flat layout.
+     * @param maxOpen the number of parts of a file that are written at once.
+     */
+    private KeyLayout(String baseName, String[] names, int[] indexes, int timeIndex, int maxOpen) {
+        this.baseName = baseName;
+        this.names = names;
+        this.indexes = indexes;
+        this.timeIndex = timeIndex;
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Reads the layout of a run from KEY_LAYOUT.
+     * @param layout flat or hive, null for flat.
+     * @param columns the columns the hive layout splits by before the date, separated by commas, KEY_COLUMNS.
+     * @param maxOpen the number of parts of a file written at once, MAX_OPEN_WRITERS, null for the default.
+     * @param job the tables and columns that are archived.
+     * @param baseName the start of every file name.
+     * @return the layout.
+     */
+    public static KeyLayout of(String layout, String columns, String maxOpen, ArchiveJob job, String baseName) {
+        if (layout == null || layout.equalsIgnoreCase("flat")) {
+            return FLAT;
+        } else if (!layout.equalsIgnoreCase("hive")) {
+            throw new IllegalArgumentException("Unknown KEY_LAYOUT " + layout + ", expected flat or hive");
+        }
+        List<String> names = new ArrayList<>();
+        for (String column : (columns == null ? "type" : columns).split(",")) {
+            if (!column.trim().isEmpty()) {
+                names.add(column.trim());
+            }
+        }
+        int[] indexes = new int[names.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = job.indexOf(names.get(i));
+        }
+        int open = maxOpen == null ? DEFAULT_MAX_OPEN : Integer.parseInt(maxOpen);
+        if (open < 1) {
+            throw new IllegalArgumentException("MAX_OPEN_WRITERS must be at least 1");
+        }
+        return new KeyLayout(baseName, names.toArray(new String[0]), indexes, job.indexOf(job.getTimeColumn()), open);
+    }
+
+    /**
+     * The partition a row is written to.
+     * @param row a joined row, with the columns of the parent table first.
+     * @return the directories of the partition ending with a slash, empty for the flat layout.
+     */
+    public String partition(String[] row) {
+        if (timeIndex < 0) {
+            return "";
+        }
+        StringBuilder partition = new StringBuilder(64);
+        for (int i = 0; i < names.length; i++) {
+            partition.append(names[i]).append('=').append(escape(row[indexes[i]])).append('/');
+        }
+        String time = row[timeIndex];
+        if (time == null || time.length() < 10) {
+            return partition.append("year=").append(DEFAULT_PARTITION).append("/month=").append(DEFAULT_PARTITION)
+                       .append("/day=").append(DEFAULT_PARTITION).append('/').toString();
+        }
+        return partition.append("year=").append(time, 0, 4).append("/month=").append(time, 5, 7)
+                   .append("/day=").append(time, 8, 10).append('/').toString();
+    }
+
+    /**
+     * The name of a part of a file.
+     * @param filename the name of the file, starting with the base name.
+     * @param partition the partition of the part.
+     * @param part the number of the part within the partition, from 1; a partition has more than one part when its
+     * writer was closed to make room for another one before the file ended.
+     * @return the name the writer of the part is created with.
+     */
+    public String key(String filename, String partition, int part) {
+        if (timeIndex < 0) {
+            return filename;
+        }
+        return baseName + partition + "part-" + filename.substring(baseName.length()) + (part == 1 ? "" : "_" + part);
+    }
+
+    /**
+     * How the names of the parts of a file look, for messages.
+     * @param filename the name of the file, starting with the base name.
+     * @return the name with a * for the value of every partition column.
+     */
+    public String describe(String filename) {
+        if (timeIndex < 0) {
+            return filename;
+        }
+        StringBuilder partition = new StringBuilder();
+        for (String name : names) {
+            partition.append(name).append("=*/");
+        }
+        return key(filename, partition.append("year=*/month=*/day=*/").toString(), 1);
+    }
+
+    /**
+     * The number of parts of a file that are written at once. Once a file has that many, the part written to least
+     * recently is finished before a part of another partition is started.
+     * @return the number of parts.
+     */
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+
+    /**
+     * Escapes a partition value the way Hive does, so that it stays a single directory of the key.
+     * @param value of a partition column.
+     * @return the escaped value, DEFAULT_PARTITION for null or empty values.
+     */
+    static String escape(String value) {
+        if (value == null || value.isEmpty()) {
+            return DEFAULT_PARTITION;
+        }
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean special = c < ' ' || c == 0x7F || "\"#%'*/:=?\\{[]^".indexOf(c) >= 0;
+            if (special && escaped == null) {
+                escaped = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (special) {
+                escaped.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+}
@@ -0,0 +1,58 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The LocalCheckpointStore keeps the checkpoints of a run in a file instead of the S3 bucket, next to the files
+ * written by a LocalLogWriter. The file is replaced atomically, so a run that is killed while saving leaves the
+ * previous checkpoint behind.
+ */
+public class LocalCheckpointStore extends CheckpointStore {
+
+    private final File file;
+
+    /**
+     * The constructor takes in the file the checkpoints are kept in.
+     * @param file of the checkpoints.
+     */
+    public LocalCheckpointStore(File file) {
+        super(null, null, file.getName());
+        this.file = file;
+    }
+
+    @Override
+    protected String readObject() {
+        try {
+            return file.exists() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Reading the checkpoint " + file + " failed", e);
+        }
+    }
+
+    @Override
+    protected void writeObject(String contents) {
+        File temp = new File(file.getPath() + ".tmp");
+        temp.getAbsoluteFile().getParentFile().mkdirs();
+        try {
+            Files.write(temp.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Saving the checkpoint " + file + " failed", e);
+        }
+    }
+
+    @Override
+    protected void deleteObject() {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Deleting the checkpoint " + file + " failed", e);
+        }
+    }
+}
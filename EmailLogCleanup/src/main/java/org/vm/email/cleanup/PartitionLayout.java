@@ -0,0 +1,342 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The PartitionLayout describes how a table is range partitioned by time, as read from
+ * information_schema.PARTITIONS. MySQL keeps the upper bound of every RANGE partition as a value of the
+ * partitioning expression; the layout turns it back into the time it stands for, so that Clean can tell which
+ * partitions lie entirely before its cutoff date. Supported are RANGE COLUMNS on the time column itself and RANGE
+ * on TO_DAYS, TO_SECONDS or UNIX_TIMESTAMP of it, which cover the usual monthly and daily layouts. Boundaries are
+ * read in the time zone of the JVM, the same way the timestamps bound to the queries of Clean are sent.
+ */
+public class PartitionLayout {
+
+    private static final String QUERY = "SELECT PARTITION_NAME, PARTITION_METHOD, PARTITION_EXPRESSION, "
+                                            + "PARTITION_DESCRIPTION, TABLE_ROWS FROM information_schema.PARTITIONS "
+                                            + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? "
+                                            + "AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION";
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * TO_DAYS('1970-01-01'), the number of days from year 0 that MySQL counts to the epoch.
+     */
+    private static final long EPOCH_DAYS = 719528;
+
+    /**
+     * How the upper bound of a partition is derived from the time column.
+     */
+    enum Expression {
+        COLUMNS, TO_DAYS, TO_SECONDS, UNIX_TIMESTAMP
+    }
+
+    private final String table;
+    private final String column;
+    private final Expression function;
+    private final List<Partition> partitions;
+
+    /**
+     * The constructor takes in the partitions of a table, in the order of their bounds.
+     * @param table the partitioned table.
+     * @param column the time column it is partitioned by.
+     * @param function how the bounds are derived from the column.
+     * @param partitions the partitions.
+     */
+    PartitionLayout(String table, String column, Expression function, List<Partition> partitions) {
+        this.table = table;
+        this.column = column;
+        this.function = function;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Reads the partitions of a table from the catalog of the current database.
+     * @param con is the current connection.
+     * @param table the name of the table.
+     * @return the layout, null if the table is not range partitioned by a time column in a supported way.
+     * @throws SQLException in case of error.
+     */
+    public static PartitionLayout load(Connection con, String table) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(QUERY)) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(new String[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                        rs.getString(5)});
+                }
+            }
+        }
+        return of(table, rows);
+    }
+
+    /**
+     * Builds the layout of a table from its rows of information_schema.PARTITIONS.
+     * @param table the name of the table.
+     * @param rows the name, method, expression, description and row estimate of every partition, in order.
+     * @return the layout, null if the table is not range partitioned by a time column in a supported way.
+     */
+    static PartitionLayout of(String table, List<String[]> rows) {
+        if (rows.isEmpty()) {
+            return null;
+        }
+        String method = rows.get(0)[1];
+        String expression = rows.get(0)[2].replace("`", "").replace(" ", "").toLowerCase(Locale.ROOT);
+        Expression function;
+        String column;
+        if ("RANGE COLUMNS".equalsIgnoreCase(method) && expression.matches("\\w+")) {
+            function = Expression.COLUMNS;
+            column = expression;
+        } else if ("RANGE".equalsIgnoreCase(method)
+                       && expression.matches("(to_days|to_seconds|unix_timestamp)\\(\\w+\\)")) {
+            int open = expression.indexOf('(');
+            function = Expression.valueOf(expression.substring(0, open).toUpperCase(Locale.ROOT));
+            column = expression.substring(open + 1, expression.length() - 1);
+        } else {
+            System.out.println(table + " is partitioned by " + method + " " + expression
+                                   + ", which is not a supported time range");
+            return null;
+        }
+        List<Partition> partitions = new ArrayList<>();
+        Timestamp lower = null;
+        for (String[] row : rows) {
+            Timestamp upper = toTime(function, row[3]);
+            partitions.add(new Partition(row[0], lower, upper, row[4] == null ? 0 : Long.parseLong(row[4])));
+            lower = upper;
+        }
+        return new PartitionLayout(table, column, function, Collections.unmodifiableList(partitions));
+    }
+
+    /**
+     * The partitioned table.
+     * @return the name of the table.
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * The time column the table is partitioned by.
+     * @return the name of the column.
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * The partitions, in the order of their bounds.
+     * @return the partitions.
+     */
+    public List<Partition> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * The partitions whose every row is older than a date.
+     * @param cutoff the date.
+     * @return the partitions that end at or before the date.
+     */
+    public List<Partition> before(Timestamp cutoff) {
+        List<Partition> before = new ArrayList<>();
+        for (Partition partition : partitions) {
+            if (partition.upper != null && !partition.upper.after(cutoff)) {
+                before.add(partition);
+            }
+        }
+        return before;
+    }
+
+    /**
+     * Finds the partition that holds every row of a time range.
+     * @param from the start of the range.
+     * @param to the end of the range, null if it has none.
+     * @return the partition, null if the range is not within the bounds of a single partition.
+     */
+    public Partition find(Timestamp from, Timestamp to) {
+        if (to == null) {
+            return null;
+        }
+        for (Partition partition : partitions) {
+            if ((partition.lower == null || !from.before(partition.lower)) && partition.upper != null
+                    && !to.after(partition.upper)) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether or not a partition holds no rows. Unlike TABLE_ROWS of the catalog, which InnoDB only estimates,
+     * this looks at the partition itself.
+     * @param con is the current connection.
+     * @param partition the partition.
+     * @return true if the partition is empty.
+     * @throws SQLException in case of error.
+     */
+    public boolean isEmpty(Connection con, Partition partition) throws SQLException {
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT 1 FROM `" + table + "` PARTITION (`" + partition.name
+                                                       + "`) LIMIT 1")) {
+            return !rs.next();
+        }
+    }
+
+    /**
+     * Drops partitions with a single statement, which removes their rows without deleting them one by one.
+     * @param con is the current connection.
+     * @param dropped the partitions.
+     * @throws SQLException in case of error.
+     */
+    public void drop(Connection con, List<Partition> dropped) throws SQLException {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        StringBuilder names = new StringBuilder();
+        for (Partition partition : dropped) {
+            names.append(names.length() == 0 ? "`" : ", `").append(partition.name).append('`');
+        }
+        try (Statement statement = con.createStatement()) {
+            statement.execute("ALTER TABLE `" + table + "` DROP PARTITION " + names);
+        }
+    }
+
+    /**
+     * Moves the rows of a partition into a new table of their own, named after the table and the partition, and
+     * leaves the partition empty. Unlike a drop, the rows stay in the database until the staging table is dropped.
+     * @param con is the current connection.
+     * @param partition the partition.
+     * @return the name of the staging table.
+     * @throws SQLException in case of error, for example if the staging table already exists.
+     */
+    public String exchange(Connection con, Partition partition) throws SQLException {
+        String staging = table + "_" + partition.name;
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE `" + staging + "` LIKE `" + table + "`");
+            statement.execute("ALTER TABLE `" + staging + "` REMOVE PARTITIONING");
+            statement.execute("ALTER TABLE `" + table + "` EXCHANGE PARTITION `" + partition.name + "` WITH TABLE `"
+                                  + staging + "`");
+        }
+        return staging;
+    }
+
+    /**
+     * The bound of a partition as written after VALUES LESS THAN.
+     * @param time the bound, null for MAXVALUE.
+     * @return the bound, ex: ('2026-02-01') or (TO_DAYS('2026-02-01')).
+     */
+    public String lessThan(LocalDateTime time) {
+        return lessThan(function, time);
+    }
+
+    /**
+     * The bound of a partition as written after VALUES LESS THAN.
+     * @param function how the bound is derived from the time column.
+     * @param time the bound, null for MAXVALUE.
+     * @return the bound.
+     */
+    static String lessThan(Expression function, LocalDateTime time) {
+        if (time == null) {
+            return function == Expression.COLUMNS ? "(MAXVALUE)" : "MAXVALUE";
+        }
+        String value = time.toLocalTime().equals(LocalTime.MIDNIGHT) ? DATE_FORMAT.format(time)
+                           : DATETIME_FORMAT.format(time);
+        return function == Expression.COLUMNS ? "('" + value + "')" : "(" + function + "('" + value + "'))";
+    }
+
+    /**
+     * Turns the description of a partition, the value of its VALUES LESS THAN, into the time it stands for.
+     * @param function how the bound is derived from the time column.
+     * @param description the bound as shown by the catalog.
+     * @return the time, null for MAXVALUE.
+     */
+    private static Timestamp toTime(Expression function, String description) {
+        String value = description.trim();
+        if (value.equalsIgnoreCase("MAXVALUE")) {
+            return null;
+        }
+        switch (function) {
+            case COLUMNS:
+                value = value.replace("'", "");
+                return Timestamp.valueOf(value.length() == 10 ? value + " 00:00:00" : value);
+            case TO_DAYS:
+                return Timestamp.valueOf(LocalDate.ofEpochDay(Long.parseLong(value) - EPOCH_DAYS).atStartOfDay());
+            case TO_SECONDS:
+                return Timestamp.valueOf(LocalDateTime.ofEpochSecond(Long.parseLong(value) - EPOCH_DAYS * 86400, 0,
+                    ZoneOffset.UTC));
+            default:
+                return new Timestamp(Long.parseLong(value) * 1000);
+        }
+    }
+
+    /**
+     * A partition of the table and the range of time it holds.
+     */
+    public static class Partition {
+        private final String name;
+        private final Timestamp lower;
+        private final Timestamp upper;
+        private final long rows;
+
+        /**
+         * The constructor takes in the name and bounds of the partition.
+         * @param name of the partition.
+         * @param lower the bound of the previous partition, null for the first partition.
+         * @param upper its own bound, null for MAXVALUE.
+         * @param rows the number of rows estimated by the catalog.
+         */
+        Partition(String name, Timestamp lower, Timestamp upper, long rows) {
+            this.name = name;
+            this.lower = lower;
+            this.upper = upper;
+            this.rows = rows;
+        }
+
+        /**
+         * The name of the partition.
+         * @return the name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The time every row of the partition is at or after.
+         * @return the lower bound, null for the first partition.
+         */
+        public Timestamp getLower() {
+            return lower;
+        }
+
+        /**
+         * The time every row of the partition is before.
+         * @return the upper bound, null for MAXVALUE.
+         */
+        public Timestamp getUpper() {
+            return upper;
+        }
+
+        /**
+         * The number of rows of the partition, as estimated by the catalog.
+         * @return the number of rows.
+         */
+        public long getRows() {
+            return rows;
+        }
+    }
+}
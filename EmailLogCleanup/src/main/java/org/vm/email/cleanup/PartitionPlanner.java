@@ -0,0 +1,275 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.vm.shared.ConnectionPool;
+
+/**
+ * The PartitionPlanner plans and maintains the range partitions of mail_log and sendgrid_event that Clean removes
+ * with PARTITION_MODE. For a table that is not partitioned yet it prints the statement that partitions it by month
+ * or by day, from its oldest row up to the periods ahead, and the unique keys that have to include the time column
+ * first. For a partitioned table it prints the layout and keeps partitions ready ahead of time: it adds the
+ * partitions of the coming periods, splitting them off the MAXVALUE partition if there is one, and drops the
+ * partitions that ended in the past and are empty, such as those left by PARTITION_MODE=exchange.
+ * Run with:
+ * java -cp EmailLogCleanup-1.0.jar org.vm.email.cleanup.PartitionPlanner jdbc table column [month|day] [ahead] [apply]
+ * With apply, the maintenance statements are run instead of printed. Partitioning a table is only ever printed, as
+ * it rebuilds the whole table.
+ */
+public class PartitionPlanner {
+
+    /**
+     * Number of periods after the current one that have a partition when no number is given.
+     */
+    static final int DEFAULT_AHEAD = 3;
+
+    private final Connection con;
+    private final String table;
+    private final String column;
+    private final ChronoUnit period;
+    private final int ahead;
+
+    /**
+     * The constructor takes in the table to plan and the partitions it should have.
+     * @param con is the current connection.
+     * @param table the name of the table.
+     * @param column the time column a table that is not partitioned yet is partitioned by.
+     * @param period months or days.
+     * @param ahead the number of periods after the current one that have a partition.
+     */
+    public PartitionPlanner(Connection con, String table, String column, ChronoUnit period, int ahead) {
+        this.con = con;
+        this.table = table;
+        this.column = column;
+        this.period = period;
+        this.ahead = ahead;
+    }
+
+    /**
+     * Plans the statements that bring the partitions of the table up to date.
+     * @param now the current time.
+     * @return the statements, in the order they are run. Lines starting with -- are notes.
+     * @throws SQLException in case of error.
+     */
+    public List<String> plan(LocalDateTime now) throws SQLException {
+        PartitionLayout layout = PartitionLayout.load(con, table);
+        return layout == null ? planPartitioning(now) : planMaintenance(layout, now);
+    }
+
+    /**
+     * Plans the partitioning of a table that is not partitioned yet, with RANGE COLUMNS on the time column.
+     * @param now the current time.
+     * @return the notes on the keys and the statement.
+     * @throws SQLException in case of error.
+     */
+    private List<String> planPartitioning(LocalDateTime now) throws SQLException {
+        List<String> statements = new ArrayList<>();
+        //MySQL requires every unique key of a partitioned table to hold the columns it is partitioned by.
+        for (Map.Entry<String, List<String>> key : uniqueKeys().entrySet()) {
+            if (!key.getValue().contains(column)) {
+                statements.add("-- The unique key " + key.getKey() + " " + key.getValue() + " of " + table
+                                   + " has to include " + column + " before the table can be partitioned");
+            }
+        }
+        LocalDateTime oldest = null;
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT MIN(`" + column + "`) FROM `" + table + "`")) {
+            if (rs.next() && rs.getTimestamp(1) != null) {
+                oldest = rs.getTimestamp(1).toLocalDateTime();
+            }
+        }
+        LocalDateTime start = periodStart(oldest == null ? now : oldest);
+        StringBuilder sql = new StringBuilder("ALTER TABLE `" + table + "` PARTITION BY RANGE COLUMNS(`" + column
+                                                  + "`) (");
+        for (LocalDateTime lower : periods(start, now)) {
+            sql.append("\n  PARTITION ").append(partitionName(lower)).append(" VALUES LESS THAN ")
+               .append(PartitionLayout.lessThan(PartitionLayout.Expression.COLUMNS, lower.plus(1, period))).append(",");
+        }
+        sql.append("\n  PARTITION pmax VALUES LESS THAN (MAXVALUE))");
+        statements.add(sql.toString());
+        return statements;
+    }
+
+    /**
+     * Plans the partitions of the coming periods and the removal of the empty partitions of the past.
+     * @param layout the partitions of the table.
+     * @param now the current time.
+     * @return the statements.
+     * @throws SQLException in case of error.
+     */
+    private List<String> planMaintenance(PartitionLayout layout, LocalDateTime now) throws SQLException {
+        List<String> statements = new ArrayList<>();
+        LocalDateTime current = periodStart(now);
+        Set<String> names = new HashSet<>();
+        String maxPartition = null;
+        LocalDateTime lastBound = null;
+        for (PartitionLayout.Partition partition : layout.getPartitions()) {
+            names.add(partition.getName());
+            if (partition.getUpper() == null) {
+                maxPartition = partition.getName();
+                continue;
+            }
+            lastBound = partition.getUpper().toLocalDateTime();
+            if (!lastBound.isAfter(current) && layout.isEmpty(con, partition)) {
+                statements.add("ALTER TABLE `" + table + "` DROP PARTITION `" + partition.getName() + "`");
+            }
+        }
+
+        //The partitions of the coming periods start at the current period. If the last bound is older, a single
+        //partition covers the time from it up to the current period.
+        List<LocalDateTime> bounds = new ArrayList<>();
+        if (lastBound == null || lastBound.isBefore(current)) {
+            bounds.add(current);
+        }
+        for (LocalDateTime lower : periods(current, now)) {
+            if (lastBound == null || lower.isAfter(lastBound) || lower.equals(lastBound)) {
+                bounds.add(lower.plus(1, period));
+            }
+        }
+        StringBuilder added = new StringBuilder();
+        LocalDateTime lower = lastBound;
+        for (LocalDateTime bound : bounds) {
+            //Partitions are named after the period they start in.
+            String name = partitionName(lower == null ? bound.minus(1, period) : lower);
+            while (names.contains(name)) {
+                name += "_";
+            }
+            names.add(name);
+            added.append(added.length() == 0 ? "" : ",").append("\n  PARTITION ").append(name)
+                 .append(" VALUES LESS THAN ").append(layout.lessThan(bound));
+            lower = bound;
+        }
+        if (added.length() > 0 && maxPartition != null) {
+            statements.add("ALTER TABLE `" + table + "` REORGANIZE PARTITION `" + maxPartition + "` INTO (" + added
+                               + ",\n  PARTITION `" + maxPartition + "` VALUES LESS THAN " + layout.lessThan(null)
+                               + ")");
+        } else if (added.length() > 0) {
+            statements.add("ALTER TABLE `" + table + "` ADD PARTITION (" + added + ")");
+        }
+        return statements;
+    }
+
+    /**
+     * The starts of the periods from a start up to the last period that has to have a partition.
+     * @param start the start of the first period.
+     * @param now the current time.
+     * @return the starts of the periods.
+     */
+    private List<LocalDateTime> periods(LocalDateTime start, LocalDateTime now) {
+        LocalDateTime end = periodStart(now).plus(ahead + 1, period);
+        List<LocalDateTime> periods = new ArrayList<>();
+        for (LocalDateTime lower = start; lower.isBefore(end); lower = lower.plus(1, period)) {
+            periods.add(lower);
+        }
+        return periods;
+    }
+
+    /**
+     * The start of the period a time falls into.
+     * @param time the time.
+     * @return midnight of the first of the month, or of the day.
+     */
+    private LocalDateTime periodStart(LocalDateTime time) {
+        LocalDateTime day = time.truncatedTo(ChronoUnit.DAYS);
+        return period == ChronoUnit.MONTHS ? day.withDayOfMonth(1) : day;
+    }
+
+    /**
+     * The name of the partition of a period, ex: p202601 for January 2026 or p20260115 for a day.
+     * @param lower the start of the period.
+     * @return the name.
+     */
+    private String partitionName(LocalDateTime lower) {
+        return "p" + DateTimeFormatter.ofPattern(period == ChronoUnit.MONTHS ? "yyyyMM" : "yyyyMMdd").format(lower);
+    }
+
+    /**
+     * The unique keys of the table, the primary key included.
+     * @return the columns of every unique key, by the name of the key.
+     * @throws SQLException in case of error.
+     */
+    private Map<String, List<String>> uniqueKeys() throws SQLException {
+        Map<String, List<String>> keys = new LinkedHashMap<>();
+        String query = "SELECT INDEX_NAME, COLUMN_NAME FROM information_schema.STATISTICS "
+                           + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND NON_UNIQUE = 0 "
+                           + "ORDER BY INDEX_NAME, SEQ_IN_INDEX";
+        try (PreparedStatement statement = con.prepareStatement(query)) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    keys.computeIfAbsent(rs.getString(1), name -> new ArrayList<>()).add(rs.getString(2));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Prints the partitions of a table and plans, or applies, the statements that keep them up to date.
+     * @param args the connection string of the database, the table, the time column, and optionally month or day,
+     * the number of periods ahead and apply.
+     * @throws Exception if the plan fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: PartitionPlanner jdbc table column [month|day] [ahead] [apply]");
+            return;
+        }
+        ChronoUnit period = args.length > 3 && args[3].equalsIgnoreCase("day") ? ChronoUnit.DAYS : ChronoUnit.MONTHS;
+        int ahead = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_AHEAD;
+        boolean apply = args.length > 5 && args[5].equalsIgnoreCase("apply");
+        ConnectionPool pool = ConnectionPool.of(args[0], 1);
+        try (Connection con = pool.getConnection()) {
+            PartitionLayout layout = PartitionLayout.load(con, args[1]);
+            if (layout == null) {
+                System.out.println(args[1] + " is not partitioned by time");
+            } else {
+                System.out.println(args[1] + " is partitioned by " + layout.getColumn() + ":");
+                for (PartitionLayout.Partition partition : layout.getPartitions()) {
+                    System.out.println(String.format(Locale.ROOT, "  %-16s %-21s %-21s ~%d rows", partition.getName(),
+                        format(partition.getLower()), format(partition.getUpper()), partition.getRows()));
+                }
+            }
+            List<String> statements = new PartitionPlanner(con, args[1], args[2], period, ahead)
+                                          .plan(LocalDateTime.now());
+            if (statements.isEmpty()) {
+                System.out.println("The partitions are up to date");
+            }
+            for (String sql : statements) {
+                System.out.println(sql + (sql.startsWith("--") ? "" : ";"));
+                if (apply && layout != null && !sql.startsWith("--")) {
+                    try (Statement statement = con.createStatement()) {
+                        statement.execute(sql);
+                    }
+                    System.out.println("-- applied");
+                }
+            }
+        } finally {
+            ConnectionPool.closeAll();
+        }
+    }
+
+    /**
+     * Formats a partition bound for the layout.
+     * @param time the bound.
+     * @return the bound, or - if there is none.
+     */
+    private static String format(Timestamp time) {
+        return time == null ? "-" : time.toLocalDateTime().toString().replace('T', ' ');
+    }
+}
@@ -0,0 +1,163 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.crac.Context;
+import org.crac.Resource;
+import org.vm.shared.ConnectionPool;
+import org.vm.shared.S3LogWriter;
+import org.vm.shared.SharedFileWriter;
+
+/**
+ * The Primer does the work of the first request of a container ahead of it, in the init phase of the Lambda
+ * function: it parses the configuration, loads the driver and opens a connection that the pool keeps for the
+ * first run, to the read replica as well if there is one, builds the S3 client and writes a row to a file of the
+ * configured format, which loads and compiles the classes of the encoder. With SnapStart the init phase is done
+ * once and snapshotted, and every container starts from the snapshot. As a CRaC Resource, the Primer closes the
+ * idle connections before the snapshot, since their sockets do not survive it, and opens them again after a
+ * restore. A step that fails only prints why, the request fails on it with the usual message.
+ */
+public class Primer implements Resource {
+
+    private final Function<String, String> env;
+    private final List<ConnectionPool> pools = new ArrayList<>();
+
+    /**
+     * The constructor takes in the configuration of the handler that is primed.
+     * @param env returns the value of a variable, or null if it is not set.
+     */
+    public Primer(Function<String, String> env) {
+        this.env = env;
+    }
+
+    /**
+     * Runs every step and prints how long it took.
+     */
+    public void prime() {
+        long start = System.nanoTime();
+        RunSettings settings = null;
+        try {
+            settings = RunSettings.of(env);
+            Clean.tsToString(new Timestamp(System.currentTimeMillis()));
+            start = printStep("configuration", start);
+        } catch (Exception e) {
+            System.out.println("Priming the configuration failed: " + e);
+        }
+        try {
+            int maxConnections = RunSettings.maxConnections(env);
+            pools.add(Clean.connectionPool(RunSettings.jdbcUrl(env), maxConnections));
+            String replicaJdbc = RunSettings.replicaJdbcUrl(env);
+            if (replicaJdbc != null) {
+                pools.add(Clean.connectionPool(replicaJdbc, maxConnections));
+            }
+            connect();
+            start = printStep("database", start);
+        } catch (Exception e) {
+            System.out.println("Priming the database failed: " + e);
+        }
+        if (env.apply("LOCAL_DIR") == null) {
+            try {
+                S3LogWriter.getClient(env.apply("S3_ENDPOINT"), env.apply("AWS_REGION"));
+                start = printStep("S3 client", start);
+            } catch (RuntimeException e) {
+                System.out.println("Priming the S3 client failed: " + e);
+            }
+        }
+        if (settings != null) {
+            try {
+                writeFile(settings);
+                printStep("encoder", start);
+            } catch (RuntimeException e) {
+                System.out.println("Priming the encoder failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections before the snapshot is taken.
+     * @param context of the checkpoint.
+     */
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) {
+        for (ConnectionPool pool : pools) {
+            pool.closeIdle();
+        }
+        System.out.println("Closed the idle connections before the snapshot");
+    }
+
+    /**
+     * Opens a connection again once the snapshot is restored, so the first request finds one in every pool.
+     * @param context of the restore.
+     */
+    @Override
+    public void afterRestore(Context<? extends Resource> context) {
+        if (pools.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            connect();
+            printStep("database after restore", start);
+        } catch (SQLException e) {
+            System.out.println("Reconnecting after the restore failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens a connection of every pool and runs a query on it, then returns it to the pool, which keeps it idle.
+     * @throws SQLException in case of error.
+     */
+    private void connect() throws SQLException {
+        for (ConnectionPool pool : pools) {
+            try (Connection con = pool.getConnection(); Statement statement = con.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT 1")) {
+                rs.next();
+            }
+        }
+    }
+
+    /**
+     * Writes a row of every column of the job to a file in /tmp/, with the writer of the configured format, and
+     * deletes the file.
+     * @param settings of the run.
+     */
+    private void writeFile(RunSettings settings) {
+        ArchiveJob.Type[] types = settings.getJob().getTypes();
+        String time = Clean.tsToString(new Timestamp(System.currentTimeMillis()));
+        String[] row = new String[types.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = types[i] == ArchiveJob.Type.TIMESTAMP ? time : types[i] == ArchiveJob.Type.STRING ? "prime" : "1";
+        }
+        Function<String, SharedFileWriter> writerFactory = settings.writerFactory(null, false);
+        SharedFileWriter writer = writerFactory.apply("prime_" + System.nanoTime());
+        try {
+            writer.writeToFile(row);
+            writer.flushAndClose();
+        } finally {
+            File file = writer.getFile();
+            if (file != null && file.exists()) {
+                writer.deleteFile();
+            }
+        }
+    }
+
+    /**
+     * Prints how long a step took.
+     * @param step the name of the step.
+     * @param start when the step started, from System.nanoTime.
+     * @return when the step ended.
+     */
+    private static long printStep(String step, long start) {
+        long end = System.nanoTime();
+        System.out.println("Primed the " + step + " in " + (end - start) / 1000000 + " ms");
+        return end;
+    }
+}
@@ -0,0 +1,237 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.vm.shared.ConnectionPool;
+import org.vm.shared.StageStats;
+
+/**
+ * The ReplicaMonitor follows how far the read replica the slices read from is behind the primary they delete on.
+ * It writes heartbeats, the current time in milliseconds, to a row of a table on the primary and reads the row back
+ * on the replica, the way pt-heartbeat does: the replica is behind by the age of the oldest heartbeat it has not
+ * applied yet. Both times come from the clock of the function, so the clocks of the servers do not matter.
+ * Before a slice reads, the monitor fences the replica: it writes a heartbeat and waits until the replica has
+ * applied it, so the replica holds everything committed on the primary before the slice started and no email is
+ * deleted on the primary with rows the replica had not served to the archive yet. Before every delete batch, the
+ * deleters wait while the replica is more than the maximum lag behind, and delete smaller batches while it is more
+ * than half of it behind.
+ */
+public class ReplicaMonitor {
+
+    /**
+     * Table of the heartbeats when HEARTBEAT_TABLE is not set.
+     */
+    static final String DEFAULT_TABLE = "archive_heartbeat";
+
+    /**
+     * Lag in milliseconds above which deletes wait when REPLICA_MAX_LAG_MS is not set.
+     */
+    static final long DEFAULT_MAX_LAG_MS = 5000;
+
+    /**
+     * Longest time in milliseconds a fence or a delete batch waits for the replica when REPLICA_MAX_WAIT_MS is not
+     * set.
+     */
+    static final long DEFAULT_MAX_WAIT_MS = 60000;
+
+    /**
+     * Time in milliseconds a measured lag is reused, so that deletes running at once share a measurement.
+     */
+    static final long CHECK_MILLIS = 100;
+
+    /**
+     * Time in milliseconds between two reads of the replica while waiting for it.
+     */
+    static final long POLL_MILLIS = 50;
+
+    private final ConnectionPool primary;
+    private final ConnectionPool replica;
+    private final String table;
+    private final String name;
+    private final long maxLagMs;
+    private final long maxWaitMs;
+    private final Deque<Long> pending = new ArrayDeque<>();
+    private long lastBeat = 0;
+    private long lastCheck = 0;
+    private long lag = 0;
+    private StageStats stats;
+
+    /**
+     * The constructor takes in the two databases and how far the replica may fall behind.
+     * @param primary the connections to the primary, which the heartbeats are written to.
+     * @param replica the connections to the replica, which the heartbeats are read from.
+     * @param table the name of the table of the heartbeats, HEARTBEAT_TABLE.
+     * @param name the archive the heartbeats belong to, its BASE_FILENAME.
+     * @param maxLagMs the lag in milliseconds above which deletes wait, REPLICA_MAX_LAG_MS.
+     * @param maxWaitMs the longest time in milliseconds to wait for the replica at once, REPLICA_MAX_WAIT_MS.
+     */
+    public ReplicaMonitor(ConnectionPool primary, ConnectionPool replica, String table, String name, long maxLagMs,
+                          long maxWaitMs) {
+        this.primary = primary;
+        this.replica = replica;
+        this.table = table;
+        this.name = name;
+        this.maxLagMs = maxLagMs;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Creates the table of the heartbeats if it does not exist yet. Created on the primary, it reaches the replica
+     * through replication.
+     * @param con is a connection to the primary.
+     * @throws SQLException in case of error.
+     */
+    public void createTable(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS `" + table + "` (name VARCHAR(255) NOT NULL, "
+                                  + "beat BIGINT NOT NULL, PRIMARY KEY (name))");
+        }
+    }
+
+    /**
+     * Waits until the replica has applied everything committed on the primary so far. A slice fences the replica
+     * before its query, whose rows are read from a single snapshot of the replica.
+     * @throws SQLTimeoutException if the replica has not caught up within the longest wait.
+     * @throws SQLException in case of error.
+     */
+    public void fence() throws SQLException {
+        long start = System.nanoTime();
+        long beat = beat();
+        while (replicaBeat() < beat) {
+            if ((System.nanoTime() - start) / 1000000 > maxWaitMs) {
+                throw new SQLTimeoutException("The replica did not apply the heartbeat of " + name + " within "
+                                                  + maxWaitMs + " ms");
+            }
+            sleep();
+        }
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * Waits while the replica is more than the maximum lag behind, up to the longest wait, after which the delete
+     * goes on rather than leaving a file partly deleted.
+     * @return the lag in milliseconds once the wait is over.
+     * @throws SQLException in case of error.
+     */
+    public long awaitLag() throws SQLException {
+        long current = lag();
+        if (current <= maxLagMs) {
+            return current;
+        }
+        long start = System.nanoTime();
+        while (current > maxLagMs && (System.nanoTime() - start) / 1000000 < maxWaitMs) {
+            sleep();
+            current = lag();
+        }
+        long nanos = System.nanoTime() - start;
+        record(nanos);
+        System.out.println("Waited " + nanos / 1000000 + " ms for the replica, " + current + " ms behind");
+        return current;
+    }
+
+    /**
+     * The lag above which deletes wait.
+     * @return the lag in milliseconds.
+     */
+    public long getMaxLagMs() {
+        return maxLagMs;
+    }
+
+    /**
+     * Records every wait for the replica in the given statistics.
+     * @param stats of the waits.
+     */
+    public void setStats(StageStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Measures the lag of the replica: the age of the oldest heartbeat the replica has not applied, 0 if it has
+     * applied all of them. A heartbeat is written first if the last one is older than CHECK_MILLIS, and a
+     * measurement younger than that is reused.
+     * @return the lag in milliseconds.
+     * @throws SQLException in case of error.
+     */
+    private synchronized long lag() throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck < CHECK_MILLIS) {
+            return lag;
+        }
+        if (now - lastBeat >= CHECK_MILLIS) {
+            beat();
+        }
+        long applied = replicaBeat();
+        while (!pending.isEmpty() && pending.peekFirst() <= applied) {
+            pending.pollFirst();
+        }
+        lastCheck = System.currentTimeMillis();
+        lag = pending.isEmpty() ? 0 : lastCheck - pending.peekFirst();
+        return lag;
+    }
+
+    /**
+     * Writes a heartbeat to the primary. Heartbeats always increase, even if the clock does not.
+     * @return the heartbeat.
+     * @throws SQLException in case of error.
+     */
+    private synchronized long beat() throws SQLException {
+        long beat = Math.max(System.currentTimeMillis(), lastBeat + 1);
+        try (Connection con = primary.getConnection();
+             PreparedStatement write = con.prepareStatement("INSERT INTO `" + table + "` (name, beat) VALUES (?, ?) "
+                                                                + "ON DUPLICATE KEY UPDATE beat = ?")) {
+            write.setString(1, name);
+            write.setLong(2, beat);
+            write.setLong(3, beat);
+            write.executeUpdate();
+        }
+        lastBeat = beat;
+        pending.addLast(beat);
+        return beat;
+    }
+
+    /**
+     * Reads the last heartbeat the replica has applied.
+     * @return the heartbeat, 0 if the replica has none yet.
+     * @throws SQLException in case of error.
+     */
+    private long replicaBeat() throws SQLException {
+        try (Connection con = replica.getConnection();
+             PreparedStatement read = con.prepareStatement("SELECT beat FROM `" + table + "` WHERE name = ?")) {
+            read.setString(1, name);
+            try (ResultSet rs = read.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Records a wait in the statistics.
+     * @param nanos the time waited.
+     */
+    private void record(long nanos) {
+        StageStats waitStats = stats;
+        if (waitStats != null) {
+            waitStats.record(1, nanos);
+        }
+    }
+
+    /**
+     * Sleeps between two reads of the replica.
+     * @throws SQLException if the thread is interrupted, as the run is being stopped.
+     */
+    private static void sleep() throws SQLException {
+        try {
+            Thread.sleep(POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the replica", e);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.vm.email.cleanup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.vm.shared.StageStats;
+
+/**
+ * The RunReport collects the measurements of a run of Clean: the statistics of every stage, from the mail_log
+ * scan and the sendgrid lookups to the encoding, the S3 uploads and the deletes, and the numbers of every file.
+ * The slices of a run share one report. At the end of the run it is turned into a single line of JSON in the
+ * CloudWatch embedded metric format, so that the items, busy time and throughput of each stage become metrics
+ * when the line is logged, while the latency percentiles and the files are kept as properties of the log event.
+ */
+public class RunReport {
+
+    /**
+     * Namespace of the metrics in CloudWatch.
+     */
+    static final String NAMESPACE = "EmailLogCleanup";
+
+    private final String functionName;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, StageStats> stages = new LinkedHashMap<>();
+    private final List<FileReport> files = new ArrayList<>();
+
+    /**
+     * The constructor takes in the name of the function, which is the dimension of the metrics.
+     * @param functionName the name of the Lambda function.
+     */
+    public RunReport(String functionName) {
+        this.functionName = functionName;
+    }
+
+    /**
+     * The statistics of a stage, created the first time the stage is asked for. Stages are reported in the
+     * order they were first asked for.
+     * @param name of the stage.
+     * @param unit of the items the stage counts.
+     * @return the statistics of the stage.
+     */
+    public synchronized StageStats stage(String name, String unit) {
+        StageStats stats = stages.get(name);
+        if (stats == null) {
+            stats = new StageStats(name, unit);
+            stages.put(name, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Records the numbers of a file once its emails have been deleted.
+     * @param file the numbers of the file.
+     */
+    public synchronized void addFile(FileReport file) {
+        files.add(file);
+    }
+
+    /**
+     * The statistics of all stages.
+     * @return a list of stage statistics.
+     */
+    public synchronized List<StageStats> getStages() {
+        return new ArrayList<>(stages.values());
+    }
+
+    /**
+     * Builds the report in the CloudWatch embedded metric format.
+     * @param status of the run, ex: SUCCESS, PARTIAL or ERROR.
+     * @param message the summary message of the run.
+     * @return the report as a single line of JSON.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized String toJson(String status, String message) {
+        JSONObject report = new JSONObject();
+        JSONArray metrics = new JSONArray();
+        JSONObject stageReports = new JSONObject();
+        for (StageStats stats : stages.values()) {
+            String items = stats.getName() + "Items";
+            String millis = stats.getName() + "Millis";
+            String perSecond = stats.getName() + "PerSecond";
+            boolean bytes = stats.getUnit().equals("bytes");
+            metrics.add(metric(items, bytes ? "Bytes" : "Count"));
+            metrics.add(metric(millis, "Milliseconds"));
+            metrics.add(metric(perSecond, bytes ? "Bytes/Second" : "Count/Second"));
+            report.put(items, stats.getItems());
+            report.put(millis, stats.getBusyMillis());
+            report.put(perSecond, Math.round(stats.getThroughput()));
+
+            JSONObject latency = new JSONObject();
+            latency.put("p50", stats.getPercentileMillis(0.5));
+            latency.put("p90", stats.getPercentileMillis(0.9));
+            latency.put("p99", stats.getPercentileMillis(0.99));
+            latency.put("max", stats.getMaxMillis());
+            JSONObject stage = new JSONObject();
+            stage.put("unit", stats.getUnit());
+            stage.put("items", stats.getItems());
+            stage.put("operations", stats.getOperations());
+            stage.put("busyMs", stats.getBusyMillis());
+            stage.put("perSecond", Math.round(stats.getThroughput()));
+            stage.put("latencyMs", latency);
+            stageReports.put(stats.getName(), stage);
+        }
+        long durationMillis = (System.nanoTime() - startNanos) / 1000000;
+        metrics.add(metric("DurationMillis", "Milliseconds"));
+        metrics.add(metric("Files", "Count"));
+        report.put("DurationMillis", durationMillis);
+        report.put("Files", (long) files.size());
+
+        JSONArray dimensions = new JSONArray();
+        JSONArray dimensionSet = new JSONArray();
+        dimensionSet.add("FunctionName");
+        dimensions.add(dimensionSet);
+        JSONObject directive = new JSONObject();
+        directive.put("Namespace", NAMESPACE);
+        directive.put("Dimensions", dimensions);
+        directive.put("Metrics", metrics);
+        JSONArray directives = new JSONArray();
+        directives.add(directive);
+        JSONObject aws = new JSONObject();
+        aws.put("Timestamp", startMillis);
+        aws.put("CloudWatchMetrics", directives);
+        report.put("_aws", aws);
+        report.put("FunctionName", functionName);
+
+        JSONArray fileReports = new JSONArray();
+        for (FileReport file : files) {
+            fileReports.add(file.toJson());
+        }
+        report.put("status", status);
+        report.put("message", message);
+        report.put("stages", stageReports);
+        report.put("files", fileReports);
+        return report.toJSONString();
+    }
+
+    /**
+     * Describes a metric for the CloudWatch directive.
+     * @param name of the metric.
+     * @param unit of the metric.
+     * @return the metric definition.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject metric(String name, String unit) {
+        JSONObject metric = new JSONObject();
+        metric.put("Name", name);
+        metric.put("Unit", unit);
+        return metric;
+    }
+
+    /**
+     * The numbers of one archived file.
+     */
+    public static class FileReport {
+
+        private final String name;
+        private final long rows;
+        private final long bytes;
+        private final long encodeNanos;
+        private final long uploadNanos;
+        private final long deleteNanos;
+        private final long deletedRows;
+
+        /**
+         * The constructor takes in what it took to archive the file.
+         * @param name of the file.
+         * @param rows the number of rows written to it.
+         * @param bytes its size, after compression.
+         * @param encodeNanos the time it took to write the rows.
+         * @param uploadNanos the time it took to upload it.
+         * @param deleteNanos the time it took to delete its emails.
+         * @param deletedRows the number of rows deleted from the database.
+         */
+        public FileReport(String name, long rows, long bytes, long encodeNanos, long uploadNanos, long deleteNanos,
+                          long deletedRows) {
+            this.name = name;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.encodeNanos = encodeNanos;
+            this.uploadNanos = uploadNanos;
+            this.deleteNanos = deleteNanos;
+            this.deletedRows = deletedRows;
+        }
+
+        /**
+         * Converts the numbers to JSON.
+         * @return the JSON object.
+         */
+        @SuppressWarnings("unchecked")
+        private JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("rows", rows);
+            json.put("bytes", bytes);
+            json.put("encodeMs", encodeNanos / 1000000);
+            json.put("uploadMs", uploadNanos / 1000000);
+            json.put("deleteMs", deleteNanos / 1000000);
+            json.put("deletedRows", deletedRows);
+            return json;
+        }
+    }
+}
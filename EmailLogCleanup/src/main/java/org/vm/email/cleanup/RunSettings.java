@@ -0,0 +1,613 @@
+package org.vm.email.cleanup;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.function.Function;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.json.simple.parser.ParseException;
+import org.vm.shared.Compression;
+import org.vm.shared.ConnectionPool;
+import org.vm.shared.S3LogWriter;
+import org.vm.shared.SharedFileWriter;
+import org.vm.shared.SharedParquetWriter;
+import org.vm.shared.WriteLog;
+
+/**
+ * The RunSettings hold the configuration of a run of Clean, read from the environment variables of the Lambda
+ * function: the cutoff date, where the files go and how they are written, the database and its read replica, and
+ * how the run is split into slices, trickled or partitioned. The settings every slice is archived with are kept in
+ * the ArchiveSettings. Every variable is read and checked once, before the run connects to the database.
+ */
+public class RunSettings {
+
+    /**
+     * Number of emails whose sendgrid events are looked up together when JOIN_BATCH is not set.
+     */
+    static final int DEFAULT_JOIN_BATCH = 1000;
+
+    /**
+     * Time in milliseconds left before the Lambda deadline at which a run stops when TIME_MARGIN_MS is not set.
+     */
+    static final long DEFAULT_TIME_MARGIN_MS = 60000;
+
+    /**
+     * Number of time slices archived at once when PARALLELISM is not set.
+     */
+    static final int DEFAULT_PARALLELISM = 1;
+
+    /**
+     * Number of emails fetched at a time with a cursor when STREAM_READ is set and FETCH_SIZE is not.
+     */
+    static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * Table of the high-water marks of trickle runs when TRICKLE_TABLE is not set.
+     */
+    static final String DEFAULT_TRICKLE_TABLE = "archive_high_water_mark";
+
+    /**
+     * Size in megabytes at which a trickle run starts a new segment when ROLL_MB is not set.
+     */
+    static final long DEFAULT_ROLL_MB = 128;
+
+    /**
+     * Age in minutes at which a trickle run starts a new segment when ROLL_MINUTES is not set.
+     */
+    static final long DEFAULT_ROLL_MINUTES = 1440;
+
+    private Timestamp cutoff;
+    private String baseName;
+    private String bucketName;
+    private String localDir;
+    private String s3Endpoint;
+    private String awsRegion;
+    private String jdbc;
+    private String replicaJdbc;
+    private int maxConnections;
+    private String heartbeatTable;
+    private long replicaMaxLagMs;
+    private long replicaMaxWaitMs;
+    private ArchiveSettings archive;
+    private HeapBudget budget;
+    private String format;
+    private boolean streamUpload;
+    private int uploadPartMb;
+    private int uploadBuffers;
+    private Compression compression;
+    private CompressionCodecName parquetCodec;
+    private int parquetRowGroupMb;
+    private KeyLayout layout;
+    private String checkpointKey;
+    private boolean trickle;
+    private String trickleTable;
+    private long rollBytes;
+    private long rollMs;
+    private String partitionMode;
+    private int parallelism;
+    private double manifestFpp;
+    private String statsTable;
+
+    private RunSettings() {
+    }
+
+    /**
+     * Reads the settings of a run.
+     * @param env returns the value of a variable, or null if it is not set.
+     * @return the settings.
+     * @throws IOException if the file of ARCHIVE_JOB cannot be read.
+     * @throws ParseException if ARCHIVE_JOB is not valid JSON.
+     */
+    public static RunSettings of(Function<String, String> env) throws IOException, ParseException {
+        RunSettings settings = new RunSettings();
+        //Get desired timestamp to refer to for database update.
+        settings.cutoff = convertToTimestamp(env.apply("OFFSET"));
+
+        //Get basename for file.
+        settings.baseName = env.apply("BASE_FILENAME");
+
+        //Retrieve the number of emails to be logged to each created file.
+        int emailNum = Integer.parseInt(env.apply("EMAILNUM"));
+
+        //Retrieve name of destination bucket for CSV log. With LOCAL_DIR the files and the checkpoint are written to
+        //a local directory instead, so the function can run without AWS.
+        settings.bucketName = env.apply("BUCKET");
+        settings.localDir = env.apply("LOCAL_DIR");
+        //S3_ENDPOINT points the bucket at an S3 compatible server in AWS_REGION instead of AWS.
+        settings.s3Endpoint = env.apply("S3_ENDPOINT");
+        settings.awsRegion = env.apply("AWS_REGION");
+
+        //With REPLICA_JDBC_URL, or REPLICA_HOSTNAME with the database and credentials of the primary, the slices read
+        //the emails and their events from that read replica, and only the deletes run on the primary. A heartbeat in
+        //HEARTBEAT_TABLE measures how far the replica is behind: every slice waits for it to catch up before reading,
+        //and the deletes wait while it is more than REPLICA_MAX_LAG_MS behind, for at most REPLICA_MAX_WAIT_MS at a
+        //time.
+        settings.jdbc = jdbcUrl(env);
+        settings.replicaJdbc = replicaJdbcUrl(env);
+        String heartbeatTable = env.apply("HEARTBEAT_TABLE");
+        String maxLag = env.apply("REPLICA_MAX_LAG_MS");
+        String maxWait = env.apply("REPLICA_MAX_WAIT_MS");
+        settings.heartbeatTable = heartbeatTable == null ? ReplicaMonitor.DEFAULT_TABLE : heartbeatTable;
+        settings.replicaMaxLagMs = maxLag == null ? ReplicaMonitor.DEFAULT_MAX_LAG_MS : Long.parseLong(maxLag);
+        settings.replicaMaxWaitMs = maxWait == null ? ReplicaMonitor.DEFAULT_MAX_WAIT_MS : Long.parseLong(maxWait);
+
+        //The run stops once the remaining time of the invocation drops below this margin.
+        String timeMargin = env.apply("TIME_MARGIN_MS");
+        long timeMarginMs = timeMargin == null ? DEFAULT_TIME_MARGIN_MS : Long.parseLong(timeMargin);
+
+        //Number of emails whose sendgrid events are looked up with a single query.
+        String joinBatch = env.apply("JOIN_BATCH");
+        int joinBatchSize = joinBatch == null ? DEFAULT_JOIN_BATCH : Integer.parseInt(joinBatch);
+
+        //Archived emails are deleted in batches that adapt to how long each batch takes.
+        String deleteBatch = env.apply("DELETE_BATCH");
+        String deleteTarget = env.apply("DELETE_TARGET_MS");
+        int deleteBatchSize = deleteBatch == null ? BatchDeleter.DEFAULT_BATCH : Integer.parseInt(deleteBatch);
+        long deleteTargetMs = deleteTarget == null ? BatchDeleter.DEFAULT_TARGET_MS : Long.parseLong(deleteTarget);
+
+        //With STREAM_READ, every slice streams its emails instead of reading them into memory all at once: one by
+        //one from MySQL, or FETCH_SIZE at a time with a cursor when the connection string sets useCursorFetch=true
+        //or the database is not MySQL. HEAP_BUDGET_MB bounds the memory the slices hold in their pipelines; once it
+        //is used up, they wait before reading on.
+        int fetchSize = 0;
+        if (Boolean.parseBoolean(env.apply("STREAM_READ"))) {
+            String fetchRows = env.apply("FETCH_SIZE");
+            String jdbc = settings.jdbc;
+            fetchSize = jdbc.startsWith("jdbc:mysql:") && !jdbc.contains("useCursorFetch=true") ? Integer.MIN_VALUE
+                            : fetchRows == null ? DEFAULT_FETCH_SIZE : Integer.parseInt(fetchRows);
+        }
+        settings.budget = HeapBudget.of(env.apply("HEAP_BUDGET_MB"));
+
+        //MAX_CONNECTIONS bounds the connections open to the database, and to its replica, at once. A slice holds
+        //two of them, or three when it streams, for as long as it runs.
+        settings.maxConnections = maxConnections(env);
+        int sliceConnections = fetchSize == 0 ? 2 : 3;
+        if (settings.maxConnections < sliceConnections + 1) {
+            throw new IllegalArgumentException("MAX_CONNECTIONS " + settings.maxConnections + " leaves no connection "
+                                                   + "for a slice, expected at least " + (sliceConnections + 1));
+        }
+
+        //ARCHIVE_JOB describes other tables to archive the same way, as JSON or the path of a JSON file. By default
+        //mail_log is archived with its sendgrid events.
+        ArchiveJob job = ArchiveJob.of(env.apply("ARCHIVE_JOB"));
+        //MAX_EMAILS stops every slice after that many emails, as the deadline does, to keep runs short.
+        String maxEmails = env.apply("MAX_EMAILS");
+        settings.archive = new ArchiveSettings(settings.baseName, emailNum, joinBatchSize, deleteBatchSize,
+            deleteTargetMs, timeMarginMs, fetchSize, job, maxEmails == null ? 0 : Long.parseLong(maxEmails));
+
+        //The files are CSV files, Parquet files with FORMAT=parquet or JSON Lines files with one record per email
+        //with FORMAT=jsonl, either staged in /tmp/ or, with STREAM_UPLOAD, streamed straight to S3. COMPRESSION and
+        //COMPRESSION_LEVEL optionally compress a CSV or JSON Lines file with gzip or zstd, PARQUET_CODEC and
+        //PARQUET_ROW_GROUP_MB set how a Parquet file is compressed.
+        settings.format = env.apply("FORMAT");
+        settings.streamUpload = Boolean.parseBoolean(env.apply("STREAM_UPLOAD"));
+        //A streamed file is sent in parts of UPLOAD_PART_MB megabytes, with at most UPLOAD_BUFFERS parts in memory.
+        String partMb = env.apply("UPLOAD_PART_MB");
+        String buffers = env.apply("UPLOAD_BUFFERS");
+        settings.uploadPartMb = partMb == null ? S3LogWriter.DEFAULT_PART_MB : Integer.parseInt(partMb);
+        settings.uploadBuffers = buffers == null ? S3LogWriter.DEFAULT_UPLOAD_BUFFERS : Integer.parseInt(buffers);
+        settings.compression = Compression.of(env.apply("COMPRESSION"), env.apply("COMPRESSION_LEVEL"));
+        if (settings.isParquet()) {
+            String codecName = env.apply("PARQUET_CODEC");
+            String rowGroup = env.apply("PARQUET_ROW_GROUP_MB");
+            settings.parquetCodec = codecName == null ? CompressionCodecName.ZSTD
+                                        : CompressionCodecName.valueOf(codecName.toUpperCase());
+            settings.parquetRowGroupMb = rowGroup == null ? SharedParquetWriter.DEFAULT_ROW_GROUP_MB
+                                             : Integer.parseInt(rowGroup);
+        } else if (settings.format != null && !settings.format.equalsIgnoreCase("csv")
+                       && !settings.format.equalsIgnoreCase("jsonl")) {
+            throw new IllegalArgumentException("Unknown FORMAT " + settings.format
+                                                   + ", expected csv, parquet or jsonl");
+        }
+        //With KEY_LAYOUT=hive, the rows of every file are split by the KEY_COLUMNS (default type) and the day they
+        //were sent, and written under keys such as type=newsletter/year=2019/month=01/day=05/part-..., so that
+        //queries filtered on them only read the matching objects. A file keeps at most MAX_OPEN_WRITERS parts open
+        //at once.
+        settings.layout = KeyLayout.of(env.apply("KEY_LAYOUT"), env.apply("KEY_COLUMNS"),
+            env.apply("MAX_OPEN_WRITERS"), job, settings.baseName);
+
+        //The checkpoints left by a run that stopped before its deadline are kept under CHECKPOINT_KEY. Without
+        //checkpoints the backlog is split into PARALLELISM time slices that are archived at once.
+        String checkpointKey = env.apply("CHECKPOINT_KEY");
+        settings.checkpointKey = checkpointKey == null ? settings.baseName + "checkpoint.json" : checkpointKey;
+        String parallelism = env.apply("PARALLELISM");
+        settings.parallelism = parallelism == null ? DEFAULT_PARALLELISM : Integer.parseInt(parallelism);
+
+        //With TRICKLE, the run is one of frequent small runs that each archive the emails sent since the last one.
+        //Its high-water mark is kept in TRICKLE_TABLE, and the files of successive runs continue the same segment
+        //until it holds ROLL_MB megabytes or is ROLL_MINUTES old.
+        settings.trickle = Boolean.parseBoolean(env.apply("TRICKLE"));
+        String trickleTable = env.apply("TRICKLE_TABLE");
+        String rollMb = env.apply("ROLL_MB");
+        String rollMinutes = env.apply("ROLL_MINUTES");
+        settings.trickleTable = trickleTable == null ? DEFAULT_TRICKLE_TABLE : trickleTable;
+        settings.rollBytes = (rollMb == null ? DEFAULT_ROLL_MB : Long.parseLong(rollMb)) << 20;
+        settings.rollMs = (rollMinutes == null ? DEFAULT_ROLL_MINUTES : Long.parseLong(rollMinutes)) * 60000;
+
+        //PARTITION_MODE removes the partitions of mail_log before the cutoff date by dropping or exchanging them. A
+        //trickle run only archives recent emails, so it leaves the partitions to a full run.
+        String partitionMode = env.apply("PARTITION_MODE");
+        if (settings.trickle && partitionMode != null) {
+            System.out.println("PARTITION_MODE is ignored by a trickle run");
+            partitionMode = null;
+        }
+        if (partitionMode != null && !partitionMode.equalsIgnoreCase("drop")
+                && !partitionMode.equalsIgnoreCase("exchange")) {
+            throw new IllegalArgumentException("Unknown PARTITION_MODE " + partitionMode
+                                                   + ", expected drop or exchange");
+        }
+        settings.partitionMode = partitionMode;
+
+        //MANIFEST_FPP sets the probability that the filter of a file in the manifest matches an email it does not
+        //hold.
+        String manifestFpp = env.apply("MANIFEST_FPP");
+        settings.manifestFpp = manifestFpp == null ? ArchiveManifest.DEFAULT_FALSE_POSITIVES
+                                   : Double.parseDouble(manifestFpp);
+
+        //With STATS_TABLE, the emails and events of every day and type of email are counted in that table.
+        settings.statsTable = env.apply("STATS_TABLE");
+        if (settings.statsTable != null && job != ArchiveJob.MAIL_LOG) {
+            throw new IllegalArgumentException("STATS_TABLE only counts the emails of mail_log, not "
+                                                   + job.getTable());
+        }
+        return settings;
+    }
+
+    /**
+     * The connection string of the database, built from DBNAME, DBUSER, DBPASSWORD, PORT and HOSTNAME. JDBC_URL
+     * replaces it, for example to run against a local database.
+     * @param env returns the value of a variable, or null if it is not set.
+     * @return the connection string.
+     */
+    static String jdbcUrl(Function<String, String> env) {
+        String jdbc = env.apply("JDBC_URL");
+        return jdbc == null ? mysqlUrl(env, env.apply("HOSTNAME")) : jdbc;
+    }
+
+    /**
+     * The number of connections open at once in the pool of the database and in the one of its replica,
+     * MAX_CONNECTIONS.
+     * @param env returns the value of a variable, or null if it is not set.
+     * @return the number of connections.
+     */
+    static int maxConnections(Function<String, String> env) {
+        String maxConnections = env.apply("MAX_CONNECTIONS");
+        return maxConnections == null ? ConnectionPool.DEFAULT_MAX_OPEN : Integer.parseInt(maxConnections);
+    }
+
+    /**
+     * The connection string of the read replica the emails are read from, REPLICA_JDBC_URL, or built from
+     * REPLICA_HOSTNAME and the database and credentials of the primary.
+     * @param env returns the value of a variable, or null if it is not set.
+     * @return the connection string, null to read from the primary.
+     */
+    static String replicaJdbcUrl(Function<String, String> env) {
+        String jdbc = env.apply("REPLICA_JDBC_URL");
+        String hostname = env.apply("REPLICA_HOSTNAME");
+        return jdbc == null && hostname != null ? mysqlUrl(env, hostname) : jdbc;
+    }
+
+    /**
+     * Builds the connection string of a MySQL server from DBNAME, DBUSER, DBPASSWORD and PORT.
+     * @param env returns the value of a variable, or null if it is not set.
+     * @param hostname of the server.
+     * @return the connection string.
+     */
+    private static String mysqlUrl(Function<String, String> env, String hostname) {
+        return "jdbc:mysql://" + hostname + ":" + env.apply("PORT") + "/" + env.apply("DBNAME") + "?user="
+                   + env.apply("DBUSER") + "&password=" + env.apply("DBPASSWORD");
+    }
+
+    /**
+     * Takes a number in the form of a string representing a number of days and returns
+     * the date that occured given number of days before the current date in the form
+     * of a timestamp.
+     * @param offset as a String that represents a given number of days.
+     * @return Timestamp of the target date.
+     *
+     */
+    private static Timestamp convertToTimestamp(String offset) {
+        int offDays = Integer.parseInt(offset);
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DATE, -offDays);
+        java.util.Date date = cal.getTime();
+        return new Timestamp(date.getTime());
+    }
+
+    /**
+     * Chooses the file writer for the configured file format.
+     * @param bucketWriter the destination of streamed files.
+     * @param streamUpload whether files are streamed straight to the bucket instead of staged in /tmp/.
+     * @return a factory that creates the writer for a file name.
+     */
+    public Function<String, SharedFileWriter> writerFactory(WriteLog bucketWriter, boolean streamUpload) {
+        ArchiveJob job = archive.getJob();
+        if (isParquet()) {
+            CompressionCodecName codec = parquetCodec;
+            int rowGroupMb = parquetRowGroupMb;
+            return streamUpload ? name -> new CleanParquetWriter(name, bucketWriter, codec, rowGroupMb, job)
+                       : name -> new CleanParquetWriter("/tmp/", name, codec, rowGroupMb, job);
+        } else if ("jsonl".equalsIgnoreCase(format)) {
+            return streamUpload ? name -> new CleanJsonLinesWriter(name, bucketWriter, compression, job)
+                       : name -> new CleanJsonLinesWriter("/tmp/", name, compression, job);
+        }
+        return streamUpload ? name -> new CleanCSVWriter(name, bucketWriter, compression, job)
+                   : name -> new CleanCSVWriter("/tmp/", name, compression, job);
+    }
+
+    /**
+     * The writer of the files to the bucket, with the shared client and the parts of streamed uploads that are
+     * configured.
+     * @return the writer.
+     */
+    public S3LogWriter bucketWriter() {
+        return new S3LogWriter(bucketName, getS3Client(), uploadPartMb * 1024 * 1024, uploadBuffers);
+    }
+
+    /**
+     * The shared client of the bucket, for AWS or the server of S3_ENDPOINT.
+     * @return the client.
+     */
+    public AmazonS3 getS3Client() {
+        return S3LogWriter.getClient(s3Endpoint, awsRegion);
+    }
+
+    /**
+     * The extension of the files, with the one of their compression.
+     * @return the extension, ex: .csv.gz.
+     */
+    public String getFileExtension() {
+        return isParquet() ? ".parquet" : ("jsonl".equalsIgnoreCase(format) ? ".jsonl" : ".csv")
+                                              + compression.getExtension();
+    }
+
+    /**
+     * Whether or not the files are Parquet files.
+     * @return true for FORMAT=parquet.
+     */
+    private boolean isParquet() {
+        return "parquet".equalsIgnoreCase(format);
+    }
+
+    /**
+     * The date before which emails are archived, OFFSET days before the settings were read.
+     * @return the cutoff date.
+     */
+    public Timestamp getCutoff() {
+        return cutoff;
+    }
+
+    /**
+     * The start of every file name.
+     * @return the base name.
+     */
+    public String getBaseName() {
+        return baseName;
+    }
+
+    /**
+     * The bucket the files are written to.
+     * @return the name of the bucket.
+     */
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    /**
+     * The local directory the files and the checkpoint are written to instead of the bucket.
+     * @return the path of the directory, null to write to the bucket.
+     */
+    public String getLocalDir() {
+        return localDir;
+    }
+
+    /**
+     * Where the files are written, for the output message.
+     * @return the local directory, or the bucket.
+     */
+    public String getDestination() {
+        return localDir == null ? bucketName : localDir;
+    }
+
+    /**
+     * The connection string of the database.
+     * @return the connection string.
+     */
+    public String getJdbc() {
+        return jdbc;
+    }
+
+    /**
+     * The connection string of the read replica the emails are read from.
+     * @return the connection string, null to read from the primary.
+     */
+    public String getReplicaJdbc() {
+        return replicaJdbc;
+    }
+
+    /**
+     * The number of connections open at once in each pool.
+     * @return the number of connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * The table of the heartbeat that measures how far the replica is behind.
+     * @return the name of the table.
+     */
+    public String getHeartbeatTable() {
+        return heartbeatTable;
+    }
+
+    /**
+     * The lag in milliseconds above which the deletes wait for the replica.
+     * @return the lag.
+     */
+    public long getReplicaMaxLagMs() {
+        return replicaMaxLagMs;
+    }
+
+    /**
+     * The time in milliseconds the deletes wait for the replica at a time.
+     * @return the time.
+     */
+    public long getReplicaMaxWaitMs() {
+        return replicaMaxWaitMs;
+    }
+
+    /**
+     * The settings every slice of the run is archived with.
+     * @return the settings.
+     */
+    public ArchiveSettings getArchive() {
+        return archive;
+    }
+
+    /**
+     * The tables and columns that are archived.
+     * @return the job.
+     */
+    public ArchiveJob getJob() {
+        return archive.getJob();
+    }
+
+    /**
+     * The budget of the memory the pipelines of the run hold at once.
+     * @return the budget.
+     */
+    public HeapBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * The file format, csv, parquet or jsonl.
+     * @return the format, null for csv.
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Whether or not the files are streamed straight to S3 instead of staged in /tmp/.
+     * @return true with STREAM_UPLOAD.
+     */
+    public boolean isStreamUpload() {
+        return streamUpload;
+    }
+
+    /**
+     * The size in megabytes of the parts of a streamed upload.
+     * @return the size.
+     */
+    public int getUploadPartMb() {
+        return uploadPartMb;
+    }
+
+    /**
+     * The number of parts a streamed upload may hold in memory.
+     * @return the number of parts.
+     */
+    public int getUploadBuffers() {
+        return uploadBuffers;
+    }
+
+    /**
+     * The S3 compatible server the bucket is on instead of AWS.
+     * @return the endpoint, null for AWS.
+     */
+    public String getS3Endpoint() {
+        return s3Endpoint;
+    }
+
+    /**
+     * The compression of CSV and JSON Lines files.
+     * @return the compression.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * The keys the rows of every file are written under.
+     * @return the layout.
+     */
+    public KeyLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * The key of the checkpoints of a run that stopped before its deadline.
+     * @return the key.
+     */
+    public String getCheckpointKey() {
+        return checkpointKey;
+    }
+
+    /**
+     * Whether or not the run is one of frequent small runs that archive the emails sent since the last one.
+     * @return true with TRICKLE.
+     */
+    public boolean isTrickle() {
+        return trickle;
+    }
+
+    /**
+     * The table of the high-water marks of trickle runs.
+     * @return the name of the table.
+     */
+    public String getTrickleTable() {
+        return trickleTable;
+    }
+
+    /**
+     * The size in bytes at which a trickle run starts a new segment.
+     * @return the size.
+     */
+    public long getRollBytes() {
+        return rollBytes;
+    }
+
+    /**
+     * The age in milliseconds at which a trickle run starts a new segment.
+     * @return the age.
+     */
+    public long getRollMs() {
+        return rollMs;
+    }
+
+    /**
+     * How the partitions of mail_log before the cutoff date are removed.
+     * @return drop or exchange, null to delete row by row.
+     */
+    public String getPartitionMode() {
+        return partitionMode;
+    }
+
+    /**
+     * The number of time slices archived at once.
+     * @return the number of slices.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * The probability that the filter of a file in the manifest matches an email it does not hold.
+     * @return the probability.
+     */
+    public double getManifestFpp() {
+        return manifestFpp;
+    }
+
+    /**
+     * The table the emails and events of every day are counted in.
+     * @return the name of the table, null to keep no statistics.
+     */
+    public String getStatsTable() {
+        return statsTable;
+    }
+}
@@ -0,0 +1,459 @@
+package org.vm.email.cleanup;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import org.vm.shared.ConnectionPool;
+import org.vm.shared.LongList;
+import org.vm.shared.SharedFileWriter;
+import org.vm.shared.WriteLog;
+
+/**
+ * The SliceArchiver archives one time slice of the backlog: every email of the slice is written to a file,
+ * uploaded and then deleted from the database. It reads on its own pooled connection and deletes on a second one,
+ * so several slices can be archived at once. With a read replica, it reads the emails and their events from the
+ * replica and only deletes on the primary. Files are named after the first email of the slice and numbered
+ * from the file number of its checkpoint. The slice starts after the position of its checkpoint and ends
+ * before its end time, or before the cutoff date of the run for the last slice. A slice that covers a whole
+ * partition of mail_log only deletes the sendgrid events of its emails, as the partition is dropped at the end.
+ * With daily statistics, the numbers of the emails of a file are written in the transactions that delete them.
+ * The tables and columns come from the ArchiveJob of the settings; the columns of an email are read by the index
+ * resolved from the first row.
+ */
+public class SliceArchiver implements Callable<Integer> {
+
+    /**
+     * Number of ids a file starts with room for, as most files are full.
+     */
+    private static final int ID_CAPACITY = 100000;
+
+    private final ArchiveSettings settings;
+    private final ArchiveJob job;
+    private final ConnectionPool pool;
+    private final Checkpoint start;
+    private final Timestamp cutoff;
+    private final Function<String, SharedFileWriter> writerFactory;
+    private final WriteLog bucketWriter;
+    private final CheckpointStore checkpoints;
+    private final RunReport report;
+    private final ArchiveManifest manifest;
+    private final Context context;
+
+    private PartitionLayout.Partition partition;
+    private List<String> eventPartitions;
+    private volatile int partitionEmails = 0;
+    private DailyStats dailyStats;
+    private HeapBudget budget;
+    private KeyLayout layout = KeyLayout.FLAT;
+    private ConnectionPool replicaPool;
+    private ReplicaMonitor replica;
+    private DailyStats.FileStats fileStats;
+    private volatile boolean stopped = false;
+    private volatile ArchivePipeline pipeline;
+    private String firstTimestamp;
+    private int firstFileNumber;
+    private int fileNumber;
+    private boolean fileStarted = false;
+    private boolean outOfTime = false;
+
+    /**
+     * The constructor takes in the slice to archive and where its files go.
+     * @param settings the configuration of the run.
+     * @param pool the connections to the database.
+     * @param start the checkpoint the slice starts after.
+     * @param cutoff the date before which emails are archived.
+     * @param writerFactory creates the file writer for a file name.
+     * @param bucketWriter writes finished files to their destination.
+     * @param checkpoints saves the position reached after each deleted file.
+     * @param report collects the statistics of the run.
+     * @param manifest collects the guids, addresses and ranges of every file.
+     * @param context of the invocation, null when run outside of Lambda.
+     */
+    public SliceArchiver(ArchiveSettings settings, ConnectionPool pool, Checkpoint start, Timestamp cutoff,
+                         Function<String, SharedFileWriter> writerFactory, WriteLog bucketWriter,
+                         CheckpointStore checkpoints, RunReport report, ArchiveManifest manifest,
+                         Context context) {
+        this.settings = settings;
+        this.job = settings.getJob();
+        this.pool = pool;
+        this.start = start;
+        this.cutoff = cutoff;
+        this.writerFactory = writerFactory;
+        this.bucketWriter = bucketWriter;
+        this.checkpoints = checkpoints;
+        this.report = report;
+        this.manifest = manifest;
+        this.context = context;
+        this.firstTimestamp = start.getFirstTimestamp();
+        this.firstFileNumber = start.getFileNumber() + 1;
+        this.fileNumber = firstFileNumber;
+    }
+
+    /**
+     * Archives the slice.
+     * @return the number of rows deleted from the database.
+     * @throws SQLException in case of a database error.
+     * @throws IOException in case a file cannot be written or uploaded.
+     */
+    @Override
+    public Integer call() throws SQLException, IOException {
+        int slice = start.getSlice();
+        //A slice that waited for a thread until another slice failed does not start.
+        if (stopped) {
+            return 0;
+        }
+        Timestamp end = start.getEndTime() == null ? cutoff : start.getEndTime();
+        //The query reads a single snapshot of the replica. Once the replica has caught up with the primary, that
+        //snapshot holds every row committed on the primary before the slice started, as a query on the primary
+        //would, so the deletes do not remove rows that a lagging replica had not served to the archive.
+        ConnectionPool readPool = replicaPool == null ? pool : replicaPool;
+        if (replica != null) {
+            replica.fence();
+        }
+        try (Connection con = readPool.getConnection();
+             Connection deleteCon = pool.getConnection();
+             Connection lookupCon = settings.isStreamed() ? readPool.getConnection() : null;
+             EventBatchJoiner joiner = new EventBatchJoiner(lookupCon == null ? con : lookupCon, job,
+                 settings.getJoinBatch());
+             BatchDeleter deleter = new BatchDeleter(deleteCon, job, settings.getDeleteBatch(),
+                 settings.getDeleteTargetMs())) {
+            joiner.setStats(report.stage("lookup", "events"));
+            deleter.setStats(report.stage("deleteBatch", "rows"));
+            deleter.throttleWith(replica);
+            //The mail logs of a partition slice are removed with their partition. They only count as deleted once
+            //the partition has been dropped, until then only their events are.
+            ArchivePipeline.FileDeleter fileDeleter = deleter::cleanDelete;
+            if (partition != null) {
+                fileDeleter = (ids, listener) -> {
+                    int events = deleter.deleteEvents(ids, eventPartitions, listener);
+                    partitionEmails += ids.size();
+                    return events;
+                };
+            }
+            ArchivePipeline pipeline = new ArchivePipeline(writerFactory, bucketWriter, fileDeleter, checkpoints,
+                report, manifest, budget);
+            pipeline.setLayout(layout);
+            this.pipeline = pipeline;
+            if (stopped) {
+                pipeline.stop();
+            }
+            //The joined rows go to the pipeline and their events to the statistics of the file.
+            Consumer<String[]> rows = row -> {
+                if (fileStats != null) {
+                    fileStats.addRow(row);
+                }
+                pipeline.addRow(row);
+            };
+            //The emails of a file are deleted by their ids, kept as primitive longs.
+            LongList ids = new LongList(Math.min(settings.getEmailNum(), ID_CAPACITY));
+            ArchiveManifest.FileEntry entry = manifest.startFile();
+            fileStats = dailyStats == null ? null : dailyStats.startFile();
+            int maxEmailNum = settings.getEmailNum();
+            long numEmails = 0;
+            long readStart = System.nanoTime();
+            ColumnMapping mailColumns = new ColumnMapping(job.getColumns(), 0);
+            int keyIndex = job.getKeyColumn() == null ? -1 : job.indexOf(job.getKeyColumn());
+            int lookupIndex = job.getLookupColumn() == null ? -1 : job.indexOf(job.getLookupColumn());
+
+            //Keyset position of the last email added to the current file.
+            Timestamp lastSentTime = null;
+            long lastId = 0;
+            try (PreparedStatement statement = con.prepareStatement(query(), ResultSet.TYPE_FORWARD_ONLY,
+                     ResultSet.CONCUR_READ_ONLY)) {
+                //Without a fetch size, Connector/J reads the whole result set into memory before the first email.
+                if (settings.isStreamed()) {
+                    statement.setFetchSize(settings.getFetchSize());
+                }
+                statement.setTimestamp(1, end);
+                statement.setTimestamp(2, start.getSentTime());
+                statement.setTimestamp(3, start.getSentTime());
+                statement.setLong(4, start.getId());
+                ResultSet rs = statement.executeQuery();
+                boolean exhausted = false;
+                try {
+                    mailColumns.resolve(rs);
+                    int idColumn = mailColumns.indexOf(job.getIdColumn());
+                    int timeColumn = mailColumns.indexOf(job.getTimeColumn());
+                    while (true) {
+                        if (!rs.next()) {
+                            exhausted = true;
+                            break;
+                        }
+                        //If no file has been created yet, create the first file.
+                        if (!fileStarted) {
+                            if (firstTimestamp == null) {
+                                firstTimestamp = Clean.tsToString(rs.getTimestamp(timeColumn));
+                            }
+                            startFile(pipeline);
+                            fileStarted = true;
+
+                        //If the current file has recorded the max number of emails, hand it to the pipeline to be
+                        //written to the S3 bucket and deleted, and create a new file to write to.
+                        } else if (maxEmailNum == 0) {
+                            joiner.flush(rows);
+                            pipeline.endFile(ids, checkpoint(lastSentTime, lastId), entry, fileStats);
+                            ids = new LongList(Math.min(settings.getEmailNum(), ID_CAPACITY));
+                            entry = manifest.startFile();
+                            fileStats = dailyStats == null ? null : dailyStats.startFile();
+                            fileNumber++;
+                            startFile(pipeline);
+                            maxEmailNum = settings.getEmailNum();
+                        }
+                        //Decrements the maxEmailNum to track how many emails have been recorded in the current file.
+                        maxEmailNum--;
+                        numEmails++;
+
+                        //Creates Array of strings with info from the mail log.
+                        long id = rs.getLong(idColumn);
+                        Timestamp sentTime = rs.getTimestamp(timeColumn);
+                        String[] mailInfo = new String[job.getColumns().size()];
+                        mailColumns.read(rs, mailInfo);
+                        ids.add(id);
+                        entry.addEmail(id, sentTime.getTime(), keyIndex < 0 ? null : mailInfo[keyIndex],
+                            lookupIndex < 0 ? null : mailInfo[lookupIndex]);
+                        if (fileStats != null) {
+                            fileStats.addEmail(mailInfo);
+                        }
+
+                        //The sendgrid events of the email are looked up together with the rest of its batch.
+                        joiner.add(mailInfo);
+                        if (joiner.isFull()) {
+                            joiner.flush(rows);
+                        }
+                        lastSentTime = sentTime;
+                        lastId = id;
+
+                        //Stops before the Lambda deadline, or once MAX_EMAILS emails have been read. The current
+                        //file is still finished, uploaded and deleted.
+                        if (isNearDeadline() || numEmails == settings.getMaxEmails()) {
+                            outOfTime = true;
+                            break;
+                        }
+                        //Stops reading if the encoder, uploader or deleter failed, or another slice failed.
+                        //A failure of this slice is thrown by finish().
+                        if (pipeline.isFailed() || stopped) {
+                            break;
+                        }
+                    }
+                } finally {
+                    close(statement, rs, exhausted);
+                }
+
+                //Hands the last file to the pipeline.
+                if (fileStarted) {
+                    joiner.flush(rows);
+                    pipeline.endFile(ids, checkpoint(lastSentTime, lastId), entry, fileStats);
+                }
+                //The sendgrid lookups are reported as a stage of their own.
+                pipeline.recordRead(numEmails, System.nanoTime() - readStart - joiner.getLookupNanos());
+            } catch (SQLException | RuntimeException | Error e) {
+                pipeline.abort(e);
+                throw e;
+            }
+
+            //Waits until every file has been uploaded and deleted.
+            int numDeleted = pipeline.finish();
+            System.out.println("slice " + slice + ": " + deleter.getBatchCount() + " delete batches, last size "
+                                   + deleter.getBatchSize() + ", slowest " + deleter.getSlowestBatchMillis() + " ms");
+
+            //The checkpoint of the last file has been saved by the pipeline. Unless the slice stopped early, all of
+            //its emails have been archived and it is not continued by the next run.
+            if (!outOfTime && !stopped) {
+                checkpoints.finish(slice, partition == null ? null : partition.getName());
+            }
+            return numDeleted;
+        }
+    }
+
+    /**
+     * Closes the result set of the emails. Closing a streamed result set makes Connector/J read every row that is
+     * left, which after an early stop is the rest of the slice, so the query is cancelled first when the slice
+     * stopped before its last email. A failure on close after an early stop is only logged, as it would hide the
+     * failure that stopped the read; the connection is checked before the pool hands it out again.
+     * @param statement of the emails.
+     * @param rs the result set of the emails.
+     * @param exhausted whether every email of the result set has been read.
+     * @throws SQLException if the result set of a read that reached its end cannot be closed.
+     */
+    private void close(PreparedStatement statement, ResultSet rs, boolean exhausted) throws SQLException {
+        if (exhausted) {
+            rs.close();
+            return;
+        }
+        try {
+            if (settings.isStreamed()) {
+                statement.cancel();
+            }
+            rs.close();
+        } catch (SQLException e) {
+            System.out.println("slice " + start.getSlice() + ": closing a read stopped early failed: "
+                                   + e.getMessage());
+        }
+    }
+
+    /**
+     * Archives the slice without deleting its mail logs, because the slice covers a whole partition of mail_log that
+     * is dropped once the run has archived it. The sendgrid events of its emails are deleted from the partitions of
+     * sendgrid_event that are kept.
+     * @param partition the partition of mail_log the slice covers.
+     * @param eventPartitions the partitions of sendgrid_event the events are deleted from, null for the whole table.
+     */
+    public void archivePartition(PartitionLayout.Partition partition, List<String> eventPartitions) {
+        this.partition = partition;
+        this.eventPartitions = eventPartitions;
+    }
+
+    /**
+     * The partition of mail_log the slice archived without deleting its mail logs.
+     * @return the partition, null if the slice deleted its mail logs row by row.
+     */
+    public PartitionLayout.Partition getPartition() {
+        return partition;
+    }
+
+    /**
+     * The number of emails of a partition slice that have been archived and whose events have been deleted, which
+     * leave the database once their partition is dropped.
+     * @return the number of emails.
+     */
+    public int getPartitionEmails() {
+        return partitionEmails;
+    }
+
+    /**
+     * Keeps the daily statistics of the archived emails, which are written together with their deletes.
+     * @param dailyStats the summary of the run.
+     */
+    public void keepStats(DailyStats dailyStats) {
+        this.dailyStats = dailyStats;
+    }
+
+    /**
+     * Bounds the memory the slice holds in its pipeline, together with the other slices of the run.
+     * @param budget the budget of the run.
+     */
+    public void limitHeap(HeapBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Writes the files of the slice under the keys of a layout, split into parts by partition.
+     * @param layout of the keys of the run.
+     */
+    public void useLayout(KeyLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Reads the emails and their events from a read replica, while they are still deleted on the primary. The slice
+     * waits for the replica to catch up before it reads, and its deletes wait while the replica falls behind.
+     * @param replicaPool the connections to the replica.
+     * @param replica the monitor of the lag of the replica.
+     */
+    public void readFrom(ConnectionPool replicaPool, ReplicaMonitor replica) {
+        this.replicaPool = replicaPool;
+        this.replica = replica;
+    }
+
+    /**
+     * Asks the slice to stop after the email it is reading, for example because another slice failed. A reader
+     * waiting for the heap budget stops waiting.
+     */
+    public void stop() {
+        stopped = true;
+        ArchivePipeline current = pipeline;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    /**
+     * Whether or not the slice wrote any files.
+     * @return true if at least one file was started.
+     */
+    public boolean hasFiles() {
+        return fileStarted;
+    }
+
+    /**
+     * Whether or not the slice stopped before the Lambda deadline, or after its maximum number of emails, with
+     * emails possibly left.
+     * @return true if the next run continues the slice.
+     */
+    public boolean isOutOfTime() {
+        return outOfTime;
+    }
+
+    /**
+     * The timestamp used in the names of the files of the slice.
+     * @return the timestamp, null if the slice has not written a file.
+     */
+    public String getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * The number of the first file written by this run.
+     * @return the file number.
+     */
+    public int getFirstFileNumber() {
+        return firstFileNumber;
+    }
+
+    /**
+     * The number of the last file written by this run.
+     * @return the file number.
+     */
+    public int getLastFileNumber() {
+        return fileNumber;
+    }
+
+    /**
+     * The query of the slice, which reads the rows of the parent table that are not excluded in keyset order from
+     * after the position of the checkpoint to the end of the slice.
+     * @return the query, with the end of the slice and the position as its parameters.
+     */
+    private String query() {
+        String time = job.getTimeColumn();
+        String id = job.getIdColumn();
+        return "SELECT " + job.selectList() + " FROM " + job.getTable() + " WHERE " + time + " < ?"
+                   + job.exclusion() + " AND (" + time + " > ? OR (" + time + " = ? AND " + id + " > ?)) "
+                   + "ORDER BY " + time + " ASC, " + id + " ASC";
+    }
+
+    /**
+     * Starts the next file of the slice, once its name is reserved in the checkpoints.
+     * @param pipeline the file is written to.
+     */
+    private void startFile(ArchivePipeline pipeline) {
+        checkpoints.reserve(start, firstTimestamp, fileNumber);
+        pipeline.startFile(settings.getBaseName() + firstTimestamp + "_" + fileNumber);
+    }
+
+    /**
+     * Creates the checkpoint of the current file.
+     * @param lastSentTime sent_time of the last email in the file.
+     * @param lastId id of the last email in the file.
+     * @return the checkpoint.
+     */
+    private Checkpoint checkpoint(Timestamp lastSentTime, long lastId) {
+        return new Checkpoint(start.getSlice(), lastSentTime, lastId, fileNumber, firstTimestamp, start.getEndTime());
+    }
+
+    /**
+     * Checks whether the invocation is close enough to its deadline that the run has to stop.
+     * @return true if less than the margin remains.
+     */
+    private boolean isNearDeadline() {
+        return context != null && context.getRemainingTimeInMillis() < settings.getTimeMarginMs();
+    }
+}
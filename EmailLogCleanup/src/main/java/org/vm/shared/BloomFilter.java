@@ -0,0 +1,147 @@
+package org.vm.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The BloomFilter is a compact set of strings that answers whether a string might have been added. It never
+ * misses a string that was added, and wrongly answers yes for a string that was not with a probability chosen
+ * when the filter is created. The strings are hashed with a 64 bit hash of their characters, from which every
+ * bit position is derived by double hashing, so a filter stored by one JVM is read the same way by any other.
+ */
+public final class BloomFilter {
+
+  private final long[] words;
+  private final int bits;
+  private final int hashes;
+
+  /**
+   * The constructor takes in the layout of the filter and its contents.
+   * @param bits the number of bits of the filter.
+   * @param hashes the number of bits set for every string.
+   * @param words the bits, 64 to a word.
+   */
+  private BloomFilter(int bits, int hashes, long[] words) {
+    if (bits < 1 || hashes < 1 || words.length != (bits + 63) / 64) {
+      throw new IllegalArgumentException("Invalid Bloom filter of " + bits + " bits and " + hashes + " hashes");
+    }
+    this.bits = bits;
+    this.hashes = hashes;
+    this.words = words;
+  }
+
+  /**
+   * Creates an empty filter sized for the given number of strings.
+   * @param expected the number of strings that will be added.
+   * @param falsePositives the probability of a wrong yes once the expected number of strings has been added,
+   * ex: 0.01.
+   * @return the filter.
+   */
+  public static BloomFilter create(long expected, double falsePositives) {
+    if (falsePositives <= 0 || falsePositives >= 1) {
+      throw new IllegalArgumentException("falsePositives must be between 0 and 1");
+    }
+    long n = Math.max(1, expected);
+    long bits = (long) Math.ceil(-n * Math.log(falsePositives) / (Math.log(2) * Math.log(2)));
+    bits = Math.max(64, Math.min(Integer.MAX_VALUE - 63, bits));
+    int hashes = (int) Math.max(1, Math.round((double) bits / n * Math.log(2)));
+    return new BloomFilter((int) bits, hashes, new long[(int) ((bits + 63) / 64)]);
+  }
+
+  /**
+   * Reads a filter stored with toBytes.
+   * @param bits the number of bits of the filter.
+   * @param hashes the number of bits set for every string.
+   * @param data the stored bits.
+   * @return the filter.
+   */
+  public static BloomFilter fromBytes(int bits, int hashes, byte[] data) {
+    long[] words = new long[(bits + 63) / 64];
+    ByteBuffer.wrap(data).asLongBuffer().get(words);
+    return new BloomFilter(bits, hashes, words);
+  }
+
+  /**
+   * Adds a string.
+   * @param value to add.
+   */
+  public void add(String value) {
+    long hash1 = hash(value);
+    long hash2 = mix(hash1 ^ 0xC2B2AE3D27D4EB4FL) | 1;
+    for (int i = 0; i < hashes; i++) {
+      int bit = (int) Long.remainderUnsigned(hash1 + i * hash2, bits);
+      words[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Whether or not a string might have been added.
+   * @param value to look for.
+   * @return false if it was certainly not added.
+   */
+  public boolean mightContain(String value) {
+    long hash1 = hash(value);
+    long hash2 = mix(hash1 ^ 0xC2B2AE3D27D4EB4FL) | 1;
+    for (int i = 0; i < hashes; i++) {
+      int bit = (int) Long.remainderUnsigned(hash1 + i * hash2, bits);
+      if ((words[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The number of bits of the filter.
+   * @return the size in bits.
+   */
+  public int getBits() {
+    return bits;
+  }
+
+  /**
+   * The number of bits set for every string.
+   * @return the number of hashes.
+   */
+  public int getHashes() {
+    return hashes;
+  }
+
+  /**
+   * The bits of the filter, to be stored and read back with fromBytes.
+   * @return 8 bytes for every 64 bits.
+   */
+  public byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(words.length * 8);
+    buffer.asLongBuffer().put(words);
+    return buffer.array();
+  }
+
+  /**
+   * A 64 bit hash of the characters of a string: FNV-1a, with the bits mixed afterwards. Also used by the
+   * HyperLogLog.
+   * @param value to hash.
+   * @return the hash.
+   */
+  static long hash(String value) {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001B3L;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * The finalizer of MurmurHash3, which spreads every input bit over the whole output.
+   * @param value to mix.
+   * @return the mixed value.
+   */
+  private static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xFF51AFD7ED558CCDL;
+    value ^= value >>> 33;
+    value *= 0xC4CEB9FE1A85EC53L;
+    value ^= value >>> 33;
+    return value;
+  }
+}
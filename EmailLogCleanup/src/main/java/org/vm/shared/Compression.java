@@ -0,0 +1,175 @@
+package org.vm.shared;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The Compression class describes how a SharedFileWriter compresses the file it writes. It knows the
+ * extension that is added to the file name, the Content-Encoding to store the file with and how to wrap
+ * the stream the file is written to. Supported are gzip and zstd, each with a configurable level.
+ */
+public final class Compression {
+
+  /**
+   * Level used for gzip when none is configured.
+   */
+  public static final int DEFAULT_GZIP_LEVEL = 6;
+
+  /**
+   * Level used for zstd when none is configured.
+   */
+  public static final int DEFAULT_ZSTD_LEVEL = 3;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Compression NONE = new Compression("none", "", null, 0);
+
+  private final String name;
+  private final String extension;
+  private final String contentEncoding;
+  private final int level;
+
+  private Compression(String name, String extension, String contentEncoding, int level) {
+    this.name = name;
+    this.extension = extension;
+    this.contentEncoding = contentEncoding;
+    this.level = level;
+  }
+
+  /**
+   * No compression, the file is written as is.
+   * @return the uncompressed setting.
+   */
+  public static Compression none() {
+    return NONE;
+  }
+
+  /**
+   * Gzip compression.
+   * @param level from 1 (fastest) to 9 (smallest).
+   * @return the gzip setting.
+   */
+  public static Compression gzip(int level) {
+    if (level < 1 || level > 9) {
+      throw new IllegalArgumentException("gzip level must be between 1 and 9");
+    }
+    return new Compression("gzip", ".gz", "gzip", level);
+  }
+
+  /**
+   * Zstandard compression.
+   * @param level from 1 (fastest) to 22 (smallest).
+   * @return the zstd setting.
+   */
+  public static Compression zstd(int level) {
+    if (level < 1 || level > 22) {
+      throw new IllegalArgumentException("zstd level must be between 1 and 22");
+    }
+    return new Compression("zstd", ".zst", "zstd", level);
+  }
+
+  /**
+   * Reads the compression setting from its configuration, ex: the COMPRESSION and COMPRESSION_LEVEL
+   * environment variables.
+   * @param name none, gzip or zstd. Null means none.
+   * @param level the compression level, null for the default of the chosen compression.
+   * @return the setting.
+   */
+  public static Compression of(String name, String level) {
+    if (name == null || name.isEmpty() || name.equalsIgnoreCase("none")) {
+      return NONE;
+    } else if (name.equalsIgnoreCase("gzip")) {
+      return gzip(level == null ? DEFAULT_GZIP_LEVEL : Integer.parseInt(level));
+    } else if (name.equalsIgnoreCase("zstd")) {
+      return zstd(level == null ? DEFAULT_ZSTD_LEVEL : Integer.parseInt(level));
+    }
+    throw new IllegalArgumentException("Unknown compression " + name + ", expected none, gzip or zstd");
+  }
+
+  /**
+   * Finds the Content-Encoding of a file from the extension of its name.
+   * @param filename of the file.
+   * @return gzip, zstd or null if the file is not compressed.
+   */
+  public static String contentEncodingOf(String filename) {
+    if (filename.endsWith(".gz")) {
+      return "gzip";
+    } else if (filename.endsWith(".zst")) {
+      return "zstd";
+    }
+    return null;
+  }
+
+  /**
+   * Wraps a stream so that everything written to the result is compressed into it.
+   * @param out the stream the compressed bytes go to.
+   * @return the compressing stream, or out itself without compression.
+   * @throws IOException in case of error.
+   */
+  public OutputStream wrap(OutputStream out) throws IOException {
+    if (this == NONE) {
+      return out;
+    } else if (contentEncoding.equals("gzip")) {
+      return new GZIPOutputStream(out, BUFFER_SIZE) {
+        {
+          def.setLevel(level);
+        }
+      };
+    }
+    return new ZstdOutputStream(out, level);
+  }
+
+  /**
+   * Wraps a stream of a stored file so that reading the result returns its uncompressed contents. The compression
+   * is derived from the extension of the file name, as it is for the Content-Encoding.
+   * @param in the stream of the stored file.
+   * @param filename of the file.
+   * @return the decompressing stream, or in itself if the file is not compressed.
+   * @throws IOException in case of error.
+   */
+  public static InputStream decompress(InputStream in, String filename) throws IOException {
+    String encoding = contentEncodingOf(filename);
+    if (encoding == null) {
+      return in;
+    } else if (encoding.equals("gzip")) {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+    return new ZstdInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+  }
+
+  /**
+   * The extension added after the file type, ex: ".gz" for "name.csv.gz".
+   * @return the extension, empty without compression.
+   */
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * The Content-Encoding the file is stored with.
+   * @return gzip, zstd or null without compression.
+   */
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /**
+   * The compression level.
+   * @return the level, 0 without compression.
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public String toString() {
+    return this == NONE ? name : name + "-" + level;
+  }
+}
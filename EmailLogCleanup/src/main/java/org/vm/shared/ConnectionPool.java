@@ -0,0 +1,412 @@
+package org.vm.shared;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ConnectionPool keeps JDBC connections open between invocations of a Lambda function. Pools are held
+ * statically, one per connection string, so that a warm container reuses the connections of the previous
+ * invocation instead of connecting again. An idle connection is checked with Connection.isValid before it is
+ * handed out and replaced if the database closed it while the container was frozen. Connections are also
+ * replaced once they reach a maximum age. Closing a borrowed connection returns it to the pool, so existing
+ * try-with-resources blocks release it on every path; uncommitted work is rolled back first. The statements and
+ * metadata of a borrowed connection hand out the borrowed connection from getConnection, so that closing it there
+ * returns it to the pool as well. Result sets are not wrapped, to keep reading rows off the proxy: the statement
+ * of ResultSet.getStatement is the one of the driver, whose connection must not be closed.
+ * When no idle connection is left a new one is opened, up to a maximum of open connections; beyond it
+ * getConnection waits for a connection to be returned, and fails after MAX_WAIT_MS. Connections returned beyond
+ * the idle limit are closed.
+ */
+public final class ConnectionPool {
+  
+  /**
+   * Number of idle connections kept when none is configured.
+   */
+  public static final int DEFAULT_MAX_IDLE = 4;
+  
+  /**
+   * Number of connections open at once, borrowed or idle, when none is configured.
+   */
+  public static final int DEFAULT_MAX_OPEN = 32;
+  
+  /**
+   * Time in milliseconds getConnection waits for a connection once the maximum is open.
+   */
+  static final long MAX_WAIT_MS = 30 * 1000;
+  
+  /**
+   * Age in milliseconds after which a connection is closed instead of reused.
+   */
+  static final long MAX_AGE_MS = 30 * 60 * 1000;
+  
+  /**
+   * Seconds Connection.isValid may take before an idle connection counts as broken.
+   */
+  static final int VALIDATION_TIMEOUT_S = 2;
+  
+  private static final Map<String, ConnectionPool> POOLS = new HashMap<>();
+  
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(ConnectionPool::closeAll, "connection-pool-shutdown"));
+  }
+  
+  private final String jdbc;
+  private final Deque<PooledConnection> idle = new ArrayDeque<>();
+  private int maxIdle;
+  private int maxOpen;
+  private int open = 0;
+  private int created = 0;
+  private int reused = 0;
+  
+  private ConnectionPool(String jdbc, int maxIdle, int maxOpen) {
+    this.jdbc = jdbc;
+    this.maxIdle = maxIdle;
+    this.maxOpen = maxOpen;
+  }
+  
+  /**
+   * The pool for a connection string, created on first use with at most DEFAULT_MAX_OPEN connections. An existing
+   * pool keeps its idle connections and limits.
+   * @param jdbc the connection string of the database.
+   * @param maxIdle the number of idle connections kept between borrows, if the pool is created.
+   * @return the pool.
+   */
+  public static ConnectionPool of(String jdbc, int maxIdle) {
+    return of(jdbc, maxIdle, DEFAULT_MAX_OPEN);
+  }
+  
+  /**
+   * The pool for a connection string, created on first use. An existing pool keeps its idle connections and limits.
+   * @param jdbc the connection string of the database.
+   * @param maxIdle the number of idle connections kept between borrows, if the pool is created.
+   * @param maxOpen the number of connections open at once, if the pool is created.
+   * @return the pool.
+   */
+  public static synchronized ConnectionPool of(String jdbc, int maxIdle, int maxOpen) {
+    ConnectionPool pool = POOLS.get(jdbc);
+    if (pool == null) {
+      pool = new ConnectionPool(jdbc, maxIdle, maxOpen);
+      POOLS.put(jdbc, pool);
+    }
+    return pool;
+  }
+  
+  /**
+   * Closes the idle connections of every pool, for example when the container shuts down.
+   */
+  public static synchronized void closeAll() {
+    for (ConnectionPool pool : POOLS.values()) {
+      pool.close();
+    }
+  }
+  
+  /**
+   * Hands out a connection, reusing a valid idle one if there is any. Closing the returned connection gives
+   * it back to the pool. Once the maximum is open, it waits for a connection to be returned.
+   * @return a connection in auto-commit mode.
+   * @throws SQLException if a new connection cannot be opened, or none is returned within MAX_WAIT_MS.
+   */
+  public Connection getConnection() throws SQLException {
+    long deadline = System.currentTimeMillis() + MAX_WAIT_MS;
+    while (true) {
+      PooledConnection connection = takeIdle(deadline);
+      if (connection == null) {
+        try {
+          connection = new PooledConnection(DriverManager.getConnection(jdbc));
+        } catch (SQLException | RuntimeException e) {
+          closed();
+          throw e;
+        }
+        synchronized (this) {
+          created++;
+        }
+        return borrow(connection);
+      }
+      if (isHealthy(connection)) {
+        synchronized (this) {
+          reused++;
+        }
+        return borrow(connection);
+      }
+      discard(connection.real);
+    }
+  }
+  
+  /**
+   * Closes the idle connections. Connections that are borrowed are closed when they are returned.
+   */
+  public synchronized void close() {
+    closeIdle();
+    maxIdle = 0;
+  }
+  
+  /**
+   * Closes the idle connections but keeps the pool open, so the next borrow opens a new connection. Used before
+   * the JVM is snapshotted, as the sockets of a restored connection no longer exist.
+   */
+  public synchronized void closeIdle() {
+    for (PooledConnection connection : idle) {
+      closeQuietly(connection.real);
+    }
+    open -= idle.size();
+    idle.clear();
+    notifyAll();
+  }
+  
+  /**
+   * Changes the number of idle connections kept. Idle connections beyond the new limit are closed.
+   * @param maxIdle the number of idle connections kept between borrows.
+   */
+  public synchronized void setMaxIdle(int maxIdle) {
+    this.maxIdle = maxIdle;
+    while (idle.size() > maxIdle) {
+      closeQuietly(idle.pollLast().real);
+      open--;
+    }
+    notifyAll();
+  }
+  
+  /**
+   * Changes the number of connections open at once. Connections beyond the new limit are closed as they are
+   * returned.
+   * @param maxOpen the number of connections, borrowed or idle.
+   */
+  public synchronized void setMaxOpen(int maxOpen) {
+    this.maxOpen = maxOpen;
+    setMaxIdle(Math.min(maxIdle, maxOpen));
+  }
+  
+  /**
+   * The number of connections opened by the pool.
+   * @return the count.
+   */
+  public synchronized int getCreated() {
+    return created;
+  }
+  
+  /**
+   * The number of times an idle connection was handed out again.
+   * @return the count.
+   */
+  public synchronized int getReused() {
+    return reused;
+  }
+  
+  /**
+   * The number of idle connections.
+   * @return the count.
+   */
+  public synchronized int getIdle() {
+    return idle.size();
+  }
+  
+  /**
+   * The number of connections open, borrowed or idle.
+   * @return the count.
+   */
+  public synchronized int getOpen() {
+    return open;
+  }
+  
+  @Override
+  public synchronized String toString() {
+    return "connections: " + created + " opened, " + reused + " reused, " + idle.size() + " idle";
+  }
+  
+  /**
+   * Takes the most recently returned idle connection, or counts a new one if the maximum is not open yet. Waits
+   * for a connection to be returned otherwise.
+   * @param deadline the time in milliseconds after which it gives up.
+   * @return an idle connection, or null if a new one can be opened.
+   * @throws SQLException if no connection is returned before the deadline.
+   */
+  private synchronized PooledConnection takeIdle(long deadline) throws SQLException {
+    while (idle.isEmpty() && open >= maxOpen) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        throw new SQLException("All " + maxOpen + " connections of the pool are in use");
+      }
+      try {
+        wait(left);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a connection", e);
+      }
+    }
+    if (!idle.isEmpty()) {
+      return idle.pollFirst();
+    }
+    open++;
+    return null;
+  }
+  
+  /**
+   * Counts a connection that has been closed, so that a waiting borrow may open another one.
+   */
+  private synchronized void closed() {
+    open--;
+    notifyAll();
+  }
+  
+  /**
+   * Closes a connection of the pool that is not handed out again.
+   * @param connection to close.
+   */
+  private void discard(Connection connection) {
+    closeQuietly(connection);
+    closed();
+  }
+  
+  /**
+   * Checks that an idle connection is young enough and still answers.
+   * @param connection the idle connection.
+   * @return true if it can be handed out.
+   */
+  private boolean isHealthy(PooledConnection connection) {
+    if (System.currentTimeMillis() - connection.openedAt > MAX_AGE_MS) {
+      return false;
+    }
+    try {
+      return connection.real.isValid(VALIDATION_TIMEOUT_S);
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Takes a connection back. It is rolled back to auto-commit mode and kept if there is room and it is still
+   * open, otherwise it is closed and another one may be opened.
+   * @param connection the returned connection.
+   */
+  private void release(PooledConnection connection) {
+    Connection real = connection.real;
+    try {
+      if (real.isClosed()) {
+        closed();
+        return;
+      }
+      if (!real.getAutoCommit()) {
+        real.rollback();
+        real.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      discard(real);
+      return;
+    }
+    synchronized (this) {
+      if (idle.size() < maxIdle && open <= maxOpen
+              && System.currentTimeMillis() - connection.openedAt <= MAX_AGE_MS) {
+        idle.addFirst(connection);
+        notifyAll();
+        return;
+      }
+    }
+    discard(real);
+  }
+  
+  /**
+   * Wraps a connection so that closing it returns it to the pool. Once returned, the wrapper no longer
+   * reaches the connection. The statements and metadata it creates are wrapped so that they hand out the wrapper.
+   * @param connection the connection to hand out.
+   * @return the wrapper.
+   */
+  private Connection borrow(PooledConnection connection) {
+    boolean[] returned = {false};
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "close":
+              if (!returned[0]) {
+                returned[0] = true;
+                release(connection);
+              }
+              return null;
+            case "isClosed":
+              return returned[0] || connection.real.isClosed();
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "toString":
+              return "pooled " + connection.real;
+            default:
+              if (returned[0]) {
+                throw new SQLException("Connection has been returned to the pool");
+              }
+              Object result;
+              try {
+                result = method.invoke(connection.real, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+              if (result instanceof Statement || result instanceof DatabaseMetaData) {
+                return ownedBy(result, method.getReturnType(), (Connection) proxy);
+              }
+              return result;
+          }
+        });
+  }
+  
+  /**
+   * Wraps a statement or the metadata of a borrowed connection so that getConnection returns the borrowed
+   * connection instead of the one of the driver, which closing would not return to the pool.
+   * @param real the statement or metadata of the driver.
+   * @param type the interface it is handed out as, such as PreparedStatement.
+   * @param owner the borrowed connection.
+   * @return the wrapper.
+   */
+  private static Object ownedBy(Object real, Class<?> type, Connection owner) {
+    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {type},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getConnection":
+              return owner;
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "toString":
+              return "pooled " + real;
+            default:
+              try {
+                return method.invoke(real, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+          }
+        });
+  }
+  
+  /**
+   * Closes a connection, ignoring errors as it is being discarded anyway.
+   * @param connection to close.
+   */
+  private static void closeQuietly(Connection connection) {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      System.out.println("Closing a pooled connection failed: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * A connection of the pool and when it was opened.
+   */
+  private static final class PooledConnection {
+    private final Connection real;
+    private final long openedAt = System.currentTimeMillis();
+  
+    private PooledConnection(Connection real) {
+      this.real = real;
+    }
+  }
+}
@@ -0,0 +1,324 @@
+package org.vm.shared;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * The JsonStreamWriter writes JSON token by token, straight into a reusable character buffer that is handed to
+ * the underlying writer once it fills up. Unlike building a JSONObject first, nothing but the buffer is kept in
+ * memory, whatever the size of the document. Commas and colons are placed automatically; the caller only has to
+ * open and close objects and arrays in the right order and name every value of an object.
+ */
+public final class JsonStreamWriter implements Flushable {
+
+  /**
+   * Number of buffered characters at which the buffer is written to the writer.
+   */
+  private static final int FLUSH_SIZE = 16 * 1024;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Writer out;
+  private char[] buffer = new char[2 * FLUSH_SIZE];
+  private int length = 0;
+
+  //Whether the object or array open at each depth has no value yet.
+  private boolean[] empty = new boolean[16];
+  private int depth = 0;
+  private boolean afterName = false;
+
+  /**
+   * The constructor takes in the writer the JSON is written to.
+   * @param out the writer.
+   */
+  public JsonStreamWriter(Writer out) {
+    this.out = out;
+    empty[0] = true;
+  }
+
+  /**
+   * Opens an object.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter beginObject() throws IOException {
+    open('{');
+    return this;
+  }
+
+  /**
+   * Closes the innermost object.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter endObject() throws IOException {
+    close('}');
+    return this;
+  }
+
+  /**
+   * Opens an array.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter beginArray() throws IOException {
+    open('[');
+    return this;
+  }
+
+  /**
+   * Closes the innermost array.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter endArray() throws IOException {
+    close(']');
+    return this;
+  }
+
+  /**
+   * Writes the name of the next value of an object.
+   * @param name of the value.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter name(String name) throws IOException {
+    separate();
+    appendString(name);
+    buffer[length++] = ':';
+    afterName = true;
+    return this;
+  }
+
+  /**
+   * Writes a string, or null.
+   * @param value the string.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter value(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    separate();
+    appendString(value);
+    flushIfFull();
+    return this;
+  }
+
+  /**
+   * Writes a number.
+   * @param value the number.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter value(long value) throws IOException {
+    separate();
+    appendRaw(Long.toString(value));
+    return this;
+  }
+
+  /**
+   * Writes a number that is already formatted, ex: a column of digits read from the database. A value that is
+   * not a plain integer is written as a string instead.
+   * @param value the digits of the number, or null.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter integerValue(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    } else if (!isInteger(value)) {
+      return value(value);
+    }
+    separate();
+    appendRaw(value);
+    return this;
+  }
+
+  /**
+   * Writes null.
+   * @return this writer.
+   * @throws IOException in case of error.
+   */
+  public JsonStreamWriter nullValue() throws IOException {
+    separate();
+    appendRaw("null");
+    return this;
+  }
+
+  /**
+   * Ends a top level value with a line break, as JSON Lines separates its records.
+   * @throws IOException in case of error.
+   */
+  public void endLine() throws IOException {
+    if (depth != 0) {
+      throw new IllegalStateException("A line can only end after a top level value");
+    }
+    ensureCapacity(1);
+    buffer[length++] = '\n';
+    empty[0] = true;
+    flushIfFull();
+  }
+
+  /**
+   * Hands the buffered characters to the writer and flushes it.
+   * @throws IOException in case of error.
+   */
+  @Override
+  public void flush() throws IOException {
+    writeBuffer();
+    out.flush();
+  }
+
+  /**
+   * Hands the buffered characters to the writer, without flushing it.
+   * @throws IOException in case of error.
+   */
+  public void writeBuffer() throws IOException {
+    if (length > 0) {
+      out.write(buffer, 0, length);
+      length = 0;
+    }
+  }
+
+  /**
+   * Opens an object or an array.
+   * @param bracket the opening character.
+   * @throws IOException in case of error.
+   */
+  private void open(char bracket) throws IOException {
+    separate();
+    buffer[length++] = bracket;
+    depth++;
+    if (depth == empty.length) {
+      empty = Arrays.copyOf(empty, 2 * empty.length);
+    }
+    empty[depth] = true;
+  }
+
+  /**
+   * Closes an object or an array.
+   * @param bracket the closing character.
+   * @throws IOException in case of error.
+   */
+  private void close(char bracket) throws IOException {
+    if (depth == 0) {
+      throw new IllegalStateException("Nothing to close");
+    }
+    ensureCapacity(1);
+    buffer[length++] = bracket;
+    depth--;
+    flushIfFull();
+  }
+
+  /**
+   * Writes the comma between two values of the same object or array, unless the value follows its name.
+   */
+  private void separate() {
+    ensureCapacity(2);
+    if (afterName) {
+      afterName = false;
+    } else if (empty[depth]) {
+      empty[depth] = false;
+    } else {
+      buffer[length++] = ',';
+    }
+  }
+
+  /**
+   * Appends a quoted string, escaping it in a single pass while it is copied. Besides what JSON requires, the
+   * line and paragraph separators are escaped, so that no record of a JSON Lines file spans two lines for a
+   * reader that splits on them.
+   * @param value the string.
+   */
+  private void appendString(String value) {
+    int size = value.length();
+    //Every character takes at most 6, plus the quotes and the colon after a name.
+    ensureCapacity(6 * size + 3);
+    buffer[length++] = '"';
+    for (int i = 0; i < size; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+        buffer[length++] = c;
+        continue;
+      }
+      buffer[length++] = '\\';
+      switch (c) {
+        case '"':
+        case '\\':
+          buffer[length++] = c;
+          break;
+        case '\n':
+          buffer[length++] = 'n';
+          break;
+        case '\r':
+          buffer[length++] = 'r';
+          break;
+        case '\t':
+          buffer[length++] = 't';
+          break;
+        default:
+          buffer[length++] = 'u';
+          buffer[length++] = HEX[(c >> 12) & 0xF];
+          buffer[length++] = HEX[(c >> 8) & 0xF];
+          buffer[length++] = HEX[(c >> 4) & 0xF];
+          buffer[length++] = HEX[c & 0xF];
+      }
+    }
+    buffer[length++] = '"';
+  }
+
+  /**
+   * Appends characters that need no escaping.
+   * @param value the characters.
+   * @throws IOException in case of error.
+   */
+  private void appendRaw(String value) throws IOException {
+    ensureCapacity(value.length());
+    value.getChars(0, value.length(), buffer, length);
+    length += value.length();
+    flushIfFull();
+  }
+
+  /**
+   * Whether or not a value is a plain integer, which JSON can hold as a number.
+   * @param value to check.
+   * @return true for an optional minus followed by digits without a leading zero.
+   */
+  private static boolean isInteger(String value) {
+    int start = value.startsWith("-") ? 1 : 0;
+    if (value.length() == start || value.length() > 19 || (value.charAt(start) == '0' && value.length() > start + 1)) {
+      return false;
+    }
+    for (int i = start; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the buffer once it holds enough characters.
+   * @throws IOException in case of error.
+   */
+  private void flushIfFull() throws IOException {
+    if (length >= FLUSH_SIZE) {
+      writeBuffer();
+    }
+  }
+
+  /**
+   * Grows the buffer if fewer than the given number of characters are free.
+   * @param free the number of characters about to be appended.
+   */
+  private void ensureCapacity(int free) {
+    if (length + free > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, length + free));
+    }
+  }
+}
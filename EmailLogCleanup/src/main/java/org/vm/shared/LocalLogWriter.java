@@ -0,0 +1,140 @@
+package org.vm.shared;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The LocalLogWriter is a class that implements the WriteLog interface by writing files to a directory on the
+ * local file system. It stands in for an S3 bucket when the function is run outside of AWS, for example
+ * against a local database in a load test, and records its writes the same way the S3LogWriter does. Like the
+ * S3LogWriter it also implements the ReadLog interface.
+ */
+public class LocalLogWriter implements WriteLog, ReadLog {
+  
+  private final File directory;
+  private volatile StageStats stats;
+  
+  /**
+   * The constructor takes in the destination directory, which is created if it does not exist.
+   * @param directory the files are written to.
+   */
+  public LocalLogWriter(File directory) {
+    this.directory = directory;
+    directory.mkdirs();
+  }
+  
+  /**
+   * The directory the files are written to.
+   * @return the directory.
+   */
+  public File getDirectory() {
+    return directory;
+  }
+  
+  /**
+   * Records every file written in the given statistics, with its size.
+   * @param stats of the writes.
+   */
+  @Override
+  public void setStats(StageStats stats) {
+    this.stats = stats;
+  }
+  
+  /**
+   * Method inherited from the WriteLog interface that copies a finished file into the directory. The file
+   * itself is left in place, as it is after an upload to S3.
+   */
+  @Override
+  public void writeLog(File file, String filename) throws IOException {
+    long start = System.nanoTime();
+    Files.copy(file.toPath(), target(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    record(file.length(), System.nanoTime() - start);
+  }
+  
+  /**
+   * Method inherited from the WriteLog interface that writes a log straight into the directory.
+   */
+  @Override
+  public OutputStream openLog(String filename) throws IOException {
+    long start = System.nanoTime();
+    return new FilterOutputStream(new FileOutputStream(target(filename))) {
+      private long bytes = 0;
+  
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytes++;
+      }
+  
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytes += len;
+      }
+  
+      @Override
+      public void close() throws IOException {
+        super.close();
+        record(bytes, System.nanoTime() - start);
+      }
+    };
+  }
+  
+  /**
+   * Method inherited from the ReadLog interface that lists the files in the directory, and the directories below
+   * it, whose path relative to the directory starts with the prefix.
+   */
+  @Override
+  public List<String> listLogs(String prefix) throws IOException {
+    Path root = directory.toPath();
+    try (Stream<Path> files = Files.walk(root)) {
+      return files.filter(Files::isRegularFile)
+                 .map(file -> root.relativize(file).toString().replace(File.separatorChar, '/'))
+                 .filter(name -> name.startsWith(prefix))
+                 .sorted()
+                 .collect(Collectors.toList());
+    }
+  }
+  
+  /**
+   * Method inherited from the ReadLog interface that opens a file of the directory.
+   */
+  @Override
+  public InputStream readLog(String filename) throws IOException {
+    return new FileInputStream(new File(directory, filename));
+  }
+  
+  /**
+   * The file a log is written to. File names may contain directories, like keys in a bucket.
+   * @param filename of the log.
+   * @return the file, whose directory exists.
+   */
+  private File target(String filename) {
+    File target = new File(directory, filename);
+    target.getParentFile().mkdirs();
+    return target;
+  }
+  
+  /**
+   * Records one write.
+   * @param bytes written.
+   * @param nanos the time it took.
+   */
+  private void record(long bytes, long nanos) {
+    StageStats writeStats = stats;
+    if (writeStats != null) {
+      writeStats.record(bytes, nanos);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package org.vm.shared;
+
+import java.util.Arrays;
+
+/**
+ * The LongList is a growable list of primitive longs. It takes 8 bytes per value, where a list of boxed values
+ * or of strings takes several times as much, and is used to hold the ids of a file until they are deleted.
+ */
+public final class LongList {
+
+  private long[] values;
+  private int size = 0;
+
+  /**
+   * Creates an empty list.
+   * @param capacity the number of values it holds before it grows.
+   */
+  public LongList(int capacity) {
+    this.values = new long[Math.max(1, capacity)];
+  }
+
+  /**
+   * Adds a value at the end of the list.
+   * @param value to add.
+   */
+  public void add(long value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, values.length + (values.length >> 1) + 1);
+    }
+    values[size++] = value;
+  }
+
+  /**
+   * The value at a position.
+   * @param index the position.
+   * @return the value.
+   */
+  public long get(int index) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " of a list of " + size);
+    }
+    return values[index];
+  }
+
+  /**
+   * The number of values.
+   * @return the size.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Copies a range of the list.
+   * @param from the first position, included.
+   * @param to the last position, excluded.
+   * @return the values of the range.
+   */
+  public long[] toArray(int from, int to) {
+    if (from < 0 || to > size || from > to) {
+      throw new IndexOutOfBoundsException("Range " + from + " to " + to + " of a list of " + size);
+    }
+    return Arrays.copyOfRange(values, from, to);
+  }
+
+  /**
+   * The memory the list takes, with the room it has to grow.
+   * @return the size in bytes.
+   */
+  public long getBytes() {
+    return 16 + 8L * values.length;
+  }
+}
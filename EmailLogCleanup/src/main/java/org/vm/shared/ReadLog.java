@@ -0,0 +1,28 @@
+package org.vm.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The ReadLog interface can be implemented by a class that reads back the logs written to a destination by a
+ * WriteLog, for example to look up archived emails.
+ */
+public interface ReadLog {
+
+  /**
+   * Lists the logs whose names start with the given prefix.
+   * @param prefix of the file names.
+   * @return the file names, in alphabetical order.
+   * @throws IOException in case of error.
+   */
+  List<String> listLogs(String prefix) throws IOException;
+
+  /**
+   * Opens a log for reading.
+   * @param filename of the log.
+   * @return a stream of its contents, as they were written.
+   * @throws IOException in case of error.
+   */
+  InputStream readLog(String filename) throws IOException;
+}
@@ -1,50 +1,221 @@
 package org.vm.shared;
 
 import com.amazonaws.SdkClientException;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * The S3LogWriter class takes is a class that implements the WriteLog interface and specifiying it
- * to write to a file to an s3 bucket.
+ * to write to a file to an s3 bucket. It also implements the ReadLog interface to read the files back.
  */
-public class S3LogWriter implements WriteLog{
+public class S3LogWriter implements WriteLog, ReadLog {
+  
+  /**
+   * Part size in megabytes of streamed uploads when UPLOAD_PART_MB is not set.
+   */
+  public static final int DEFAULT_PART_MB = 8;
+  
+  /**
+   * Number of part buffers a streamed upload may hold in memory when UPLOAD_BUFFERS is not set.
+   */
+  public static final int DEFAULT_UPLOAD_BUFFERS = 4;
   
   private final String bucket;
+  private final AmazonS3 s3Client;
+  private final int partBytes;
+  private final int uploadBuffers;
+  private volatile StageStats stats;
+  
+  /**
+   * The client shared by every writer and checkpoint, created on first use and kept for warm invocations, and the
+   * endpoint and region it was built for.
+   */
+  private static volatile AmazonS3 client;
+  private static String clientEndpoint;
+  private static String clientRegion;
+  
+  /**
+   * The constructor takes in the name of the destination S3 bucket and the client it is reached with. Streamed
+   * uploads use parts of DEFAULT_PART_MB megabytes and hold at most DEFAULT_UPLOAD_BUFFERS of them in memory.
+   * @param bucketName is the name of the destination bucket in AWS.
+   * @param s3Client the client, see getClient.
+   */
+  public S3LogWriter(String bucketName, AmazonS3 s3Client) {
+    this(bucketName, s3Client, DEFAULT_PART_MB * 1024 * 1024, DEFAULT_UPLOAD_BUFFERS);
+  }
   
   /**
-   * The constructor takes in the name of the destination S3 bucket.
+   * The constructor takes in the name of the destination S3 bucket, the client it is reached with and the size
+   * of the parts of streamed uploads.
    * @param bucketName is the name of the destination bucket in AWS.
+   * @param s3Client the client, see getClient.
+   * @param partBytes the size in bytes of the parts of a streamed upload.
+   * @param uploadBuffers the number of parts a streamed upload may hold in memory.
    */
-  public S3LogWriter(String bucketName) {
-    bucket = bucketName;
+  public S3LogWriter(String bucketName, AmazonS3 s3Client, int partBytes, int uploadBuffers) {
+    this.bucket = bucketName;
+    this.s3Client = s3Client;
+    this.partBytes = partBytes;
+    this.uploadBuffers = uploadBuffers;
+  }
+  
+  /**
+   * The shared s3 client. The client is thread-safe and holds its own connection pool, so building it once per
+   * container saves the credential lookup and TLS setup on every upload of a warm invocation. It is built again
+   * if the endpoint or region change.
+   * @param endpoint the S3 compatible server to talk to instead of AWS, null for AWS.
+   * @param region the region of the endpoint, null for us-east-1.
+   * @return the s3 client.
+   */
+  public static synchronized AmazonS3 getClient(String endpoint, String region) {
+    if (client == null || !Objects.equals(endpoint, clientEndpoint) || !Objects.equals(region, clientRegion)) {
+      client = buildClient(endpoint, region);
+      clientEndpoint = endpoint;
+      clientRegion = region;
+    }
+    return client;
+  }
+  
+  /**
+   * Builds an s3 client. With an endpoint, the client talks to that endpoint with path style access instead of
+   * AWS, so that a local S3 compatible server can stand in for the bucket.
+   * @param endpoint the S3 compatible server to talk to instead of AWS, null for AWS.
+   * @param region the region of the endpoint, null for us-east-1.
+   * @return a new s3 client.
+   */
+  public static AmazonS3 buildClient(String endpoint, String region) {
+    if (endpoint == null) {
+      return AmazonS3ClientBuilder.defaultClient();
+    }
+    return AmazonS3ClientBuilder.standard()
+               .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint,
+                   region == null ? "us-east-1" : region))
+               .withPathStyleAccessEnabled(true)
+               .build();
+  }
+  
+  /**
+   * Records every request that sends the contents of a file in the given statistics: the put of a local file,
+   * or each part of a streamed upload.
+   * @param stats of the requests, with the bytes each request sent.
+   */
+  @Override
+  public void setStats(StageStats stats) {
+    this.stats = stats;
   }
   
   /**
    * Method inherited from the WriteLog interface that will create a put request for a file
-   * into an s3 bucket.
+   * into an s3 bucket. A failed upload is thrown as an IOException so that the emails in the file
+   * are not deleted from the database.
    */
   @Override
   public void writeLog(File file, String filename) throws IOException {
-    //Sets up the s3 bucket.
-    AmazonS3 s3Client = AmazonS3ClientBuilder.defaultClient();
-  
     //Creates the PutObject request.
     try {
       PutObjectRequest request
           = new PutObjectRequest(bucket, filename, file);
-      ObjectMetadata metadata = new ObjectMetadata();
-      metadata.setContentType("text/csv");
-      request.setMetadata(metadata);
+      request.setMetadata(metadataFor(filename));
+      long start = System.nanoTime();
       s3Client.putObject(request);
+      StageStats putStats = stats;
+      if (putStats != null) {
+        putStats.record(file.length(), System.nanoTime() - start);
+      }
     
     } catch (SdkClientException e) {
-      e.printStackTrace();
+      throw new IOException("Upload of " + filename + " to " + bucket + " failed", e);
+    }
+  }
+  
+  /**
+   * Method inherited from the WriteLog interface that starts a multipart upload into the s3 bucket. Parts
+   * are sent as they fill, with at most the given number of parts held in memory.
+   */
+  @Override
+  public OutputStream openLog(String filename) throws IOException {
+    try {
+      S3MultipartOutputStream stream = new S3MultipartOutputStream(s3Client, bucket, filename,
+          metadataFor(filename), partBytes, uploadBuffers);
+      stream.setStats(stats);
+      return stream;
+    } catch (SdkClientException e) {
+      throw new IOException("Upload of " + filename + " to " + bucket + " could not be started", e);
+    }
+  }
+  
+  /**
+   * Method inherited from the ReadLog interface that lists the keys in the bucket with the given prefix.
+   */
+  @Override
+  public List<String> listLogs(String prefix) throws IOException {
+    List<String> keys = new ArrayList<>();
+    try {
+      ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+      ListObjectsV2Result result;
+      do {
+        result = s3Client.listObjectsV2(request);
+        for (S3ObjectSummary summary : result.getObjectSummaries()) {
+          keys.add(summary.getKey());
+        }
+        request.setContinuationToken(result.getNextContinuationToken());
+      } while (result.isTruncated());
+    } catch (SdkClientException e) {
+      throw new IOException("Listing " + prefix + " in " + bucket + " failed", e);
+    }
+    return keys;
+  }
+  
+  /**
+   * Method inherited from the ReadLog interface that downloads an object of the bucket as it is stored.
+   */
+  @Override
+  public InputStream readLog(String filename) throws IOException {
+    try {
+      return s3Client.getObject(bucket, filename).getObjectContent();
+    } catch (SdkClientException e) {
+      throw new IOException("Download of " + filename + " from " + bucket + " failed", e);
+    }
+  }
+  
+  /**
+   * The metadata a file is stored with. The content type follows the extension of the file name, and compressed
+   * files keep it and get the Content-Encoding of their compression.
+   * @param filename of the file.
+   * @return the metadata for the put request.
+   */
+  static ObjectMetadata metadataFor(String filename) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    String type = filename.replaceFirst("\\.(gz|zst)$", "");
+    if (type.endsWith(".csv")) {
+      metadata.setContentType("text/csv");
+    } else if (type.endsWith(".jsonl")) {
+      metadata.setContentType("application/x-ndjson");
+    } else if (type.endsWith(".json")) {
+      metadata.setContentType("application/json");
+    } else if (type.endsWith(".parquet")) {
+      metadata.setContentType("application/vnd.apache.parquet");
+    } else {
+      metadata.setContentType("application/octet-stream");
+    }
+    String contentEncoding = Compression.contentEncodingOf(filename);
+    if (contentEncoding != null) {
+      metadata.setContentEncoding(contentEncoding);
     }
+    return metadata;
   }
 }
@@ -0,0 +1,280 @@
+package org.vm.shared;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The S3MultipartOutputStream writes an object to an s3 bucket as it is being written, without staging it in
+ * a local file. Bytes are collected in fixed size parts that are uploaded in the background as a multipart upload
+ * as soon as they fill. The parts come from a bounded pool of buffers, so that writing blocks when every buffer
+ * is still being uploaded. If anything fails, the multipart upload is aborted and the failure is thrown from
+ * the next write and from close. Only a close that completed the upload returns normally; closing a stream whose
+ * upload was aborted, for whatever reason, throws, so the upload is never taken for a stored object.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+
+  /**
+   * The smallest part size s3 accepts for every part but the last one.
+   */
+  public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+  private final AmazonS3 s3Client;
+  private final String bucket;
+  private final String key;
+  private final String uploadId;
+  private final int partSize;
+  private final int poolSize;
+  private final BlockingQueue<byte[]> bufferPool;
+  private final ExecutorService uploader;
+  private final List<Future<PartETag>> parts = new ArrayList<>();
+
+  private int allocated = 0;
+  private byte[] buffer;
+  private int position = 0;
+  private long bytesWritten = 0;
+  private boolean closed = false;
+  private volatile boolean completed = false;
+  private volatile boolean aborted = false;
+  private volatile Exception failure;
+  private volatile StageStats stats;
+
+  /**
+   * The constructor starts the multipart upload.
+   * @param s3Client used for the upload.
+   * @param bucketName is the name of the destination bucket in AWS.
+   * @param key of the new object.
+   * @param metadata of the new object, ex: its content type.
+   * @param partSize the size in bytes of each part, at least MIN_PART_SIZE.
+   * @param poolSize the number of part buffers that may be held in memory at once.
+   */
+  public S3MultipartOutputStream(AmazonS3 s3Client, String bucketName, String key, ObjectMetadata metadata,
+                                 int partSize, int poolSize) {
+    if (partSize < MIN_PART_SIZE) {
+      throw new IllegalArgumentException("partSize must be at least " + MIN_PART_SIZE + " bytes");
+    }
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("poolSize must be at least 1");
+    }
+    this.s3Client = s3Client;
+    this.bucket = bucketName;
+    this.key = key;
+    this.partSize = partSize;
+    this.poolSize = poolSize;
+    this.bufferPool = new ArrayBlockingQueue<>(poolSize);
+    this.uploader = Executors.newFixedThreadPool(poolSize, runnable -> {
+      Thread thread = new Thread(runnable, "s3-part-upload");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.uploadId = s3Client.initiateMultipartUpload(
+        new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    while (len > 0) {
+      if (buffer == null) {
+        buffer = acquireBuffer();
+      }
+      int count = Math.min(len, partSize - position);
+      System.arraycopy(b, off, buffer, position, count);
+      position += count;
+      bytesWritten += count;
+      off += count;
+      len -= count;
+      if (position == partSize) {
+        sendPart();
+      }
+    }
+  }
+
+  /**
+   * Parts can only be sent once they are full, so flushing does nothing. The rest is sent by close.
+   */
+  @Override
+  public void flush() {
+  }
+
+  /**
+   * Sends the last part, waits for every part to be uploaded and completes the multipart upload. Closing a
+   * completed upload again does nothing.
+   * @throws IOException if any part failed or the upload was aborted, in which case no object was stored.
+   */
+  @Override
+  public void close() throws IOException {
+    if (completed) {
+      return;
+    }
+    checkOpen();
+    closed = true;
+    try {
+      if (position > 0 || parts.isEmpty()) {
+        sendPart();
+      }
+      List<PartETag> etags = new ArrayList<>();
+      for (Future<PartETag> part : parts) {
+        etags.add(part.get());
+      }
+      s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+      completed = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abort(e);
+      throw new IOException("Upload of " + key + " to " + bucket + " interrupted", e);
+    } catch (ExecutionException | RuntimeException e) {
+      abort(e);
+      throw new IOException("Upload of " + key + " to " + bucket + " failed", e);
+    } finally {
+      uploader.shutdown();
+    }
+  }
+
+  /**
+   * Cancels the parts still being uploaded and aborts the multipart upload, so that s3 does not keep
+   * the parts already sent. A later write or close throws.
+   */
+  public void abort() {
+    abort(new IOException("Upload of " + key + " to " + bucket + " was aborted"));
+  }
+
+  /**
+   * Aborts the multipart upload, keeping the first failure as the cause thrown by a later write or close.
+   * @param cause of the abort.
+   */
+  private synchronized void abort(Exception cause) {
+    if (failure == null) {
+      failure = cause;
+    }
+    if (aborted || completed) {
+      return;
+    }
+    aborted = true;
+    closed = true;
+    for (Future<PartETag> part : parts) {
+      part.cancel(true);
+    }
+    uploader.shutdownNow();
+    try {
+      s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+    } catch (RuntimeException e) {
+      //The parts of an upload that could not be aborted stay in the bucket until a lifecycle rule removes them.
+      failure.addSuppressed(e);
+      System.out.println("Aborting the upload of " + key + " to " + bucket + " failed: " + e);
+    }
+  }
+
+  /**
+   * Records the upload of every part in the given statistics, with the size of the part.
+   * @param stats of the part uploads.
+   */
+  public void setStats(StageStats stats) {
+    this.stats = stats;
+  }
+  
+  /**
+   * The number of bytes written to the stream so far.
+   * @return a number of bytes.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Hands the current buffer to the uploader as the next part. The buffer returns to the pool once it is sent.
+   */
+  private void sendPart() {
+    final byte[] data = buffer == null ? new byte[0] : buffer;
+    final int size = position;
+    final int partNumber = parts.size() + 1;
+    buffer = null;
+    position = 0;
+    parts.add(uploader.submit(() -> {
+      try {
+        UploadPartRequest request = new UploadPartRequest()
+                                        .withBucketName(bucket)
+                                        .withKey(key)
+                                        .withUploadId(uploadId)
+                                        .withPartNumber(partNumber)
+                                        .withInputStream(new ByteArrayInputStream(data, 0, size))
+                                        .withPartSize(size);
+        long start = System.nanoTime();
+        PartETag etag = s3Client.uploadPart(request).getPartETag();
+        StageStats partStats = stats;
+        if (partStats != null) {
+          partStats.record(size, System.nanoTime() - start);
+        }
+        return etag;
+      } catch (RuntimeException e) {
+        failure = e;
+        throw e;
+      } finally {
+        if (data.length == partSize) {
+          bufferPool.offer(data);
+        }
+      }
+    }));
+  }
+
+  /**
+   * Takes a free buffer from the pool, allocating a new one while the pool is below its size and
+   * otherwise waiting for a part upload to return one.
+   * @return a buffer of partSize bytes.
+   * @throws IOException if interrupted while waiting.
+   */
+  private byte[] acquireBuffer() throws IOException {
+    byte[] free = bufferPool.poll();
+    if (free != null) {
+      return free;
+    }
+    if (allocated < poolSize) {
+      allocated++;
+      return new byte[partSize];
+    }
+    try {
+      return bufferPool.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abort(e);
+      throw new IOException("Upload of " + key + " to " + bucket + " interrupted", e);
+    }
+  }
+
+  /**
+   * Throws if the stream was closed, or if a part failed or the upload was aborted, aborting the upload if it has
+   * not been yet.
+   * @throws IOException if the stream can no longer be written to, with the first failure as its cause.
+   */
+  private void checkOpen() throws IOException {
+    if (failure != null) {
+      Exception e = failure;
+      abort(e);
+      throw new IOException("Upload of " + key + " to " + bucket + " failed", e);
+    }
+    if (closed) {
+      throw new IOException("Upload of " + key + " to " + bucket + " is already closed");
+    }
+  }
+}
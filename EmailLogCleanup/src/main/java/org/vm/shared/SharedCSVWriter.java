@@ -2,14 +2,20 @@ package org.vm.shared;
 
 import com.opencsv.CSVWriter;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
 /**
  * This abstract class that inhertis from the SharedFileWriter class. It is designed for creating
  * CSV files with a defined method for writing a new line. It makes use of the opencsv library,
  * the documentation for which can be found here: http://opencsv.sourceforge.net.
+ * The CSVWriter of opencsv keeps the failures of its writes to itself, so they are checked after every line and
+ * before the file is closed, and thrown: a file that failed to write must never be taken for an archived one.
  */
 public abstract class SharedCSVWriter extends SharedFileWriter {
   
-  private final CSVWriter writer;
+  private final CheckedCSVWriter writer;
   
   /**
    * The constructor creates the new desired file, a file writer to write to the new file, and a writes
@@ -19,17 +25,110 @@ public abstract class SharedCSVWriter extends SharedFileWriter {
    * @param valueSeparator is the configurable delimiter for the file.
    */
   public SharedCSVWriter(String filePath, String filename, char valueSeparator) {
-    super(filePath, filename, ".csv");
-    writer = new CSVWriter(super.getFileWriter(), valueSeparator);
+    this(filePath, filename, valueSeparator, Compression.none());
+  }
+  
+  /**
+   * The constructor creates the new desired file, a file writer that compresses everything written to it,
+   * and writes the header for the file. It also establishes the value separator for the csv file.
+   * @param filePath is where the newly created file will go.
+   * @param filename of the new file.
+   * @param valueSeparator is the configurable delimiter for the file.
+   * @param compression of the new file.
+   */
+  public SharedCSVWriter(String filePath, String filename, char valueSeparator, Compression compression) {
+    super(filePath, filename, ".csv", compression);
+    writer = new CheckedCSVWriter(super.getFileWriter(), valueSeparator);
+    writeCSVHeader();
+  }
+  
+  /**
+   * The constructor creates the new desired file, a file writer that compresses everything written to it,
+   * and writes the given header instead of the one of writeCSVHeader, for files whose columns are only known
+   * at run time.
+   * @param filePath is where the newly created file will go.
+   * @param filename of the new file.
+   * @param valueSeparator is the configurable delimiter for the file.
+   * @param compression of the new file.
+   * @param header the names of the columns.
+   */
+  public SharedCSVWriter(String filePath, String filename, char valueSeparator, Compression compression,
+                         String[] header) {
+    super(filePath, filename, ".csv", compression);
+    writer = new CheckedCSVWriter(super.getFileWriter(), valueSeparator);
+    writeNextLine(header.clone());
+  }
+  
+  /**
+   * The constructor streams the new file straight to the destination of the WriteLog and writes the header
+   * for the file. It also establishes the value separator for the csv file.
+   * @param filename of the new file.
+   * @param valueSeparator is the configurable delimiter for the file.
+   * @param destination the log writer the file is streamed to.
+   */
+  public SharedCSVWriter(String filename, char valueSeparator, WriteLog destination) {
+    this(filename, valueSeparator, destination, Compression.none());
+  }
+  
+  /**
+   * The constructor streams the new file straight to the destination of the WriteLog, compressing it on the way,
+   * and writes the header for the file. It also establishes the value separator for the csv file.
+   * @param filename of the new file.
+   * @param valueSeparator is the configurable delimiter for the file.
+   * @param destination the log writer the file is streamed to.
+   * @param compression of the new file.
+   */
+  public SharedCSVWriter(String filename, char valueSeparator, WriteLog destination, Compression compression) {
+    super(filename, ".csv", destination, compression);
+    writer = new CheckedCSVWriter(super.getFileWriter(), valueSeparator);
     writeCSVHeader();
   }
   
+  /**
+   * The constructor streams the new file straight to the destination of the WriteLog, compressing it on the way,
+   * and writes the given header instead of the one of writeCSVHeader, for files whose columns are only known
+   * at run time.
+   * @param filename of the new file.
+   * @param valueSeparator is the configurable delimiter for the file.
+   * @param destination the log writer the file is streamed to.
+   * @param compression of the new file.
+   * @param header the names of the columns.
+   */
+  public SharedCSVWriter(String filename, char valueSeparator, WriteLog destination, Compression compression,
+                         String[] header) {
+    super(filename, ".csv", destination, compression);
+    writer = new CheckedCSVWriter(super.getFileWriter(), valueSeparator);
+    writeNextLine(header.clone());
+  }
+  
   /**
    * Uses the CSVWriter classes method for writing a new line to a CSV file when passed in as an array of strings.
    * @param line of type String[] with info to be written to csv file.
+   * @throws UncheckedIOException if the line could not be written.
    */
   public void writeNextLine(String[] line) {
     writer.writeNext(line);
+    IOException failure = writer.getException();
+    if (failure != null) {
+      throw new UncheckedIOException("Writing a line to " + getName() + " failed", failure);
+    }
+  }
+  
+  /**
+   * Closes the file, or completes its upload, unless a line written by opencsv failed, in which case a streamed
+   * upload is aborted instead.
+   * @throws IOException if a line could not be written, or the file could not be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    IOException failure = writer.getException();
+    if (failure != null) {
+      if (isStreamed()) {
+        abort();
+      }
+      throw new IOException("Writing " + getName() + " failed", failure);
+    }
+    super.close();
   }
   
   /**
@@ -44,4 +143,21 @@ public abstract class SharedCSVWriter extends SharedFileWriter {
    */
   public abstract void writeCSVHeader();
   
+  /**
+   * The CSVWriter of opencsv, with access to the failure it keeps.
+   */
+  private static final class CheckedCSVWriter extends CSVWriter {
+    
+    private CheckedCSVWriter(Writer writer, char separator) {
+      super(writer, separator);
+    }
+    
+    /**
+     * The first write that failed.
+     * @return the failure, or null if every write succeeded.
+     */
+    private IOException getException() {
+      return exception;
+    }
+  }
 }
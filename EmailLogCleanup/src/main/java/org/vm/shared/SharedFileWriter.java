@@ -1,20 +1,34 @@
 package org.vm.shared;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The SharedFileWriter abstract class is designed to create a file of any type
  * and a file writer for the new file. This type is used in the Clean method, so that if VolunteerMatch
  * decides creating a JSON file would be more useful than a CSV file, all one needs to do is create
  * a JSON file writer that inherits from this class.
+ * A writer either writes to a local file, or streams its contents straight to the destination
+ * of a WriteLog, in which case there is no file. Either way the contents can be compressed on the way,
+ * see Compression.
  *
  */
-public abstract class SharedFileWriter {
+public abstract class SharedFileWriter implements Closeable {
   
-  private final FileWriter fw;
+  private final Writer fw;
+  private final OutputStream out;
   private final File file;
+  private final String name;
+  private final CountingOutputStream stream;
   
   /**
    * The constructor creates the new desired file and a file writer to write to the new file.
@@ -23,55 +37,172 @@ public abstract class SharedFileWriter {
    * @param fileType the type of the new file. Ex: .csv, .json...
    */
   public SharedFileWriter(String filePath, String filename, String fileType) {
-    file = createFile(filePath + filename + fileType);
-    fw = createFileWriter(filePath + filename + fileType);
+    this(filePath, filename, fileType, Compression.none());
+  }
+  
+  /**
+   * The constructor creates the new desired file and a file writer that compresses everything written
+   * to the new file. The extension of the compression is added to the file name.
+   * @param filePath for the new file.
+   * @param filename of the new file.
+   * @param fileType the type of the new file. Ex: .csv, .json...
+   * @param compression of the new file.
+   */
+  public SharedFileWriter(String filePath, String filename, String fileType, Compression compression) {
+    this(filePath, filename, fileType, compression, false);
+  }
+  
+  /**
+   * The constructor creates the new desired file for a text or a binary file type. A binary writer writes
+   * bytes to getOutputStream and has no file writer.
+   * @param filePath for the new file.
+   * @param filename of the new file.
+   * @param fileType the type of the new file. Ex: .csv, .json, .parquet...
+   * @param compression of the new file.
+   * @param binary true if the file is written through getOutputStream rather than getFileWriter.
+   */
+  protected SharedFileWriter(String filePath, String filename, String fileType, Compression compression,
+                             boolean binary) {
+    name = filename + fileType + compression.getExtension();
+    file = createFile(filePath + name);
+    stream = null;
+    if (compression == Compression.none() && !binary) {
+      out = null;
+      fw = createFileWriter(filePath + name);
+    } else {
+      try {
+        out = compression.wrap(new FileOutputStream(file));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      fw = binary ? null : new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+  }
+  
+  /**
+   * The constructor opens a stream to the destination of the WriteLog and a writer on top of it, so that
+   * everything written goes straight to the destination without a local file.
+   * @param filename of the new file.
+   * @param fileType the type of the new file. Ex: .csv, .json...
+   * @param destination the log writer the contents are streamed to.
+   */
+  public SharedFileWriter(String filename, String fileType, WriteLog destination) {
+    this(filename, fileType, destination, Compression.none());
+  }
+  
+  /**
+   * The constructor opens a stream to the destination of the WriteLog and a writer on top of it that
+   * compresses everything written on the way. The extension of the compression is added to the file name.
+   * @param filename of the new file.
+   * @param fileType the type of the new file. Ex: .csv, .json...
+   * @param destination the log writer the contents are streamed to.
+   * @param compression of the new file.
+   */
+  public SharedFileWriter(String filename, String fileType, WriteLog destination, Compression compression) {
+    this(filename, fileType, destination, compression, false);
+  }
+  
+  /**
+   * The constructor opens a stream to the destination of the WriteLog for a text or a binary file type.
+   * A binary writer writes bytes to getOutputStream and has no file writer.
+   * @param filename of the new file.
+   * @param fileType the type of the new file. Ex: .csv, .json, .parquet...
+   * @param destination the log writer the contents are streamed to.
+   * @param compression of the new file.
+   * @param binary true if the file is written through getOutputStream rather than getFileWriter.
+   */
+  protected SharedFileWriter(String filename, String fileType, WriteLog destination, Compression compression,
+                             boolean binary) {
+    file = null;
+    name = filename + fileType + compression.getExtension();
+    try {
+      stream = new CountingOutputStream(destination.openLog(name));
+      out = compression.wrap(stream);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    fw = binary ? null : new OutputStreamWriter(out, StandardCharsets.UTF_8);
   }
   
   /**
    * The file associated with the Writer.
-   * @return a file.
+   * @return a file, or null if the contents are streamed to their destination.
    */
   public File getFile() {
     File currFile = file;
     return currFile;
   }
   
+  /**
+   * The name of the file, including its type and compression.
+   * @return the file name.
+   */
+  public String getName() {
+    return name;
+  }
+  
+  /**
+   * The number of bytes written so far, after compression. This is only accurate once the writer has been closed.
+   * @return a number of bytes.
+   */
+  public long getSize() {
+    return file != null ? file.length() : stream.count;
+  }
+  
+  /**
+   * Whether or not the contents are streamed to their destination instead of written to a local file.
+   * @return true if there is no local file.
+   */
+  public boolean isStreamed() {
+    return file == null;
+  }
+  
   /**
    * Access the file writer for this file.
-   * @return the file writer.
+   * @return the file writer, or null for a binary file type.
    */
-  public FileWriter getFileWriter() {
+  public Writer getFileWriter() {
     return fw;
   }
   
+  /**
+   * Access the byte stream of a binary file type. Everything written to it is compressed, if configured,
+   * and goes to the file or the destination of the WriteLog.
+   * @return the output stream, or null for a text file type.
+   */
+  protected OutputStream getOutputStream() {
+    return fw == null ? out : null;
+  }
+  
   /**
    * Deletes the file from the instance of the code running.
    */
   public void deleteFile() {
-    if (file.delete()) {
-      System.out.println(file.getName() + " deleted");
-    } else {
-      System.out.println(file.getName() + " deletion failed");
+    if (file == null) {
+      return;
+    }
+    if (!file.delete()) {
+      System.out.println("Deleting " + file.getName() + " failed");
     }
   }
   
   /**
-   * Creates a new file using input filepath, filename, and file type.
+   * Creates a new file using input filepath, filename, and file type. File names may contain directories, like
+   * keys in a bucket, which are created as well.
    * @param filePath of file.
    * @return new file.
+   * @throws UncheckedIOException if the file cannot be created, so that no writer without a file is used.
    */
   public File createFile(String filePath) {
     try {
       File file = new File(filePath);
-      if (file.createNewFile()) {
-        System.out.println("File Created: " + file.getName());
-      } else {
-        System.out.println("File already exists");
+      file.getAbsoluteFile().getParentFile().mkdirs();
+      if (!file.createNewFile()) {
+        System.out.println(file.getName() + " already exists");
       }
       return file;
     } catch (IOException e) {
-      e.printStackTrace();
-      return null;
+      throw new UncheckedIOException("Creating " + filePath + " failed", e);
     }
   }
   
@@ -79,37 +210,66 @@ public abstract class SharedFileWriter {
    * Creates new FileWriter for the specified file.
    * @param filePath of file.
    * @return FileWriter associated with File.
+   * @throws UncheckedIOException if the file cannot be opened.
    */
   public FileWriter createFileWriter(String filePath) {
     try {
       return new FileWriter(filePath);
     } catch (IOException e) {
-      e.printStackTrace();
-      return null;
+      throw new UncheckedIOException("Opening " + filePath + " failed", e);
     }
   }
   
   /**
-   * Flushes all written information and closes the FileWriter.
+   * Flushes all written information and closes the FileWriter. A failure is only logged, as the file is given up.
    */
   public void flushAndClose() {
     try {
+      close();
+    } catch (IOException e) {
+      System.out.println("Closing " + getName() + " failed: " + e);
+    }
+  }
+  
+  /**
+   * Flushes all written information and closes the FileWriter. Unlike flushAndClose, failures are thrown,
+   * which matters for streamed writers as closing completes the upload to the destination.
+   * @throws IOException in case of error.
+   */
+  @Override
+  public void close() throws IOException {
+    if (fw != null) {
       fw.flush();
       fw.close();
-    } catch (IOException e) {
-      e.printStackTrace();
+    } else {
+      out.flush();
+      out.close();
+    }
+  }
+  
+  /**
+   * Gives up on the file. A streamed writer aborts the upload to its destination, so that no partial
+   * file is left behind; a local file is closed and deleted.
+   */
+  public void abort() {
+    if (stream != null && stream.target instanceof S3MultipartOutputStream) {
+      ((S3MultipartOutputStream) stream.target).abort();
+    } else {
+      flushAndClose();
+      deleteFile();
     }
   }
   
   /**
    * Writes input string to the file using the file writer.
    * @param info with desired String
+   * @throws UncheckedIOException if the write failed.
    */
   public void writeInfo(String info) {
     try {
       fw.append(info);
     } catch (IOException e) {
-      e.printStackTrace();
+      throw new UncheckedIOException("Writing to " + name + " failed", e);
     }
   }
   
@@ -120,4 +280,29 @@ public abstract class SharedFileWriter {
    */
   public abstract void writeToFile(Object o);
   
+  
+  /**
+   * Counts the bytes passed to the stream of a streamed writer.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private final OutputStream target;
+    private long count = 0;
+    
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+      target = out;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
 }
@@ -0,0 +1,60 @@
+package org.vm.shared;
+
+import java.io.IOException;
+
+/**
+ * This abstract class inherits from the SharedFileWriter class. It is designed for creating JSON Lines files,
+ * https://jsonlines.org, where every line of the file is one JSON record. Records are written with a
+ * JsonStreamWriter, so a record is encoded straight into the file without building a tree of objects first.
+ */
+public abstract class SharedJsonLinesWriter extends SharedFileWriter {
+
+  private final JsonStreamWriter json;
+
+  /**
+   * The constructor creates the new desired file and a JSON writer on top of its file writer.
+   * @param filePath is where the newly created file will go.
+   * @param filename of the new file.
+   * @param compression of the new file.
+   */
+  public SharedJsonLinesWriter(String filePath, String filename, Compression compression) {
+    super(filePath, filename, ".jsonl", compression);
+    json = new JsonStreamWriter(getFileWriter());
+  }
+
+  /**
+   * The constructor streams the new file straight to the destination of the WriteLog.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param compression of the new file.
+   */
+  public SharedJsonLinesWriter(String filename, WriteLog destination, Compression compression) {
+    super(filename, ".jsonl", destination, compression);
+    json = new JsonStreamWriter(getFileWriter());
+  }
+
+  /**
+   * The JSON writer of the file. A record is complete once it has been ended with endLine.
+   * @return the JSON writer.
+   */
+  protected JsonStreamWriter getJsonWriter() {
+    return json;
+  }
+
+  /**
+   * Writes the buffered records before the file is closed.
+   * @throws IOException in case of error.
+   */
+  @Override
+  public void close() throws IOException {
+    json.writeBuffer();
+    super.close();
+  }
+
+  /**
+   * Object will contain information in a format specific to the program.
+   * @param o containing information to parse into file.
+   */
+  @Override
+  public abstract void writeToFile(Object o);
+}
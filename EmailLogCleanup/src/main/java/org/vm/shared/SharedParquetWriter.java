@@ -0,0 +1,181 @@
+package org.vm.shared;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.schema.MessageType;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * This abstract class inherits from the SharedFileWriter class. It is designed for creating Parquet files
+ * with a typed schema, using the parquet-hadoop library, the documentation for which can be found here:
+ * https://parquet.apache.org. Columns are dictionary encoded and fall back to delta encodings, and rows are
+ * buffered in memory until a row group reaches its size, so the row group size bounds the memory a writer uses.
+ */
+public abstract class SharedParquetWriter extends SharedFileWriter {
+
+  /**
+   * Row group size in megabytes when none is configured.
+   */
+  public static final int DEFAULT_ROW_GROUP_MB = 32;
+
+  private final ParquetWriter<Group> writer;
+  private final SimpleGroupFactory groupFactory;
+
+  /**
+   * The constructor creates the new desired file and a Parquet writer for the schema.
+   * @param filePath is where the newly created file will go.
+   * @param filename of the new file.
+   * @param schema of the rows in the file.
+   * @param codec the compression of the column chunks.
+   * @param rowGroupMb the memory budget of a row group in megabytes.
+   */
+  public SharedParquetWriter(String filePath, String filename, MessageType schema, CompressionCodecName codec,
+                             int rowGroupMb) {
+    super(filePath, filename, ".parquet", Compression.none(), true);
+    groupFactory = new SimpleGroupFactory(schema);
+    writer = createWriter(schema, codec, rowGroupMb);
+  }
+
+  /**
+   * The constructor streams the new file straight to the destination of the WriteLog.
+   * @param filename of the new file.
+   * @param destination the log writer the file is streamed to.
+   * @param schema of the rows in the file.
+   * @param codec the compression of the column chunks.
+   * @param rowGroupMb the memory budget of a row group in megabytes.
+   */
+  public SharedParquetWriter(String filename, WriteLog destination, MessageType schema, CompressionCodecName codec,
+                             int rowGroupMb) {
+    super(filename, ".parquet", destination, Compression.none(), true);
+    groupFactory = new SimpleGroupFactory(schema);
+    writer = createWriter(schema, codec, rowGroupMb);
+  }
+
+  /**
+   * Creates an empty row of the schema.
+   * @return a new row.
+   */
+  public Group newRow() {
+    return groupFactory.newGroup();
+  }
+
+  /**
+   * Writes a row to the file.
+   * @param row created with newRow.
+   */
+  public void writeRow(Group row) {
+    try {
+      writer.write(row);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Writes the last row group and the footer of the file, then closes it.
+   * @throws IOException in case of error.
+   */
+  @Override
+  public void close() throws IOException {
+    writer.close();
+    super.close();
+  }
+
+  /**
+   * Object will contain information in a format specific to the program.
+   * @param o containing information to parse into file.
+   */
+  @Override
+  public abstract void writeToFile(Object o);
+
+  /**
+   * Builds the Parquet writer on top of the output stream of the file.
+   */
+  private ParquetWriter<Group> createWriter(MessageType schema, CompressionCodecName codec, int rowGroupMb) {
+    try {
+      return ExampleParquetWriter.builder(new StreamOutputFile(getOutputStream()))
+                 .withConf(new Configuration(false))
+                 .withType(schema)
+                 .withCompressionCodec(codec)
+                 .withRowGroupSize((long) rowGroupMb * 1024 * 1024)
+                 .withPageSize(ParquetProperties.DEFAULT_PAGE_SIZE)
+                 .withDictionaryEncoding(true)
+                 .withWriterVersion(ParquetProperties.WriterVersion.PARQUET_2_0)
+                 .build();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Lets Parquet write to the output stream of the file. Closing is left to the SharedFileWriter.
+   */
+  private static final class StreamOutputFile implements OutputFile {
+    private final OutputStream out;
+
+    private StreamOutputFile(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public PositionOutputStream create(long blockSizeHint) {
+      final OutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+      return new PositionOutputStream() {
+        private long position = 0;
+
+        @Override
+        public long getPos() {
+          return position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+          buffered.write(b);
+          position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          buffered.write(b, off, len);
+          position += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+          buffered.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          buffered.flush();
+        }
+      };
+    }
+
+    @Override
+    public PositionOutputStream createOrOverwrite(long blockSizeHint) {
+      return create(blockSizeHint);
+    }
+
+    @Override
+    public boolean supportsBlockSize() {
+      return false;
+    }
+
+    @Override
+    public long defaultBlockSize() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package org.vm.shared;
+
+/**
+ * StageStats tracks how much work one stage of a run has done and how long it was busy doing it, so that each
+ * stage can report its own throughput. Every call to record counts as one operation, ex: one file encoded, one
+ * part uploaded or one batch deleted, and its latency goes into a histogram with power of two buckets, from
+ * which percentiles are read. Recording costs a few arithmetic operations, so stages can record freely.
+ * Time spent waiting between stages is not counted.
+ */
+public class StageStats {
+  
+  /**
+   * Number of histogram buckets. Bucket i holds latencies from 2^(i-1) up to 2^i microseconds.
+   */
+  private static final int BUCKETS = 40;
+  
+  private final String name;
+  private final String unit;
+  private final long[] histogram = new long[BUCKETS];
+  private long items = 0;
+  private long busyNanos = 0;
+  private long operations = 0;
+  private long maxNanos = 0;
+  
+  /**
+   * The constructor takes in the name of the stage and the unit of the items it processes.
+   * @param name of the stage.
+   * @param unit of the items counted, ex: rows, files...
+   */
+  public StageStats(String name, String unit) {
+    this.name = name;
+    this.unit = unit;
+  }
+  
+  /**
+   * Records one operation of the stage.
+   * @param count the number of items processed.
+   * @param nanos the time in nanoseconds it took.
+   */
+  public synchronized void record(long count, long nanos) {
+    items += count;
+    busyNanos += nanos;
+    operations++;
+    maxNanos = Math.max(maxNanos, nanos);
+    long micros = Math.max(0, nanos / 1000);
+    histogram[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+  }
+  
+  /**
+   * The name of the stage.
+   * @return the name.
+   */
+  public String getName() {
+    return name;
+  }
+  
+  /**
+   * The unit of the items counted.
+   * @return the unit.
+   */
+  public String getUnit() {
+    return unit;
+  }
+  
+  /**
+   * The number of items processed so far.
+   * @return the item count.
+   */
+  public synchronized long getItems() {
+    return items;
+  }
+  
+  /**
+   * The number of operations recorded so far.
+   * @return the operation count.
+   */
+  public synchronized long getOperations() {
+    return operations;
+  }
+  
+  /**
+   * The time in milliseconds the stage has been busy so far.
+   * @return busy time in milliseconds.
+   */
+  public synchronized long getBusyMillis() {
+    return busyNanos / 1000000;
+  }
+  
+  /**
+   * The items processed per second of busy time.
+   * @return the throughput of the stage.
+   */
+  public synchronized double getThroughput() {
+    return busyNanos == 0 ? 0 : items * 1e9 / busyNanos;
+  }
+  
+  /**
+   * The latency of the slowest operation.
+   * @return the latency in milliseconds.
+   */
+  public synchronized double getMaxMillis() {
+    return maxNanos / 1e6;
+  }
+  
+  /**
+   * An upper bound for the latency below which the given fraction of the operations finished, accurate to a
+   * factor of two. It never exceeds the slowest operation.
+   * @param fraction between 0 and 1, ex: 0.99 for the 99th percentile.
+   * @return the latency in milliseconds, 0 if nothing has been recorded.
+   */
+  public synchronized double getPercentileMillis(double fraction) {
+    long rank = (long) Math.ceil(fraction * operations);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += histogram[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min((1L << i) / 1000.0, getMaxMillis());
+      }
+    }
+    return getMaxMillis();
+  }
+  
+  /**
+   * A single line summary of the stage, ex: "encode: 120000 rows in 1840 ms (65217 rows/s)".
+   * @return the summary.
+   */
+  @Override
+  public synchronized String toString() {
+    return name + ": " + items + " " + unit + " in " + getBusyMillis() + " ms ("
+               + Math.round(getThroughput()) + " " + unit + "/s)";
+  }
+}
@@ -2,6 +2,7 @@ package org.vm.shared;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * The WriteLog interface can be implemented by a class that is designed to write a log to a destination
@@ -15,4 +16,22 @@ public interface WriteLog {
    * @param filename for the created file.
    */
   void writeLog(File file, String filename) throws IOException;
+  
+  /**
+   * Opens a stream that writes a log straight to its destination, without a local file in between.
+   * The log is complete once the stream has been closed without error.
+   * @param filename for the created file.
+   * @return a stream for the contents of the log.
+   * @throws IOException in case of error.
+   */
+  default OutputStream openLog(String filename) throws IOException {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support streaming");
+  }
+  
+  /**
+   * Records every write in the given statistics, with the bytes it wrote. Writers that are not measured ignore it.
+   * @param stats of the writes.
+   */
+  default void setStats(StageStats stats) {
+  }
 }
@@ -0,0 +1,151 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vm.shared.Compression;
+import org.vm.shared.ConnectionPool;
+import org.vm.shared.SharedFileWriter;
+import org.vm.shared.SharedParquetWriter;
+import org.vm.shared.WriteLog;
+
+/**
+ * Measures a whole run of the archiver against an embedded H2 database in MySQL mode: the keyset scan of
+ * mail_log, the sendgrid lookups, encoding the files, handing them to the uploader and deleting the archived
+ * emails in batches. Before every iteration the tables are seeded with the same emails, which a single slice
+ * then archives. Files are dropped instead of uploaded and checkpoints are kept in memory, so no S3 bucket is
+ * needed. The score is the time one run takes. Run with mvn -Pbenchmark verify -Dbenchmark.args=ArchiveBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 5, batchSize = 1)
+@Fork(1)
+public class ArchiveBenchmark {
+
+    private static final int ROWS = 50000;
+
+    @Param({"csv", "parquet", "jsonl"})
+    public String format;
+
+    @Param({"10000"})
+    public int emailNum;
+
+    private List<String[]> rows;
+    private ConnectionPool pool;
+    private File dir;
+    private int emails;
+
+    @Setup
+    public void setup() throws IOException {
+        rows = BenchmarkData.generateRows(ROWS);
+        pool = ConnectionPool.of(BenchmarkData.h2Url("archive"), ConnectionPool.DEFAULT_MAX_IDLE);
+        dir = Files.createTempDirectory("archive-benchmark").toFile();
+    }
+
+    @Setup(Level.Iteration)
+    public void seed() throws SQLException {
+        try (Connection con = pool.getConnection()) {
+            BenchmarkData.createTables(con);
+            emails = BenchmarkData.insertRows(con, rows);
+        }
+    }
+
+    /**
+     * Checks that the run archived and deleted every email.
+     */
+    @TearDown(Level.Iteration)
+    public void verify() throws SQLException {
+        try (Connection con = pool.getConnection();
+             Statement stat = con.createStatement();
+             ResultSet rs = stat.executeQuery("SELECT COUNT(*) FROM mail_log")) {
+            rs.next();
+            if (rs.getInt(1) != 0) {
+                throw new IllegalStateException(rs.getInt(1) + " of " + emails + " emails were not archived");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+        dir.delete();
+    }
+
+    /**
+     * Archives every email in one slice.
+     */
+    @Benchmark
+    public int archive() throws SQLException, IOException {
+        ArchiveSettings settings = new ArchiveSettings("benchmark_", emailNum, RunSettings.DEFAULT_JOIN_BATCH,
+            BatchDeleter.DEFAULT_BATCH, BatchDeleter.DEFAULT_TARGET_MS, 0, 0, ArchiveJob.MAIL_LOG, 0);
+        Function<String, SharedFileWriter> writerFactory = format.equals("parquet")
+            ? name -> new CleanParquetWriter(dir.getPath() + "/", name, CompressionCodecName.ZSTD,
+                SharedParquetWriter.DEFAULT_ROW_GROUP_MB)
+            : format.equals("jsonl")
+            ? name -> new CleanJsonLinesWriter(dir.getPath() + "/", name, Compression.none())
+            : name -> new CleanCSVWriter(dir.getPath() + "/", name, Compression.none());
+        WriteLog discard = (file, filename) -> { };
+        SliceArchiver archiver = new SliceArchiver(settings, pool, new Checkpoint(0, new Timestamp(0), 0, 0, null, null),
+            new Timestamp(System.currentTimeMillis()), writerFactory, discard, new MemoryCheckpointStore(),
+            new RunReport("benchmark"), new ArchiveManifest(emailNum, ArchiveManifest.DEFAULT_FALSE_POSITIVES),
+            null);
+        return archiver.call();
+    }
+
+    /**
+     * Keeps the checkpoints of the run in memory instead of in a bucket.
+     */
+    private static class MemoryCheckpointStore extends CheckpointStore {
+
+        private MemoryCheckpointStore() {
+            super(null, null, null);
+        }
+
+        @Override
+        public List<Checkpoint> load() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void save(Checkpoint checkpoint) {
+        }
+
+        @Override
+        public void saveAll(List<Checkpoint> checkpoints) {
+        }
+
+        @Override
+        public void finish(int slice, String partition) {
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.vm.email.cleanup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vm.shared.Compression;
+import org.vm.shared.LocalLogWriter;
+import org.vm.shared.LongList;
+
+/**
+ * Checks that a stage that fails with an Error, as an OutOfMemoryError would, stops the pipeline and is thrown by
+ * finish instead of leaving the reader waiting on a full queue, and that nothing is deleted. A pipeline that fails
+ * gives back its share of the heap budget, so the pipelines of the other slices do not wait for it, and leaves
+ * no file it has not uploaded behind.
+ */
+public class ArchivePipelineTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("archive-pipeline-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * The encoder fails on the first row, while the reader hands the pipeline more rows than its queue holds.
+     */
+    @Test(timeout = 30000)
+    public void errorInStageIsThrownByFinish() throws SQLException, IOException {
+        int[] deleted = {0};
+        ArchivePipeline pipeline = new ArchivePipeline(name -> {
+            throw new OutOfMemoryError("Java heap space");
+        }, new LocalLogWriter(dir), (ids, listener) -> deleted[0] += ids.size(), null, new RunReport("test"), null,
+            null);
+        pipeline.startFile("pipeline_test_1");
+        LongList ids = new LongList(10);
+        ids.add(1);
+        for (int i = 0; i < 3 * ArchivePipeline.ROW_QUEUE_CAPACITY && !pipeline.isFailed(); i++) {
+            pipeline.addRow(new String[] {Integer.toString(i)});
+        }
+        pipeline.endFile(ids, null, null, null);
+        try {
+            pipeline.finish();
+            fail("finish should throw the error of the encoder");
+        } catch (OutOfMemoryError e) {
+            assertEquals("Java heap space", e.getMessage());
+        }
+        assertEquals(0, deleted[0]);
+    }
+
+    /**
+     * Two slices share a small budget. The first one fills it while its encoder is stuck, then the encoder fails; the
+     * second one archives a file larger than the budget afterwards.
+     */
+    @Test(timeout = 30000)
+    public void failedPipelineReleasesItsBudget() throws Exception {
+        HeapBudget budget = new HeapBudget(64 * 1024);
+        CountDownLatch stuck = new CountDownLatch(1);
+        ArchivePipeline failing = new ArchivePipeline(name -> {
+            try {
+                stuck.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("encoder failed");
+        }, new LocalLogWriter(dir), (ids, listener) -> ids.size(), null, new RunReport("test"), null, budget);
+        Thread reader = new Thread(() -> {
+            failing.startFile("failing_1");
+            for (int i = 0; !failing.isFailed(); i++) {
+                failing.addRow(row(i));
+            }
+        });
+        reader.start();
+        while (budget.getReserved() + 2 * HeapBudget.rowBytes(row(0)) <= budget.getBudget()) {
+            Thread.sleep(10);
+        }
+        stuck.countDown();
+        reader.join();
+        try {
+            failing.finish();
+            fail("finish should throw the failure of the encoder");
+        } catch (IllegalStateException e) {
+            assertEquals("encoder failed", e.getMessage());
+        }
+
+        ArchivePipeline working = new ArchivePipeline(name -> new CleanCSVWriter(dir.getPath() + "/", name,
+            Compression.none(), ArchiveJob.MAIL_LOG), new LocalLogWriter(dir), (ids, listener) -> ids.size(), null,
+            new RunReport("test"), null, budget);
+        working.startFile("working_1");
+        LongList ids = new LongList(10);
+        for (int i = 0; i < 2000; i++) {
+            working.addRow(row(i));
+            ids.add(i);
+        }
+        working.endFile(ids, null, null, null);
+        assertEquals(2000, working.finish());
+        assertEquals(0, budget.getReserved());
+    }
+
+    /**
+     * A reader waiting for a budget held by other slices stops waiting once its slice is asked to stop.
+     */
+    @Test(timeout = 30000)
+    public void stopEndsTheWaitForTheBudget() throws Exception {
+        HeapBudget budget = new HeapBudget(1024);
+        budget.reserve(budget.getBudget());
+        ArchivePipeline pipeline = new ArchivePipeline(name -> new CleanCSVWriter(dir.getPath() + "/", name,
+            Compression.none(), ArchiveJob.MAIL_LOG), new LocalLogWriter(dir), (ids, listener) -> ids.size(), null,
+            new RunReport("test"), null, budget);
+        Thread reader = new Thread(() -> {
+            pipeline.startFile("stopped_1");
+            pipeline.addRow(row(0));
+        });
+        reader.start();
+        reader.join(500);
+        pipeline.stop();
+        reader.join();
+        assertFalse(reader.isAlive());
+        LongList ids = new LongList(10);
+        ids.add(0);
+        pipeline.endFile(ids, null, null, null);
+        assertEquals(1, pipeline.finish());
+        budget.release(budget.getBudget());
+        assertEquals(0, budget.getReserved());
+    }
+
+    /**
+     * The upload of the first file fails while the files after it wait in the queues. None of their local copies
+     * is left behind.
+     */
+    @Test(timeout = 30000)
+    public void failedUploadDiscardsQueuedFiles() throws Exception {
+        CountDownLatch uploading = new CountDownLatch(1);
+        ArchivePipeline pipeline = new ArchivePipeline(name -> new CleanCSVWriter(dir.getPath() + "/", name,
+            Compression.none(), ArchiveJob.MAIL_LOG), (file, filename) -> {
+                try {
+                    uploading.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("upload failed");
+            }, (ids, listener) -> ids.size(), null, new RunReport("test"), null, null);
+        for (int i = 1; i <= 3; i++) {
+            pipeline.startFile("queued_" + i);
+            pipeline.addRow(row(i));
+            LongList ids = new LongList(10);
+            ids.add(i);
+            pipeline.endFile(ids, null, null, null);
+        }
+        while (dir.listFiles().length < 3) {
+            Thread.sleep(10);
+        }
+        uploading.countDown();
+        try {
+            pipeline.finish();
+            fail("finish should throw the failure of the upload");
+        } catch (IOException e) {
+            assertEquals("upload failed", e.getMessage());
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    /**
+     * A row of about a kilobyte.
+     * @param i the number of the row.
+     * @return the row.
+     */
+    private static String[] row(int i) {
+        char[] text = new char[300];
+        Arrays.fill(text, 'x');
+        return new String[] {Integer.toString(i), new String(text), new String(text)};
+    }
+}
@@ -0,0 +1,180 @@
+package org.vm.email.cleanup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vm.shared.LocalLogWriter;
+
+/**
+ * Runs Clean.handleRequest against H2 with LOCAL_DIR, as LoadHarness does, and checks what it archived: every row
+ * of an email and its events appears exactly once across the files, every email that was deleted was archived
+ * with all of its events, and the excluded emails are deleted without being archived. The runs stop at MAX_EMAILS
+ * and continue from their checkpoints, with several slices, until everything is archived.
+ */
+public class ArchiveRoundTripTest {
+
+    private static final String JDBC = BenchmarkData.h2Url("roundtrip");
+    private static final String EXCLUDED = "custom_email_to_volunteer";
+    private static final int EMAILS = 5000;
+    private static final int MAX_RUNS = 30;
+
+    private Connection con;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        new SyntheticDataGenerator(JDBC, EMAILS, 30, 2).load();
+        con = DriverManager.getConnection(JDBC);
+        //The emails are generated up to now. Moved an hour back, none of them is after the cutoff of the first run,
+        //which the slices it plans keep over the runs that follow.
+        try (Statement stat = con.createStatement()) {
+            stat.executeUpdate("UPDATE mail_log SET sent_time = DATEADD('HOUR', -1, sent_time)");
+        }
+        dir = Files.createTempDirectory("archive-round-trip-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws SQLException, IOException {
+        try (Statement stat = con.createStatement()) {
+            stat.execute("DROP ALL OBJECTS");
+        }
+        con.close();
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Archives every email over several runs and compares the files with the rows the database held before.
+     */
+    @Test(timeout = 300000)
+    public void everyDeletedRowIsArchivedExactlyOnce() throws Exception {
+        Map<String, String> before = rows();
+        Set<Long> excluded = excludedEmails();
+        assertTrue("the data should hold excluded emails", !excluded.isEmpty());
+
+        Map<String, String> env = new HashMap<>();
+        env.put("OFFSET", "0");
+        env.put("BASE_FILENAME", "roundtrip_");
+        env.put("EMAILNUM", "400");
+        env.put("MAX_EMAILS", "900");
+        env.put("PARALLELISM", "3");
+        env.put("PRIME", "false");
+        env.put("JDBC_URL", JDBC);
+        env.put("LOCAL_DIR", dir.getPath());
+        int runs = 0;
+        String status;
+        do {
+            if (++runs > MAX_RUNS) {
+                fail("Clean did not archive every email in " + MAX_RUNS + " runs");
+            }
+            String output = new Clean(env::get).handleRequest(null, null);
+            status = output.substring(0, output.indexOf(':'));
+            assertTrue(output, status.equals("SUCCESS") || status.equals("PARTIAL"));
+        } while (status.equals("PARTIAL"));
+        assertTrue("the runs should continue from their checkpoints", runs > 1);
+
+        Map<String, String> archived = archivedRows();
+        Map<String, String> after = rows();
+        for (Map.Entry<String, String> row : before.entrySet()) {
+            long id = Long.parseLong(row.getKey().substring(0, row.getKey().indexOf('/')));
+            if (after.containsKey(row.getKey())) {
+                continue;
+            }
+            if (excluded.contains(id)) {
+                assertTrue("excluded row " + row.getKey() + " should not be archived",
+                    !archived.containsKey(row.getKey()));
+            } else {
+                assertEquals("deleted row " + row.getKey() + " should be archived", row.getValue(),
+                    archived.get(row.getKey()));
+            }
+        }
+        for (String key : archived.keySet()) {
+            assertTrue("archived row " + key + " should have been in the database", before.containsKey(key));
+            assertTrue("archived row " + key + " should have been deleted", !after.containsKey(key));
+        }
+        assertEquals("every email before the cutoff should be deleted", 0, after.size());
+    }
+
+    /**
+     * Reads every file of the archive.
+     * @return the email and guid of every row, by the id of its email and the id of its event.
+     * @throws IOException if a file cannot be read.
+     */
+    private Map<String, String> archivedRows() throws IOException {
+        LocalLogWriter archive = new LocalLogWriter(dir);
+        Map<String, String> rows = new HashMap<>();
+        int files = 0;
+        for (String name : archive.listLogs("roundtrip_")) {
+            if (!name.endsWith(".csv")) {
+                continue;
+            }
+            files++;
+            try (ArchiveFileReader reader = ArchiveFileReader.open(archive, name)) {
+                String[] row;
+                while ((row = reader.readRow()) != null) {
+                    String key = row[0] + "/" + (row.length > 8 ? row[8] : "");
+                    String previous = rows.put(key, row[1] + " " + row[2]);
+                    assertTrue("row " + key + " is archived twice, again in " + name, previous == null);
+                }
+            }
+        }
+        assertTrue("the archive should span several files", files > 1);
+        return rows;
+    }
+
+    /**
+     * The rows the archive holds for the emails in the database: one per event, and one for an email without
+     * events.
+     * @return the email and guid of every row, by the id of its email and the id of its event.
+     * @throws SQLException in case of error.
+     */
+    private Map<String, String> rows() throws SQLException {
+        Map<String, String> rows = new HashMap<>();
+        try (Statement stat = con.createStatement();
+             ResultSet rs = stat.executeQuery("SELECT m.id, e.sg_event_id, m.email, m.guid FROM mail_log m "
+                                                  + "LEFT JOIN sendgrid_event e ON e.guid = m.guid")) {
+            while (rs.next()) {
+                String event = rs.getString(2);
+                rows.put(rs.getLong(1) + "/" + (event == null ? "" : event), rs.getString(3) + " " + rs.getString(4));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * The emails the job deletes without archiving them.
+     * @return their ids.
+     * @throws SQLException in case of error.
+     */
+    private Set<Long> excludedEmails() throws SQLException {
+        Set<Long> ids = new HashSet<>();
+        try (Statement stat = con.createStatement();
+             ResultSet rs = stat.executeQuery("SELECT id FROM mail_log WHERE type = '" + EXCLUDED + "'")) {
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,131 @@
+package org.vm.email.cleanup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vm.shared.LongList;
+
+/**
+ * Checks that the IN lists of BatchDeleter, padded up to a power of two, delete exactly the emails they are given,
+ * and that a failed batch is rolled back and thrown even when its rollback fails too.
+ */
+public class BatchDeleterTest {
+
+    private static final ArchiveJob JOB = ArchiveJob.MAIL_LOG;
+
+    private Connection con;
+
+    @Before
+    public void setUp() throws SQLException {
+        con = DriverManager.getConnection(BenchmarkData.h2Url("deleter"));
+        BenchmarkData.createTables(con);
+        BenchmarkData.insertRows(con, BenchmarkData.generateRows(3000));
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stat = con.createStatement()) {
+            stat.execute("DROP ALL OBJECTS");
+        }
+        con.close();
+    }
+
+    /**
+     * The IN lists are the next power of two of the values they hold.
+     */
+    @Test
+    public void inListSizeIsTheNextPowerOfTwo() {
+        assertEquals(1, BatchDeleter.inListSize(1));
+        assertEquals(2, BatchDeleter.inListSize(2));
+        assertEquals(4, BatchDeleter.inListSize(3));
+        assertEquals(16, BatchDeleter.inListSize(BatchDeleter.MIN_BATCH));
+        assertEquals(1024, BatchDeleter.inListSize(1024));
+        assertEquals(32768, BatchDeleter.inListSize(BatchDeleter.MAX_BATCH));
+    }
+
+    /**
+     * Every third email is deleted, in batches that are not powers of two and a last batch smaller than the rest.
+     */
+    @Test
+    public void deletesExactlyTheGivenEmails() throws SQLException {
+        LongList ids = new LongList(1000);
+        try (Statement stat = con.createStatement();
+             ResultSet rs = stat.executeQuery("SELECT id FROM mail_log WHERE MOD(id, 3) = 0 ORDER BY id")) {
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+        }
+        int mails = count("SELECT COUNT(*) FROM mail_log");
+        int events = count("SELECT COUNT(*) FROM sendgrid_event");
+        int deletedEvents = count("SELECT COUNT(*) FROM sendgrid_event e JOIN mail_log m ON m.guid = e.guid "
+                                      + "WHERE MOD(m.id, 3) = 0");
+
+        int deleted;
+        try (BatchDeleter deleter = new BatchDeleter(con, JOB, 100, 60000)) {
+            deleted = deleter.cleanDelete(ids, null);
+        }
+
+        assertEquals(ids.size() + deletedEvents, deleted);
+        assertEquals(mails - ids.size(), count("SELECT COUNT(*) FROM mail_log"));
+        assertEquals(events - deletedEvents, count("SELECT COUNT(*) FROM sendgrid_event"));
+        assertEquals(0, count("SELECT COUNT(*) FROM mail_log WHERE MOD(id, 3) = 0"));
+    }
+
+    /**
+     * A listener that fails rolls back its batch, and the failure of the rollback is kept as a suppressed exception
+     * of the failure of the batch.
+     */
+    @Test
+    public void rollbackFailureDoesNotHideTheCause() throws SQLException {
+        Connection failingRollback = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                if (method.getName().equals("rollback")) {
+                    con.rollback();
+                    throw new SQLException("rollback failed");
+                }
+                try {
+                    return method.invoke(con, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+        LongList ids = new LongList(10);
+        ids.add(1);
+        int mails = count("SELECT COUNT(*) FROM mail_log");
+        try (BatchDeleter deleter = new BatchDeleter(failingRollback, JOB, 100, 60000)) {
+            deleter.cleanDelete(ids, (c, batch) -> {
+                throw new SQLException("listener failed");
+            });
+            fail("the failure of the listener should be thrown");
+        } catch (SQLException e) {
+            assertEquals("listener failed", e.getMessage());
+            assertEquals(1, e.getSuppressed().length);
+            assertEquals("rollback failed", e.getSuppressed()[0].getMessage());
+        }
+        assertEquals(mails, count("SELECT COUNT(*) FROM mail_log"));
+    }
+
+    /**
+     * Runs a query returning a single count.
+     * @param sql of the query.
+     * @return the count.
+     * @throws SQLException in case of error.
+     */
+    private int count(String sql) throws SQLException {
+        try (Statement stat = con.createStatement(); ResultSet rs = stat.executeQuery(sql)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
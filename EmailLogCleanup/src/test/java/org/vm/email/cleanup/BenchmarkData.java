@@ -0,0 +1,196 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Data for the benchmarks: rows shaped like the output of Clean, and an embedded H2 database in MySQL mode with
+ * the mail_log and sendgrid_event tables seeded from those rows. The data only depends on the seed, so every run
+ * of a benchmark archives the same emails.
+ */
+public class BenchmarkData {
+
+    private static final String[] EVENTS = {"processed", "delivered", "open", "click", "bounce", "dropped"};
+    private static final String[] TYPES = {"opp_alert", "welcome", "password_reset", "newsletter"};
+
+    private static final String[] TABLES = {
+        "CREATE TABLE mail_log (id BIGINT PRIMARY KEY, email VARCHAR(255), guid VARCHAR(64), host VARCHAR(255), "
+            + "ref1 VARCHAR(64), ref2 VARCHAR(64), sent_time TIMESTAMP, type VARCHAR(64))",
+        "CREATE TABLE sendgrid_event (sg_event_id VARCHAR(64) PRIMARY KEY, guid VARCHAR(64), asm_group_id INT, "
+            + "attempt VARCHAR(16), category VARCHAR(255), email VARCHAR(255), event VARCHAR(32), ip VARCHAR(45), "
+            + "reason VARCHAR(255), response VARCHAR(255), sg_message_id VARCHAR(255), smtp_id VARCHAR(255), "
+            + "status VARCHAR(32), timestamp TIMESTAMP, tls INT, type VARCHAR(32), unsubscribe_url VARCHAR(1024), "
+            + "url VARCHAR(2048), url_offset VARCHAR(64), useragent VARCHAR(1024), vm_timestamp TIMESTAMP)"
+    };
+
+    private static final String[] INDEXES = {
+        "CREATE INDEX mail_log_sent_time ON mail_log (sent_time, id)",
+        "CREATE INDEX mail_log_guid ON mail_log (guid)",
+        "CREATE INDEX sendgrid_event_guid ON sendgrid_event (guid)"
+    };
+
+    /**
+     * The connection string of a private in-memory H2 database in MySQL mode, kept open until the JVM exits.
+     * @param name of the database.
+     * @return the connection string.
+     */
+    public static String h2Url(String name) {
+        return "jdbc:h2:mem:" + name + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    }
+
+    /**
+     * Generates rows shaped like the output of Clean: each email with a few events, repeating the mail columns.
+     * Emails without events have a row of their own with only the 8 mail columns.
+     * @param rowCount the number of rows.
+     * @return the rows, in the order the emails were generated.
+     */
+    public static List<String[]> generateRows(int rowCount) {
+        Random random = new Random(42);
+        List<String[]> rows = new ArrayList<>(rowCount);
+        int id = 1;
+        while (rows.size() < rowCount) {
+            String guid = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+            String email = "user" + random.nextInt(1000000) + "@example.org";
+            String sentTime = String.format("2019-%02d-%02d %02d:%02d:%02d", 1 + random.nextInt(12),
+                1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+            String[] mailInfo = {Integer.toString(id++), email, guid, "mail" + random.nextInt(4) + ".volunteermatch.org",
+                Integer.toString(random.nextInt(100000)), Integer.toString(random.nextInt(100000)), sentTime,
+                TYPES[random.nextInt(TYPES.length)]};
+            int events = random.nextInt(5);
+            if (events == 0) {
+                rows.add(mailInfo);
+            }
+            for (int i = 0; i < events && rows.size() < rowCount; i++) {
+                String[] row = new String[28];
+                System.arraycopy(mailInfo, 0, row, 0, 8);
+                row[8] = Long.toHexString(random.nextLong());
+                row[9] = Integer.toString(random.nextInt(20));
+                row[10] = null;
+                row[11] = "[\"" + mailInfo[7] + "\", \"alerts\"]";
+                row[12] = email;
+                row[13] = EVENTS[random.nextInt(EVENTS.length)];
+                row[14] = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+                row[15] = null;
+                row[16] = "250 2.0.0 OK " + random.nextInt(1000000) + " - gsmtp";
+                row[17] = Long.toHexString(random.nextLong()) + ".filter0001p1";
+                row[18] = "<" + guid + "@volunteermatch.org>";
+                row[19] = null;
+                row[20] = sentTime;
+                row[21] = Integer.toString(random.nextInt(2));
+                row[22] = null;
+                row[23] = null;
+                row[24] = row[13].equals("click") ? "https://www.volunteermatch.org/search/opp" + random.nextInt(100000) + ".jsp?utm_source=alert,email" : null;
+                row[25] = null;
+                row[26] = row[13].equals("open") || row[13].equals("click")
+                              ? "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/85.0" : null;
+                row[27] = sentTime;
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Creates the mail_log and sendgrid_event tables with their indexes, dropping them first if they exist.
+     * @param con a connection to the database.
+     * @throws SQLException in case of error.
+     */
+    public static void createTables(Connection con) throws SQLException {
+        createTables(con, true);
+    }
+
+    /**
+     * Creates the mail_log and sendgrid_event tables, dropping them first if they exist. Bulk loads are faster
+     * when the secondary indexes are only created once the rows are in.
+     * @param con a connection to the database.
+     * @param indexes whether the secondary indexes are created as well.
+     * @throws SQLException in case of error.
+     */
+    public static void createTables(Connection con, boolean indexes) throws SQLException {
+        try (Statement stat = con.createStatement()) {
+            stat.execute("DROP TABLE IF EXISTS sendgrid_event");
+            stat.execute("DROP TABLE IF EXISTS mail_log");
+            for (String table : TABLES) {
+                stat.execute(table);
+            }
+        }
+        if (indexes) {
+            createIndexes(con);
+        }
+    }
+
+    /**
+     * Creates the indexes the archiver reads and deletes by: mail_log by sent_time and by guid, and
+     * sendgrid_event by guid.
+     * @param con a connection to the database.
+     * @throws SQLException in case of error.
+     */
+    public static void createIndexes(Connection con) throws SQLException {
+        try (Statement stat = con.createStatement()) {
+            for (String index : INDEXES) {
+                stat.execute(index);
+            }
+        }
+    }
+
+    /**
+     * Inserts the emails and events of the given rows, as generated by generateRows. Rows repeating an email only
+     * add its event.
+     * @param con a connection to the database.
+     * @param rows to insert.
+     * @return the number of emails inserted.
+     * @throws SQLException in case of error.
+     */
+    public static int insertRows(Connection con, List<String[]> rows) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        int emails = 0;
+        int batched = 0;
+        try (PreparedStatement mail = con.prepareStatement("INSERT INTO mail_log VALUES (?,?,?,?,?,?,?,?)");
+             PreparedStatement event = con.prepareStatement("INSERT INTO sendgrid_event VALUES "
+                                                                + "(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)")) {
+            String lastGuid = null;
+            for (String[] row : rows) {
+                if (!row[2].equals(lastGuid)) {
+                    mail.setLong(1, Long.parseLong(row[0]));
+                    for (int i = 1; i < 8; i++) {
+                        mail.setString(i + 1, row[i]);
+                    }
+                    mail.setTimestamp(7, Timestamp.valueOf(row[6]));
+                    mail.addBatch();
+                    lastGuid = row[2];
+                    emails++;
+                }
+                if (row.length > 8) {
+                    event.setString(1, row[8]);
+                    event.setString(2, row[2]);
+                    event.setInt(3, Integer.parseInt(row[9]));
+                    for (int i = 10; i < 28; i++) {
+                        event.setString(i - 6, row[i]);
+                    }
+                    event.setTimestamp(14, Timestamp.valueOf(row[20]));
+                    event.setInt(15, Integer.parseInt(row[21]));
+                    event.setTimestamp(21, Timestamp.valueOf(row[27]));
+                    event.addBatch();
+                }
+                if (++batched == 1000) {
+                    mail.executeBatch();
+                    event.executeBatch();
+                    batched = 0;
+                }
+            }
+            mail.executeBatch();
+            event.executeBatch();
+            con.commit();
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+        return emails;
+    }
+}
@@ -0,0 +1,123 @@
+package org.vm.email.cleanup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a run stopped between the delete of a file and the save of its checkpoint does not let the next run
+ * reuse the name of that file, and that the partitions of finished slices are kept for the next run.
+ */
+public class CheckpointStoreTest {
+
+    private static final Timestamp START = Timestamp.valueOf("2019-01-01 00:00:00");
+    private static final Timestamp LAST = Timestamp.valueOf("2019-01-02 10:00:00");
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("checkpoint-store-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * The first file of a slice is named before anything is deleted, at the position the slice started from.
+     */
+    @Test
+    public void reservesTheFirstFileAtTheStart() throws ParseException {
+        LocalCheckpointStore store = store();
+        store.reserve(new Checkpoint(0, START, 0, 0, null, null), "2019-01-01 00:00:05", 1);
+
+        Checkpoint stored = single(store());
+        assertEquals(START, stored.getSentTime());
+        assertEquals(0, stored.getId());
+        assertEquals(1, stored.getFileNumber());
+        assertEquals("2019-01-01 00:00:05", stored.getFirstTimestamp());
+    }
+
+    /**
+     * The checkpoint of a deleted file keeps the number of a later file reserved meanwhile.
+     */
+    @Test
+    public void keepsTheLatestReservation() throws ParseException {
+        LocalCheckpointStore store = store();
+        Checkpoint start = new Checkpoint(0, START, 0, 0, null, null);
+        store.reserve(start, "2019-01-01 00:00:05", 1);
+        store.reserve(start, "2019-01-01 00:00:05", 2);
+        store.save(new Checkpoint(0, LAST, 42, 1, "2019-01-01 00:00:05", null));
+
+        Checkpoint stored = single(store());
+        assertEquals(LAST, stored.getSentTime());
+        assertEquals(42, stored.getId());
+        assertEquals(2, stored.getFileNumber());
+    }
+
+    /**
+     * A finished slice leaves nothing behind, reservations included.
+     */
+    @Test
+    public void finishRemovesTheSlice() throws ParseException {
+        LocalCheckpointStore store = store();
+        store.reserve(new Checkpoint(0, START, 0, 0, null, null), "2019-01-01 00:00:05", 1);
+        store.finish(0, null);
+        assertTrue(store().load().isEmpty());
+    }
+
+    /**
+     * The partition of a finished slice is read back by the next run until the checkpoints are cleared.
+     */
+    @Test
+    public void finishedPartitionsAreKept() throws ParseException {
+        LocalCheckpointStore store = store();
+        store.saveAll(Arrays.asList(new Checkpoint(0, START, 0, 0, null, LAST),
+            new Checkpoint(1, LAST, 0, 0, null, null)));
+        store.finish(0, "p20190101");
+
+        LocalCheckpointStore next = store();
+        assertEquals(1, next.load().size());
+        assertEquals(Collections.singleton("p20190101"), next.getFinishedPartitions());
+        next.clear();
+        assertTrue(next.getFinishedPartitions().isEmpty());
+        assertTrue(store().load().isEmpty());
+    }
+
+    /**
+     * A new store on the checkpoint file, as the next run creates.
+     * @return the store.
+     */
+    private LocalCheckpointStore store() {
+        return new LocalCheckpointStore(new File(dir, "checkpoint.json"));
+    }
+
+    /**
+     * Loads the checkpoint of the only slice.
+     * @param store to load from.
+     * @return the checkpoint.
+     * @throws ParseException if the stored checkpoint is not valid JSON.
+     */
+    private static Checkpoint single(CheckpointStore store) throws ParseException {
+        List<Checkpoint> slices = store.load();
+        assertEquals(1, slices.size());
+        return slices.get(0);
+    }
+}
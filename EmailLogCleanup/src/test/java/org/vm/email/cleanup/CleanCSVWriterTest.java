@@ -0,0 +1,104 @@
+package org.vm.email.cleanup;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.opencsv.CSVWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vm.shared.Compression;
+
+/**
+ * Checks that the encoder of CleanCSVWriter writes files byte for byte like the writer it replaced: the commas of
+ * every row escaped by wrapping the field in quotes, then written by opencsv with every field quoted.
+ */
+public class CleanCSVWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("clean-csv-writer-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Rows with quotes, commas, line breaks and nulls, one per field and all together.
+     */
+    @Test
+    public void encodesLikeOpencsvAfterEscapingCommas() throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        String[] values = {"plain", "", null, "a,b", ",", "say \"hi\"", "\"", "\"quoted, with comma\"", "line\nbreak",
+            "carriage\rreturn", "crlf\r\nend", "all of \"it\",\r\n together"};
+        int width = CleanCSVWriter.HEADER.length;
+        for (int i = 0; i < values.length; i++) {
+            String[] row = new String[width];
+            Arrays.fill(row, values[i]);
+            rows.add(row);
+            String[] mixed = new String[width];
+            for (int j = 0; j < width; j++) {
+                mixed[j] = values[(i + j) % values.length];
+            }
+            rows.add(mixed);
+        }
+        rows.add(new String[] {"short", null, "row"});
+        rows.addAll(BenchmarkData.generateRows(500));
+
+        CleanCSVWriter writer = new CleanCSVWriter(dir.getPath() + "/", "encoded", Compression.none(),
+            ArchiveJob.MAIL_LOG);
+        for (String[] row : rows) {
+            writer.writeToFile(row);
+        }
+        writer.close();
+
+        String actual = new String(Files.readAllBytes(writer.getFile().toPath()), StandardCharsets.UTF_8);
+        assertEquals(legacy(rows), actual);
+    }
+
+    /**
+     * Writes the header and the rows the way the files were written before the encoder.
+     * @param rows to write.
+     * @return the content of the file.
+     * @throws IOException in case of error.
+     */
+    private static String legacy(List<String[]> rows) throws IOException {
+        StringWriter out = new StringWriter();
+        try (CSVWriter csv = new CSVWriter(out, ',')) {
+            csv.writeNext(CleanCSVWriter.HEADER.clone());
+            for (String[] row : rows) {
+                csv.writeNext(checkForCommas(row.clone()));
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * The escaping of commas the files were written with, which wraps every field containing a comma in quotes.
+     * @param fileInfo the fields of a row, changed in place.
+     * @return the same array with the fields containing commas wrapped in quotes.
+     */
+    private static String[] checkForCommas(String[] fileInfo) {
+        for (int i = 0; i < fileInfo.length; i++) {
+            if (fileInfo[i] != null && fileInfo[i].contains(",")) {
+                fileInfo[i] = "\"" + fileInfo[i] + "\"";
+            }
+        }
+        return fileInfo;
+    }
+}
@@ -0,0 +1,114 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cold start of the function: every fork is a new JVM that runs a single request against an embedded
+ * H2 database, writing the files to a local directory. firstRequest times the first request alone, after the
+ * handler was created, and primed with prime=true, in the setup; that is the latency of a container restored from
+ * a SnapStart snapshot, whose init phase was done ahead of time. initAndFirstRequest also times creating and
+ * priming the handler, the cold start of a container without a snapshot. The score is the time of the single
+ * request, averaged over the forks. Run with mvn -Pbenchmark verify -Dbenchmark.args=ColdStartBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1, batchSize = 1)
+@Fork(10)
+public class ColdStartBenchmark {
+
+    private static final int ROWS = 2000;
+
+    @Param({"csv", "parquet", "jsonl"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean prime;
+
+    private final Map<String, String> env = new HashMap<>();
+    private Connection con;
+    private File dir;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        String jdbc = BenchmarkData.h2Url("cold");
+        con = DriverManager.getConnection(jdbc);
+        BenchmarkData.createTables(con);
+        BenchmarkData.insertRows(con, BenchmarkData.generateRows(ROWS));
+        dir = Files.createTempDirectory("cold-start-benchmark").toFile();
+        env.put("OFFSET", "0");
+        env.put("BASE_FILENAME", "cold_");
+        env.put("EMAILNUM", "500");
+        env.put("JDBC_URL", jdbc);
+        env.put("LOCAL_DIR", dir.getPath());
+        env.put("FORMAT", format);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        con.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Runs the first request of a handler created, and primed, in the setup.
+     */
+    @Benchmark
+    public String firstRequest(Handler handler) {
+        return handler.clean.handleRequest(null, null);
+    }
+
+    /**
+     * Creates the handler, primes it and runs its first request.
+     */
+    @Benchmark
+    public String initAndFirstRequest() {
+        Clean clean = new Clean(env::get);
+        if (prime) {
+            clean.prime();
+        }
+        return clean.handleRequest(null, null);
+    }
+
+    /**
+     * The handler of firstRequest, created once the database is seeded.
+     */
+    @State(Scope.Benchmark)
+    public static class Handler {
+
+        private Clean clean;
+
+        @Setup
+        public void setup(ColdStartBenchmark benchmark) {
+            clean = new Clean(benchmark.env::get);
+            if (benchmark.prime) {
+                clean.prime();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.vm.shared.Compression;
+
+/**
+ * Compares the plain CSV output of CleanCSVWriter with its gzip and zstd variants. Every setting writes the same
+ * rows to a file in a temporary directory and the bytes written and the encode throughput are printed as a table.
+ * Run with:
+ * mvn test-compile exec:java -Dexec.mainClass=org.vm.email.cleanup.CompressionBenchmark -Dexec.classpathScope=test
+ * An optional argument sets the number of rows (default 200000).
+ */
+public class CompressionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rowCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        List<String[]> rows = BenchmarkData.generateRows(rowCount);
+        File dir = Files.createTempDirectory("compression-benchmark").toFile();
+
+        Compression[] settings = {Compression.none(), Compression.gzip(1), Compression.gzip(6),
+            Compression.zstd(1), Compression.zstd(3), Compression.zstd(9)};
+        long plainBytes = 0;
+        System.out.println(String.format("%-10s %14s %8s %12s %12s", "setting", "bytes", "ratio", "ms", "rows/s"));
+        for (Compression compression : settings) {
+            //The first pass warms up the JIT, the second one is measured.
+            write(dir, rows, compression).delete();
+            long start = System.nanoTime();
+            File file = write(dir, rows, compression);
+            long nanos = System.nanoTime() - start;
+            long bytes = file.length();
+            if (compression == Compression.none()) {
+                plainBytes = bytes;
+            }
+            System.out.println(String.format("%-10s %14d %8.2f %12d %12.0f", compression, bytes,
+                (double) plainBytes / bytes, nanos / 1000000, rowCount * 1e9 / nanos));
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Writes all rows to a new file with the given compression.
+     */
+    private static File write(File dir, List<String[]> rows, Compression compression) throws Exception {
+        CleanCSVWriter writer = new CleanCSVWriter(dir.getPath() + "/", "benchmark", compression);
+        for (String[] row : rows) {
+            writer.writeToFile(row.clone());
+        }
+        writer.close();
+        return writer.getFile();
+    }
+}
@@ -0,0 +1,102 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vm.shared.Compression;
+
+/**
+ * Measures the per row work of writing a file: encoding rows with CleanCSVWriter and formatting timestamps with
+ * Clean.tsToString. Scores are in operations per second, where an
+ * operation is one row or one timestamp. Run with mvn -Pbenchmark verify -Dbenchmark.args=CsvWriterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvWriterBenchmark {
+
+    private static final int ROWS = 20000;
+
+    private List<String[]> rows;
+    private Timestamp[] timestamps;
+
+    @Setup
+    public void setup() {
+        rows = BenchmarkData.generateRows(ROWS);
+        timestamps = new Timestamp[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            timestamps[i] = Timestamp.valueOf(rows.get(i)[6]);
+        }
+    }
+
+    /**
+     * The directory the files are written to and the compression they are written with.
+     */
+    @State(Scope.Benchmark)
+    public static class Output {
+
+        @Param({"none", "gzip", "zstd"})
+        public String compression;
+
+        private File dir;
+
+        @Setup
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("csv-benchmark").toFile();
+        }
+
+        @TearDown
+        public void tearDown() {
+            dir.delete();
+        }
+    }
+
+    /**
+     * Writes every row to a new file with the configured compression.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long writeToFile(Output output) throws IOException {
+        CleanCSVWriter writer = new CleanCSVWriter(output.dir.getPath() + "/", "benchmark",
+            Compression.of(output.compression, null));
+        for (String[] row : rows) {
+            writer.writeToFile(row);
+        }
+        writer.close();
+        long bytes = writer.getFile().length();
+        writer.getFile().delete();
+        return bytes;
+    }
+
+    /**
+     * Formats the sent_time of every row the way the files show it.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void formatTimestamp(Blackhole blackhole) {
+        for (Timestamp timestamp : timestamps) {
+            blackhole.consume(Clean.tsToString(timestamp));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.vm.email.cleanup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that EventBatchJoiner hands on the same rows, in the same order, as looking up the events of every email
+ * on its own, with batches that do not divide the number of emails and guids whose case differs between the
+ * tables. The database is H2 in MySQL mode, with IGNORECASE=TRUE standing in for the collation of MySQL.
+ */
+public class EventBatchJoinerTest {
+
+    private static final ArchiveJob JOB = ArchiveJob.MAIL_LOG;
+
+    private Connection con;
+
+    @Before
+    public void setUp() throws SQLException {
+        con = DriverManager.getConnection(BenchmarkData.h2Url("joiner") + ";IGNORECASE=TRUE");
+        BenchmarkData.createTables(con);
+        BenchmarkData.insertRows(con, BenchmarkData.generateRows(3000));
+        try (Statement stat = con.createStatement()) {
+            //Emails whose guid only matches their events without regard to case.
+            stat.executeUpdate("UPDATE mail_log SET guid = UPPER(guid) WHERE MOD(id, 7) = 0");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stat = con.createStatement()) {
+            stat.execute("DROP ALL OBJECTS");
+        }
+        con.close();
+    }
+
+    /**
+     * Batches of several sizes join the same rows as the lookup of every email on its own.
+     */
+    @Test
+    public void batchedJoinMatchesPerEmailLookup() throws SQLException {
+        List<String[]> emails = readEmails();
+        List<String[]> expected = joinPerEmail(emails);
+        assertTrue("Some emails should only match their events without regard to case",
+            expected.stream().anyMatch(row -> row.length > JOB.getColumns().size()
+                                                  && !row[JOB.indexOf("guid")].equals(row[JOB.indexOf("guid")]
+                                                                                           .toLowerCase())));
+        for (int batchSize : new int[] {1, 7, 100, 5000}) {
+            List<String[]> actual = new ArrayList<>();
+            try (EventBatchJoiner joiner = new EventBatchJoiner(con, JOB, batchSize)) {
+                for (String[] email : emails) {
+                    joiner.add(email);
+                    if (joiner.isFull()) {
+                        joiner.flush(actual::add);
+                    }
+                }
+                joiner.flush(actual::add);
+            }
+            assertEquals("rows with batches of " + batchSize, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals("row " + i + " with batches of " + batchSize, expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    /**
+     * Reads the emails in the order Clean reads them.
+     * @return the parent columns of every email.
+     * @throws SQLException in case of error.
+     */
+    private List<String[]> readEmails() throws SQLException {
+        List<String[]> emails = new ArrayList<>();
+        ColumnMapping mapping = new ColumnMapping(JOB.getColumns(), 0);
+        try (Statement stat = con.createStatement();
+             ResultSet rs = stat.executeQuery("SELECT " + JOB.selectList() + " FROM mail_log ORDER BY sent_time, id")) {
+            mapping.resolve(rs);
+            while (rs.next()) {
+                String[] email = new String[JOB.getColumns().size()];
+                mapping.read(rs, email);
+                emails.add(email);
+            }
+        }
+        return emails;
+    }
+
+    /**
+     * Joins every email with its events by a query of its own, as Clean did before the batches.
+     * @param emails the parent columns of every email.
+     * @return one row per email and event, and the email alone if it has none.
+     * @throws SQLException in case of error.
+     */
+    private List<String[]> joinPerEmail(List<String[]> emails) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        int width = JOB.getColumns().size();
+        ColumnMapping mapping = new ColumnMapping(JOB.getChildColumns(), width);
+        try (PreparedStatement lookup = con.prepareStatement("SELECT " + JOB.childSelectList()
+                                                                  + " FROM sendgrid_event WHERE guid = ?")) {
+            for (String[] email : emails) {
+                lookup.setString(1, email[JOB.indexOf("guid")]);
+                boolean found = false;
+                try (ResultSet rs = lookup.executeQuery()) {
+                    mapping.resolve(rs);
+                    while (rs.next()) {
+                        String[] row = new String[JOB.getWidth()];
+                        System.arraycopy(email, 0, row, 0, width);
+                        mapping.read(rs, row);
+                        rows.add(row);
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    rows.add(email);
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,87 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the join of mail_log rows with their sendgrid events by EventBatchJoiner, against an embedded H2
+ * database in MySQL mode: the lookup queries, reading the events and assembling the joined rows. The score is in
+ * emails per second for each JOIN_BATCH size. Run with mvn -Pbenchmark verify -Dbenchmark.args=JoinBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JoinBenchmark {
+
+    private static final int EMAILS = 5000;
+
+    @Param({"1", "100", "1000"})
+    public int joinBatch;
+
+    private Connection con;
+    private List<String[]> emails;
+
+    @Setup
+    public void setup() throws SQLException {
+        con = DriverManager.getConnection(BenchmarkData.h2Url("join"));
+        List<String[]> rows = BenchmarkData.generateRows(EMAILS * 3);
+        BenchmarkData.createTables(con);
+        BenchmarkData.insertRows(con, rows);
+
+        //The mail columns of the first EMAILS emails, as the archiver reads them from mail_log.
+        emails = new ArrayList<>(EMAILS);
+        String lastGuid = null;
+        for (String[] row : rows) {
+            if (!row[2].equals(lastGuid) && emails.size() < EMAILS) {
+                String[] mailInfo = new String[8];
+                System.arraycopy(row, 0, mailInfo, 0, 8);
+                emails.add(mailInfo);
+                lastGuid = row[2];
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        con.close();
+    }
+
+    /**
+     * Joins every email with its events, one batch of joinBatch emails at a time.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EMAILS)
+    public void join(Blackhole blackhole) throws SQLException {
+        try (EventBatchJoiner joiner = new EventBatchJoiner(con, ArchiveJob.MAIL_LOG, joinBatch)) {
+            for (String[] mailInfo : emails) {
+                joiner.add(mailInfo);
+                if (joiner.isFull()) {
+                    joiner.flush(blackhole::consume);
+                }
+            }
+            joiner.flush(blackhole::consume);
+        }
+    }
+}
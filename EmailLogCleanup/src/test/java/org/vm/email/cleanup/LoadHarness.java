@@ -0,0 +1,175 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Runs the whole Clean.handleRequest flow offline and measures it at several scales. For every scale the tables
+ * are loaded with SyntheticDataGenerator, then Clean archives every email into a local directory with LOCAL_DIR,
+ * as it would into the S3 bucket, and deletes it from the database. The wall time, the rows archived per second,
+ * the peak heap and the time spent in garbage collection are printed and written to target/loadtest/results.json.
+ * The heap is sampled every 10 ms while Clean runs.
+ * Run with:
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ * -Dexec.args="-Xmx1g -classpath %classpath org.vm.email.cleanup.LoadHarness 1000000,10000000"
+ * The arguments are the numbers of emails to run with (default 1000000), and optionally the connection string of
+ * the database (default an H2 file database in MySQL mode under target/loadtest). The environment variables of
+ * Clean, ex: PARALLELISM, JOIN_BATCH or FORMAT, are passed on to it. Tens of millions of emails need a MySQL
+ * database with rewriteBatchedStatements=true in its connection string.
+ */
+public class LoadHarness {
+
+    private static final File DIRECTORY = new File("target/loadtest");
+
+    public static void main(String[] args) throws Exception {
+        String[] scales = (args.length > 0 ? args[0] : "1000000").split(",");
+        String jdbc = args.length > 1 ? args[1]
+                          : "jdbc:h2:" + new File(DIRECTORY, "email_db").getAbsolutePath()
+                                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE";
+        JSONArray results = new JSONArray();
+        for (String scale : scales) {
+            results.add(run(jdbc, Long.parseLong(scale.trim())));
+        }
+        try (PrintWriter out = new PrintWriter(new File(DIRECTORY, "results.json"), "UTF-8")) {
+            out.println(results.toJSONString());
+        }
+    }
+
+    /**
+     * Loads the given number of emails and archives all of them with Clean.
+     * @param jdbc the connection string of the database.
+     * @param emails the number of emails.
+     * @return the measurements of the run.
+     * @throws Exception if the database cannot be loaded or the run fails.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject run(String jdbc, long emails) throws Exception {
+        DIRECTORY.mkdirs();
+        long rows = new SyntheticDataGenerator(jdbc, emails, 30, 4).load();
+        File archive = new File(DIRECTORY, "archive-" + emails);
+        deleteDirectory(archive);
+
+        //Clean reads its configuration from these variables instead of the environment of the harness, which
+        //can still override everything but the database and the destination.
+        Map<String, String> env = new HashMap<>();
+        env.put("OFFSET", "0");
+        env.put("BASE_FILENAME", "loadtest_");
+        env.put("EMAILNUM", "100000");
+        env.putAll(System.getenv());
+        env.put("JDBC_URL", jdbc);
+        env.put("LOCAL_DIR", archive.getPath());
+
+        System.gc();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong peakHeap = new AtomicLong(memory.getHeapMemoryUsage().getUsed());
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "heap-sampler");
+        sampler.setDaemon(true);
+        long gcStart = gcMillis();
+        long start = System.nanoTime();
+        sampler.start();
+        String output = new Clean(env::get).handleRequest(null, null);
+        long nanos = System.nanoTime() - start;
+        sampler.interrupt();
+        long gc = gcMillis() - gcStart;
+
+        String message = output.split("\n", 2)[0];
+        long left = countEmails(jdbc);
+        long bytes = directorySize(archive);
+        JSONObject result = new JSONObject();
+        result.put("emails", emails);
+        result.put("rows", rows);
+        result.put("wallMs", nanos / 1000000);
+        result.put("rowsPerSecond", Math.round(rows * 1e9 / nanos));
+        result.put("peakHeapMb", peakHeap.get() / (1024 * 1024));
+        result.put("maxHeapMb", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        result.put("gcMs", gc);
+        result.put("archiveBytes", bytes);
+        result.put("emailsLeft", left);
+        result.put("message", message);
+        System.out.println(String.format("%d emails, %d rows: %.1f s, %.0f rows/s, peak heap %d MB, gc %d ms, "
+                                             + "%d bytes archived, %d emails left", emails, rows, nanos / 1e9,
+            rows * 1e9 / nanos, peakHeap.get() / (1024 * 1024), gc, bytes, left));
+        deleteDirectory(archive);
+        //ArchiveRoundTripTest checks the archive row by row at a small scale; at these scales the run has to
+        //finish and leave no emails behind.
+        if (!message.startsWith("SUCCESS") || left != 0) {
+            throw new IllegalStateException("The run at " + emails + " emails did not archive everything: " + message);
+        }
+        return result;
+    }
+
+    /**
+     * The time all garbage collectors have spent so far.
+     */
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * The number of emails left in mail_log, which is 0 after a complete run.
+     */
+    private static long countEmails(String jdbc) throws SQLException {
+        try (Connection con = DriverManager.getConnection(jdbc);
+             Statement stat = con.createStatement();
+             ResultSet rs = stat.executeQuery("SELECT COUNT(*) FROM mail_log")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * The total size of the files in a directory.
+     */
+    private static long directorySize(File directory) throws IOException {
+        if (!directory.exists()) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            return files.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    private static void deleteDirectory(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.vm.email.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Runs Clean against two databases, a primary and a read replica of it, and checks that the emails are read from the
+ * replica and deleted on the primary without losing a row. Before Clean starts, an event is added on the primary
+ * to each of the 100 oldest emails, which only reaches the replica after the replication lag; every one of them has
+ * to be in the archive. Without connection strings, both databases are in-memory H2 databases in MySQL mode loaded
+ * with the same emails, and a replicator thread applies the late events and the heartbeats written to the primary
+ * to the replica in bursts, once per lag, in the order they were written: the replica falls behind by up to the lag
+ * and catches up again, as asynchronous replication under load does. The lag is larger than REPLICA_MAX_LAG_MS
+ * (default 1000 here), so the deletes have to wait for the replica at times as well.
+ * Run with:
+ * mvn test-compile exec:java -Dexec.mainClass=org.vm.email.cleanup.ReplicaHarness -Dexec.classpathScope=test
+ * -Dexec.args="20000 1500"
+ * The arguments are the number of rows (default 20000), the replication lag in milliseconds (default 1500), and
+ * optionally the connection strings of a MySQL primary and of a replica of it, which are loaded through real
+ * replication instead. The environment variables of Clean, ex: PARALLELISM or STREAM_READ, are passed on to it.
+ */
+public class ReplicaHarness {
+
+    private static final int LATE_EVENTS = 100;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long lagMs = args.length > 1 ? Long.parseLong(args[1]) : 1500;
+        boolean simulated = args.length < 4;
+        String primaryJdbc = simulated ? BenchmarkData.h2Url("primary") : args[2];
+        String replicaJdbc = simulated ? BenchmarkData.h2Url("replica") : args[3];
+        File archive = Files.createTempDirectory("replica-harness").toFile();
+
+        String lateEvents = "INSERT INTO sendgrid_event (sg_event_id, guid, event, timestamp) SELECT "
+                                + "CONCAT('late-', id), guid, 'open', sent_time FROM mail_log WHERE id <= "
+                                + LATE_EVENTS;
+        Replicator replicator = null;
+        try (Connection primary = DriverManager.getConnection(primaryJdbc)) {
+            BenchmarkData.createTables(primary);
+            BenchmarkData.insertRows(primary, BenchmarkData.generateRows(rows));
+            if (simulated) {
+                //The replica starts as a copy of the primary, heartbeats included.
+                ReplicaMonitor heartbeats = new ReplicaMonitor(null, null, ReplicaMonitor.DEFAULT_TABLE, null, 0, 0);
+                heartbeats.createTable(primary);
+                try (Connection replica = DriverManager.getConnection(replicaJdbc)) {
+                    BenchmarkData.createTables(replica);
+                    BenchmarkData.insertRows(replica, BenchmarkData.generateRows(rows));
+                    heartbeats.createTable(replica);
+                }
+                replicator = new Replicator(primaryJdbc, replicaJdbc, lagMs);
+                new Thread(replicator, "replicator").start();
+            }
+            try (Statement stat = primary.createStatement()) {
+                stat.executeUpdate(lateEvents);
+            }
+            if (replicator != null) {
+                replicator.replicate(lateEvents);
+            }
+            long expected = count(primary, "mail_log m LEFT JOIN sendgrid_event e ON e.guid = m.guid");
+
+            Map<String, String> env = new HashMap<>();
+            env.put("OFFSET", "0");
+            env.put("BASE_FILENAME", "replica_");
+            env.put("EMAILNUM", "1000");
+            env.put("DELETE_BATCH", "100");
+            env.put("REPLICA_MAX_LAG_MS", "1000");
+            env.putAll(System.getenv());
+            env.put("JDBC_URL", primaryJdbc);
+            env.put("REPLICA_JDBC_URL", replicaJdbc);
+            env.put("LOCAL_DIR", archive.getPath());
+            env.put("HEARTBEAT_TABLE", ReplicaMonitor.DEFAULT_TABLE);
+            env.put("FORMAT", "csv");
+            env.remove("COMPRESSION");
+
+            long start = System.nanoTime();
+            String[] output = new Clean(env::get).handleRequest(null, null).split("\n", 2);
+            long millis = (System.nanoTime() - start) / 1000000;
+            JSONObject report = (JSONObject) new JSONParser().parse(output[1]);
+            long archivedLate = countLines(archive, "late-");
+            System.out.println(output[0]);
+            System.out.println(String.format("%d ms, %d of %d rows archived, %d of %d late events archived, %d emails"
+                                                 + " and %d events left on the primary, %s waits for the replica "
+                                                 + "taking %s ms", millis, report.get("encodeItems"), expected,
+                archivedLate, LATE_EVENTS, count(primary, "mail_log"), count(primary, "sendgrid_event"),
+                report.get("replicaWaitItems"), report.get("replicaWaitMillis")));
+            if (archivedLate != LATE_EVENTS) {
+                throw new IllegalStateException("Events the replica had not served were deleted");
+            }
+        } finally {
+            if (replicator != null) {
+                replicator.stop();
+            }
+            deleteDirectory(archive);
+        }
+    }
+
+    /**
+     * The number of rows of a table, or of a join.
+     */
+    private static long count(Connection con, String from) throws SQLException {
+        try (Statement stat = con.createStatement();
+             ResultSet rs = stat.executeQuery("SELECT COUNT(*) FROM " + from)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * The number of lines of the files in a directory that contain a string.
+     */
+    private static long countLines(File directory, String contained) throws IOException {
+        long lines = 0;
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                lines += Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                             .filter(line -> line.contains(contained)).count();
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    private static void deleteDirectory(File directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Stands in for asynchronous replication between the two H2 databases. It polls the heartbeats of the primary
+     * and applies them, and the statements handed to it, to the replica in the order they were seen, all at once
+     * every lag. Only what the harness checks is replicated; the deletes are not.
+     */
+    private static class Replicator implements Runnable {
+
+        private final String primaryJdbc;
+        private final String replicaJdbc;
+        private final long lagMs;
+        private final Deque<String> log = new ArrayDeque<>();
+        private final Map<String, Long> beats = new HashMap<>();
+        private volatile boolean stopped = false;
+
+        private Replicator(String primaryJdbc, String replicaJdbc, long lagMs) {
+            this.primaryJdbc = primaryJdbc;
+            this.replicaJdbc = replicaJdbc;
+            this.lagMs = lagMs;
+        }
+
+        /**
+         * Applies a statement run on the primary to the replica with the next burst.
+         */
+        private synchronized void replicate(String sql) {
+            log.addLast(sql);
+        }
+
+        private void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            try (Connection primary = DriverManager.getConnection(primaryJdbc);
+                 Connection replica = DriverManager.getConnection(replicaJdbc);
+                 Statement read = primary.createStatement();
+                 Statement write = replica.createStatement()) {
+                long nextBurst = System.currentTimeMillis() + lagMs;
+                while (!stopped) {
+                    try (ResultSet rs = read.executeQuery("SELECT name, beat FROM " + ReplicaMonitor.DEFAULT_TABLE)) {
+                        while (rs.next()) {
+                            if (!Long.valueOf(rs.getLong(2)).equals(beats.put(rs.getString(1), rs.getLong(2)))) {
+                                replicate("MERGE INTO " + ReplicaMonitor.DEFAULT_TABLE + " (name, beat) KEY (name) "
+                                              + "VALUES ('" + rs.getString(1) + "', " + rs.getLong(2) + ")");
+                            }
+                        }
+                    }
+                    if (System.currentTimeMillis() >= nextBurst) {
+                        String change;
+                        while ((change = next()) != null) {
+                            write.executeUpdate(change);
+                        }
+                        nextBurst += lagMs;
+                    }
+                    Thread.sleep(10);
+                }
+            } catch (SQLException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Takes the oldest change not applied yet.
+         */
+        private synchronized String next() {
+            return log.pollFirst();
+        }
+    }
+}
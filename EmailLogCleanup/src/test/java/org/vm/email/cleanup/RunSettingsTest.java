@@ -0,0 +1,189 @@
+package org.vm.email.cleanup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.parser.ParseException;
+import org.junit.Before;
+import org.junit.Test;
+import org.vm.shared.S3LogWriter;
+
+/**
+ * Checks how the environment variables are read into the settings of a run, and runs the trickle mode of Clean with
+ * them directly, without the Lambda handler.
+ */
+public class RunSettingsTest {
+
+    private final Map<String, String> env = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        env.put("OFFSET", "30");
+        env.put("BASE_FILENAME", "settings_");
+        env.put("EMAILNUM", "500");
+        env.put("BUCKET", "archive-bucket");
+        env.put("JDBC_URL", "jdbc:h2:mem:settings");
+    }
+
+    /**
+     * A run configured with only the required variables archives mail_log in a single slice into CSV files in the
+     * bucket.
+     */
+    @Test
+    public void defaults() throws IOException, ParseException {
+        RunSettings settings = RunSettings.of(env::get);
+        assertEquals(ArchiveJob.MAIL_LOG, settings.getJob());
+        assertEquals(500, settings.getArchive().getEmailNum());
+        assertEquals(RunSettings.DEFAULT_JOIN_BATCH, settings.getArchive().getJoinBatch());
+        assertEquals(0, settings.getArchive().getFetchSize());
+        assertEquals(RunSettings.DEFAULT_PARALLELISM, settings.getParallelism());
+        assertEquals("archive-bucket", settings.getDestination());
+        assertEquals("settings_checkpoint.json", settings.getCheckpointKey());
+        assertEquals(".csv", settings.getFileExtension());
+        assertEquals(RunSettings.DEFAULT_ROLL_MB << 20, settings.getRollBytes());
+        assertFalse(settings.isTrickle());
+        assertNull(settings.getPartitionMode());
+        assertNull(settings.getReplicaJdbc());
+        assertNull(settings.getS3Endpoint());
+        assertEquals(S3LogWriter.DEFAULT_PART_MB, settings.getUploadPartMb());
+        assertEquals(S3LogWriter.DEFAULT_UPLOAD_BUFFERS, settings.getUploadBuffers());
+        long days = (System.currentTimeMillis() - settings.getCutoff().getTime()) / (24 * 60 * 60 * 1000);
+        assertTrue("the cutoff should be 30 days back", days >= 29 && days <= 31);
+    }
+
+    /**
+     * Without JDBC_URL the connection strings are built from the variables of the database, and the emails are
+     * streamed one by one from MySQL unless it uses a cursor.
+     */
+    @Test
+    public void mysqlConnectionStrings() throws IOException, ParseException {
+        env.remove("JDBC_URL");
+        env.put("HOSTNAME", "primary");
+        env.put("REPLICA_HOSTNAME", "replica");
+        env.put("PORT", "3306");
+        env.put("DBNAME", "email_db");
+        env.put("DBUSER", "user");
+        env.put("DBPASSWORD", "secret");
+        env.put("STREAM_READ", "true");
+        RunSettings settings = RunSettings.of(env::get);
+        assertEquals("jdbc:mysql://primary:3306/email_db?user=user&password=secret", settings.getJdbc());
+        assertEquals("jdbc:mysql://replica:3306/email_db?user=user&password=secret", settings.getReplicaJdbc());
+        assertEquals(Integer.MIN_VALUE, settings.getArchive().getFetchSize());
+
+        env.put("JDBC_URL", "jdbc:mysql://primary:3306/email_db?useCursorFetch=true");
+        env.put("FETCH_SIZE", "250");
+        assertEquals(250, RunSettings.of(env::get).getArchive().getFetchSize());
+    }
+
+    /**
+     * A trickle run leaves the partitions to a full run, and values that are not known or too small fail before the
+     * run connects.
+     */
+    @Test
+    public void partitionAndFormatModes() throws IOException, ParseException {
+        env.put("PARTITION_MODE", "exchange");
+        assertEquals("exchange", RunSettings.of(env::get).getPartitionMode());
+        env.put("TRICKLE", "true");
+        assertNull(RunSettings.of(env::get).getPartitionMode());
+        env.remove("TRICKLE");
+
+        env.put("PARTITION_MODE", "truncate");
+        assertInvalid("PARTITION_MODE");
+        env.remove("PARTITION_MODE");
+        env.put("FORMAT", "xml");
+        assertInvalid("FORMAT");
+        env.put("FORMAT", "jsonl");
+        env.put("COMPRESSION", "gzip");
+        assertEquals(".jsonl.gz", RunSettings.of(env::get).getFileExtension());
+        env.put("MAX_CONNECTIONS", "2");
+        assertInvalid("MAX_CONNECTIONS");
+    }
+
+    /**
+     * The endpoint of the bucket and the parts of streamed uploads are read with the other settings.
+     */
+    @Test
+    public void uploadSettings() throws IOException, ParseException {
+        env.put("S3_ENDPOINT", "http://localhost:9000");
+        env.put("UPLOAD_PART_MB", "16");
+        env.put("UPLOAD_BUFFERS", "2");
+        RunSettings settings = RunSettings.of(env::get);
+        assertEquals("http://localhost:9000", settings.getS3Endpoint());
+        assertEquals(16, settings.getUploadPartMb());
+        assertEquals(2, settings.getUploadBuffers());
+    }
+
+    /**
+     * A trickle run archives the emails sent since the last one, and the next run finds nothing new.
+     */
+    @Test
+    public void trickleRunsContinueFromTheMark() throws Exception {
+        String jdbc = BenchmarkData.h2Url("settings");
+        new SyntheticDataGenerator(jdbc, 300, 30, 1).load();
+        File dir = Files.createTempDirectory("run-settings-test").toFile();
+        env.put("JDBC_URL", jdbc);
+        env.put("OFFSET", "0");
+        env.put("LOCAL_DIR", dir.getPath());
+        env.put("TRICKLE", "true");
+        try (Connection con = DriverManager.getConnection(jdbc)) {
+            try {
+                Clean clean = new Clean(env::get);
+                String first = clean.run(RunSettings.of(env::get), null, new RunReport("test"));
+                assertTrue(first, first.startsWith("SUCCESS"));
+                int left = count(con);
+                String second = clean.run(RunSettings.of(env::get), null, new RunReport("test"));
+                assertTrue(second, second.contains("\"status\":\"NO_DATA\""));
+                assertEquals(left, count(con));
+            } finally {
+                try (Statement stat = con.createStatement()) {
+                    stat.execute("DROP ALL OBJECTS");
+                }
+                for (File file : dir.listFiles()) {
+                    file.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * Counts the emails left in mail_log.
+     * @param con is the current connection.
+     * @return the count.
+     * @throws SQLException in case of error.
+     */
+    private static int count(Connection con) throws SQLException {
+        try (Statement stat = con.createStatement();
+             ResultSet rs = stat.executeQuery("SELECT COUNT(*) FROM mail_log")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * Checks that the settings cannot be read.
+     * @param variable the variable that is not valid.
+     */
+    private void assertInvalid(String variable) throws IOException, ParseException {
+        try {
+            RunSettings.of(env::get);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(variable));
+            return;
+        }
+        throw new AssertionError(variable + " should not be valid");
+    }
+}
@@ -0,0 +1,302 @@
+package org.vm.email.cleanup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk loads production shaped data into the mail_log and sendgrid_event tables of a local database. Emails are
+ * spread evenly over the given number of days before now, in id order, and their event counts are skewed: a fifth
+ * have no events, most have a few and a small share of them have hundreds, like emails opened by link scanners.
+ * The event fields the archiver has to escape are long and contain commas and quotes: user agents, urls with
+ * query strings, bounce reasons and categories.
+ * Emails are generated in chunks of CHUNK emails, each from a random seeded by its number, so the data does not
+ * depend on the number of threads. Every thread inserts its chunks on a connection of its own with batched
+ * inserts, and the secondary indexes are only created once all rows are in. For MySQL, add
+ * rewriteBatchedStatements=true to the connection string so that batches are sent as multi-row inserts.
+ * Run with:
+ * mvn test-compile exec:java -Dexec.mainClass=org.vm.email.cleanup.SyntheticDataGenerator -Dexec.classpathScope=test
+ * -Dexec.args="jdbc:mysql://localhost:3306/email_db?user=root 1000000"
+ * The arguments are the connection string, the number of emails, and optionally the number of days (default 30)
+ * and of threads (default 4).
+ */
+public class SyntheticDataGenerator {
+
+    /**
+     * Number of emails generated from one seed and inserted in one transaction.
+     */
+    static final int CHUNK = 10000;
+
+    /**
+     * Number of emails whose rows are sent to the database with one executeBatch.
+     */
+    private static final int BATCH = 1000;
+
+    private static final long SEED = 42;
+
+    private static final String[] TYPES = {"opp_alert", "newsletter", "welcome", "password_reset",
+        "custom_email_to_volunteer"};
+    private static final int[] TYPE_WEIGHTS = {55, 15, 10, 8, 12};
+
+    private static final String[] USER_AGENTS = {
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/85.0.4183.102 "
+            + "Safari/537.36",
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 13_6 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Mobile/15E148",
+        "Mozilla/5.0 (Windows NT 5.1; rv:11.0) Gecko Firefox/11.0 (via ggpht.com GoogleImageProxy)",
+        "Mozilla/5.0 (Linux; Android 10; SM-G975U) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/84.0.4147.125 "
+            + "Mobile Safari/537.36 [FB_IAB/FB4A;FBAV/283.0.0.44.117;]",
+        "Microsoft Office/16.0 (Windows NT 10.0; Microsoft Outlook 16.0.13127; Pro), \"Outlook\", ms-office; "
+            + "MSOffice 16"
+    };
+
+    private static final String[] BOUNCE_REASONS = {
+        "550 5.1.1 The email account that you tried to reach does not exist. Please try double-checking the "
+            + "recipient's email address for typos or unnecessary spaces, \"user unknown\"",
+        "552 5.2.2 The email account that you tried to reach is over quota, mailbox full",
+        "421 4.7.0 [10.0.0.1] Our system has detected an unusual rate of unsolicited mail, \"deferred\""
+    };
+
+    private final String jdbc;
+    private final long emails;
+    private final int days;
+    private final int threads;
+    private final long startMillis;
+    private final AtomicLong nextChunk = new AtomicLong();
+    private final AtomicLong emailCount = new AtomicLong();
+    private final AtomicLong eventCount = new AtomicLong();
+
+    /**
+     * The constructor takes in where the data is loaded and how much of it.
+     * @param jdbc the connection string of the database.
+     * @param emails the number of emails.
+     * @param days the number of days before now the emails are spread over.
+     * @param threads the number of connections inserting at once.
+     */
+    public SyntheticDataGenerator(String jdbc, long emails, int days, int threads) {
+        this.jdbc = jdbc;
+        this.emails = emails;
+        this.days = days;
+        this.threads = threads;
+        this.startMillis = System.currentTimeMillis() - days * 86400000L;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(args[0], Long.parseLong(args[1]),
+            args.length > 2 ? Integer.parseInt(args[2]) : 30, args.length > 3 ? Integer.parseInt(args[3]) : 4);
+        generator.load();
+    }
+
+    /**
+     * Recreates the tables and loads every email and its events.
+     * @return the number of rows inserted into both tables.
+     * @throws Exception if the database cannot be loaded.
+     */
+    public long load() throws Exception {
+        long start = System.nanoTime();
+        try (Connection con = DriverManager.getConnection(jdbc)) {
+            BenchmarkData.createTables(con, false);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(() -> {
+                insertChunks();
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long loaded = System.nanoTime();
+        try (Connection con = DriverManager.getConnection(jdbc)) {
+            BenchmarkData.createIndexes(con);
+        }
+        long rows = emailCount.get() + eventCount.get();
+        System.out.println(String.format("Loaded %d emails and %d events in %.1f s (%.0f rows/s), indexed in %.1f s",
+            emailCount.get(), eventCount.get(), (loaded - start) / 1e9, rows * 1e9 / (loaded - start),
+            (System.nanoTime() - loaded) / 1e9));
+        return rows;
+    }
+
+    /**
+     * Takes chunks until every email has been inserted.
+     * @throws SQLException in case of error.
+     */
+    private void insertChunks() throws SQLException {
+        try (Connection con = DriverManager.getConnection(jdbc);
+             PreparedStatement mail = con.prepareStatement("INSERT INTO mail_log VALUES (?,?,?,?,?,?,?,?)");
+             PreparedStatement event = con.prepareStatement("INSERT INTO sendgrid_event VALUES "
+                                                                + "(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)")) {
+            con.setAutoCommit(false);
+            long chunk;
+            while ((chunk = nextChunk.getAndIncrement()) * CHUNK < emails) {
+                int inserted = insertChunk(chunk, mail, event);
+                con.commit();
+                long total = emailCount.addAndGet(inserted);
+                if (total / 1000000 != (total - inserted) / 1000000) {
+                    System.out.println("Loaded " + total + " emails");
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates and inserts the emails of one chunk.
+     * @param chunk the number of the chunk.
+     * @param mail the insert into mail_log.
+     * @param event the insert into sendgrid_event.
+     * @return the number of emails inserted.
+     * @throws SQLException in case of error.
+     */
+    private int insertChunk(long chunk, PreparedStatement mail, PreparedStatement event) throws SQLException {
+        Random random = new Random(SEED * 31 + chunk);
+        long first = chunk * CHUNK + 1;
+        long last = Math.min(emails, first + CHUNK - 1);
+        double millisPerEmail = days * 86400000.0 / emails;
+        int events = 0;
+        for (long id = first; id <= last; id++) {
+            String guid = String.format("%016x%016x", id, random.nextLong());
+            String email = "volunteer" + random.nextInt(5000000) + "@example.org";
+            String type = pick(random, TYPES, TYPE_WEIGHTS);
+            long sentTime = startMillis + (long) (id * millisPerEmail) + random.nextInt(5000);
+            mail.setLong(1, id);
+            mail.setString(2, email);
+            mail.setString(3, guid);
+            mail.setString(4, "mail" + random.nextInt(4) + ".volunteermatch.org");
+            mail.setString(5, Integer.toString(random.nextInt(1000000)));
+            mail.setString(6, random.nextInt(10) == 0 ? null : Integer.toString(random.nextInt(1000000)));
+            mail.setTimestamp(7, new Timestamp(sentTime));
+            mail.setString(8, type);
+            mail.addBatch();
+
+            int count = eventCount(random);
+            for (int i = 0; i < count; i++) {
+                addEvent(event, random, id, i, guid, email, type, sentTime);
+            }
+            events += count;
+            if ((id - first + 1) % BATCH == 0 || id == last) {
+                mail.executeBatch();
+                event.executeBatch();
+            }
+        }
+        eventCount.addAndGet(events);
+        return (int) (last - first + 1);
+    }
+
+    /**
+     * Binds one event of an email and adds it to the batch. The first events are processed and delivered,
+     * or a bounce; the rest are opens and clicks.
+     */
+    private static void addEvent(PreparedStatement event, Random random, long id, int index, String guid,
+                                 String email, String type, long sentTime) throws SQLException {
+        String name;
+        if (index == 0) {
+            name = "processed";
+        } else if (index == 1) {
+            name = random.nextInt(20) == 0 ? (random.nextBoolean() ? "bounce" : "dropped") : "delivered";
+        } else {
+            name = random.nextInt(3) == 0 ? "click" : "open";
+        }
+        long timestamp = sentTime + index * 60000L + random.nextInt(60000);
+        boolean bounce = name.equals("bounce") || name.equals("dropped");
+        boolean human = name.equals("open") || name.equals("click");
+        event.setString(1, Long.toHexString(random.nextLong()) + Long.toHexString(id * 512 + index));
+        event.setString(2, guid);
+        event.setInt(3, random.nextInt(20));
+        event.setString(4, bounce ? Integer.toString(1 + random.nextInt(5)) : null);
+        event.setString(5, "[\"" + type + "\", \"alerts\", \"v" + random.nextInt(10) + "\"]");
+        event.setString(6, email);
+        event.setString(7, name);
+        event.setString(8, human ? "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256)
+                               : null);
+        event.setString(9, bounce ? BOUNCE_REASONS[random.nextInt(BOUNCE_REASONS.length)] : null);
+        event.setString(10, name.equals("delivered") ? "250 2.0.0 OK " + random.nextInt(1000000) + " - gsmtp" : null);
+        event.setString(11, Long.toHexString(random.nextLong()) + ".filter0001p1las1-" + random.nextInt(100000));
+        event.setString(12, "<" + guid + "@volunteermatch.org>");
+        event.setString(13, bounce ? "5.1.1" : null);
+        event.setTimestamp(14, new Timestamp(timestamp));
+        event.setInt(15, random.nextInt(2));
+        event.setString(16, bounce ? "bounce" : null);
+        event.setString(17, random.nextInt(4) == 0 ? "https://www.volunteermatch.org/unsubscribe?guid=" + guid : null);
+        event.setString(18, name.equals("click") ? url(random) : null);
+        event.setString(19, name.equals("click") ? Integer.toString(random.nextInt(20)) : null);
+        event.setString(20, human ? userAgent(random) : null);
+        event.setTimestamp(21, new Timestamp(timestamp + random.nextInt(5000)));
+        event.addBatch();
+    }
+
+    /**
+     * The number of events of an email: none for a fifth of them, a geometric number with a mean of about 3 for
+     * most, and 20 to 300 for one in 200.
+     */
+    private static int eventCount(Random random) {
+        int draw = random.nextInt(1000);
+        if (draw < 200) {
+            return 0;
+        } else if (draw < 995) {
+            return 1 + (int) (Math.log(1 - random.nextDouble()) / Math.log(0.6));
+        }
+        return 20 + random.nextInt(281);
+    }
+
+    /**
+     * A click url with a long query string of 100 to about 1500 characters, with commas and quotes.
+     */
+    private static String url(Random random) {
+        StringBuilder url = new StringBuilder("https://www.volunteermatch.org/search/opp")
+                                .append(random.nextInt(3000000)).append(".jsp?utm_source=alert,email")
+                                .append("&utm_campaign=\"weekly\"&l=San+Francisco,+CA,+USA");
+        int length = 100 + (int) Math.min(1400, -Math.log(1 - random.nextDouble()) * 250);
+        while (url.length() < length) {
+            url.append("&k").append(random.nextInt(100)).append('=').append(Long.toHexString(random.nextLong()));
+        }
+        return url.substring(0, length);
+    }
+
+    /**
+     * A user agent, some of which carry long lists of in-app browser details.
+     */
+    private static String userAgent(Random random) {
+        String userAgent = USER_AGENTS[random.nextInt(USER_AGENTS.length)];
+        if (random.nextInt(10) == 0) {
+            StringBuilder details = new StringBuilder(userAgent).append(" [");
+            int parts = 5 + random.nextInt(25);
+            for (int i = 0; i < parts; i++) {
+                details.append(i == 0 ? "" : ";").append("FBAN/").append(Long.toHexString(random.nextLong()));
+            }
+            return details.append(']').toString();
+        }
+        return userAgent;
+    }
+
+    /**
+     * Picks one of the values with the given weights.
+     */
+    private static String pick(Random random, String[] values, int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int draw = random.nextInt(total);
+        for (int i = 0; i < values.length; i++) {
+            draw -= weights[i];
+            if (draw < 0) {
+                return values[i];
+            }
+        }
+        return values[values.length - 1];
+    }
+}
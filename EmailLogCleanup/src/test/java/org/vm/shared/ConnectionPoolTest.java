@@ -0,0 +1,91 @@
+package org.vm.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that the statements and metadata of a borrowed connection hand out the borrowed connection, so that closing
+ * the connection they return gives it back to the pool instead of closing the connection of the driver, and that
+ * no more than the maximum of connections is open at once.
+ */
+public class ConnectionPoolTest {
+
+  private static final String JDBC = "jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1";
+
+  @After
+  public void tearDown() {
+    ConnectionPool.of(JDBC, 1).closeIdle();
+  }
+
+  /**
+   * Every kind of statement, and the metadata, return the connection they were created by.
+   */
+  @Test
+  public void statementsReturnTheBorrowedConnection() throws SQLException {
+    ConnectionPool pool = ConnectionPool.of(JDBC, 1);
+    try (Connection con = pool.getConnection();
+         Statement stat = con.createStatement();
+         PreparedStatement prepared = con.prepareStatement("SELECT 1");
+         CallableStatement call = con.prepareCall("SELECT 1")) {
+      assertSame(con, stat.getConnection());
+      assertSame(con, prepared.getConnection());
+      assertSame(con, call.getConnection());
+      assertSame(con, con.getMetaData().getConnection());
+      assertTrue(prepared.execute());
+    }
+  }
+
+  /**
+   * Closing the connection of a statement returns it to the pool, and the next borrow reuses it.
+   */
+  @Test
+  public void closingTheConnectionOfAStatementReturnsIt() throws SQLException {
+    ConnectionPool pool = ConnectionPool.of(JDBC, 1);
+    pool.closeIdle();
+    int reused = pool.getReused();
+    Statement stat = pool.getConnection().createStatement();
+    stat.getConnection().close();
+    assertEquals(1, pool.getIdle());
+    try (Connection con = pool.getConnection(); Statement again = con.createStatement()) {
+      assertEquals(reused + 1, pool.getReused());
+      assertTrue(again.execute("SELECT 1"));
+    }
+  }
+
+  /**
+   * Once the maximum is open, a borrow waits for a connection to be returned and is handed that one.
+   */
+  @Test(timeout = 30000)
+  public void borrowWaitsOnceTheMaximumIsOpen() throws Exception {
+    ConnectionPool pool = ConnectionPool.of("jdbc:h2:mem:pool_max;DB_CLOSE_DELAY=-1", 1, 1);
+    Connection first = pool.getConnection();
+    Connection[] second = new Connection[1];
+    Thread borrower = new Thread(() -> {
+      try {
+        second[0] = pool.getConnection();
+      } catch (SQLException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    borrower.start();
+    borrower.join(200);
+    assertTrue(borrower.isAlive());
+    first.close();
+    borrower.join();
+    assertEquals(1, pool.getOpen());
+    assertEquals(1, pool.getCreated());
+    second[0].close();
+    pool.closeIdle();
+    assertEquals(0, pool.getOpen());
+  }
+}
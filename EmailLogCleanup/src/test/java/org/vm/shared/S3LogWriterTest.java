@@ -0,0 +1,41 @@
+package org.vm.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.Test;
+
+/**
+ * Checks that every file type is stored with its own content type, and compressed files with the encoding of their
+ * compression on top.
+ */
+public class S3LogWriterTest {
+
+  /**
+   * The content type follows the extension of the file, before the extension of its compression.
+   */
+  @Test
+  public void contentTypeFollowsTheExtension() {
+    assertEquals("text/csv", S3LogWriter.metadataFor("mail_log_2019-01-01_1.csv").getContentType());
+    assertEquals("application/x-ndjson", S3LogWriter.metadataFor("mail_log_2019-01-01_1.jsonl").getContentType());
+    assertEquals("application/json", S3LogWriter.metadataFor("manifest_2019-01-01.json").getContentType());
+    assertEquals("application/vnd.apache.parquet",
+        S3LogWriter.metadataFor("mail_log_2019-01-01_1.parquet").getContentType());
+    assertEquals("application/octet-stream", S3LogWriter.metadataFor("mail_log_2019-01-01_1").getContentType());
+  }
+
+  /**
+   * A compressed file keeps the content type of its contents and gets the encoding of its compression.
+   */
+  @Test
+  public void compressedFileKeepsItsContentType() {
+    ObjectMetadata gzip = S3LogWriter.metadataFor("mail_log_2019-01-01_1.jsonl.gz");
+    assertEquals("application/x-ndjson", gzip.getContentType());
+    assertEquals("gzip", gzip.getContentEncoding());
+    ObjectMetadata zstd = S3LogWriter.metadataFor("mail_log_2019-01-01_1.csv.zst");
+    assertEquals("text/csv", zstd.getContentType());
+    assertEquals("zstd", zstd.getContentEncoding());
+    assertNull(S3LogWriter.metadataFor("mail_log_2019-01-01_1.parquet").getContentEncoding());
+  }
+}
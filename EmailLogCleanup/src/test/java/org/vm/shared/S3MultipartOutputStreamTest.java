@@ -0,0 +1,190 @@
+package org.vm.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.junit.Test;
+
+/**
+ * Checks that an upload that failed or was aborted is never reported as stored: close throws with the cause, and
+ * a CSV writer that could not write its lines fails instead of keeping the failure to itself.
+ */
+public class S3MultipartOutputStreamTest {
+
+  private static final int PART = S3MultipartOutputStream.MIN_PART_SIZE;
+
+  /**
+   * A completed upload closes without an error, and closing it again does nothing.
+   */
+  @Test
+  public void closeCompletesTheUpload() throws IOException {
+    FakeS3 s3 = new FakeS3(false);
+    S3MultipartOutputStream stream = open(s3);
+    stream.write(new byte[PART + 10]);
+    stream.close();
+    stream.close();
+    assertEquals(1, s3.completed);
+    assertEquals(0, s3.aborted);
+  }
+
+  /**
+   * Closing a stream that was aborted throws instead of returning as if the object was stored.
+   */
+  @Test
+  public void closeAfterAbortThrows() throws IOException {
+    FakeS3 s3 = new FakeS3(false);
+    S3MultipartOutputStream stream = open(s3);
+    stream.write(new byte[10]);
+    stream.abort();
+    try {
+      stream.close();
+      fail("close should throw once the upload was aborted");
+    } catch (IOException e) {
+      assertNotNull(e.getCause());
+    }
+    assertEquals(0, s3.completed);
+    assertEquals(1, s3.aborted);
+  }
+
+  /**
+   * A part that failed to upload is thrown by close, with the failure of the part as its cause, and the upload is
+   * aborted rather than completed. A second close throws as well.
+   */
+  @Test
+  public void failedPartIsThrownByEveryClose() throws IOException {
+    FakeS3 s3 = new FakeS3(true);
+    S3MultipartOutputStream stream = open(s3);
+    stream.write(new byte[PART]);
+    for (int i = 0; i < 2; i++) {
+      try {
+        stream.close();
+        fail("close should throw the failure of the part");
+      } catch (IOException e) {
+        assertTrue(hasCause(e, SdkClientException.class));
+      }
+    }
+    assertEquals(0, s3.completed);
+    assertEquals(1, s3.aborted);
+  }
+
+  /**
+   * A header that opencsv fails to write, larger than the buffer of the writer below it, is thrown by the writer.
+   */
+  @Test
+  public void csvWriterThrowsTheFailureOfItsHeader() {
+    String[] header = new String[2000];
+    Arrays.fill(header, "a_rather_long_column_name");
+    try {
+      new SharedCSVWriter("failing", ',', new FailingLog(), Compression.none(), header) {
+        @Override
+        public void writeToFile(Object o) {
+          writeNextLine((String[]) o);
+        }
+
+        @Override
+        public void writeCSVHeader() {
+        }
+      };
+      fail("the writer should throw the failure of its header");
+    } catch (UncheckedIOException e) {
+      assertTrue(hasCause(e, IOException.class));
+    }
+  }
+
+  private static S3MultipartOutputStream open(FakeS3 s3) {
+    return new S3MultipartOutputStream(s3, "bucket", "key", new ObjectMetadata(), PART, 2);
+  }
+
+  private static boolean hasCause(Throwable e, Class<? extends Throwable> type) {
+    for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+      if (type.isInstance(cause)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stands in for s3, counting the completed and aborted uploads. Its parts fail if asked to.
+   */
+  private static final class FakeS3 extends AbstractAmazonS3 {
+    private final boolean failParts;
+    private volatile int completed = 0;
+    private volatile int aborted = 0;
+
+    private FakeS3(boolean failParts) {
+      this.failParts = failParts;
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+      InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+      result.setUploadId("upload");
+      return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+      if (failParts) {
+        throw new SdkClientException("part " + request.getPartNumber() + " failed");
+      }
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("etag" + request.getPartNumber());
+      return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+      completed++;
+      return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+      aborted++;
+    }
+  }
+
+  /**
+   * A destination whose stream fails every write.
+   */
+  private static final class FailingLog implements WriteLog {
+
+    @Override
+    public void writeLog(java.io.File file, String filename) throws IOException {
+      throw new IOException("not used");
+    }
+
+    @Override
+    public OutputStream openLog(String filename) {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          throw new IOException("disk full");
+        }
+      };
+    }
+
+    @Override
+    public void setStats(StageStats stats) {
+    }
+  }
+}